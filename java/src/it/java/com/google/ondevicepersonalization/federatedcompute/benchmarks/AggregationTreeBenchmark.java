@@ -0,0 +1,187 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.common.collect.Lists;
+import com.google.fcp.aggregation.AggregationSession;
+import com.google.fcp.plan.PhaseSession;
+import com.google.fcp.tensorflow.AppFiles;
+import com.google.internal.federated.plan.Plan;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationTreePlanner;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the duration of in-memory aggregation trees of different fan-ins on a local plan and
+ * client update, for both the V1 (TensorFlow phase session) and V2 (aggregation session) paths.
+ *
+ * <p>The client update is replicated to the requested number of inputs. Each tree shape is run
+ * after a warm up, and the median duration is reported along with the fan-in chosen by the {@link
+ * AggregationTreePlanner} from the sessions measured during the runs.
+ */
+public final class AggregationTreeBenchmark {
+
+  /** Arguments of the benchmark. */
+  static final class Args {
+    @Parameter(names = "--help", help = true)
+    boolean help = false;
+
+    @Parameter(names = "--server_plan", description = "Local server plan file.", required = true)
+    String serverPlan;
+
+    @Parameter(
+        names = "--client_update",
+        description = "Local unencrypted client update file.",
+        required = true)
+    String clientUpdate;
+
+    @Parameter(names = "--inputs", description = "The number of client updates to aggregate.")
+    int inputs = 500;
+
+    @Parameter(names = "--fan_ins", description = "The fan-ins of the trees to compare.")
+    List<Integer> fanIns = new ArrayList<>(List.of(8, 16, 32, 64, 128));
+
+    @Parameter(names = "--runs", description = "The number of measured runs per tree shape.")
+    int runs = 5;
+
+    @Parameter(names = "--heap_budget_megabytes", description = "The heap budget of the planner.")
+    int heapBudgetMegabytes = 1024;
+  }
+
+  private final TensorflowPlanSessionFactory factory = new TensorflowPlanSessionFactory();
+  private final AppFiles appFiles = new AppFiles("/dev/shm");
+  private final AggregationTreePlanner planner;
+  private final byte[] plan;
+  private final boolean serverPhaseV2;
+
+  private AggregationTreeBenchmark(byte[] plan, AggregationTreePlanner planner)
+      throws IOException {
+    this.plan = plan;
+    this.planner = planner;
+    this.serverPhaseV2 = Plan.parseFrom(plan).getPhase(0).hasServerPhaseV2();
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Args args = new Args();
+    JCommander jcommander = JCommander.newBuilder().addObject(args).build();
+    jcommander.parse(argv);
+    if (args.help) {
+      jcommander.usage();
+      return;
+    }
+
+    byte[] clientUpdate = Files.readAllBytes(Path.of(args.clientUpdate));
+    List<byte[]> inputs = Collections.nCopies(args.inputs, clientUpdate);
+    AggregationTreeBenchmark benchmark =
+        new AggregationTreeBenchmark(
+            Files.readAllBytes(Path.of(args.serverPlan)),
+            new AggregationTreePlanner(true, args.heapBudgetMegabytes * 1024L * 1024L));
+    System.out.printf(
+        "Aggregating %d inputs of %d bytes with the %s path on %d processors.%n",
+        args.inputs,
+        clientUpdate.length,
+        benchmark.serverPhaseV2 ? "V2" : "V1",
+        Runtime.getRuntime().availableProcessors());
+
+    List<Integer> fanIns = new ArrayList<>(args.fanIns);
+    fanIns.add((int) Math.ceil(Math.sqrt(args.inputs)));
+    for (int fanIn : fanIns) {
+      System.out.printf(
+          "fan-in %4d: %8d ms%n", fanIn, benchmark.measure(inputs, fanIn, args.runs).toMillis());
+    }
+    int plannedFanIn = benchmark.planner.getFanIn(args.inputs, clientUpdate.length);
+    System.out.printf(
+        "planned fan-in %4d: %8d ms%n",
+        plannedFanIn, benchmark.measure(inputs, plannedFanIn, args.runs).toMillis());
+  }
+
+  /** Returns the median duration of aggregating the inputs with the given fan-in. */
+  private Duration measure(List<byte[]> inputs, int fanIn, int runs) {
+    // Warm up.
+    aggregate(inputs, fanIn);
+    List<Duration> durations = new ArrayList<>();
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      aggregate(inputs, fanIn);
+      durations.add(Duration.ofNanos(System.nanoTime() - start));
+    }
+    Collections.sort(durations);
+    return durations.get(durations.size() / 2);
+  }
+
+  private byte[] aggregate(List<byte[]> inputs, int fanIn) {
+    boolean intermediate = false;
+    while (inputs.size() > fanIn) {
+      boolean layerIntermediate = intermediate;
+      inputs =
+          Lists.partition(inputs, fanIn).parallelStream()
+              .map((partition) -> session(partition, layerIntermediate))
+              .collect(Collectors.toList());
+      intermediate = true;
+    }
+    return session(inputs, intermediate);
+  }
+
+  private byte[] session(List<byte[]> inputs, boolean intermediate) {
+    long start = System.nanoTime();
+    byte[] result =
+        serverPhaseV2 ? sessionV2(inputs, intermediate) : sessionV1(inputs, intermediate);
+    planner.recordSession(inputs.size(), Duration.ofNanos(System.nanoTime() - start));
+    return result;
+  }
+
+  private byte[] sessionV2(List<byte[]> inputs, boolean intermediate) {
+    try (AggregationSession session = factory.createAggregationSession(plan)) {
+      if (intermediate) {
+        session.mergeWith(inputs.toArray(byte[][]::new));
+      } else {
+        session.accumulate(inputs.toArray(byte[][]::new));
+      }
+      return session.serialize();
+    }
+  }
+
+  private byte[] sessionV1(List<byte[]> inputs, boolean intermediate) {
+    PhaseSession session =
+        factory
+            .createPlanSession(ByteString.copyFrom(plan))
+            .createPhaseSession(Optional.empty(), Optional.of(appFiles));
+    try {
+      for (byte[] input : inputs) {
+        if (intermediate) {
+          session.accumulateIntermediateUpdate(ByteString.copyFrom(input));
+        } else {
+          session.accumulateClientUpdate(ByteString.copyFrom(input));
+        }
+      }
+      return session.toIntermediateUpdate().toByteArray();
+    } finally {
+      session.close();
+    }
+  }
+}
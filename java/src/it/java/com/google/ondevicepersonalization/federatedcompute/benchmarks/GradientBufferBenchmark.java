@@ -0,0 +1,150 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares the bytes allocated to bring a gzip-compressed client update from the network to a
+ * native aggregation session, with the buffered copies the pipeline used to make and with the
+ * sized reads and wrapped byte strings it makes now.
+ *
+ * <p>The network is simulated by a channel over the compressed bytes, read with the chunk size
+ * used for blob downloads.
+ */
+public final class GradientBufferBenchmark {
+
+  private static final int BUFFER_SIZE = 1024;
+
+  /** Arguments of the benchmark. */
+  static final class Args {
+    @Parameter(names = "--help", help = true)
+    boolean help = false;
+
+    @Parameter(
+        names = "--client_update",
+        description = "Local unencrypted client update file.",
+        required = true)
+    String clientUpdate;
+
+    @Parameter(names = "--iterations", description = "The number of measured iterations.")
+    int iterations = 1000;
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Args args = new Args();
+    JCommander jcommander = JCommander.newBuilder().addObject(args).build();
+    jcommander.parse(argv);
+    if (args.help) {
+      jcommander.usage();
+      return;
+    }
+
+    byte[] clientUpdate = Files.readAllBytes(Path.of(args.clientUpdate));
+    byte[] compressed = CompressionUtils.compressWithGzip(clientUpdate);
+    System.out.printf(
+        "Bringing a client update of %d bytes, %d compressed, to a session.%n",
+        clientUpdate.length, compressed.length);
+
+    report("buffered", measure(GradientBufferBenchmark::buffered, compressed, args.iterations));
+    report("sized", measure(GradientBufferBenchmark::sized, compressed, args.iterations));
+  }
+
+  private static void report(String name, long[] allocatedBytesAndNanos) {
+    System.out.printf(
+        "%-8s: %12d bytes allocated, %8d us per client update%n",
+        name, allocatedBytesAndNanos[0], allocatedBytesAndNanos[1] / 1000);
+  }
+
+  /** Returns the mean bytes allocated and duration of the pipeline per iteration. */
+  private static long[] measure(
+      Function<byte[], ByteString> pipeline, byte[] compressed, int iterations) {
+    com.sun.management.ThreadMXBean threadMxBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long checksum = 0;
+    // Warm up.
+    for (int i = 0; i < iterations; i++) {
+      checksum += pipeline.apply(compressed).size();
+    }
+    long allocatedBefore = threadMxBean.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      checksum += pipeline.apply(compressed).size();
+    }
+    long nanos = System.nanoTime() - start;
+    long allocated = threadMxBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+    if (checksum == 0) {
+      System.out.println("Empty client update.");
+    }
+    return new long[] {allocated / iterations, nanos / iterations};
+  }
+
+  /** Buffers the download and the inflated output, then copies into the byte string. */
+  private static ByteString buffered(byte[] compressed) {
+    try (ByteArrayOutputStream download = new ByteArrayOutputStream();
+        ReadableByteChannel reader = open(compressed)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while (reader.read(buffer) != -1) {
+        buffer.flip();
+        download.write(buffer.array(), 0, buffer.limit());
+        buffer.clear();
+      }
+      try (GZIPInputStream gzip =
+              new GZIPInputStream(new ByteArrayInputStream(download.toByteArray()));
+          ByteArrayOutputStream result = new ByteArrayOutputStream()) {
+        int length;
+        byte[] chunk = new byte[BUFFER_SIZE];
+        while ((length = gzip.read(chunk, 0, BUFFER_SIZE)) > 0) {
+          result.write(chunk, 0, length);
+        }
+        return ByteString.copyFrom(result.toByteArray());
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Reads the download and the inflated output into sized arrays wrapped by the byte string. */
+  private static ByteString sized(byte[] compressed) {
+    try (ReadableByteChannel reader = open(compressed)) {
+      ByteBuffer buffer = ByteBuffer.allocate(compressed.length);
+      while (buffer.hasRemaining() && reader.read(buffer) != -1) {}
+      return UnsafeByteOperations.unsafeWrap(CompressionUtils.uncompressWithGzip(buffer.array()));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static ReadableByteChannel open(byte[] compressed) {
+    return Channels.newChannel(new ByteArrayInputStream(compressed));
+  }
+}
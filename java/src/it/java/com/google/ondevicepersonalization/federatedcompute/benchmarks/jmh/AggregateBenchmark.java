@@ -0,0 +1,127 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.fcp.tensorflow.AppFiles;
+import com.google.internal.federated.plan.Plan;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.AggregatorCoreImpl;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the aggregation of a batch of encrypted gradients by the aggregator, from the blob store
+ * to the uploaded result, with the blobs held in memory and fake tensorflow sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AggregateBenchmark {
+
+  private static final String BUCKET = "bucket";
+
+  @Param({"100", "1000"})
+  int gradientCount;
+
+  @Param({"1024", "65536"})
+  int gradientBytes;
+
+  @Param({"false", "true"})
+  boolean streaming;
+
+  private AggregatorCoreImpl aggregator;
+  private AggregatorMessage message;
+
+  @Setup
+  public void setUp() throws Exception {
+    GradientGenerator generator = new GradientGenerator(0);
+    InMemoryBlobDao blobDao = new InMemoryBlobDao();
+    blobDao.upload(
+        BlobDescription.builder().host(BUCKET).resourceObject("server_plan").build(),
+        Plan.newBuilder().addPhase(Plan.Phase.getDefaultInstance()).build().toByteArray());
+    List<String> gradients = new ArrayList<>();
+    for (int i = 0; i < gradientCount; i++) {
+      String gradient = "gradient_" + i;
+      blobDao.upload(
+          BlobDescription.builder().host(BUCKET).resourceObject("gradients/" + gradient).build(),
+          generator.generateUpload(gradientBytes, 0.5));
+      gradients.add(gradient);
+    }
+    message =
+        AggregatorMessage.builder()
+            .serverPlanBucket(BUCKET)
+            .serverPlanObject("server_plan")
+            .gradientBucket(BUCKET)
+            .gradientPrefix("gradients/")
+            .gradients(gradients)
+            .aggregatedGradientOutputBucket(BUCKET)
+            .aggregatedGradientOutputObject("aggregated_gradient")
+            .requestId("benchmark")
+            .build();
+    aggregator =
+        new AggregatorCoreImpl(
+            blobDao,
+            InstantSource.system(),
+            new FakeTensorflowPlanSessionFactory(),
+            new ServerPlanCache(blobDao, 64),
+            generator.getDecryptionKeyService(),
+            /* publicKeyEncryptionService= */ null,
+            new AppFiles("/dev/shm"),
+            /* httpMessageSender= */ null,
+            /* enableAggregationSuccessNotifications= */ false,
+            /* shouldEncryptAggregatorOutput= */ false,
+            streaming,
+            /* aggregatorStreamingWindowSize= */ 100,
+            /* gradientDownloadConcurrency= */ 16,
+            /* gradientDecryptParallelism= */ Runtime.getRuntime().availableProcessors(),
+            /* gradientFetchQueueCapacity= */ 100,
+            /* enableAggregationTreePlanner= */ true,
+            /* aggregationHeapBudgetMegabytes= */ 1024,
+            /* aggregationSessionPoolSize= */ 0,
+            /* aggregationSessionPoolMegabytes= */ 0,
+            /* aggregationSessionPoolIdleMinutes= */ 10,
+            /* aggregatorSubscriberMaxOutstandingElementCount= */ 1,
+            /* aggregatorCoSchedulingLingerMillis= */ 0,
+            /* enableAggregationCheckpoints= */ false,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+  }
+
+  @Benchmark
+  public void process() {
+    aggregator.process(message);
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodec;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the compression of gradients of different sizes and sparsities by each codec. The
+ * compressed size of each case is printed during the setup to compare the ratios of the codecs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+
+  @Param({"1024", "65536", "1048576"})
+  int gradientBytes;
+
+  @Param({"0.1", "1.0"})
+  double density;
+
+  @Param({"gzip", "zstd", "lz4"})
+  String codecName;
+
+  /** The level of the codec, 0 for its default level. */
+  @Param({"0"})
+  int level;
+
+  private CompressionCodec codec;
+  private byte[] gradient;
+  private byte[] compressed;
+
+  @Setup
+  public void setUp() throws Exception {
+    codec = CompressionCodecs.create(codecName, level);
+    gradient = new GradientGenerator(0).generate(gradientBytes, density);
+    compressed = codec.compress(gradient);
+    System.out.printf(
+        "%n%s level %d compressed %d bytes to %d bytes.%n",
+        codecName, level, gradient.length, compressed.length);
+  }
+
+  @Benchmark
+  public byte[] compress() {
+    return codec.compress(gradient);
+  }
+
+  @Benchmark
+  public byte[] uncompress() {
+    return codec.uncompress(compressed);
+  }
+
+  @Benchmark
+  public byte[] roundTrip() {
+    return codec.uncompress(codec.compress(gradient));
+  }
+}
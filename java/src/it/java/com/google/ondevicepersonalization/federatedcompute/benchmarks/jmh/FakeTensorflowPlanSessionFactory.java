@@ -0,0 +1,113 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.fcp.aggregation.AggregationSession;
+import com.google.fcp.plan.PhaseSession;
+import com.google.fcp.plan.PhaseSessionV2;
+import com.google.fcp.plan.PlanSession;
+import com.google.fcp.tensorflow.AppFiles;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A plan session factory whose phase sessions add up the bytes of the updates instead of running
+ * the plan, so that the Java side of the aggregation can be measured without the native libraries.
+ *
+ * <p>Only the V1 phase sessions are faked. The native aggregation sessions of the server phase V2
+ * cannot be constructed from Java, use a real plan with the aggregation tree benchmark instead.
+ */
+public class FakeTensorflowPlanSessionFactory extends TensorflowPlanSessionFactory {
+
+  @Override
+  public PlanSession createPlanSession(ByteString plan) {
+    return new FakePlanSession();
+  }
+
+  @Override
+  public PhaseSessionV2 createPhaseSessionV2(ByteString plan) {
+    throw new UnsupportedOperationException("Server phase V2 sessions are not faked.");
+  }
+
+  @Override
+  public AggregationSession createAggregationSession(byte[] plan) {
+    throw new UnsupportedOperationException("Aggregation sessions are not faked.");
+  }
+
+  private static final class FakePlanSession implements PlanSession {
+    @Override
+    public PhaseSession createPhaseSession(
+        Optional<ByteString> checkpoint, Optional<AppFiles> appFiles) {
+      return new FakePhaseSession();
+    }
+  }
+
+  /** Adds up the updates byte by byte, the result having the size of the largest update. */
+  static final class FakePhaseSession implements PhaseSession {
+    private byte[] sum = new byte[0];
+
+    @Override
+    public void accumulateClientUpdate(ByteString update) {
+      accumulate(update);
+    }
+
+    @Override
+    public void accumulateIntermediateUpdate(ByteString update) {
+      accumulate(update);
+    }
+
+    private void accumulate(ByteString update) {
+      if (update.size() > sum.length) {
+        byte[] grown = new byte[update.size()];
+        System.arraycopy(sum, 0, grown, 0, sum.length);
+        sum = grown;
+      }
+      for (int i = 0; i < update.size(); i++) {
+        sum[i] += update.byteAt(i);
+      }
+    }
+
+    @Override
+    public ByteString toIntermediateUpdate() {
+      return UnsafeByteOperations.unsafeWrap(sum.clone());
+    }
+
+    @Override
+    public void applyAggregatedUpdates() {}
+
+    @Override
+    public ByteString toCheckpoint() {
+      return UnsafeByteOperations.unsafeWrap(sum.clone());
+    }
+
+    @Override
+    public ByteString getClientCheckpoint(Optional<ByteString> clientToken) {
+      return UnsafeByteOperations.unsafeWrap(sum.clone());
+    }
+
+    @Override
+    public Map<String, Double> getMetrics() {
+      return Map.of();
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.gson.Gson;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.Payload;
+import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Generates synthetic gradients, either in the clear or packaged as uploaded by devices:
+ * compressed, encrypted with a key generated for the benchmark and wrapped in a JSON {@link
+ * Payload}.
+ */
+public final class GradientGenerator {
+
+  static final String KEY_ID = "benchmark-key";
+
+  private static final String KEY_TEMPLATE = "DHKEM_X25519_HKDF_SHA256_HKDF_SHA256_AES_256_GCM_RAW";
+
+  private final Random random;
+  private final HybridEncrypt encrypter;
+  private final HybridDecrypt decrypter;
+
+  public GradientGenerator(long seed) throws GeneralSecurityException {
+    HybridConfig.register();
+    this.random = new Random(seed);
+    KeysetHandle privateKeysetHandle = KeysetHandle.generateNew(KeyTemplates.get(KEY_TEMPLATE));
+    this.decrypter = privateKeysetHandle.getPrimitive(HybridDecrypt.class);
+    this.encrypter =
+        privateKeysetHandle.getPublicKeysetHandle().getPrimitive(HybridEncrypt.class);
+  }
+
+  /**
+   * Returns a gradient of float tensors of the given size, in which the given fraction of values
+   * is non zero.
+   */
+  public byte[] generate(int bytes, double density) {
+    ByteBuffer gradient = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    while (gradient.remaining() >= Float.BYTES) {
+      gradient.putFloat(random.nextDouble() < density ? (float) random.nextGaussian() : 0f);
+    }
+    return gradient.array();
+  }
+
+  /** Returns a gradient of the given size packaged as uploaded by devices. */
+  public byte[] generateUpload(int bytes, double density) {
+    try {
+      byte[] compressed = CompressionUtils.compressWithGzip(generate(bytes, density));
+      byte[] ciphertext = encrypter.encrypt(compressed, new byte[0]);
+      Payload payload =
+          Payload.builder()
+              .keyId(KEY_ID)
+              .encryptedPayload(Base64.getEncoder().encodeToString(ciphertext))
+              .associatedData(Base64.getEncoder().encodeToString(new byte[0]))
+              .build();
+      return new Gson().toJson(payload).getBytes(StandardCharsets.UTF_8);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Failed to encrypt gradient", e);
+    }
+  }
+
+  /** Returns a key service serving the key the uploads are encrypted with. */
+  public DecryptionKeyService getDecryptionKeyService() {
+    return (keyId) -> decrypter;
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * A blob store held in memory, so that the aggregation can be measured without downloads. Blobs
+ * are stored uncompressed and all have the same generation.
+ */
+public final class InMemoryBlobDao implements BlobDao {
+
+  private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+  public List<String> list(BlobDescription folder) {
+    String prefix = getKey(folder);
+    return blobs.keySet().stream()
+        .filter((key) -> key.startsWith(prefix))
+        .map((key) -> key.substring(prefix.length()))
+        // Only list the current directory, as the cloud implementation does.
+        .map((name) -> name.contains("/") ? name.substring(0, name.indexOf('/') + 1) : name)
+        .distinct()
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  public List<String> listByPartition(BlobDescription folder, List<String> partitions) {
+    List<String> result = new ArrayList<>();
+    for (String partition : partitions) {
+      list(folder.toBuilder().resourceObject(folder.getResourceObject() + partition).build())
+          .forEach((name) -> result.add(partition + name));
+    }
+    return result;
+  }
+
+  public Optional<byte[]> download(BlobDescription file) {
+    return Optional.ofNullable(blobs.get(getKey(file)));
+  }
+
+  public Optional<Long> getGeneration(BlobDescription file) {
+    return download(file).map((content) -> 1L);
+  }
+
+  public Optional<Long> getSize(BlobDescription file) {
+    return download(file).map((content) -> (long) content.length);
+  }
+
+  public Optional<byte[]> downloadAndDecompressIfNeeded(BlobDescription file) {
+    return download(file);
+  }
+
+  public Optional<InputStream> openStream(BlobDescription file) {
+    return download(file).map(ByteArrayInputStream::new);
+  }
+
+  public Optional<InputStream> openStreamAndDecompressIfNeeded(BlobDescription file) {
+    return openStream(file);
+  }
+
+  public void upload(BlobDescription file, byte[] content) {
+    blobs.put(getKey(file), content);
+  }
+
+  public void compressAndUpload(BlobDescription file, byte[] content) {
+    upload(file, content);
+  }
+
+  public void compressAndUploadInternal(BlobDescription file, byte[] content) {
+    upload(file, content);
+  }
+
+  public void compressAndUploadStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    writer.writeTo(Channels.newChannel(content));
+    upload(file, content.toByteArray());
+  }
+
+  public void compressAndUploadInternalStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    compressAndUploadStreaming(file, writer);
+  }
+
+  public boolean checkExistsAndGzipContentIfNeeded(BlobDescription[] files) {
+    return exists(files);
+  }
+
+  public boolean exists(BlobDescription[] files) {
+    return Arrays.stream(files).allMatch((file) -> blobs.containsKey(getKey(file)));
+  }
+
+  public boolean delete(BlobDescription folder) {
+    String prefix = getKey(folder);
+    blobs.keySet().removeIf((key) -> key.startsWith(prefix));
+    return true;
+  }
+
+  private static String getKey(BlobDescription file) {
+    return file.getHost() + "/" + file.getResourceObject();
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.Payload;
+import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the parsing, decryption and decompression of the gradients uploaded by devices. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PayloadBenchmark {
+
+  @Param({"1024", "65536", "1048576"})
+  int gradientBytes;
+
+  @Param({"0.1", "1.0"})
+  double density;
+
+  private byte[] upload;
+  private DecryptionKeyService decryptionKeyService;
+
+  @Setup
+  public void setUp() throws Exception {
+    GradientGenerator generator = new GradientGenerator(0);
+    upload = generator.generateUpload(gradientBytes, density);
+    decryptionKeyService = generator.getDecryptionKeyService();
+  }
+
+  @Benchmark
+  public byte[] parseAndDecrypt() {
+    return Payload.parseAndDecryptPayload(upload, decryptionKeyService);
+  }
+}
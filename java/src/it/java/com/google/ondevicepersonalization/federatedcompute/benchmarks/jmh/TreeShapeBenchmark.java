@@ -0,0 +1,91 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh;
+
+import com.google.ondevicepersonalization.federatedcompute.benchmarks.jmh.FakeTensorflowPlanSessionFactory.FakePhaseSession;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationTreePlanner;
+import com.google.protobuf.UnsafeByteOperations;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the in-memory aggregation trees shaped by the {@link AggregationTreePlanner}, with its
+ * cost model enabled or with the square root fan-in, under different heap budgets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TreeShapeBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  int inputs;
+
+  @Param({"16384"})
+  int inputBytes;
+
+  @Param({"false", "true"})
+  boolean planned;
+
+  @Param({"16", "1024"})
+  int heapBudgetMegabytes;
+
+  private AggregationTreePlanner planner;
+  private List<byte[]> gradients;
+
+  @Setup
+  public void setUp() throws Exception {
+    GradientGenerator generator = new GradientGenerator(0);
+    gradients = new ArrayList<>();
+    for (int i = 0; i < inputs; i++) {
+      gradients.add(generator.generate(inputBytes, 0.5));
+    }
+    planner = new AggregationTreePlanner(planned, heapBudgetMegabytes * 1024L * 1024L);
+  }
+
+  @Benchmark
+  public byte[] aggregate() {
+    return planner.aggregate(gradients, false, TreeShapeBenchmark::aggregatePartition);
+  }
+
+  private static byte[] aggregatePartition(List<byte[]> partition, boolean intermediate) {
+    try (FakePhaseSession session = new FakePhaseSession()) {
+      for (byte[] input : partition) {
+        if (intermediate) {
+          session.accumulateIntermediateUpdate(UnsafeByteOperations.unsafeWrap(input));
+        } else {
+          session.accumulateClientUpdate(UnsafeByteOperations.unsafeWrap(input));
+        }
+      }
+      return session.toIntermediateUpdate().toByteArray();
+    }
+  }
+}
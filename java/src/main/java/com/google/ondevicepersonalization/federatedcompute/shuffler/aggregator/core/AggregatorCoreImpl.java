@@ -19,35 +19,54 @@ package com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.fcp.aggregation.AggregationSession;
 import com.google.fcp.plan.PhaseSession;
-import com.google.fcp.plan.PlanSession;
 import com.google.fcp.tensorflow.AppFiles;
 import com.google.gson.Gson;
-import com.google.internal.federated.plan.Plan;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorNotification;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.Exceptions;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.FetchPipeline;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController.Admission;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.NonRetryableException;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.Payload;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.PublicKeyEncryptionService;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.messaging.HttpMessageSender;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationSessionPool;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationTreePlanner;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationTreePlanner.PartitionAggregator;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache.ServerPlan;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.InstantSource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -59,10 +78,14 @@ public class AggregatorCoreImpl implements AggregatorCore {
 
   private static final Logger logger = LoggerFactory.getLogger(AggregatorCoreImpl.class);
 
+  /** The suffix of the output object under which the partial results of the batch are stored. */
+  private static final String PARTIALS_SUFFIX = "_partials/";
+
   private BlobDao blobDao;
   private InstantSource instantSource;
 
   private TensorflowPlanSessionFactory tensorflowPlanSessionFactory;
+  private ServerPlanCache serverPlanCache;
   private DecryptionKeyService decryptionKeyService;
   private PublicKeyEncryptionService publicKeyEncryptionService;
   private AppFiles appFiles;
@@ -71,42 +94,166 @@ public class AggregatorCoreImpl implements AggregatorCore {
   // Output should be encrypted when DP is not guaranteed to be applied within the aggregator.
   // The presence of this flag should be part of the generated aggregator image hash.
   private boolean shouldEncryptAggregatorOutput;
+  private final boolean streamingEnabled;
+  private final int streamingWindowSize;
+  private final FetchPipeline fetchPipeline;
+  // Runs the downloads of the next streaming wave, which block on the fetch pipeline.
+  private final ExecutorService waveExecutor;
+  private final AggregationTreePlanner treePlanner;
+  private final AggregationSessionPool sessionPool;
+  private final AggregatorMessageCoScheduler<PreparedBatch> coScheduler;
+  private final boolean checkpointsEnabled;
+  private final MemoryAdmissionController memoryAdmissionController;
 
   public AggregatorCoreImpl(
       BlobDao blobDao,
       InstantSource instantSource,
       TensorflowPlanSessionFactory tensorflowPlanSessionFactory,
+      ServerPlanCache serverPlanCache,
       DecryptionKeyService decryptionKeyService,
       PublicKeyEncryptionService publicKeyEncryptionService,
       AppFiles appFiles,
       HttpMessageSender httpMessageSender,
       Boolean enableAggregationSuccessNotifications,
-      boolean shouldEncryptAggregatorOutput) {
+      boolean shouldEncryptAggregatorOutput,
+      Boolean enableAggregatorStreaming,
+      int aggregatorStreamingWindowSize,
+      int gradientDownloadConcurrency,
+      int gradientDecryptParallelism,
+      int gradientFetchQueueCapacity,
+      Boolean enableAggregationTreePlanner,
+      int aggregationHeapBudgetMegabytes,
+      int aggregationSessionPoolSize,
+      int aggregationSessionPoolMegabytes,
+      int aggregationSessionPoolIdleMinutes,
+      long aggregatorSubscriberMaxOutstandingElementCount,
+      int aggregatorCoSchedulingLingerMillis,
+      Boolean enableAggregationCheckpoints,
+      MemoryAdmissionController memoryAdmissionController) {
     this.blobDao = blobDao;
     this.instantSource = instantSource;
     this.tensorflowPlanSessionFactory = tensorflowPlanSessionFactory;
+    this.serverPlanCache = serverPlanCache;
     this.decryptionKeyService = decryptionKeyService;
     this.publicKeyEncryptionService = publicKeyEncryptionService;
     this.appFiles = appFiles;
     this.httpMessageSender = httpMessageSender;
     this.enableAggregationSuccessNotifications = enableAggregationSuccessNotifications;
     this.shouldEncryptAggregatorOutput = shouldEncryptAggregatorOutput;
+    this.streamingEnabled = enableAggregatorStreaming;
+    this.streamingWindowSize = aggregatorStreamingWindowSize;
+    this.memoryAdmissionController = memoryAdmissionController;
+    // Partial results are stored in the clear, only checkpoint them when the output is as well.
+    this.checkpointsEnabled =
+        enableAggregationCheckpoints
+            && !enableAggregatorStreaming
+            && !shouldEncryptAggregatorOutput;
+    if (enableAggregationCheckpoints && !checkpointsEnabled) {
+      logger.warn("Aggregation checkpoints are not supported with streaming or encrypted output.");
+    }
+    this.fetchPipeline =
+        new FetchPipeline(
+            gradientDownloadConcurrency, gradientDecryptParallelism, gradientFetchQueueCapacity);
+    this.waveExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("aggregator-wave-%d").setDaemon(true).build());
+    this.treePlanner =
+        new AggregationTreePlanner(
+            enableAggregationTreePlanner, aggregationHeapBudgetMegabytes * 1024L * 1024L);
+    this.sessionPool =
+        new AggregationSessionPool(
+            tensorflowPlanSessionFactory,
+            appFiles,
+            instantSource,
+            aggregationSessionPoolSize,
+            aggregationSessionPoolMegabytes * 1024L * 1024L,
+            Duration.ofMinutes(aggregationSessionPoolIdleMinutes));
+    if (aggregatorCoSchedulingLingerMillis > 0) {
+      this.coScheduler =
+          new AggregatorMessageCoScheduler<>(
+              (int) Math.min(Integer.MAX_VALUE, aggregatorSubscriberMaxOutstandingElementCount),
+              Duration.ofMillis(aggregatorCoSchedulingLingerMillis),
+              this::prepareGroup);
+    } else {
+      this.coScheduler = null;
+    }
   }
 
   public void process(AggregatorMessage message) {
+    Optional<PreparedBatch> prepared = Optional.empty();
+    if (coScheduler != null) {
+      try {
+        prepared = Optional.of(coScheduler.prepare(message));
+      } catch (RuntimeException e) {
+        // The message is processed on its own, so that its failure is reported for it alone.
+        logger.atWarn().setCause(e).log("Failed to prepare the batch with its group.");
+      }
+    }
     try {
       MDC.put(Constants.ACTIVITY_ID, UUID.randomUUID().toString());
-      processMessage(message);
+      processMessage(message, prepared);
     } finally {
       MDC.clear();
     }
   }
 
-  private void processMessage(AggregatorMessage message) {
+  /**
+   * Prepares the batches of an iteration received together: the plan is loaded once, the sessions
+   * of all the batches are constructed in a single fill of the session pool and, unless streaming
+   * or checkpointing, the gradients of all the batches are fetched in a single wave. Each batch is
+   * then aggregated into its own output by the thread of its message.
+   */
+  private List<PreparedBatch> prepareGroup(List<AggregatorMessage> messages) {
+    ServerPlan plan = loadServerPlan(getServerPlanBlob(messages.get(0)));
+    sessionPool.reserve(plan, messages.size());
+    List<List<BlobDescription>> gradientPaths =
+        messages.stream().map(this::getGradientPaths).collect(Collectors.toList());
+    long footprint = gradientPaths.stream().mapToLong(this::estimateFootprint).sum();
+    Admission admission = memoryAdmissionController.admit(footprint);
+    try {
+      AtomicInteger openBatches = new AtomicInteger(messages.size());
+      List<PreparedBatch> batches =
+          gradientPaths.stream()
+              .map((paths) -> new PreparedBatch(plan, paths, admission, openBatches))
+              .collect(Collectors.toList());
+      if (!streamingEnabled && !checkpointsEnabled) {
+        fetchGroup(batches);
+      }
+      return batches;
+    } catch (RuntimeException e) {
+      admission.close();
+      throw e;
+    }
+  }
+
+  /** Fetches the gradients of all the batches in a single wave of the fetch pipeline. */
+  private void fetchGroup(List<PreparedBatch> batches) {
+    List<PreparedBatch> owners = new ArrayList<>();
+    List<BlobDescription> gradients = new ArrayList<>();
+    for (PreparedBatch batch : batches) {
+      batch.gradientPaths.forEach(
+          (gradient) -> {
+            owners.add(batch);
+            gradients.add(gradient);
+          });
+    }
+    List<byte[]> fetched =
+        fetchPipeline.fetch(
+            IntStream.range(0, gradients.size()).boxed().collect(Collectors.toList()),
+            (index) -> downloadGradient(gradients.get(index), owners.get(index).gradientBytes),
+            (payload) -> Payload.parseAndDecryptPayload(payload, decryptionKeyService));
+    int offset = 0;
+    for (PreparedBatch batch : batches) {
+      batch.encryptedGradients = fetched.subList(offset, offset + batch.gradientPaths.size());
+      offset += batch.gradientPaths.size();
+    }
+  }
+
+  private void processMessage(AggregatorMessage message, Optional<PreparedBatch> prepared) {
     Instant startTime = instantSource.instant();
     try {
       MDC.put(Constants.REQUEST_ID, message.getRequestId());
-      processMessageImpl(message);
+      processMessageImpl(message, startTime, prepared);
     } catch (Exception e) {
       // Retryable errors will throw an exception triggering no acknowledgement for the message.
       logger.atError().setCause(e).log("Failed processing iteration aggregation.");
@@ -151,45 +298,95 @@ public class AggregatorCoreImpl implements AggregatorCore {
     httpMessageSender.sendMessage(notification, message.getNotificationEndpoint());
   }
 
-  private void processMessageImpl(AggregatorMessage message) {
-    List<byte[]> encryptedGradients =
-        message.getGradients().stream()
-            .parallel()
-            .map(
-                gradient ->
-                    getGradientFullPath(
-                        message.getGradientBucket(), message.getGradientPrefix(), gradient))
-            .map(
-                (gradient) ->
-                    blobDao
-                        .downloadAndDecompressIfNeeded(gradient)
-                        .orElseThrow(
-                            () ->
-                                new NonRetryableException(
-                                    String.format(
-                                        "Downloaded gradient for bucket %s and object %s is null or"
-                                            + " does not exist",
-                                        gradient.getHost(), gradient.getResourceObject()))))
-            .map((payload) -> Payload.parseAndDecryptPayload(payload, decryptionKeyService))
-            .collect(Collectors.toList());
-
-    byte[] plan =
-        blobDao
-            .downloadAndDecompressIfNeeded(
-                BlobDescription.builder()
-                    .host(message.getServerPlanBucket())
-                    .resourceObject(message.getServerPlanObject())
-                    .build())
-            .orElseThrow(
-                () ->
-                    new NonRetryableException(
-                        String.format(
-                            "Downloaded plan for bucket %s and object %s is null or"
-                                + " does not exist",
-                            message.getServerPlanBucket(), message.getServerPlanObject())));
+  private void processMessageImpl(
+      AggregatorMessage message, Instant startTime, Optional<PreparedBatch> prepared) {
+    if (prepared.isPresent()) {
+      try (PreparedBatch batch = prepared.get()) {
+        aggregateAndUpload(
+            message,
+            startTime,
+            batch.plan,
+            batch.gradientPaths,
+            batch.encryptedGradients,
+            batch.gradientBytes);
+      }
+      return;
+    }
+    List<BlobDescription> gradientPaths = getGradientPaths(message);
+    try (Admission admission = memoryAdmissionController.admit(estimateFootprint(gradientPaths))) {
+      AtomicLong gradientBytes = new AtomicLong();
+      List<byte[]> encryptedGradients = null;
+      if (!streamingEnabled && !checkpointsEnabled) {
+        encryptedGradients = fetchGradients(gradientPaths, gradientBytes);
+      }
+      ServerPlan plan = loadServerPlan(getServerPlanBlob(message));
+      aggregateAndUpload(
+          message, startTime, plan, gradientPaths, encryptedGradients, gradientBytes);
+    }
+  }
+
+  private List<BlobDescription> getGradientPaths(AggregatorMessage message) {
+    return message.getGradients().stream()
+        .map(
+            gradient ->
+                getGradientFullPath(
+                    message.getGradientBucket(), message.getGradientPrefix(), gradient))
+        .collect(Collectors.toList());
+  }
+
+  private long estimateFootprint(List<BlobDescription> gradientPaths) {
+    long footprint = memoryAdmissionController.estimateBytes(gradientPaths);
+    if (streamingEnabled && !gradientPaths.isEmpty()) {
+      // At most two waves of gradients are held at once.
+      footprint =
+          footprint
+              * Math.min(gradientPaths.size(), 2L * streamingWindowSize)
+              / gradientPaths.size();
+    }
+    return footprint;
+  }
+
+  private static BlobDescription getServerPlanBlob(AggregatorMessage message) {
+    return BlobDescription.builder()
+        .host(message.getServerPlanBucket())
+        .resourceObject(message.getServerPlanObject())
+        .build();
+  }
 
-    byte[] aggregatedResult =
-        aggregate(encryptedGradients, plan, message.isAccumulateIntermediateUpdates());
+  /**
+   * Aggregates the gradients of the message into its output.
+   *
+   * @param encryptedGradients the fetched gradients, or null when streaming or checkpointing.
+   */
+  private void aggregateAndUpload(
+      AggregatorMessage message,
+      Instant startTime,
+      ServerPlan plan,
+      List<BlobDescription> gradientPaths,
+      List<byte[]> encryptedGradients,
+      AtomicLong gradientBytes) {
+    BlobDescription partialsFolder =
+        BlobDescription.builder()
+            .host(message.getAggregatedGradientOutputBucket())
+            .resourceObject(message.getAggregatedGradientOutputObject() + PARTIALS_SUFFIX)
+            .build();
+    byte[] aggregatedResult;
+    if (streamingEnabled) {
+      aggregatedResult =
+          aggregateStreaming(
+              gradientPaths, plan, message.isAccumulateIntermediateUpdates(), gradientBytes);
+    } else if (checkpointsEnabled) {
+      aggregatedResult =
+          aggregateResumable(
+              gradientPaths,
+              plan,
+              message.isAccumulateIntermediateUpdates(),
+              partialsFolder,
+              gradientBytes);
+    } else {
+      aggregatedResult =
+          aggregate(encryptedGradients, plan, message.isAccumulateIntermediateUpdates());
+    }
     byte[] packagedAggregatedResult = encryptAndPackage(aggregatedResult);
 
     BlobDescription aggregatedResultLocation =
@@ -198,11 +395,14 @@ public class AggregatorCoreImpl implements AggregatorCore {
             .resourceObject(message.getAggregatedGradientOutputObject())
             .build();
     try {
-      blobDao.compressAndUpload(aggregatedResultLocation, packagedAggregatedResult);
+      blobDao.compressAndUploadInternal(aggregatedResultLocation, packagedAggregatedResult);
     } catch (IOException e) {
       logger.atError().setCause(e).log("failed to compressAndUpload aggregated result.");
       throw new RuntimeException("Failed to compressAndUpload aggregated result", e);
     }
+    if (checkpointsEnabled && !blobDao.delete(partialsFolder)) {
+      logger.warn("Failed to delete the partial results of the aggregation.");
+    }
 
     if (!Strings.isNullOrEmpty(message.getNotificationEndpoint())
         && enableAggregationSuccessNotifications) {
@@ -216,6 +416,12 @@ public class AggregatorCoreImpl implements AggregatorCore {
                                 AggregatorNotification.Attributes.builder()
                                     .requestId(message.getRequestId())
                                     .status(AggregatorNotification.Status.OK)
+                                    .gradientCount(String.valueOf(gradientPaths.size()))
+                                    .gradientBytes(String.valueOf(gradientBytes.get()))
+                                    .processingMillis(
+                                        String.valueOf(
+                                            Duration.between(startTime, instantSource.instant())
+                                                .toMillis()))
                                     .build())
                             .build()))
                 .build();
@@ -230,6 +436,40 @@ public class AggregatorCoreImpl implements AggregatorCore {
     }
   }
 
+  private ServerPlan loadServerPlan(BlobDescription planBlob) {
+    return serverPlanCache
+        .get(planBlob)
+        .orElseThrow(
+            () ->
+                new NonRetryableException(
+                    String.format(
+                        "Downloaded plan for bucket %s and object %s is null or does not exist",
+                        planBlob.getHost(), planBlob.getResourceObject())));
+  }
+
+  /** Downloads the gradients on the I/O pool of the pipeline and decrypts them on its CPU pool. */
+  private List<byte[]> fetchGradients(List<BlobDescription> gradients, AtomicLong gradientBytes) {
+    return fetchPipeline.fetch(
+        gradients,
+        (gradient) -> downloadGradient(gradient, gradientBytes),
+        (payload) -> Payload.parseAndDecryptPayload(payload, decryptionKeyService));
+  }
+
+  private byte[] downloadGradient(BlobDescription gradient, AtomicLong gradientBytes) {
+    byte[] payload =
+        blobDao
+            .downloadAndDecompressIfNeeded(gradient)
+            .orElseThrow(
+                () ->
+                    new NonRetryableException(
+                        String.format(
+                            "Downloaded gradient for bucket %s and object %s is null or"
+                                + " does not exist",
+                            gradient.getHost(), gradient.getResourceObject())));
+    gradientBytes.addAndGet(payload.length);
+    return payload;
+  }
+
   private byte[] encryptAndPackage(byte[] data) {
     byte[] payload = data;
     if (shouldEncryptAggregatorOutput) {
@@ -244,85 +484,221 @@ public class AggregatorCoreImpl implements AggregatorCore {
   }
 
   private byte[] aggregate(
-      List<byte[]> encryptedGradients, byte[] planBytes, boolean accumulateIntermediateUpdates) {
-    Plan plan;
+      List<byte[]> encryptedGradients,
+      ServerPlan serverPlan,
+      boolean accumulateIntermediateUpdates) {
+    return treePlanner.aggregate(
+        encryptedGradients, accumulateIntermediateUpdates, getPartitionAggregator(serverPlan));
+  }
+
+  private PartitionAggregator getPartitionAggregator(ServerPlan serverPlan) {
+    if (serverPlan.isServerPhaseV2()) {
+      return (gradients, intermediate) -> aggregateV2(gradients, serverPlan, intermediate);
+    }
+    return (gradients, intermediate) -> aggregateV1(gradients, serverPlan, intermediate);
+  }
+
+  /**
+   * Aggregates the first layer of the tree partition by partition, storing the partial result of
+   * every partition under the partials folder. A partition whose partial result was stored by a
+   * previous attempt at the message is not downloaded nor aggregated again. Partial results are
+   * named after the gradients of their partition, so that partial results of a differently
+   * partitioned attempt are never reused. The fan-in and the number of partitions run at once are
+   * planned from the sampled size of the gradients, like the layers of the in-memory tree.
+   */
+  private byte[] aggregateResumable(
+      List<BlobDescription> gradientPaths,
+      ServerPlan serverPlan,
+      boolean accumulateIntermediateUpdates,
+      BlobDescription partialsFolder,
+      AtomicLong gradientBytes) {
+    long bytesPerGradient = memoryAdmissionController.estimateBlobBytes(gradientPaths);
+    List<List<BlobDescription>> partitions =
+        Lists.partition(
+            gradientPaths, treePlanner.getFanIn(gradientPaths.size(), bytesPerGradient));
+    if (partitions.size() <= 1) {
+      return aggregate(
+          fetchGradients(gradientPaths, gradientBytes), serverPlan, accumulateIntermediateUpdates);
+    }
+    PartitionAggregator aggregator = getPartitionAggregator(serverPlan);
+    List<byte[]> partials =
+        treePlanner.runLayer(
+            IntStream.range(0, partitions.size()).boxed().collect(Collectors.toList()),
+            bytesPerGradient,
+            (index) -> {
+              List<BlobDescription> partition = partitions.get(index);
+              BlobDescription partialBlob = getPartialBlob(partialsFolder, index, partition);
+              Optional<byte[]> partial = blobDao.downloadAndDecompressIfNeeded(partialBlob);
+              if (partial.isPresent()) {
+                return partial.get();
+              }
+              byte[] result =
+                  aggregator.aggregate(
+                      fetchGradients(partition, gradientBytes), accumulateIntermediateUpdates);
+              uploadPartial(partialBlob, result);
+              return result;
+            });
+    return aggregate(partials, serverPlan, true);
+  }
+
+  private static BlobDescription getPartialBlob(
+      BlobDescription partialsFolder, int index, List<BlobDescription> partition) {
+    String gradients =
+        partition.stream()
+            .map(BlobDescription::getResourceObject)
+            .collect(Collectors.joining("\n"));
+    return partialsFolder.toBuilder()
+        .resourceObject(
+            String.format(
+                "%s%d-%s",
+                partialsFolder.getResourceObject(),
+                index,
+                Hashing.murmur3_128().hashString(gradients, StandardCharsets.UTF_8)))
+        .build();
+  }
+
+  private void uploadPartial(BlobDescription partialBlob, byte[] partial) {
     try {
-      plan = Plan.parseFrom(planBytes);
-    } catch (InvalidProtocolBufferException e) {
-      throw new IllegalStateException("Failed to decode plan");
+      blobDao.compressAndUploadInternal(partialBlob, partial);
+    } catch (IOException e) {
+      // The partial result is only needed if the message is retried.
+      logger.atWarn().setCause(e).log("Failed to upload partial aggregation result.");
     }
-    // Take the sqrt to enforce two layers of in-memory tree aggregation.
-    int partitionSize = (int) Math.ceil(Math.sqrt(encryptedGradients.size()));
-
-    // Layer 1
-    List<List<byte[]>> partitionedGradients = Lists.partition(encryptedGradients, partitionSize);
-    if (plan.getPhase(0).hasServerPhaseV2()) {
-      if (partitionedGradients.size() > 1) {
-        boolean finalAccumulateIntermediateUpdates = accumulateIntermediateUpdates;
-        encryptedGradients =
-            partitionedGradients.parallelStream()
-                .map(
-                    gradients ->
-                        aggregateV2(gradients, planBytes, finalAccumulateIntermediateUpdates))
-                .collect(Collectors.toList());
-        accumulateIntermediateUpdates = true;
+  }
+
+  /**
+   * Aggregates the gradients into a single session in waves of {@code streamingWindowSize}
+   * gradients. The next wave is downloaded and decrypted while the current one is accumulated, so
+   * at most two waves of payloads are held in memory regardless of the batch size.
+   */
+  private byte[] aggregateStreaming(
+      List<BlobDescription> gradientPaths,
+      ServerPlan serverPlan,
+      boolean accumulateIntermediateUpdates,
+      AtomicLong gradientBytes) {
+    List<List<BlobDescription>> waves = Lists.partition(gradientPaths, streamingWindowSize);
+
+    if (serverPlan.isServerPhaseV2()) {
+      try (AggregationSession aggregationSession = sessionPool.takeAggregationSession(serverPlan)) {
+        accumulateWaves(
+            waves,
+            gradientBytes,
+            (gradients) -> {
+              if (accumulateIntermediateUpdates) {
+                aggregationSession.mergeWith(gradients.toArray(byte[][]::new));
+              } else {
+                aggregationSession.accumulate(gradients.toArray(byte[][]::new));
+              }
+            });
+        return sessionPool.recordResult(serverPlan, aggregationSession.serialize());
       }
+    }
 
-      // Layer 2
-      return aggregateV2(encryptedGradients, planBytes, accumulateIntermediateUpdates);
-    } else {
-      if (partitionedGradients.size() > 1) {
-        boolean finalAccumulateIntermediateUpdates = accumulateIntermediateUpdates;
-        encryptedGradients =
-            partitionedGradients.parallelStream()
-                .map(
-                    gradients ->
-                        aggregateV1(gradients, planBytes, finalAccumulateIntermediateUpdates))
-                .collect(Collectors.toList());
-        accumulateIntermediateUpdates = true;
+    PhaseSession phaseSession = null;
+    try {
+      phaseSession = sessionPool.takePhaseSession(serverPlan);
+      PhaseSession session = phaseSession;
+      accumulateWaves(
+          waves,
+          gradientBytes,
+          (gradients) -> {
+            if (accumulateIntermediateUpdates) {
+              gradients.stream()
+                  .map(UnsafeByteOperations::unsafeWrap)
+                  .forEach(session::accumulateIntermediateUpdate);
+            } else {
+              gradients.stream()
+                  .map(UnsafeByteOperations::unsafeWrap)
+                  .forEach(session::accumulateClientUpdate);
+            }
+          });
+      return sessionPool.recordResult(
+          serverPlan, phaseSession.toIntermediateUpdate().toByteArray());
+    } finally {
+      if (phaseSession != null) {
+        phaseSession.close();
       }
+    }
+  }
 
-      // Layer 2
-      return aggregateV1(encryptedGradients, planBytes, accumulateIntermediateUpdates);
+  private void accumulateWaves(
+      List<List<BlobDescription>> waves,
+      AtomicLong gradientBytes,
+      Consumer<List<byte[]>> accumulator) {
+    if (waves.isEmpty()) {
+      return;
+    }
+    AtomicBoolean cancelled = new AtomicBoolean();
+    CompletableFuture<List<byte[]>> nextWave =
+        downloadWave(waves.get(0), gradientBytes, cancelled);
+    try {
+      for (int i = 0; i < waves.size(); i++) {
+        List<byte[]> wave = nextWave.join();
+        nextWave =
+            i + 1 < waves.size() ? downloadWave(waves.get(i + 1), gradientBytes, cancelled) : null;
+        accumulator.accept(wave);
+      }
+    } catch (RuntimeException e) {
+      if (nextWave != null) {
+        // Stop downloading the next wave, and wait for the downloads in flight so that their
+        // payloads are not held past the memory admitted for the batch.
+        cancelled.set(true);
+        nextWave.handle((wave, t) -> null).join();
+      }
+      throw e;
     }
   }
 
+  private CompletableFuture<List<byte[]>> downloadWave(
+      List<BlobDescription> gradients, AtomicLong gradientBytes, AtomicBoolean cancelled) {
+    return CompletableFuture.supplyAsync(
+        () ->
+            fetchPipeline.fetch(
+                gradients,
+                (gradient) -> {
+                  if (cancelled.get()) {
+                    throw new CancellationException("The aggregation of the batch failed.");
+                  }
+                  return downloadGradient(gradient, gradientBytes);
+                },
+                (payload) -> Payload.parseAndDecryptPayload(payload, decryptionKeyService)),
+        waveExecutor);
+  }
+
   private byte[] aggregateV2(
-      List<byte[]> encryptedGradients, byte[] plan, boolean accumulateIntermediateUpdates) {
-    try (AggregationSession aggregationSession =
-        tensorflowPlanSessionFactory.createAggregationSession(plan)) {
+      List<byte[]> encryptedGradients, ServerPlan plan, boolean accumulateIntermediateUpdates) {
+    try (AggregationSession aggregationSession = sessionPool.takeAggregationSession(plan)) {
       if (accumulateIntermediateUpdates) {
         aggregationSession.mergeWith(encryptedGradients.toArray(byte[][]::new));
       } else {
         aggregationSession.accumulate(encryptedGradients.toArray(byte[][]::new));
       }
-      return aggregationSession.serialize();
+      return sessionPool.recordResult(plan, aggregationSession.serialize());
     }
   }
 
   private byte[] aggregateV1(
-      List<byte[]> encryptedGradients, byte[] plan, boolean accumulateIntermediateUpdates) {
+      List<byte[]> encryptedGradients, ServerPlan plan, boolean accumulateIntermediateUpdates) {
     PhaseSession phaseSession = null;
     try {
-      // Create tensorflow session
-      PlanSession planSession =
-          tensorflowPlanSessionFactory.createPlanSession(ByteString.copyFrom(plan));
-      phaseSession = planSession.createPhaseSession(Optional.empty(), Optional.of(appFiles));
+      // Take a fresh tensorflow session
+      phaseSession = sessionPool.takePhaseSession(plan);
 
-      // Perform aggregation with gradient
+      // Perform aggregation with gradient. The downloaded gradients are never modified, so they are
+      // wrapped rather than copied into the session.
       if (accumulateIntermediateUpdates) {
         encryptedGradients.stream()
-            .map(ByteString::copyFrom)
+            .map(UnsafeByteOperations::unsafeWrap)
             .forEach(phaseSession::accumulateIntermediateUpdate);
       } else {
         encryptedGradients.stream()
-            .map(ByteString::copyFrom)
+            .map(UnsafeByteOperations::unsafeWrap)
             .forEach(phaseSession::accumulateClientUpdate);
       }
 
       // Finalize aggregation
       ByteString result = phaseSession.toIntermediateUpdate();
-      return result.toByteArray();
+      return sessionPool.recordResult(plan, result.toByteArray());
     } finally {
       if (phaseSession != null) {
         phaseSession.close();
@@ -333,4 +709,37 @@ public class AggregatorCoreImpl implements AggregatorCore {
   private BlobDescription getGradientFullPath(String bucket, String prefix, String gradient) {
     return BlobDescription.builder().host(bucket).resourceObject(prefix + gradient).build();
   }
+
+  /**
+   * A batch prepared along with the other batches of its group. The memory admitted for the group
+   * is released once all its batches are closed.
+   */
+  private static final class PreparedBatch implements AutoCloseable {
+    private final ServerPlan plan;
+    private final List<BlobDescription> gradientPaths;
+    private final AtomicLong gradientBytes = new AtomicLong();
+    private final Admission groupAdmission;
+    private final AtomicInteger openBatches;
+    // Null when the gradients are fetched while aggregating.
+    private List<byte[]> encryptedGradients;
+
+    PreparedBatch(
+        ServerPlan plan,
+        List<BlobDescription> gradientPaths,
+        Admission groupAdmission,
+        AtomicInteger openBatches) {
+      this.plan = plan;
+      this.gradientPaths = gradientPaths;
+      this.groupAdmission = groupAdmission;
+      this.openBatches = openBatches;
+    }
+
+    @Override
+    public void close() {
+      encryptedGradients = null;
+      if (openBatches.decrementAndGet() == 0) {
+        groupAdmission.close();
+      }
+    }
+  }
 }
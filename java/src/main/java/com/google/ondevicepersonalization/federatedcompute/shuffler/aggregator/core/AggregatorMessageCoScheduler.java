@@ -0,0 +1,152 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Groups the aggregator messages of the same iteration received concurrently by a worker so that
+ * the work they share is done once for the group.
+ *
+ * <p>The first message of an iteration opens a group and waits for the linger duration, or until
+ * the group is full, for other messages of the iteration. It then prepares the whole group at once
+ * on its own thread, and hands every caller the input prepared for its message. Each caller then
+ * processes its own message on its own thread, so that messages are still acknowledged one by one
+ * and the processing of a group is bounded by the subscriber threads.
+ *
+ * @param <T> the input prepared for a message.
+ */
+public final class AggregatorMessageCoScheduler<T> {
+
+  private final int maxGroupSize;
+  private final Duration linger;
+  private final Function<List<AggregatorMessage>, List<T>> groupPreparer;
+  private final Map<String, Group<T>> openGroups = new HashMap<>();
+
+  /**
+   * @param groupPreparer prepares a group of messages, returning the input of every message in
+   *     the order of the messages.
+   */
+  public AggregatorMessageCoScheduler(
+      int maxGroupSize, Duration linger, Function<List<AggregatorMessage>, List<T>> groupPreparer) {
+    this.maxGroupSize = Math.max(1, maxGroupSize);
+    this.linger = linger;
+    this.groupPreparer = groupPreparer;
+  }
+
+  /**
+   * Prepares the message along with the messages of the same iteration, blocking until the group
+   * is prepared, and returns the input prepared for the message. Rethrows the failure of the group
+   * preparation to every message of the group.
+   */
+  public T prepare(AggregatorMessage message) {
+    String key = getIterationKey(message);
+    Group<T> group;
+    CompletableFuture<T> result;
+    boolean leader = false;
+    synchronized (openGroups) {
+      group = openGroups.get(key);
+      if (group == null) {
+        group = new Group<>();
+        openGroups.put(key, group);
+        leader = true;
+      }
+      result = group.add(message);
+      if (group.messages.size() >= maxGroupSize) {
+        openGroups.remove(key);
+        group.full.countDown();
+      }
+    }
+    if (leader) {
+      group.awaitFull(linger);
+      List<AggregatorMessage> messages;
+      List<CompletableFuture<T>> results;
+      synchronized (openGroups) {
+        openGroups.remove(key, group);
+        // No message joins the group once it is removed from the open groups.
+        messages = List.copyOf(group.messages);
+        results = List.copyOf(group.results);
+      }
+      Group.prepare(messages, results, groupPreparer);
+    }
+    try {
+      return result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static String getIterationKey(AggregatorMessage message) {
+    return String.format(
+        "%s/%s#%b",
+        message.getServerPlanBucket(),
+        message.getServerPlanObject(),
+        message.isAccumulateIntermediateUpdates());
+  }
+
+  /** The messages of an iteration prepared together. */
+  private static final class Group<T> {
+    // Guarded by the open groups.
+    private final List<AggregatorMessage> messages = new ArrayList<>();
+    private final List<CompletableFuture<T>> results = new ArrayList<>();
+    private final CountDownLatch full = new CountDownLatch(1);
+
+    CompletableFuture<T> add(AggregatorMessage message) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      messages.add(message);
+      results.add(result);
+      return result;
+    }
+
+    void awaitFull(Duration linger) {
+      try {
+        full.await(linger.toMillis(), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    static <T> void prepare(
+        List<AggregatorMessage> messages,
+        List<CompletableFuture<T>> results,
+        Function<List<AggregatorMessage>, List<T>> groupPreparer) {
+      List<T> prepared;
+      try {
+        prepared = groupPreparer.apply(messages);
+      } catch (RuntimeException e) {
+        results.forEach((result) -> result.completeExceptionally(e));
+        return;
+      }
+      for (int i = 0; i < results.size(); i++) {
+        results.get(i).complete(prepared.get(i));
+      }
+    }
+  }
+}
@@ -60,5 +60,17 @@ public class AggregatorNotification {
 
     /** Reason for error. */
     private ErrorReason errorReason;
+
+    /**
+     * Number of gradients aggregated by a successful job. The signals of a successful job are
+     * strings since they are sent as pubsub attributes.
+     */
+    private String gradientCount;
+
+    /** Total size in bytes of the gradients downloaded by a successful job. */
+    private String gradientBytes;
+
+    /** Processing time in milliseconds of a successful job. */
+    private String processingMillis;
   }
 }
@@ -0,0 +1,181 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.collector.core;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationId;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the aggregation batch size of an iteration from the signals observed by the collector.
+ *
+ * <p>The batch size aims at filling the next batch while the aggregator processes the previous
+ * one, i.e. the upload arrival rate of the iteration times the aggregation job latency of the task.
+ * It is then capped so that the gradients of a batch fit the byte budget of an aggregator job, and
+ * so that the contributions still missing to reach the report goal are split into at least two
+ * batches. The configured batch size is used until both the arrival rate and the job latency are
+ * known, and the result is always bounded by the configured minimum and maximum.
+ */
+final class AggregationBatchSizer {
+
+  /** The weight of the latest observation in the moving averages. */
+  private static final double SMOOTHING = 0.3;
+
+  private final boolean enabled;
+  private final int defaultBatchSize;
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final Map<IterationId, IterationSignals> iterationSignals = new ConcurrentHashMap<>();
+  private final Map<String, AggregationSignals> taskSignals = new ConcurrentHashMap<>();
+
+  AggregationBatchSizer(
+      boolean enabled,
+      int defaultBatchSize,
+      int minBatchSize,
+      int maxBatchSize,
+      long maxBatchBytes) {
+    this.enabled = enabled;
+    this.defaultBatchSize = defaultBatchSize;
+    this.minBatchSize = Math.min(minBatchSize, maxBatchSize);
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  /** Returns the batch size to use for the next assignments of the iteration. */
+  int getBatchSize(IterationEntity iteration) {
+    if (!enabled) {
+      return defaultBatchSize;
+    }
+    IterationSignals iterationSignal = iterationSignals.get(iteration.getId());
+    AggregationSignals aggregationSignal = taskSignals.get(toTaskKey(iteration.getId()));
+
+    double batchSize = defaultBatchSize;
+    if (iterationSignal != null
+        && iterationSignal.getUploadsPerSecond() > 0
+        && aggregationSignal != null
+        && aggregationSignal.getLatencySeconds() > 0) {
+      batchSize = iterationSignal.getUploadsPerSecond() * aggregationSignal.getLatencySeconds();
+    }
+    if (aggregationSignal != null && aggregationSignal.getBytesPerGradient() > 0) {
+      batchSize = Math.min(batchSize, maxBatchBytes / aggregationSignal.getBytesPerGradient());
+    }
+    if (iterationSignal != null) {
+      long remaining = iteration.getReportGoal() - iterationSignal.getPublishedCount();
+      if (remaining > 0) {
+        batchSize = Math.min(batchSize, Math.ceil(remaining / 2.0));
+      }
+    }
+    return (int) Math.max(minBatchSize, Math.min(maxBatchSize, Math.round(batchSize)));
+  }
+
+  /**
+   * Records the total number of contributions of the iteration uploaded so far, as counted from
+   * Spanner, at the given time. The arrival rate is derived from the difference between two
+   * totals, so that it does not depend on which collector replica processed the uploads meanwhile.
+   */
+  void recordUploadedTotal(IterationId iterationId, long uploadedTotal, Instant now) {
+    iterationSignals
+        .computeIfAbsent(iterationId, (id) -> new IterationSignals())
+        .recordUploadedTotal(uploadedTotal, now);
+  }
+
+  /** Records the number of contributions of the iteration already published to the aggregator. */
+  void recordPublished(IterationId iterationId, long publishedCount) {
+    iterationSignals
+        .computeIfAbsent(iterationId, (id) -> new IterationSignals())
+        .setPublishedCount(publishedCount);
+  }
+
+  /** Records a completed aggregation job of the iteration. */
+  void recordAggregation(
+      IterationId iterationId, long gradientCount, long gradientBytes, Duration latency) {
+    taskSignals
+        .computeIfAbsent(toTaskKey(iterationId), (key) -> new AggregationSignals())
+        .recordAggregation(gradientCount, gradientBytes, latency);
+  }
+
+  /** Drops the signals of the iterations not in the provided set. */
+  void retainIterations(Set<IterationId> iterationIds) {
+    iterationSignals.keySet().retainAll(iterationIds);
+  }
+
+  private static String toTaskKey(IterationId iterationId) {
+    return iterationId.getPopulationName() + "/" + iterationId.getTaskId();
+  }
+
+  private static double smooth(double average, double observation) {
+    return average <= 0 ? observation : average + SMOOTHING * (observation - average);
+  }
+
+  /** The signals observed for a single iteration. */
+  private static final class IterationSignals {
+    private Instant lastUploadTime;
+    private long lastUploadedTotal;
+    private double uploadsPerSecond;
+    private volatile long publishedCount;
+
+    synchronized void recordUploadedTotal(long uploadedTotal, Instant now) {
+      // The total decreases when a published batch fails, which says nothing of the arrivals.
+      if (lastUploadTime != null
+          && now.isAfter(lastUploadTime)
+          && uploadedTotal >= lastUploadedTotal) {
+        double seconds = Duration.between(lastUploadTime, now).toMillis() / 1000.0;
+        uploadsPerSecond = smooth(uploadsPerSecond, (uploadedTotal - lastUploadedTotal) / seconds);
+      }
+      lastUploadTime = now;
+      lastUploadedTotal = uploadedTotal;
+    }
+
+    synchronized double getUploadsPerSecond() {
+      return uploadsPerSecond;
+    }
+
+    long getPublishedCount() {
+      return publishedCount;
+    }
+
+    void setPublishedCount(long publishedCount) {
+      this.publishedCount = publishedCount;
+    }
+  }
+
+  /** The signals observed for the aggregation jobs of a task, shared across its iterations. */
+  private static final class AggregationSignals {
+    private double latencySeconds;
+    private double bytesPerGradient;
+
+    synchronized void recordAggregation(long gradientCount, long gradientBytes, Duration latency) {
+      latencySeconds = smooth(latencySeconds, latency.toMillis() / 1000.0);
+      if (gradientCount > 0) {
+        bytesPerGradient = smooth(bytesPerGradient, (double) gradientBytes / gradientCount);
+      }
+    }
+
+    synchronized double getLatencySeconds() {
+      return latencySeconds;
+    }
+
+    synchronized double getBytesPerGradient() {
+      return bytesPerGradient;
+    }
+  }
+}
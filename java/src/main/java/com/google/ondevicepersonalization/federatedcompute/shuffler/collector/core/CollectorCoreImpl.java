@@ -16,8 +16,12 @@
 
 package com.google.ondevicepersonalization.federatedcompute.shuffler.collector.core;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorNotification;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchDao;
@@ -33,18 +37,26 @@ import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.I
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationId;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.TaskDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.messaging.MessageSender;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.InstantSource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
@@ -63,6 +75,13 @@ public class CollectorCoreImpl implements CollectorCore {
 
   private static final String LOCK_PREFIX = "collector_";
 
+  static final String PUBLISH_BATCH_TIMER_NAME = "publish-aggregation-batch";
+  static final String RESULT_TAG = "result";
+  static final String RESULT_PUBLISHED = "PUBLISHED";
+  static final String RESULT_FAILED = "FAILED";
+  static final String BATCH_SIZE_SUMMARY_NAME = "aggregation-batch-size";
+  static final String POPULATION_TAG = "population";
+
   private TaskDao taskDao;
   private BlobDao blobDao;
   private AssignmentDao assignmentDao;
@@ -79,6 +98,18 @@ public class CollectorCoreImpl implements CollectorCore {
   private final int uploadTimeoutMinutes;
   private final int batchSize;
   private final Optional<Long> aggregationBatchFailureThreshold;
+  private final ListeningExecutorService executorService;
+  private final MeterRegistry meterRegistry;
+  private final int maxOutstandingPublishes;
+  private final boolean statefulModeEnabled;
+  private final Duration stateReconcileInterval;
+  private final int aggregationFanIn;
+  private final int modelUpdaterFanIn;
+  private final AggregationBatchSizer batchSizer;
+  private final Map<IterationId, CollectorIterationState> iterationStates =
+      new ConcurrentHashMap<>();
+  // Identifies this replica as the last collector of the iterations it processes.
+  private final String collectorId = UUID.randomUUID().toString();
 
   public CollectorCoreImpl(
       TaskDao taskDao,
@@ -96,7 +127,18 @@ public class CollectorCoreImpl implements CollectorCore {
       int localComputeTimeoutMinutes,
       int uploadTimeoutMinutes,
       int collectorBatchSize,
-      Optional<Long> aggregationBatchFailureThreshold) {
+      Optional<Long> aggregationBatchFailureThreshold,
+      ListeningExecutorService executorService,
+      MeterRegistry meterRegistry,
+      int collectorMaxOutstandingPublishes,
+      Boolean enableCollectorStatefulMode,
+      int collectorStateReconcileIntervalSeconds,
+      int collectorAggregationFanIn,
+      Boolean enableCollectorAdaptiveBatchSize,
+      int collectorMinBatchSize,
+      int collectorMaxBatchSize,
+      int collectorMaxBatchMegabytes,
+      int collectorModelUpdaterFanIn) {
     this.taskDao = taskDao;
     this.blobDao = blobDao;
     this.blobManager = blobManager;
@@ -113,6 +155,21 @@ public class CollectorCoreImpl implements CollectorCore {
     this.uploadTimeoutMinutes = uploadTimeoutMinutes;
     this.batchSize = collectorBatchSize;
     this.aggregationBatchFailureThreshold = aggregationBatchFailureThreshold;
+    this.executorService = executorService;
+    this.meterRegistry = meterRegistry;
+    this.maxOutstandingPublishes = collectorMaxOutstandingPublishes;
+    this.statefulModeEnabled = enableCollectorStatefulMode;
+    this.stateReconcileInterval = Duration.ofSeconds(collectorStateReconcileIntervalSeconds);
+    this.aggregationFanIn = collectorAggregationFanIn;
+    // The model updater never combines more intermediates than a single aggregation.
+    this.modelUpdaterFanIn = Math.min(collectorModelUpdaterFanIn, collectorAggregationFanIn);
+    this.batchSizer =
+        new AggregationBatchSizer(
+            enableCollectorAdaptiveBatchSize,
+            collectorBatchSize,
+            collectorMinBatchSize,
+            collectorMaxBatchSize,
+            (long) collectorMaxBatchMegabytes * 1024 * 1024);
   }
 
   private static String trimSlash(String folderName) {
@@ -123,8 +180,16 @@ public class CollectorCoreImpl implements CollectorCore {
     try {
       MDC.put(Constants.ACTIVITY_ID, UUID.randomUUID().toString());
       MDC.put(Constants.STATUS_ID, "COLLECTING");
-      taskDao.getIterationsOfStatus(IterationEntity.Status.COLLECTING).stream()
-          .forEach(this::processIteration);
+      List<IterationEntity> iterations =
+          taskDao.getIterationsOfStatus(IterationEntity.Status.COLLECTING);
+      // Drop the states and signals of the iterations no longer collecting.
+      Set<IterationId> collectingIds =
+          iterations.stream().map(IterationEntity::getId).collect(Collectors.toSet());
+      if (statefulModeEnabled) {
+        iterationStates.keySet().retainAll(collectingIds);
+      }
+      batchSizer.retainIterations(collectingIds);
+      iterations.stream().forEach(this::processIteration);
     } finally {
       MDC.clear();
     }
@@ -164,6 +229,9 @@ public class CollectorCoreImpl implements CollectorCore {
         IterationId iterationId = IterationId.fromString(requestIdArr[0]);
         MDC.put(Constants.ITERATION_ID, iterationId.toString());
 
+        // The failed batch is no longer counted as published.
+        iterationStates.remove(iterationId);
+
         // Update batch status to FAILED
         AggregationBatchId aggregationBatchId =
             AggregationBatchId.builder()
@@ -182,6 +250,11 @@ public class CollectorCoreImpl implements CollectorCore {
           logger.warn("Invalid aggregation batch {} was provided.", batchId);
           return;
         }
+        if (aggregationBatch.getAggregationLevel() > 0) {
+          // The contributions of an intermediate batch can not be collected again.
+          failIntermediateAggregation(iterationId, aggregationBatch);
+          return;
+        }
         if (aggregationBatch.getStatus() == AggregationBatchEntity.Status.PUBLISH_COMPLETED) {
           if (!aggregationBatchDao.updateAggregationBatchStatus(
               aggregationBatch,
@@ -283,6 +356,70 @@ public class CollectorCoreImpl implements CollectorCore {
       } finally {
         MDC.clear();
       }
+    } else {
+      recordAggregationSignals(notification);
+    }
+  }
+
+  /** Feeds the signals of a successful aggregation job to the batch sizing. */
+  private void recordAggregationSignals(AggregatorNotification.Attributes notification) {
+    if (notification.getRequestId() == null
+        || notification.getGradientCount() == null
+        || notification.getGradientBytes() == null
+        || notification.getProcessingMillis() == null) {
+      return;
+    }
+    try {
+      String requestId = notification.getRequestId();
+      IterationId iterationId =
+          IterationId.fromString(requestId.substring(0, requestId.lastIndexOf('_')));
+      batchSizer.recordAggregation(
+          iterationId,
+          Long.parseLong(notification.getGradientCount()),
+          Long.parseLong(notification.getGradientBytes()),
+          Duration.ofMillis(Long.parseLong(notification.getProcessingMillis())));
+    } catch (RuntimeException e) {
+      logger.warn("Ignoring invalid signals of request {}", notification.getRequestId(), e);
+    }
+  }
+
+  private void failIntermediateAggregation(
+      IterationId iterationId, AggregationBatchEntity aggregationBatch) throws Exception {
+    if (aggregationBatch.getStatus() == AggregationBatchEntity.Status.PUBLISH_COMPLETED
+        && !aggregationBatchDao.updateAggregationBatchStatus(
+            aggregationBatch,
+            aggregationBatch.toBuilder().status(AggregationBatchEntity.Status.FAILED).build())) {
+      // Throw exception to nack the message and retry
+      throw new IllegalStateException("Failed to update batch.");
+    }
+    Lock lock = lockRegistry.obtain(LOCK_PREFIX + iterationId.toString());
+    if (!lock.tryLock(30, TimeUnit.SECONDS)) {
+      logger.error("Failed to obtain lock during processAggregatorNotifications");
+      throw new IllegalStateException(
+          "Failed to obtain lock during processAggregatorNotifications");
+    }
+    try {
+      IterationEntity iteration = taskDao.getIterationById(iterationId).get();
+      if (iteration.getStatus() != Status.AGGREGATING) {
+        return;
+      }
+      logger.error(
+          "Intermediate batch {} at level {} failed, failing iteration {}",
+          aggregationBatch.getBatchId(),
+          aggregationBatch.getAggregationLevel(),
+          iterationId.toString());
+      if (!taskDao.updateIterationStatus(
+          iteration, iteration.toBuilder().status(Status.AGGREGATING_FAILED).build())) {
+        logger.warn(
+            "Failed to update iteration {} from {} to {}",
+            iteration.getId().toString(),
+            iteration.getStatus(),
+            Status.AGGREGATING_FAILED);
+        // Throw exception to nack the message and retry
+        throw new IllegalStateException("Failed to update iteration.");
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -330,8 +467,11 @@ public class CollectorCoreImpl implements CollectorCore {
           iteration = taskDao.getIterationById(iteration.getId()).get();
           if (Status.COLLECTING == iteration.getStatus()) {
             processCollectingIterationImp(iteration, partition);
-          } else if (Status.AGGREGATING == iteration.getStatus()) {
-            processAggregatingIterationImp(iteration, partition);
+          } else {
+            iterationStates.remove(iteration.getId());
+            if (Status.AGGREGATING == iteration.getStatus()) {
+              processAggregatingIterationImp(iteration, partition);
+            }
           }
         } finally {
           lock.unlock();
@@ -343,6 +483,9 @@ public class CollectorCoreImpl implements CollectorCore {
               iteration.getAggregationLevel());
           MDC.remove(Constants.ITERATION_ID);
         }
+      } else {
+        // Another replica holds the lock and may change the iteration.
+        iterationStates.remove(iteration.getId());
       }
     } catch (Exception e) {
       logger.atError().setCause(e).log();
@@ -350,9 +493,9 @@ public class CollectorCoreImpl implements CollectorCore {
   }
 
   private void processAggregatingIterationImp(IterationEntity iteration, String partition) {
-    // Only support 1 level of aggregation for now. L0 - Clients, L1 - Intermediates
-    if (iteration.getAggregationLevel() == 1) {
-      handleFirstLevelAggregation(iteration, partition);
+    // L0 - Clients, L1 and above - Intermediates
+    if (iteration.getAggregationLevel() >= 1) {
+      handleIntermediateAggregation(iteration, partition);
       return;
     }
     logger.error(
@@ -361,7 +504,7 @@ public class CollectorCoreImpl implements CollectorCore {
         iteration.getAggregationLevel());
   }
 
-  private void handleFirstLevelAggregation(IterationEntity iteration, String partition) {
+  private void handleIntermediateAggregation(IterationEntity iteration, String partition) {
     // Scan GCS for uploaded intermediates
     Set<String> allUploadedBatchIds =
         blobDao
@@ -419,6 +562,11 @@ public class CollectorCoreImpl implements CollectorCore {
               iteration.getAggregationLevel() - 1,
               AggregationBatchEntity.Status.UPLOAD_COMPLETED,
               Optional.empty());
+      if (uploaded.size() > modelUpdaterFanIn) {
+        // Too many intermediates for a single model updater, aggregate them one level further.
+        aggregateNextLevel(iteration, partition);
+        return;
+      }
       // Send message to model updater
       messageSender.sendMessage(
           collectorCoreImplHelper.createModelUpdaterMessage(iteration, uploaded),
@@ -426,7 +574,11 @@ public class CollectorCoreImpl implements CollectorCore {
       logger.info("Message sent to pubsub for iteration {}", iteration.getId().toString());
       // Update iteration state
       if (!taskDao.updateIterationStatus(
-          iteration, iteration.toBuilder().status(Status.APPLYING).aggregationLevel(2).build())) {
+          iteration,
+          iteration.toBuilder()
+              .status(Status.APPLYING)
+              .aggregationLevel(iteration.getAggregationLevel() + 1)
+              .build())) {
         logger.warn(
             "Failed to update iteration {} from {} to {}",
             iteration.getId().toString(),
@@ -442,23 +594,224 @@ public class CollectorCoreImpl implements CollectorCore {
     }
   }
 
+  /**
+   * Groups the uploaded intermediates of the level below the iteration into batches of at most
+   * {@code aggregationFanIn} intermediates, publishes the batches to the aggregator and moves the
+   * iteration one level up once all intermediates are grouped and published.
+   *
+   * <p>When the batches fit within {@code modelUpdaterFanIn}, the level is the last one before the
+   * model updater. Its merge is then spread over up to {@code modelUpdaterFanIn} batches of about
+   * the square root of the intermediates each, which balances the merge done by every aggregator
+   * against the merge left to the model updater.
+   */
+  private void aggregateNextLevel(IterationEntity iteration, String partition) {
+    long childLevel = iteration.getAggregationLevel() - 1;
+    List<String> ungrouped =
+        aggregationBatchDao.queryAggregationBatchIdsAggregatedBy(
+            iteration,
+            childLevel,
+            AggregationBatchEntity.Status.UPLOAD_COMPLETED,
+            Optional.empty());
+
+    // Spread the intermediates evenly instead of leaving a small last batch.
+    boolean allGrouped = true;
+    if (!ungrouped.isEmpty()) {
+      int batchCount = (ungrouped.size() + aggregationFanIn - 1) / aggregationFanIn;
+      if (batchCount <= modelUpdaterFanIn) {
+        int balancedBatchCount = (int) Math.ceil(Math.sqrt(ungrouped.size()));
+        batchCount = Math.min(modelUpdaterFanIn, Math.max(batchCount, balancedBatchCount));
+      }
+      int groupSize = (ungrouped.size() + batchCount - 1) / batchCount;
+      for (List<String> children : Lists.partition(ungrouped, groupSize)) {
+        AggregationBatchEntity newBatch =
+            createFullAggregationBatch(iteration, UUID.randomUUID().toString(), partition);
+        if (!aggregationBatchDao.createAndAssignBatches(
+            convertAggregationBatchIds(children, iteration.getId()), newBatch)) {
+          logger.error(
+              "Failed to create level {} batch {}",
+              iteration.getAggregationLevel(),
+              newBatch.getBatchId());
+          allGrouped = false;
+        }
+      }
+    }
+
+    // Publish the batches of this level, including the ones left FULL by a previous attempt.
+    boolean allPublished = true;
+    for (String batchId :
+        aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            iteration,
+            iteration.getAggregationLevel(),
+            AggregationBatchEntity.Status.FULL,
+            Optional.of(partition))) {
+      List<String> children =
+          aggregationBatchDao.queryAggregationBatchIdsAggregatedBy(
+              iteration,
+              childLevel,
+              AggregationBatchEntity.Status.UPLOAD_COMPLETED,
+              Optional.of(batchId));
+      messageSender.sendMessage(
+          collectorCoreImplHelper.createAggregatorMessage(
+              iteration, children, Optional.of(batchId), true, aggregatorNotificationEndpoint),
+          aggregatorPubsubTopic);
+      logger.info(
+          "Message sent to pubsub for iteration {} and level {} batch {}",
+          iteration.getId().toString(),
+          iteration.getAggregationLevel(),
+          batchId);
+      allPublished &=
+          updateBatchToPublishCompleted(createFullAggregationBatch(iteration, batchId, partition));
+    }
+
+    if (!allGrouped || !allPublished) {
+      return;
+    }
+    IterationEntity to =
+        iteration.toBuilder().aggregationLevel(iteration.getAggregationLevel() + 1).build();
+    if (!taskDao.updateIterationStatus(iteration, to)) {
+      logger.warn(
+          "Failed to update iteration {} from level {} to {}",
+          iteration.getId().toString(),
+          iteration.getAggregationLevel(),
+          to.getAggregationLevel());
+    } else {
+      logger.info(
+          "Updated iteration {} from level {} to {}",
+          iteration.getId().toString(),
+          iteration.getAggregationLevel(),
+          to.getAggregationLevel());
+    }
+  }
+
   private void processCollectingIterationImp(IterationEntity iteration, String partition) {
+    int batchSize = chooseBatchSize(iteration);
+    CollectorIterationState state = iterationStates.remove(iteration.getId());
+    if (statefulModeEnabled && !isLastCollector(iteration.getId())) {
+      // Another replica processed the iteration since this replica released the lock.
+      state = null;
+    }
+    if (state != null
+        && !state.isReconcileNeeded(instantSource.instant(), stateReconcileInterval)) {
+      state.setBatchSize(batchSize);
+      processCollectingIterationFromState(iteration, partition, state);
+    } else {
+      state = new CollectorIterationState(instantSource.instant());
+      state.setBatchSize(batchSize);
+      if (!reconcileCollectingIteration(iteration, partition, state)) {
+        return;
+      }
+    }
+    // The state holds the contributions counted in Spanner, including those uploaded while other
+    // replicas held the lock, unlike the uploads this replica detected itself.
+    batchSizer.recordUploadedTotal(
+        iteration.getId(),
+        state.getPublishedAssignmentCount() + state.getLeftoverAssignments().size(),
+        instantSource.instant());
+    if (statefulModeEnabled && !state.isInvalidated()) {
+      iterationStates.put(iteration.getId(), state);
+    }
+  }
+
+  /**
+   * Records this replica as the collector of the iteration in Spanner, and returns whether it was
+   * already the last replica to process the iteration. Must be called while holding the lock.
+   */
+  private boolean isLastCollector(IterationId iterationId) {
+    return taskDao
+        .swapIterationCollector(iterationId, collectorId)
+        .map(collectorId::equals)
+        .orElse(false);
+  }
+
+  /** Chooses the batch size of the iteration for this tick and exports it as a metric. */
+  private int chooseBatchSize(IterationEntity iteration) {
+    int batchSize = batchSizer.getBatchSize(iteration);
+    DistributionSummary.builder(BATCH_SIZE_SUMMARY_NAME)
+        .tags(POPULATION_TAG, iteration.getPopulationName())
+        .register(meterRegistry)
+        .record(batchSize);
+    return batchSize;
+  }
+
+  /**
+   * Processes the iteration deriving its progress from Spanner, and records it in the provided
+   * state.
+   *
+   * @return False if the iteration is no longer collecting.
+   */
+  private boolean reconcileCollectingIteration(
+      IterationEntity iteration, String partition, CollectorIterationState state) {
 
     // check uploaded results and mark corresponding assignment upload_completed.
-    queryAndSetUploadCompleted(iteration, partition);
+    queryAndSetUploadCompleted(iteration, partition, state);
 
     // Batch assignments marked UPLOAD_COMPLETED without an assigned batch if threshold is met.
-    List<String> leftoverAssignments = queryAndBatchLeftoverAssignments(iteration, partition);
+    List<String> leftoverAssignments =
+        queryAndBatchLeftoverAssignments(iteration, partition, state);
 
     // Send any full batches ready to be published
+    state.drainCreatedBatches();
     queryAndSendFullBatches(iteration, partition);
 
     // count the contribution and trigger next step.
-    countContributionsAndTriggerAggregation(iteration, leftoverAssignments, partition);
+    long publishedAssignments =
+        countContributionsAndTriggerAggregation(iteration, leftoverAssignments, partition);
+    state.setLeftoverAssignments(leftoverAssignments);
+    state.setPublishedAssignmentCount(publishedAssignments);
+    return publishedAssignments < iteration.getReportGoal();
+  }
+
+  /**
+   * Processes the iteration using the in-memory state of the replica instead of querying the
+   * batches and assignments it wrote itself. The state is invalidated on any failed write so that
+   * the next tick reconciles with Spanner.
+   */
+  private void processCollectingIterationFromState(
+      IterationEntity iteration, String partition, CollectorIterationState state) {
+    // check uploaded results and mark corresponding assignment upload_completed.
+    queryAndSetUploadCompleted(iteration, partition, state);
+
+    // Batch assignments marked UPLOAD_COMPLETED without an assigned batch if threshold is met.
+    List<String> leftoverAssignments =
+        partitionAndBatchAssignments(
+            iteration,
+            state.getLeftoverAssignments(),
+            partition,
+            /* from= */ AssignmentEntity.Status.UPLOAD_COMPLETED,
+            /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED,
+            state);
+    state.setLeftoverAssignments(leftoverAssignments);
+
+    // Send the full batches created by this tick. Batches failing to be sent stay FULL and are
+    // sent again on reconciliation.
+    Map<String, List<String>> createdBatches = state.drainCreatedBatches();
+    if (!createdBatches.isEmpty()) {
+      List<String> batchIds = new ArrayList<>(createdBatches.keySet());
+      Set<String> publishedBatchIds = new HashSet<>();
+      for (List<String> window : Lists.partition(batchIds, maxOutstandingPublishes)) {
+        publishedBatchIds.addAll(publishBatches(iteration, window, createdBatches, partition));
+      }
+      if (publishedBatchIds.size() != batchIds.size()) {
+        state.invalidate();
+      }
+      // Batches of earlier ticks may have been created with another batch size.
+      state.addPublishedAssignments(
+          publishedBatchIds.stream()
+              .mapToLong(batchId -> createdBatches.get(batchId).size())
+              .sum());
+      batchSizer.recordPublished(iteration.getId(), state.getPublishedAssignmentCount());
+    }
+
+    // Only confirm the contributions against Spanner once the report goal looks reached.
+    if (state.getPublishedAssignmentCount() + leftoverAssignments.size()
+        >= iteration.getReportGoal()) {
+      countContributionsAndTriggerAggregation(iteration, leftoverAssignments, partition);
+      state.invalidate();
+    }
   }
 
   private List<String> queryAndBatchLeftoverAssignments(
-      IterationEntity iteration, String partition) {
+      IterationEntity iteration, String partition, CollectorIterationState state) {
     List<String> unBatchedAssignments =
         assignmentDao.queryAssignmentIdsOfStatus(
             iteration.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty());
@@ -468,57 +821,138 @@ public class CollectorCoreImpl implements CollectorCore {
         unBatchedAssignments,
         partition,
         /* from= */ AssignmentEntity.Status.UPLOAD_COMPLETED,
-        /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED);
+        /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED,
+        state);
   }
 
-  private Set<String> queryAndSetUploadCompleted(IterationEntity iteration, String partition) {
+  private void queryAndSetUploadCompleted(
+      IterationEntity iteration, String partition, CollectorIterationState state) {
     // Get all local_completed and mark them upload_completed if
     // their upload is detected.
-    Set<String> allLocalCompleted =
-        assignmentDao
-            .queryAssignmentIdsOfStatus(
-                iteration.getId(), AssignmentEntity.Status.LOCAL_COMPLETED, Optional.empty())
-            .stream()
-            .collect(Collectors.toSet());
-    Set<String> allUploadedAssignmentIds = new HashSet<>();
+    List<String> allLocalCompleted =
+        assignmentDao.queryAssignmentIdsOfStatus(
+            iteration.getId(), AssignmentEntity.Status.LOCAL_COMPLETED, Optional.empty());
 
     // If no assignments in status LOCAL_COMPLETED don't bother checking for uploaded gradients.
-    if (allLocalCompleted.size() != 0) {
-      allUploadedAssignmentIds =
-          Arrays.stream(blobManager.generateDownloadGradientDescriptions(iteration))
-              .map((folder) -> blobDao.listByPartition(folder, UUID_PREFIX_LIST))
-              .flatMap(Collection::stream)
-              .map(CollectorCoreImpl::trimSlash)
-              .collect(Collectors.toSet());
-
-      List<String> uploadedAssignments =
-          new ArrayList<>(
-              new TreeSet<>(Sets.intersection(allUploadedAssignmentIds, allLocalCompleted)));
-      List<String> leftoverAssignments =
-          partitionAndBatchAssignments(
-              iteration,
-              uploadedAssignments,
-              partition,
-              /* from= */ AssignmentEntity.Status.LOCAL_COMPLETED,
-              /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED);
-      int updatedAssignmentCount = uploadedAssignments.size() - leftoverAssignments.size();
-      if (updatedAssignmentCount > 0) {
-        logger.info(
-                "Updated {} assignments from LOCAL_COMPLETED to UPLOAD_COMPLETED",
-                updatedAssignmentCount);
+    if (allLocalCompleted.isEmpty()) {
+      return;
+    }
+    int batchSize = state.getBatchSize();
+
+    // The listing of each gradient folder and the LOCAL_COMPLETED assignments are both sorted by
+    // session id, so the uploaded assignments are found with a single merge pass and batched as
+    // they are matched.
+    Iterator<String> uploaded =
+        Iterators.mergeSorted(
+            Arrays.stream(blobManager.generateDownloadGradientDescriptions(iteration))
+                .map(
+                    (folder) ->
+                        Iterators.transform(
+                            blobDao.listByPartition(folder, UUID_PREFIX_LIST).iterator(),
+                            CollectorCoreImpl::trimSlash))
+                .collect(Collectors.toList()),
+            Comparator.naturalOrder());
+    Iterator<String> localCompleted = allLocalCompleted.iterator();
+
+    List<ListenableFuture<Boolean>> batchFutures = new ArrayList<>();
+    List<String> pendingAssignments = new ArrayList<>(batchSize);
+    int uploadedAssignmentCount = 0;
+    String uploadedId = nextOrNull(uploaded);
+    String localCompletedId = nextOrNull(localCompleted);
+    while (uploadedId != null && localCompletedId != null) {
+      int comparison = uploadedId.compareTo(localCompletedId);
+      if (comparison == 0) {
+        uploadedAssignmentCount++;
+        pendingAssignments.add(localCompletedId);
+        if (pendingAssignments.size() == batchSize) {
+          batchFutures.add(
+              submitBatch(
+                  iteration,
+                  pendingAssignments,
+                  partition,
+                  /* from= */ AssignmentEntity.Status.LOCAL_COMPLETED,
+                  /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED,
+                  state));
+          pendingAssignments = new ArrayList<>(batchSize);
+        }
+        localCompletedId = nextOrNull(localCompleted);
+      }
+      // Duplicated uploads of an already matched assignment are skipped here as well.
+      if (comparison <= 0) {
+        uploadedId = nextOrNull(uploaded);
+      } else {
+        localCompletedId = nextOrNull(localCompleted);
       }
-      batchUpdateAssignments(
-          /* iteration= */ iteration,
-          /* assignmentIds= */ leftoverAssignments,
-          /* from= */ AssignmentEntity.Status.LOCAL_COMPLETED,
-          /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED);
     }
 
-    return allUploadedAssignmentIds;
+    awaitBatches(batchFutures, state);
+
+    int updatedAssignmentCount = uploadedAssignmentCount - pendingAssignments.size();
+    if (updatedAssignmentCount > 0) {
+      logger.info(
+              "Updated {} assignments from LOCAL_COMPLETED to UPLOAD_COMPLETED",
+              updatedAssignmentCount);
+    }
+    if (batchUpdateAssignments(
+        /* iteration= */ iteration,
+        /* assignmentIds= */ pendingAssignments,
+        /* from= */ AssignmentEntity.Status.LOCAL_COMPLETED,
+        /* to= */ AssignmentEntity.Status.UPLOAD_COMPLETED)) {
+      state.addLeftoverAssignments(pendingAssignments);
+    } else {
+      state.invalidate();
+    }
+  }
+
+  private static String nextOrNull(Iterator<String> iterator) {
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+
+  /**
+   * Asynchronously creates a new batch for the provided full list of assignments, and records it in
+   * the state once created.
+   */
+  private ListenableFuture<Boolean> submitBatch(
+      IterationEntity iteration,
+      List<String> assignmentIds,
+      String partition,
+      AssignmentEntity.Status from,
+      AssignmentEntity.Status to,
+      CollectorIterationState state) {
+    String batchId = UUID.randomUUID().toString();
+    return executorService.submit(
+        () -> {
+          boolean created =
+              assignmentDao.createBatchAndUpdateAssignments(
+                  convertAssignmentIds(assignmentIds, iteration.getId()),
+                  iteration,
+                  /* from= */ from,
+                  /* to= */ to,
+                  /* batchId= */ batchId,
+                  /* partition= */ partition);
+          if (created) {
+            state.addCreatedBatch(batchId, assignmentIds);
+          }
+          return created;
+        });
+  }
+
+  /** Waits for the submitted batches to be created and invalidates the state on any failure. */
+  private void awaitBatches(
+      List<ListenableFuture<Boolean>> batchFutures, CollectorIterationState state) {
+    try {
+      if (!Futures.successfulAsList(batchFutures).get().stream()
+          .allMatch(Boolean.TRUE::equals)) {
+        state.invalidate();
+      }
+    } catch (Exception e) {
+      logger.error("Failed to create batches.", e);
+      throw new RuntimeException(e);
+    }
   }
 
   /**
-   * Partitions the provided list into batches of the configured batchSize. Each batch will be
+   * Partitions the provided list into batches of the batchSize of the state. Each batch will be
    * updated in the DB and corresponding assignments will have their status updated from {@code
    * from} to {@code to} and have their batchId set.
    *
@@ -527,6 +961,7 @@ public class CollectorCoreImpl implements CollectorCore {
    * @param partition Current partition batching the assignments
    * @param from Current assignment status
    * @param to New assignmnet status
+   * @param state The state recording the created batches
    * @return The list of remaining assignments whose batchSize was not enough to create a FULL
    *     batch.
    */
@@ -535,24 +970,20 @@ public class CollectorCoreImpl implements CollectorCore {
       List<String> assignments,
       String partition,
       AssignmentEntity.Status from,
-      AssignmentEntity.Status to) {
+      AssignmentEntity.Status to,
+      CollectorIterationState state) {
     if (assignments.size() == 0) {
       return new ArrayList<>();
     }
+    int batchSize = state.getBatchSize();
     List<List<String>> batchedAssignmentIds = Lists.partition(assignments, batchSize);
-    batchedAssignmentIds.parallelStream()
-        .forEach(
-            (assignmentIds) -> {
-              if (assignmentIds.size() == batchSize) {
-                assignmentDao.createBatchAndUpdateAssignments(
-                    convertAssignmentIds(assignmentIds, iteration.getId()),
-                    iteration,
-                    /* from= */ from,
-                    /* to= */ to,
-                    /* batchId= */ UUID.randomUUID().toString(),
-                    /* partition= */ partition);
-              }
-            });
+    List<ListenableFuture<Boolean>> batchFutures = new ArrayList<>();
+    for (List<String> assignmentIds : batchedAssignmentIds) {
+      if (assignmentIds.size() == batchSize) {
+        batchFutures.add(submitBatch(iteration, assignmentIds, partition, from, to, state));
+      }
+    }
+    awaitBatches(batchFutures, state);
     // Return un-batched assignments
     List<String> lastPartition = batchedAssignmentIds.get(batchedAssignmentIds.size() - 1);
     if (lastPartition.size() < batchSize) {
@@ -568,9 +999,106 @@ public class CollectorCoreImpl implements CollectorCore {
             iteration.getAggregationLevel(),
             AggregationBatchEntity.Status.FULL,
             Optional.of(partition));
-    batchIds.stream()
-        .parallel()
-        .forEach((batchId) -> createAndSendAggregationMessage(iteration, batchId, partition));
+    if (batchIds.isEmpty()) {
+      return;
+    }
+
+    // Fetch the assignments of all ready batches in a single query.
+    Map<String, List<String>> assignmentsByBatch =
+        assignmentDao.queryAssignmentIdsOfStatusByBatches(
+            iteration.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, batchIds);
+
+    // Publish in windows to bound the number of in-flight messages. The status transitions of
+    // each window are committed together once its messages are sent.
+    int publishedCount = 0;
+    for (List<String> window : Lists.partition(batchIds, maxOutstandingPublishes)) {
+      publishedCount += publishBatches(iteration, window, assignmentsByBatch, partition).size();
+    }
+    logger.info("Published {} of {} FULL batches", publishedCount, batchIds.size());
+  }
+
+  /**
+   * Sends the aggregator messages of the provided batches asynchronously and moves the sent
+   * batches from FULL to PUBLISH_COMPLETED in a single transaction.
+   *
+   * @return The batches sent and marked PUBLISH_COMPLETED.
+   */
+  private Set<String> publishBatches(
+      IterationEntity iteration,
+      List<String> batchIds,
+      Map<String, List<String>> assignmentsByBatch,
+      String partition) {
+    Map<String, Timer.Sample> samples = new HashMap<>();
+    Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+    List<ListenableFuture<String>> futures = new ArrayList<>();
+    for (String batchId : batchIds) {
+      samples.put(batchId, Timer.start(meterRegistry));
+      futures.add(
+          executorService.submit(
+              () -> {
+                if (mdcContext != null) {
+                  MDC.setContextMap(mdcContext);
+                }
+                try {
+                  messageSender.sendMessage(
+                      collectorCoreImplHelper.createAggregatorMessage(
+                          iteration,
+                          assignmentsByBatch.getOrDefault(batchId, List.of()),
+                          Optional.of(batchId),
+                          false,
+                          aggregatorNotificationEndpoint),
+                      aggregatorPubsubTopic);
+                  logger.info(
+                      "Message sent to pubsub for iteration {} and batch {}",
+                      iteration.getId().toString(),
+                      batchId);
+                  return batchId;
+                } catch (Exception e) {
+                  logger.atError().setCause(e).log("Failed to send batch {}", batchId);
+                  return null;
+                } finally {
+                  MDC.clear();
+                }
+              }));
+    }
+
+    List<String> sentBatchIds = new ArrayList<>();
+    try {
+      Futures.successfulAsList(futures).get().stream()
+          .filter(Objects::nonNull)
+          .forEach(sentBatchIds::add);
+    } catch (Exception e) {
+      logger.atError().setCause(e).log("Failed to send batches.");
+    }
+
+    List<AggregationBatchEntity> sentBatches =
+        sentBatchIds.stream()
+            .map(batchId -> createFullAggregationBatch(iteration, batchId, partition))
+            .collect(Collectors.toList());
+    Set<String> publishedBatchIds = new HashSet<>();
+    if (aggregationBatchDao.batchUpdateAggregationBatchStatus(
+        sentBatches, AggregationBatchEntity.Status.PUBLISH_COMPLETED)) {
+      publishedBatchIds.addAll(sentBatchIds);
+    } else {
+      // Fall back to per batch updates so a single stale batch does not hold back the others.
+      for (AggregationBatchEntity from : sentBatches) {
+        if (updateBatchToPublishCompleted(from)) {
+          publishedBatchIds.add(from.getBatchId());
+        }
+      }
+    }
+
+    for (String batchId : batchIds) {
+      samples
+          .get(batchId)
+          .stop(
+              Timer.builder(PUBLISH_BATCH_TIMER_NAME)
+                  .tags(
+                      RESULT_TAG,
+                      publishedBatchIds.contains(batchId) ? RESULT_PUBLISHED : RESULT_FAILED)
+                  .register(meterRegistry));
+    }
+    return publishedBatchIds;
   }
 
   private boolean createAndSendAggregationMessage(
@@ -586,22 +1114,16 @@ public class CollectorCoreImpl implements CollectorCore {
         "Message sent to pubsub for iteration {} and batch {}",
         iteration.getId().toString(),
         batchId);
-    AggregationBatchEntity from =
-        AggregationBatchEntity.builder()
-            .populationName(iteration.getPopulationName())
-            .taskId(iteration.getTaskId())
-            .attemptId(iteration.getAttemptId())
-            .iterationId(iteration.getIterationId())
-            .batchId(batchId)
-            .status(AggregationBatchEntity.Status.FULL)
-            .aggregationLevel(iteration.getAggregationLevel())
-            .createdByPartition(partition)
-            .build();
+    return updateBatchToPublishCompleted(
+        createFullAggregationBatch(iteration, batchId, partition));
+  }
+
+  private boolean updateBatchToPublishCompleted(AggregationBatchEntity from) {
     if (!aggregationBatchDao.updateAggregationBatchStatus(
         from, from.toBuilder().status(AggregationBatchEntity.Status.PUBLISH_COMPLETED).build())) {
       logger.error(
           "Failed to update batch {} from {} to {}",
-          batchId,
+          from.getBatchId(),
           from.getStatus(),
           AggregationBatchEntity.Status.PUBLISH_COMPLETED);
       return false;
@@ -609,6 +1131,20 @@ public class CollectorCoreImpl implements CollectorCore {
     return true;
   }
 
+  private static AggregationBatchEntity createFullAggregationBatch(
+      IterationEntity iteration, String batchId, String partition) {
+    return AggregationBatchEntity.builder()
+        .populationName(iteration.getPopulationName())
+        .taskId(iteration.getTaskId())
+        .attemptId(iteration.getAttemptId())
+        .iterationId(iteration.getIterationId())
+        .batchId(batchId)
+        .status(AggregationBatchEntity.Status.FULL)
+        .aggregationLevel(iteration.getAggregationLevel())
+        .createdByPartition(partition)
+        .build();
+  }
+
   private long countContributionsAndTriggerAggregation(
       IterationEntity iteration, List<String> leftoverAssignments, String partition) {
     // Count all publish_completed and upload_completed.
@@ -628,6 +1164,8 @@ public class CollectorCoreImpl implements CollectorCore {
       }
     }
 
+    batchSizer.recordPublished(iteration.getId(), publishedAssignments);
+
     // Final check for publishedAssignments and updating iteration status.
     if (publishedAssignments >= iteration.getReportGoal()) {
       // Update iteration state
@@ -706,7 +1244,12 @@ public class CollectorCoreImpl implements CollectorCore {
         /* to= */ timeoutStatus);
   }
 
-  private void batchUpdateAssignments(
+  /**
+   * Updates the status of the provided assignments.
+   *
+   * @return True if all the assignments were updated, false otherwise.
+   */
+  private boolean batchUpdateAssignments(
       IterationEntity iteration,
       Collection<String> assignmentIdStrings,
       AssignmentEntity.Status from,
@@ -722,13 +1265,14 @@ public class CollectorCoreImpl implements CollectorCore {
             assignmentIdStrings.size() - updates,
             from,
             to);
-      } else {
-        logger.info(
-            "Updated {} assignment statuses from {} to {}.",
-            updates,
-            from,
-            to);
+        return false;
       }
+      logger.info(
+          "Updated {} assignment statuses from {} to {}.",
+          updates,
+          from,
+          to);
+      return true;
     } catch (Exception e) {
       logger.error("Failed to update assignment statuses.", e);
       throw new RuntimeException(e);
@@ -749,4 +1293,19 @@ public class CollectorCoreImpl implements CollectorCore {
                     .build())
         .collect(Collectors.toList());
   }
+
+  private List<AggregationBatchId> convertAggregationBatchIds(
+      Collection<String> batchIds, IterationId iteration) {
+    return batchIds.stream()
+        .map(
+            batchId ->
+                AggregationBatchId.builder()
+                    .populationName(iteration.getPopulationName())
+                    .taskId(iteration.getTaskId())
+                    .iterationId(iteration.getIterationId())
+                    .attemptId(iteration.getAttemptId())
+                    .batchId(batchId)
+                    .build())
+        .collect(Collectors.toList());
+  }
 }
@@ -0,0 +1,109 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.collector.core;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory view of a COLLECTING iteration kept by the collector replica holding the iteration
+ * lock. The state is rebuilt from Spanner on reconciliation and then only updated with the writes
+ * made by the replica itself until the next reconciliation. The state is dropped whenever another
+ * replica processed the iteration meanwhile, as recorded in Spanner by the last collector marker.
+ */
+final class CollectorIterationState {
+
+  private final Instant reconciledTime;
+  private final Map<String, List<String>> createdBatches = new ConcurrentHashMap<>();
+  private List<String> leftoverAssignments = new ArrayList<>();
+  private long publishedAssignmentCount;
+  private int batchSize;
+  private volatile boolean invalidated;
+
+  CollectorIterationState(Instant reconciledTime) {
+    this.reconciledTime = reconciledTime;
+  }
+
+  /**
+   * Returns whether the state has to be rebuilt from Spanner, which is the case when a write of the
+   * replica failed or when the reconcile interval elapsed.
+   */
+  boolean isReconcileNeeded(Instant now, Duration reconcileInterval) {
+    return invalidated || !now.isBefore(reconciledTime.plus(reconcileInterval));
+  }
+
+  /** Marks the state as diverged from Spanner. */
+  void invalidate() {
+    invalidated = true;
+  }
+
+  boolean isInvalidated() {
+    return invalidated;
+  }
+
+  /** The batch size chosen for the current tick. */
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /** Records a FULL batch created by this replica that is not published yet. */
+  void addCreatedBatch(String batchId, List<String> assignmentIds) {
+    createdBatches.put(batchId, List.copyOf(assignmentIds));
+  }
+
+  /** Returns and clears the FULL batches created by this replica that are not published yet. */
+  Map<String, List<String>> drainCreatedBatches() {
+    Map<String, List<String>> drained = Map.copyOf(createdBatches);
+    createdBatches.keySet().removeAll(drained.keySet());
+    return drained;
+  }
+
+  /** The assignments in UPLOAD_COMPLETED that are not part of a batch yet. */
+  List<String> getLeftoverAssignments() {
+    return leftoverAssignments;
+  }
+
+  void setLeftoverAssignments(List<String> leftoverAssignments) {
+    this.leftoverAssignments = new ArrayList<>(leftoverAssignments);
+  }
+
+  void addLeftoverAssignments(Collection<String> assignmentIds) {
+    leftoverAssignments.addAll(assignmentIds);
+  }
+
+  /** The number of assignments in PUBLISH_COMPLETED or UPLOAD_COMPLETED batches. */
+  long getPublishedAssignmentCount() {
+    return publishedAssignmentCount;
+  }
+
+  void setPublishedAssignmentCount(long publishedAssignmentCount) {
+    this.publishedAssignmentCount = publishedAssignmentCount;
+  }
+
+  void addPublishedAssignments(long count) {
+    publishedAssignmentCount += count;
+  }
+}
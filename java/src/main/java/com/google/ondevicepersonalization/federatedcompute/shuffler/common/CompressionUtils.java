@@ -16,43 +16,25 @@
 
 package com.google.ondevicepersonalization.federatedcompute.shuffler.common;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
 
 public class CompressionUtils {
-  private static final int BUFFER_SIZE = 1024;
 
   private CompressionUtils() {}
 
-  /** Uncompresses the input data using Gzip. */
+  /**
+   * Uncompresses the input data using Gzip.
+   *
+   * <p>The output is inflated directly into an array sized from the uncompressed size recorded in
+   * the gzip trailer, so that a single-member input is uncompressed without intermediate copies.
+   */
   public static byte[] uncompressWithGzip(byte[] data) {
-    try (ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-        GZIPInputStream gzip = new GZIPInputStream(inputStream);
-        ByteArrayOutputStream result = new ByteArrayOutputStream()) {
-      int length;
-      byte[] buffer = new byte[BUFFER_SIZE];
-      while ((length = gzip.read(buffer, 0, BUFFER_SIZE)) > 0) {
-        result.write(buffer, 0, length);
-      }
-      return result.toByteArray();
-    } catch (Exception e) {
-      throw new IllegalArgumentException("Failed to uncompress using Gzip", e);
-    }
+    return CompressionCodecs.GZIP.uncompress(data);
   }
 
   /** Compresses the input data using Gzip. */
   public static byte[] compressWithGzip(byte[] data) {
-    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
-      gzipOutputStream.write(data);
-      gzipOutputStream.finish();
-      return outputStream.toByteArray();
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to compress using Gzip", e);
-    }
+    return CompressionCodecs.GZIP.compress(data);
   }
 
   public enum CompressionFormat {
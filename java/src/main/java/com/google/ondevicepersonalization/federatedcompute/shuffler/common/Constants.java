@@ -87,4 +87,8 @@ public final class Constants {
   public static final String ODP_AUTHENTICATION_KEY = "odp-authentication-key";
 
   public static final String COMPRESSION_FORMAT_GZIP = "gzip";
+
+  public static final String COMPRESSION_FORMAT_ZSTD = "zstd";
+
+  public static final String COMPRESSION_FORMAT_LZ4 = "lz4";
 }
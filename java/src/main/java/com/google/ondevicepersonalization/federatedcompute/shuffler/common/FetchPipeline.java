@@ -0,0 +1,164 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A two stage pipeline fetching blobs on a dedicated I/O pool and processing them on a separate CPU
+ * pool, so that blocking downloads neither starve nor are starved by CPU bound work such as
+ * decryption.
+ *
+ * <p>The number of blobs in flight, downloaded but not yet processed, is bounded by the queue
+ * capacity shared by all the callers of the pipeline, and callers block when the queue is full.
+ * {@link #fetch} returns all the processed results at once, so they are held together regardless
+ * of the queue. Only {@link #stream} bounds the memory held by the results, by keeping a slot
+ * until its result is consumed.
+ */
+public final class FetchPipeline {
+
+  private final ExecutorService ioExecutor;
+  private final ExecutorService cpuExecutor;
+  private final Semaphore queue;
+
+  public FetchPipeline(int ioConcurrency, int cpuParallelism, int queueCapacity) {
+    this.ioExecutor = newThreadPool(ioConcurrency, "fetch-io-%d");
+    this.cpuExecutor = newThreadPool(cpuParallelism, "fetch-cpu-%d");
+    this.queue = new Semaphore(queueCapacity);
+  }
+
+  /**
+   * Fetches and processes all the inputs, returning the processed results in the order of the
+   * inputs. Stops scheduling new fetches after the first failure and rethrows it wrapped in a
+   * {@link CompletionException}.
+   */
+  public <I, O> List<O> fetch(
+      List<I> inputs, Function<I, byte[]> fetcher, Function<byte[], O> processor) {
+    List<CompletableFuture<O>> results = new ArrayList<>(inputs.size());
+    AtomicBoolean failed = new AtomicBoolean();
+    for (I input : inputs) {
+      acquire();
+      if (failed.get()) {
+        queue.release();
+        break;
+      }
+      results.add(
+          CompletableFuture.supplyAsync(() -> fetcher.apply(input), ioExecutor)
+              .thenApplyAsync(processor, cpuExecutor)
+              .whenComplete(
+                  (result, e) -> {
+                    if (e != null) {
+                      failed.set(true);
+                    }
+                    queue.release();
+                  }));
+    }
+    CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).join();
+    return results.stream().map(CompletableFuture::join).collect(Collectors.toList());
+  }
+
+  /**
+   * Fetches and processes all the inputs, handing every result to the consumer on the calling
+   * thread as soon as it is processed, in the order of completion. The queue slot of a result is
+   * only released once the result is consumed, so that at most the queue capacity of results are
+   * held at once regardless of the number of inputs. Stops after the first failure and rethrows it
+   * wrapped in a {@link CompletionException}.
+   */
+  public <I, O> void stream(
+      List<I> inputs,
+      Function<I, byte[]> fetcher,
+      Function<byte[], O> processor,
+      Consumer<O> consumer) {
+    BlockingQueue<CompletableFuture<O>> completed = new LinkedBlockingQueue<>();
+    Set<CompletableFuture<O>> pending = new HashSet<>();
+    Iterator<I> remaining = inputs.iterator();
+    try {
+      while (remaining.hasNext() || !pending.isEmpty()) {
+        // Without pending results, block for a slot as nothing would be consumed meanwhile.
+        if (remaining.hasNext() && (pending.isEmpty() ? acquire() : queue.tryAcquire())) {
+          I input = remaining.next();
+          CompletableFuture<O> result =
+              CompletableFuture.supplyAsync(() -> fetcher.apply(input), ioExecutor)
+                  .thenApplyAsync(processor, cpuExecutor);
+          pending.add(result);
+          result.whenComplete((value, e) -> completed.add(result));
+          continue;
+        }
+        CompletableFuture<O> result = take(completed);
+        pending.remove(result);
+        try {
+          consumer.accept(result.join());
+        } finally {
+          queue.release();
+        }
+      }
+    } finally {
+      // Release the slots of the results left unconsumed after a failure once they complete.
+      pending.forEach((result) -> result.whenComplete((value, e) -> queue.release()));
+    }
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a fetched result.", e);
+    }
+  }
+
+  private boolean acquire() {
+    try {
+      queue.acquire();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the fetch queue.", e);
+    }
+  }
+
+  private static ExecutorService newThreadPool(int threads, String nameFormat) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+    // The pools are idle outside of aggregation jobs, do not keep their threads around.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
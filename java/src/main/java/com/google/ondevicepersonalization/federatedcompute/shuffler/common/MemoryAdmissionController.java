@@ -0,0 +1,159 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounds the memory used by the messages processed concurrently by a worker.
+ *
+ * <p>The footprint of a message is estimated from the sizes of the blobs it downloads, and the
+ * message is only admitted once the footprints of the messages in progress leave room for it in
+ * the budget. A message waiting longer than the admission timeout is rejected, so that it is
+ * redelivered to a worker with more room. A message exceeding the whole budget is admitted alone.
+ * A budget of 0 admits every message without estimating its footprint.
+ */
+@Component
+public class MemoryAdmissionController {
+
+  private static final Logger logger = LoggerFactory.getLogger(MemoryAdmissionController.class);
+
+  static final String IN_USE_BYTES_GAUGE_NAME = "shuffler.worker.admitted.bytes";
+
+  /** The number of blob sizes fetched to estimate the total size of the blobs of a message. */
+  static final int SAMPLE_SIZE = 16;
+
+  /** Every downloaded blob is held both as received and once decrypted. */
+  private static final int COPIES_PER_BLOB = 2;
+
+  private final BlobDao blobDao;
+  private final long budgetBytes;
+  private final Duration timeout;
+  private long inUseBytes;
+
+  public MemoryAdmissionController(
+      BlobDao blobDao,
+      MeterRegistry meterRegistry,
+      int workerMemoryBudgetMegabytes,
+      int memoryAdmissionTimeoutSeconds) {
+    this.blobDao = blobDao;
+    this.budgetBytes = workerMemoryBudgetMegabytes * 1024L * 1024L;
+    this.timeout = Duration.ofSeconds(memoryAdmissionTimeoutSeconds);
+    Gauge.builder(IN_USE_BYTES_GAUGE_NAME, this, MemoryAdmissionController::getInUseBytes)
+        .description("The estimated memory in bytes of the messages in progress.")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Estimates the memory held while processing the blobs, extrapolating the sizes of a sample of
+   * the blobs. Returns 0 when admission control is disabled.
+   */
+  public long estimateBytes(List<BlobDescription> blobs) {
+    if (budgetBytes <= 0 || blobs.isEmpty()) {
+      return 0;
+    }
+    return estimateBlobBytes(blobs) * blobs.size() * COPIES_PER_BLOB;
+  }
+
+  /**
+   * Estimates the average size of the blobs from the sizes of a sample of the blobs, whether or
+   * not admission control is enabled. Returns 0 for no blobs.
+   */
+  public long estimateBlobBytes(List<BlobDescription> blobs) {
+    if (blobs.isEmpty()) {
+      return 0;
+    }
+    int samples = Math.min(SAMPLE_SIZE, blobs.size());
+    long sampledBytes = 0;
+    for (int i = 0; i < samples; i++) {
+      // Spread the sample over the whole list.
+      BlobDescription blob = blobs.get((int) ((long) i * blobs.size() / samples));
+      sampledBytes += blobDao.getSize(blob).orElse(0L);
+    }
+    return sampledBytes / samples;
+  }
+
+  /**
+   * Waits until the bytes fit in the budget and reserves them until the returned admission is
+   * closed.
+   *
+   * @throws IllegalStateException if the bytes did not fit in the budget within the timeout.
+   */
+  public Admission admit(long bytes) {
+    if (budgetBytes <= 0 || bytes <= 0) {
+      return new Admission(0);
+    }
+    long deadline = System.nanoTime() + timeout.toNanos();
+    synchronized (this) {
+      while (inUseBytes > 0 && inUseBytes + bytes > budgetBytes) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new IllegalStateException(
+              String.format(
+                  "Not enough memory to admit %d bytes, %d of %d bytes in use.",
+                  bytes, inUseBytes, budgetBytes));
+        }
+        try {
+          wait(Math.max(1, remaining / 1_000_000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for memory.", e);
+        }
+      }
+      inUseBytes += bytes;
+    }
+    logger.info("Admitted {} bytes, {} bytes in use.", bytes, getInUseBytes());
+    return new Admission(bytes);
+  }
+
+  /** Returns the bytes reserved by the admitted messages. */
+  public synchronized long getInUseBytes() {
+    return inUseBytes;
+  }
+
+  private synchronized void release(long bytes) {
+    inUseBytes -= bytes;
+    notifyAll();
+  }
+
+  /** The bytes reserved for a message, released when closed. */
+  public final class Admission implements AutoCloseable {
+    private final long bytes;
+    private boolean closed;
+
+    private Admission(long bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+      if (!closed && bytes > 0) {
+        release(bytes);
+      }
+      closed = true;
+    }
+  }
+}
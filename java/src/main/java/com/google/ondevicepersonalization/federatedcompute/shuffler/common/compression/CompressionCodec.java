@@ -0,0 +1,51 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** A compression format of blobs, identified by the content encoding recorded on the blobs. */
+public interface CompressionCodec {
+
+  /** Returns the content encoding recorded on the blobs compressed by the codec. */
+  String getContentEncoding();
+
+  /**
+   * Compresses the data.
+   *
+   * @throws IllegalStateException if the data could not be compressed.
+   */
+  byte[] compress(byte[] data);
+
+  /**
+   * Uncompresses the data.
+   *
+   * @throws IllegalArgumentException if the data is not valid for the codec.
+   */
+  byte[] uncompress(byte[] data);
+
+  /**
+   * Wraps the output so that the data written to the returned stream is compressed on the fly.
+   * Closing the returned stream completes the compressed data and closes the output.
+   */
+  OutputStream compressingStream(OutputStream output) throws IOException;
+
+  /** Wraps the input so that the data read from the returned stream is uncompressed on the fly. */
+  InputStream uncompressingStream(InputStream input) throws IOException;
+}
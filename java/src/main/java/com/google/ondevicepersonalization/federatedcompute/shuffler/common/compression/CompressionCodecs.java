@@ -0,0 +1,128 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_GZIP;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_LZ4;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_ZSTD;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compression codecs of blobs.
+ *
+ * <p>Gzip is the only format devices support, so the other codecs are only used for blobs written
+ * and read by the server, such as checkpoints and intermediate aggregation results.
+ */
+public final class CompressionCodecs {
+
+  private static final Logger logger = LoggerFactory.getLogger(CompressionCodecs.class);
+
+  /** The size of the buffers of the compressing and uncompressing streams. */
+  static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The largest ratio to the compressed size of the uncompressed size claimed by a header or
+   * trailer that is allocated up front. The claims of untrusted data could otherwise allocate
+   * arbitrarily large arrays, so larger outputs are grown as they are uncompressed instead.
+   */
+  static final int MAX_SIZE_HINT_RATIO = 8;
+
+  /** The gzip codec with the default level. */
+  public static final CompressionCodec GZIP = new GzipCodec(0);
+
+  /** The codecs with their default levels by content encoding, used to uncompress blobs. */
+  private static final Map<String, CompressionCodec> DECODERS =
+      Map.of(
+          COMPRESSION_FORMAT_GZIP, GZIP,
+          COMPRESSION_FORMAT_ZSTD, new ZstdCodec(0),
+          COMPRESSION_FORMAT_LZ4, new Lz4Codec(0));
+
+  /** The magic bytes starting the data compressed by each codec, to detect the codec of data. */
+  private static final List<Map.Entry<byte[], CompressionCodec>> MAGIC_BYTES =
+      List.of(
+          // The gzip magic followed by the deflate method, the only one defined.
+          Map.entry(new byte[] {0x1f, (byte) 0x8b, 0x08}, GZIP),
+          Map.entry(
+              new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},
+              DECODERS.get(COMPRESSION_FORMAT_ZSTD)),
+          Map.entry(new byte[] {0x04, 0x22, 0x4d, 0x18}, DECODERS.get(COMPRESSION_FORMAT_LZ4)));
+
+  private CompressionCodecs() {}
+
+  /**
+   * Creates the codec of the content encoding compressing at the level, where a level of 0 is the
+   * default level of the codec.
+   *
+   * @throws IllegalArgumentException if the content encoding is not supported.
+   */
+  public static CompressionCodec create(String contentEncoding, int level) {
+    return switch (contentEncoding.toLowerCase(Locale.ROOT)) {
+      case COMPRESSION_FORMAT_GZIP -> level == 0 ? GZIP : new GzipCodec(level);
+      case COMPRESSION_FORMAT_ZSTD -> new ZstdCodec(level);
+      case COMPRESSION_FORMAT_LZ4 -> new Lz4Codec(level);
+      default ->
+          throw new IllegalArgumentException("Unsupported compression format: " + contentEncoding);
+    };
+  }
+
+  /**
+   * Returns the codec of the data detected from its magic bytes, empty if the data does not start
+   * with the magic bytes of a supported codec. Uncompressed data may start with magic bytes by
+   * chance, so the data is not guaranteed to be valid for the codec.
+   */
+  public static Optional<CompressionCodec> detect(byte[] data) {
+    for (Map.Entry<byte[], CompressionCodec> magic : MAGIC_BYTES) {
+      byte[] bytes = magic.getKey();
+      if (data.length >= bytes.length
+          && Arrays.equals(data, 0, bytes.length, bytes, 0, bytes.length)) {
+        return Optional.of(magic.getValue());
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Uncompresses the data if it starts with the gzip magic bytes. Uncompressed data may start with
+   * the magic bytes by chance, so data that does not uncompress is returned as is.
+   *
+   * <p>Only gzip is detected, since devices upload gzip alone: the other codecs must only be used
+   * for blobs known to be written by the server.
+   */
+  public static byte[] uncompressIfGzip(byte[] data) {
+    if (detect(data).orElse(null) != GZIP) {
+      return data;
+    }
+    try {
+      return GZIP.uncompress(data);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Data detected as gzip failed to uncompress, returning it as is.", e);
+      return data;
+    }
+  }
+
+  /** Returns the codec uncompressing blobs of the content encoding, empty if not supported. */
+  public static Optional<CompressionCodec> forContentEncoding(String contentEncoding) {
+    return Optional.ofNullable(DECODERS.get(contentEncoding.toLowerCase(Locale.ROOT)));
+  }
+}
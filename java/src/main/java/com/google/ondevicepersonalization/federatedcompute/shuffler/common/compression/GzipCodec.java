@@ -0,0 +1,308 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_GZIP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The gzip codec, writing single member gzip streams and reading single or multiple member ones.
+ *
+ * <p>The deflaters and inflaters hold native buffers that are expensive to allocate, so they are
+ * pooled and reused across calls instead of being created by a stream per call. Data is deflated
+ * and inflated directly between arrays, without intermediate stream buffers.
+ */
+public final class GzipCodec implements CompressionCodec {
+
+  /** The maximum number of idle deflaters and inflaters kept by a codec. */
+  static final int MAX_POOLED = 32;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int HEADER_SIZE = 10;
+  private static final int TRAILER_SIZE = 8;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final byte OS_UNKNOWN = (byte) 255;
+
+  private static final int MIN_BUFFER_SIZE = 1024;
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  private final int deflateLevel;
+  private final Pool<Deflater> deflaters;
+  private final Pool<Inflater> inflaters;
+
+  /**
+   * @param level the deflate level from 1 to 9, or 0 for the default level.
+   */
+  public GzipCodec(int level) {
+    if (level < 0 || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid gzip compression level: " + level);
+    }
+    this.deflateLevel = level == 0 ? Deflater.DEFAULT_COMPRESSION : level;
+    this.deflaters =
+        new Pool<>(() -> new Deflater(deflateLevel, true), Deflater::reset, Deflater::end);
+    this.inflaters = new Pool<>(() -> new Inflater(true), Inflater::reset, Inflater::end);
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return COMPRESSION_FORMAT_GZIP;
+  }
+
+  @Override
+  public OutputStream compressingStream(OutputStream output) throws IOException {
+    return new GZIPOutputStream(output, CompressionCodecs.STREAM_BUFFER_SIZE) {
+      {
+        def.setLevel(deflateLevel);
+      }
+    };
+  }
+
+  @Override
+  public InputStream uncompressingStream(InputStream input) throws IOException {
+    return new GZIPInputStream(input, CompressionCodecs.STREAM_BUFFER_SIZE);
+  }
+
+  @Override
+  public byte[] compress(byte[] data) {
+    Deflater deflater = deflaters.take();
+    try {
+      byte[] output = new byte[getCompressedSizeBound(data.length)];
+      output[0] = (byte) GZIP_MAGIC;
+      output[1] = (byte) (GZIP_MAGIC >> 8);
+      output[2] = Deflater.DEFLATED;
+      output[9] = OS_UNKNOWN;
+      deflater.setInput(data);
+      deflater.finish();
+      int length = HEADER_SIZE;
+      while (!deflater.finished()) {
+        if (length == output.length - TRAILER_SIZE) {
+          output = Arrays.copyOf(output, grow(output.length));
+        }
+        length += deflater.deflate(output, length, output.length - TRAILER_SIZE - length);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      ByteBuffer.wrap(output, length, TRAILER_SIZE)
+          .order(ByteOrder.LITTLE_ENDIAN)
+          .putInt((int) crc.getValue())
+          .putInt(data.length);
+      length += TRAILER_SIZE;
+      return length == output.length ? output : Arrays.copyOf(output, length);
+    } catch (RuntimeException e) {
+      throw new IllegalStateException("Failed to compress using Gzip", e);
+    } finally {
+      deflaters.release(deflater);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The output is inflated directly into an array sized from the uncompressed size recorded in
+   * the gzip trailer, so that a single member input is uncompressed without intermediate copies.
+   */
+  @Override
+  public byte[] uncompress(byte[] data) {
+    Inflater inflater = inflaters.take();
+    try {
+      byte[] output = new byte[getUncompressedSizeHint(data)];
+      int length = 0;
+      int position = 0;
+      do {
+        position = skipHeader(data, position);
+        inflater.reset();
+        inflater.setInput(data, position, data.length - position);
+        int memberStart = length;
+        while (!inflater.finished()) {
+          if (length < output.length) {
+            length += inflate(inflater, output, length, output.length - length);
+            continue;
+          }
+          // Only grow a full output once the member is known to hold more data.
+          byte[] next = new byte[1];
+          if (inflate(inflater, next, 0, 1) > 0) {
+            output = Arrays.copyOf(output, grow(output.length));
+            output[length++] = next[0];
+          }
+        }
+        position = data.length - inflater.getRemaining();
+        checkTrailer(data, position, output, memberStart, length);
+        position += TRAILER_SIZE;
+        // Like GZIPInputStream, bytes following a member that do not start a new member are
+        // ignored.
+      } while (isMemberStart(data, position));
+      return length == output.length ? output : Arrays.copyOf(output, length);
+    } catch (ZipException | DataFormatException | RuntimeException e) {
+      throw new IllegalArgumentException("Failed to uncompress using Gzip", e);
+    } finally {
+      inflaters.release(inflater);
+    }
+  }
+
+  private static int inflate(Inflater inflater, byte[] output, int offset, int length)
+      throws DataFormatException, ZipException {
+    int inflated = inflater.inflate(output, offset, length);
+    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+      throw new ZipException("Unexpected end of gzip data");
+    }
+    return inflated;
+  }
+
+  private static boolean isMemberStart(byte[] data, int position) {
+    return data.length - position >= HEADER_SIZE + TRAILER_SIZE
+        && (data[position] & 0xff) == (GZIP_MAGIC & 0xff)
+        && (data[position + 1] & 0xff) == GZIP_MAGIC >> 8;
+  }
+
+  /** Returns the position of the deflated data following the member header at the position. */
+  private static int skipHeader(byte[] data, int position) throws ZipException {
+    if (data.length - position < HEADER_SIZE
+        || (data[position] & 0xff) != (GZIP_MAGIC & 0xff)
+        || (data[position + 1] & 0xff) != GZIP_MAGIC >> 8) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (data[position + 2] != Deflater.DEFLATED) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = data[position + 3] & 0xff;
+    position += HEADER_SIZE;
+    if ((flags & FEXTRA) != 0) {
+      checkAvailable(data, position, 2);
+      position += 2 + ((data[position] & 0xff) | (data[position + 1] & 0xff) << 8);
+    }
+    if ((flags & FNAME) != 0) {
+      position = skipZeroTerminated(data, position);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      position = skipZeroTerminated(data, position);
+    }
+    if ((flags & FHCRC) != 0) {
+      position += 2;
+    }
+    checkAvailable(data, position, 0);
+    return position;
+  }
+
+  private static int skipZeroTerminated(byte[] data, int position) throws ZipException {
+    while (position < data.length && data[position] != 0) {
+      position++;
+    }
+    checkAvailable(data, position, 1);
+    return position + 1;
+  }
+
+  private static void checkAvailable(byte[] data, int position, int count) throws ZipException {
+    if (position > data.length - count) {
+      throw new ZipException("Unexpected end of gzip header");
+    }
+  }
+
+  private static void checkTrailer(byte[] data, int position, byte[] output, int start, int end)
+      throws ZipException {
+    checkAvailable(data, position, TRAILER_SIZE);
+    ByteBuffer trailer =
+        ByteBuffer.wrap(data, position, TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    CRC32 crc = new CRC32();
+    crc.update(output, start, end - start);
+    if (trailer.getInt() != (int) crc.getValue()) {
+      throw new ZipException("Corrupt gzip trailer, CRC mismatch");
+    }
+    if (trailer.getInt() != end - start) {
+      throw new ZipException("Corrupt gzip trailer, size mismatch");
+    }
+  }
+
+  /** Returns an upper bound of the size of the gzip stream of data of the length. */
+  private static int getCompressedSizeBound(int length) {
+    // The bound of zlib's deflateBound for stored blocks, plus the gzip header and trailer.
+    long bound = (long) length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    return (int) Math.min(HEADER_SIZE + bound + TRAILER_SIZE, MAX_ARRAY_SIZE);
+  }
+
+  /**
+   * Returns the uncompressed size recorded in the trailer of the last member, modulo 2^32, capped
+   * at a few times the compressed size so that a forged trailer cannot force a huge allocation. The
+   * output grows past the hint when the data really is that compressible.
+   */
+  private static int getUncompressedSizeHint(byte[] data) {
+    if (data.length < HEADER_SIZE + TRAILER_SIZE) {
+      return 0;
+    }
+    long size =
+        ByteBuffer.wrap(data, data.length - Integer.BYTES, Integer.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .getInt()
+            & 0xFFFFFFFFL;
+    return (int)
+        Math.min(
+            size,
+            Math.min((long) data.length * CompressionCodecs.MAX_SIZE_HINT_RATIO, MAX_ARRAY_SIZE));
+  }
+
+  private static int grow(int length) {
+    if (length >= MAX_ARRAY_SIZE) {
+      throw new IllegalStateException("Gzip data too large");
+    }
+    return (int) Math.min(Math.max(2L * length, MIN_BUFFER_SIZE), MAX_ARRAY_SIZE);
+  }
+
+  /** A bounded pool of reusable objects, destroying the released objects exceeding the bound. */
+  private static final class Pool<T> {
+    private final BlockingQueue<T> idle = new ArrayBlockingQueue<>(MAX_POOLED);
+    private final Supplier<T> factory;
+    private final Consumer<T> resetter;
+    private final Consumer<T> destructor;
+
+    Pool(Supplier<T> factory, Consumer<T> resetter, Consumer<T> destructor) {
+      this.factory = factory;
+      this.resetter = resetter;
+      this.destructor = destructor;
+    }
+
+    T take() {
+      T value = idle.poll();
+      return value != null ? value : factory.get();
+    }
+
+    void release(T value) {
+      resetter.accept(value);
+      if (!idle.offer(value)) {
+        destructor.accept(value);
+      }
+    }
+  }
+}
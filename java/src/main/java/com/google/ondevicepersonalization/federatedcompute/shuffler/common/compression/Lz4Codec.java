@@ -0,0 +1,100 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_LZ4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream.BlockSize;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream.Parameters;
+
+/**
+ * The LZ4 frame format codec. LZ4 trades compression ratio for speed, for artifacts that are
+ * written and read back shortly after, such as intermediate aggregation results.
+ */
+public final class Lz4Codec implements CompressionCodec {
+
+  /** The levels from which matches are searched for the compression ratio rather than speed. */
+  static final int HIGH_COMPRESSION_LEVEL = 9;
+
+  private static final int MAX_LEVEL = 12;
+
+  private final Parameters parameters;
+
+  /**
+   * @param level the level from 1 to 12, or 0 for the default level. The levels only select
+   *     between two parameter sets: levels below {@link #HIGH_COMPRESSION_LEVEL} are tuned for
+   *     speed, and the others for the compression ratio.
+   */
+  public Lz4Codec(int level) {
+    if (level < 0 || level > MAX_LEVEL) {
+      throw new IllegalArgumentException("Invalid lz4 compression level: " + level);
+    }
+    this.parameters =
+        new Parameters(
+            BlockSize.M4,
+            level >= HIGH_COMPRESSION_LEVEL
+                ? BlockLZ4CompressorOutputStream.createParameterBuilder()
+                    .tunedForCompressionRatio()
+                    .build()
+                : BlockLZ4CompressorOutputStream.createParameterBuilder().tunedForSpeed().build());
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return COMPRESSION_FORMAT_LZ4;
+  }
+
+  @Override
+  public OutputStream compressingStream(OutputStream output) throws IOException {
+    return new FramedLZ4CompressorOutputStream(output, parameters);
+  }
+
+  @Override
+  public InputStream uncompressingStream(InputStream input) throws IOException {
+    return new FramedLZ4CompressorInputStream(input, true);
+  }
+
+  @Override
+  public byte[] compress(byte[] data) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+    try (FramedLZ4CompressorOutputStream lz4 =
+        new FramedLZ4CompressorOutputStream(output, parameters)) {
+      lz4.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to compress using Lz4", e);
+    }
+    return output.toByteArray();
+  }
+
+  @Override
+  public byte[] uncompress(byte[] data) {
+    try (FramedLZ4CompressorInputStream lz4 =
+        new FramedLZ4CompressorInputStream(new ByteArrayInputStream(data), true)) {
+      return lz4.readAllBytes();
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalArgumentException("Failed to uncompress using Lz4", e);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.COMPRESSION_FORMAT_ZSTD;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The zstd codec. Zstd compresses faster than gzip at a similar ratio and decompresses several
+ * times faster, which suits the checkpoints and intermediate results the server reads back.
+ */
+public final class ZstdCodec implements CompressionCodec {
+
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  private final int level;
+
+  /**
+   * @param level the zstd level, from the negative fast levels up to 22, or 0 for the default
+   *     level.
+   */
+  public ZstdCodec(int level) {
+    if (level < Zstd.minCompressionLevel() || level > Zstd.maxCompressionLevel()) {
+      throw new IllegalArgumentException("Invalid zstd compression level: " + level);
+    }
+    this.level = level == 0 ? Zstd.defaultCompressionLevel() : level;
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return COMPRESSION_FORMAT_ZSTD;
+  }
+
+  @Override
+  public OutputStream compressingStream(OutputStream output) throws IOException {
+    return new BufferedOutputStream(
+        new ZstdOutputStream(output, level), CompressionCodecs.STREAM_BUFFER_SIZE);
+  }
+
+  @Override
+  public InputStream uncompressingStream(InputStream input) throws IOException {
+    return new BufferedInputStream(
+        new ZstdInputStream(input), CompressionCodecs.STREAM_BUFFER_SIZE);
+  }
+
+  @Override
+  public byte[] compress(byte[] data) {
+    try {
+      // The frame records the uncompressed size, which sizes the output when uncompressing.
+      return Zstd.compress(data, level);
+    } catch (RuntimeException e) {
+      throw new IllegalStateException("Failed to compress using Zstd", e);
+    }
+  }
+
+  @Override
+  public byte[] uncompress(byte[] data) {
+    try {
+      long size = Zstd.getFrameContentSize(data);
+      long maxSizeHint =
+          Math.min((long) data.length * CompressionCodecs.MAX_SIZE_HINT_RATIO, MAX_ARRAY_SIZE);
+      if (size >= 0 && size <= maxSizeHint) {
+        return Zstd.decompress(data, (int) size);
+      }
+      // The size is not recorded in the frame, e.g. for streamed frames, or is too large to be
+      // allocated up front.
+      try (ZstdInputStream input = new ZstdInputStream(new ByteArrayInputStream(data))) {
+        return input.readAllBytes();
+      }
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalArgumentException("Failed to uncompress using Zstd", e);
+    }
+  }
+}
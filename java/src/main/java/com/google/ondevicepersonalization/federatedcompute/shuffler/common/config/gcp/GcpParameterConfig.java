@@ -491,6 +491,128 @@ public class GcpParameterConfig {
     return collectorBatchSize;
   }
 
+  @Bean
+  @Qualifier("collectorMaxOutstandingPublishes")
+  public int collectorMaxOutstandingPublishes() {
+    int collectorMaxOutstandingPublishes = googleCloudArgs.getCollectorMaxOutstandingPublishes();
+    if (collectorMaxOutstandingPublishes <= 0) {
+      collectorMaxOutstandingPublishes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_MAX_OUTSTANDING_PUBLISHES").orElse("20"));
+    }
+    logger.info(
+        "Registering collectorMaxOutstandingPublishes parameter as: "
+            + collectorMaxOutstandingPublishes);
+    return collectorMaxOutstandingPublishes;
+  }
+
+  @Bean
+  @Qualifier("enableCollectorStatefulMode")
+  public Boolean enableCollectorStatefulMode() {
+    Boolean enableCollectorStatefulMode = googleCloudArgs.getEnableCollectorStatefulMode();
+    if (enableCollectorStatefulMode == null) {
+      String enableCollectorStatefulModeParameterValue =
+          gcpParameterClient.getParameter("ENABLE_COLLECTOR_STATEFUL_MODE").orElse(null);
+      enableCollectorStatefulMode =
+          enableCollectorStatefulModeParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableCollectorStatefulModeParameterValue);
+    }
+    logger.info(
+        "Registering enableCollectorStatefulMode parameter as: " + enableCollectorStatefulMode);
+    return enableCollectorStatefulMode;
+  }
+
+  @Bean
+  @Qualifier("collectorStateReconcileIntervalSeconds")
+  public int collectorStateReconcileIntervalSeconds() {
+    int collectorStateReconcileIntervalSeconds =
+        googleCloudArgs.getCollectorStateReconcileIntervalSeconds();
+    if (collectorStateReconcileIntervalSeconds <= 0) {
+      collectorStateReconcileIntervalSeconds =
+          Integer.parseInt(
+              gcpParameterClient
+                  .getParameter("COLLECTOR_STATE_RECONCILE_INTERVAL_SECONDS")
+                  .orElse("30"));
+    }
+    logger.info(
+        "Registering collectorStateReconcileIntervalSeconds parameter as: "
+            + collectorStateReconcileIntervalSeconds);
+    return collectorStateReconcileIntervalSeconds;
+  }
+
+  @Bean
+  @Qualifier("collectorAggregationFanIn")
+  public int collectorAggregationFanIn() {
+    int collectorAggregationFanIn = googleCloudArgs.getCollectorAggregationFanIn();
+    if (collectorAggregationFanIn <= 0) {
+      collectorAggregationFanIn =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_AGGREGATION_FAN_IN").orElse("500"));
+    }
+    logger.info("Registering collectorAggregationFanIn parameter as: " + collectorAggregationFanIn);
+    return collectorAggregationFanIn;
+  }
+
+  @Bean
+  @Qualifier("enableCollectorAdaptiveBatchSize")
+  public Boolean enableCollectorAdaptiveBatchSize() {
+    Boolean enableCollectorAdaptiveBatchSize =
+        googleCloudArgs.getEnableCollectorAdaptiveBatchSize();
+    if (enableCollectorAdaptiveBatchSize == null) {
+      String enableCollectorAdaptiveBatchSizeParameterValue =
+          gcpParameterClient.getParameter("ENABLE_COLLECTOR_ADAPTIVE_BATCH_SIZE").orElse(null);
+      enableCollectorAdaptiveBatchSize =
+          enableCollectorAdaptiveBatchSizeParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableCollectorAdaptiveBatchSizeParameterValue);
+    }
+    logger.info(
+        "Registering enableCollectorAdaptiveBatchSize parameter as: "
+            + enableCollectorAdaptiveBatchSize);
+    return enableCollectorAdaptiveBatchSize;
+  }
+
+  @Bean
+  @Qualifier("collectorMinBatchSize")
+  public int collectorMinBatchSize() {
+    int collectorMinBatchSize = googleCloudArgs.getCollectorMinBatchSize();
+    if (collectorMinBatchSize <= 0) {
+      collectorMinBatchSize =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_MIN_BATCH_SIZE").orElse("10"));
+    }
+    logger.info("Registering collectorMinBatchSize parameter as: " + collectorMinBatchSize);
+    return collectorMinBatchSize;
+  }
+
+  @Bean
+  @Qualifier("collectorMaxBatchSize")
+  public int collectorMaxBatchSize() {
+    int collectorMaxBatchSize = googleCloudArgs.getCollectorMaxBatchSize();
+    if (collectorMaxBatchSize <= 0) {
+      collectorMaxBatchSize =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_MAX_BATCH_SIZE").orElse("500"));
+    }
+    logger.info("Registering collectorMaxBatchSize parameter as: " + collectorMaxBatchSize);
+    return collectorMaxBatchSize;
+  }
+
+  @Bean
+  @Qualifier("collectorMaxBatchMegabytes")
+  public int collectorMaxBatchMegabytes() {
+    int collectorMaxBatchMegabytes = googleCloudArgs.getCollectorMaxBatchMegabytes();
+    if (collectorMaxBatchMegabytes <= 0) {
+      collectorMaxBatchMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_MAX_BATCH_MEGABYTES").orElse("256"));
+    }
+    logger.info(
+        "Registering collectorMaxBatchMegabytes parameter as: " + collectorMaxBatchMegabytes);
+    return collectorMaxBatchMegabytes;
+  }
+
   @Bean
   @Qualifier("compressionFormats")
   public List<CompressionFormat> compressionFormats() {
@@ -619,4 +741,365 @@ public class GcpParameterConfig {
             + enableAggregationSuccessNotifications);
     return enableAggregationSuccessNotifications;
   }
+
+  @Bean
+  @Qualifier("enableAggregatorStreaming")
+  public Boolean enableAggregatorStreaming() {
+    Boolean enableAggregatorStreaming = googleCloudArgs.getEnableAggregatorStreaming();
+    if (enableAggregatorStreaming == null) {
+      String enableAggregatorStreamingParameterValue =
+          gcpParameterClient.getParameter("ENABLE_AGGREGATOR_STREAMING").orElse(null);
+      enableAggregatorStreaming =
+          enableAggregatorStreamingParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableAggregatorStreamingParameterValue);
+    }
+    logger.info("Registering enableAggregatorStreaming parameter as: " + enableAggregatorStreaming);
+    return enableAggregatorStreaming;
+  }
+
+  @Bean
+  @Qualifier("aggregatorStreamingWindowSize")
+  public int aggregatorStreamingWindowSize() {
+    int aggregatorStreamingWindowSize = googleCloudArgs.getAggregatorStreamingWindowSize();
+    if (aggregatorStreamingWindowSize <= 0) {
+      aggregatorStreamingWindowSize =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("AGGREGATOR_STREAMING_WINDOW_SIZE").orElse("16"));
+    }
+    logger.info(
+        "Registering aggregatorStreamingWindowSize parameter as: " + aggregatorStreamingWindowSize);
+    return aggregatorStreamingWindowSize;
+  }
+
+  @Bean
+  @Qualifier("gradientDownloadConcurrency")
+  public int gradientDownloadConcurrency() {
+    int gradientDownloadConcurrency = googleCloudArgs.getGradientDownloadConcurrency();
+    if (gradientDownloadConcurrency <= 0) {
+      gradientDownloadConcurrency =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("GRADIENT_DOWNLOAD_CONCURRENCY").orElse("64"));
+    }
+    logger.info(
+        "Registering gradientDownloadConcurrency parameter as: " + gradientDownloadConcurrency);
+    return gradientDownloadConcurrency;
+  }
+
+  @Bean
+  @Qualifier("gradientDecryptParallelism")
+  public int gradientDecryptParallelism() {
+    int gradientDecryptParallelism = googleCloudArgs.getGradientDecryptParallelism();
+    if (gradientDecryptParallelism <= 0) {
+      gradientDecryptParallelism =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("GRADIENT_DECRYPT_PARALLELISM").orElse("0"));
+    }
+    if (gradientDecryptParallelism <= 0) {
+      gradientDecryptParallelism = Runtime.getRuntime().availableProcessors();
+    }
+    logger.info(
+        "Registering gradientDecryptParallelism parameter as: " + gradientDecryptParallelism);
+    return gradientDecryptParallelism;
+  }
+
+  @Bean
+  @Qualifier("gradientFetchQueueCapacity")
+  public int gradientFetchQueueCapacity() {
+    int gradientFetchQueueCapacity = googleCloudArgs.getGradientFetchQueueCapacity();
+    if (gradientFetchQueueCapacity <= 0) {
+      gradientFetchQueueCapacity =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("GRADIENT_FETCH_QUEUE_CAPACITY").orElse("128"));
+    }
+    logger.info(
+        "Registering gradientFetchQueueCapacity parameter as: " + gradientFetchQueueCapacity);
+    return gradientFetchQueueCapacity;
+  }
+
+  @Bean
+  @Qualifier("serverPlanCacheMegabytes")
+  public int serverPlanCacheMegabytes() {
+    int serverPlanCacheMegabytes = googleCloudArgs.getServerPlanCacheMegabytes();
+    if (serverPlanCacheMegabytes <= 0) {
+      serverPlanCacheMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("SERVER_PLAN_CACHE_MEGABYTES").orElse("64"));
+    }
+    logger.info("Registering serverPlanCacheMegabytes parameter as: " + serverPlanCacheMegabytes);
+    return serverPlanCacheMegabytes;
+  }
+
+  @Bean
+  @Qualifier("enableAggregationTreePlanner")
+  public Boolean enableAggregationTreePlanner() {
+    Boolean enableAggregationTreePlanner = googleCloudArgs.getEnableAggregationTreePlanner();
+    if (enableAggregationTreePlanner == null) {
+      String enableAggregationTreePlannerParameterValue =
+          gcpParameterClient.getParameter("ENABLE_AGGREGATION_TREE_PLANNER").orElse(null);
+      enableAggregationTreePlanner =
+          enableAggregationTreePlannerParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableAggregationTreePlannerParameterValue);
+    }
+    logger.info(
+        "Registering enableAggregationTreePlanner parameter as: " + enableAggregationTreePlanner);
+    return enableAggregationTreePlanner;
+  }
+
+  @Bean
+  @Qualifier("aggregationHeapBudgetMegabytes")
+  public int aggregationHeapBudgetMegabytes() {
+    int aggregationHeapBudgetMegabytes = googleCloudArgs.getAggregationHeapBudgetMegabytes();
+    if (aggregationHeapBudgetMegabytes <= 0) {
+      aggregationHeapBudgetMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("AGGREGATION_HEAP_BUDGET_MEGABYTES").orElse("1024"));
+    }
+    logger.info(
+        "Registering aggregationHeapBudgetMegabytes parameter as: "
+            + aggregationHeapBudgetMegabytes);
+    return aggregationHeapBudgetMegabytes;
+  }
+
+  @Bean
+  @Qualifier("aggregationSessionPoolSize")
+  public int aggregationSessionPoolSize() {
+    int aggregationSessionPoolSize = googleCloudArgs.getAggregationSessionPoolSize();
+    if (aggregationSessionPoolSize <= 0) {
+      aggregationSessionPoolSize =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("AGGREGATION_SESSION_POOL_SIZE").orElse("0"));
+    }
+    logger.info(
+        "Registering aggregationSessionPoolSize parameter as: " + aggregationSessionPoolSize);
+    return aggregationSessionPoolSize;
+  }
+
+  @Bean
+  @Qualifier("aggregationSessionPoolMegabytes")
+  public int aggregationSessionPoolMegabytes() {
+    int aggregationSessionPoolMegabytes = googleCloudArgs.getAggregationSessionPoolMegabytes();
+    if (aggregationSessionPoolMegabytes <= 0) {
+      aggregationSessionPoolMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("AGGREGATION_SESSION_POOL_MEGABYTES").orElse("512"));
+    }
+    logger.info(
+        "Registering aggregationSessionPoolMegabytes parameter as: "
+            + aggregationSessionPoolMegabytes);
+    return aggregationSessionPoolMegabytes;
+  }
+
+  @Bean
+  @Qualifier("aggregationSessionPoolIdleMinutes")
+  public int aggregationSessionPoolIdleMinutes() {
+    int aggregationSessionPoolIdleMinutes = googleCloudArgs.getAggregationSessionPoolIdleMinutes();
+    if (aggregationSessionPoolIdleMinutes <= 0) {
+      aggregationSessionPoolIdleMinutes =
+          Integer.parseInt(
+              gcpParameterClient
+                  .getParameter("AGGREGATION_SESSION_POOL_IDLE_MINUTES")
+                  .orElse("10"));
+    }
+    logger.info(
+        "Registering aggregationSessionPoolIdleMinutes parameter as: "
+            + aggregationSessionPoolIdleMinutes);
+    return aggregationSessionPoolIdleMinutes;
+  }
+
+  @Bean
+  @Qualifier("aggregatorCoSchedulingLingerMillis")
+  public int aggregatorCoSchedulingLingerMillis() {
+    int aggregatorCoSchedulingLingerMillis =
+        googleCloudArgs.getAggregatorCoSchedulingLingerMillis();
+    if (aggregatorCoSchedulingLingerMillis <= 0) {
+      aggregatorCoSchedulingLingerMillis =
+          Integer.parseInt(
+              gcpParameterClient
+                  .getParameter("AGGREGATOR_CO_SCHEDULING_LINGER_MILLIS")
+                  .orElse("0"));
+    }
+    logger.info(
+        "Registering aggregatorCoSchedulingLingerMillis parameter as: "
+            + aggregatorCoSchedulingLingerMillis);
+    return aggregatorCoSchedulingLingerMillis;
+  }
+
+  @Bean
+  @Qualifier("enableAggregationCheckpoints")
+  public Boolean enableAggregationCheckpoints() {
+    Boolean enableAggregationCheckpoints = googleCloudArgs.getEnableAggregationCheckpoints();
+    if (enableAggregationCheckpoints == null) {
+      String enableAggregationCheckpointsParameterValue =
+          gcpParameterClient.getParameter("ENABLE_AGGREGATION_CHECKPOINTS").orElse(null);
+      enableAggregationCheckpoints =
+          enableAggregationCheckpointsParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableAggregationCheckpointsParameterValue);
+    }
+    logger.info(
+        "Registering enableAggregationCheckpoints parameter as: " + enableAggregationCheckpoints);
+    return enableAggregationCheckpoints;
+  }
+
+  @Bean
+  @Qualifier("workerMemoryBudgetMegabytes")
+  public int workerMemoryBudgetMegabytes() {
+    int workerMemoryBudgetMegabytes = googleCloudArgs.getWorkerMemoryBudgetMegabytes();
+    if (workerMemoryBudgetMegabytes <= 0) {
+      workerMemoryBudgetMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("WORKER_MEMORY_BUDGET_MEGABYTES").orElse("0"));
+    }
+    logger.info(
+        "Registering workerMemoryBudgetMegabytes parameter as: " + workerMemoryBudgetMegabytes);
+    return workerMemoryBudgetMegabytes;
+  }
+
+  @Bean
+  @Qualifier("memoryAdmissionTimeoutSeconds")
+  public int memoryAdmissionTimeoutSeconds() {
+    int memoryAdmissionTimeoutSeconds = googleCloudArgs.getMemoryAdmissionTimeoutSeconds();
+    if (memoryAdmissionTimeoutSeconds <= 0) {
+      memoryAdmissionTimeoutSeconds =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("MEMORY_ADMISSION_TIMEOUT_SECONDS").orElse("60"));
+    }
+    logger.info(
+        "Registering memoryAdmissionTimeoutSeconds parameter as: "
+            + memoryAdmissionTimeoutSeconds);
+    return memoryAdmissionTimeoutSeconds;
+  }
+
+  @Bean
+  @Qualifier("enableModelUpdaterStreaming")
+  public Boolean enableModelUpdaterStreaming() {
+    Boolean enableModelUpdaterStreaming = googleCloudArgs.getEnableModelUpdaterStreaming();
+    if (enableModelUpdaterStreaming == null) {
+      String enableModelUpdaterStreamingParameterValue =
+          gcpParameterClient.getParameter("ENABLE_MODEL_UPDATER_STREAMING").orElse(null);
+      enableModelUpdaterStreaming =
+          enableModelUpdaterStreamingParameterValue == null
+              ? false
+              : Boolean.parseBoolean(enableModelUpdaterStreamingParameterValue);
+    }
+    logger.info(
+        "Registering enableModelUpdaterStreaming parameter as: " + enableModelUpdaterStreaming);
+    return enableModelUpdaterStreaming;
+  }
+
+  @Bean
+  @Qualifier("collectorModelUpdaterFanIn")
+  public int collectorModelUpdaterFanIn() {
+    int collectorModelUpdaterFanIn = googleCloudArgs.getCollectorModelUpdaterFanIn();
+    if (collectorModelUpdaterFanIn <= 0) {
+      collectorModelUpdaterFanIn =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("COLLECTOR_MODEL_UPDATER_FAN_IN").orElse("100"));
+    }
+    logger.info(
+        "Registering collectorModelUpdaterFanIn parameter as: " + collectorModelUpdaterFanIn);
+    return collectorModelUpdaterFanIn;
+  }
+
+  @Bean
+  @Qualifier("serverBlobCompressionFormat")
+  public String serverBlobCompressionFormat() {
+    String serverBlobCompressionFormat = googleCloudArgs.getServerBlobCompressionFormat();
+    if (Strings.isNullOrEmpty(serverBlobCompressionFormat)) {
+      serverBlobCompressionFormat =
+          gcpParameterClient.getParameter("SERVER_BLOB_COMPRESSION_FORMAT").orElse("gzip");
+    }
+    logger.info(
+        "Registering serverBlobCompressionFormat parameter as: " + serverBlobCompressionFormat);
+    return serverBlobCompressionFormat;
+  }
+
+  @Bean
+  @Qualifier("serverBlobCompressionLevel")
+  public int serverBlobCompressionLevel() {
+    Integer serverBlobCompressionLevel = googleCloudArgs.getServerBlobCompressionLevel();
+    if (serverBlobCompressionLevel == null) {
+      serverBlobCompressionLevel =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("SERVER_BLOB_COMPRESSION_LEVEL").orElse("0"));
+    }
+    logger.info(
+        "Registering serverBlobCompressionLevel parameter as: " + serverBlobCompressionLevel);
+    return serverBlobCompressionLevel;
+  }
+
+  @Bean
+  @Qualifier("parallelDownloadThresholdMegabytes")
+  public int parallelDownloadThresholdMegabytes() {
+    int parallelDownloadThresholdMegabytes =
+        googleCloudArgs.getParallelDownloadThresholdMegabytes();
+    if (parallelDownloadThresholdMegabytes <= 0) {
+      parallelDownloadThresholdMegabytes =
+          Integer.parseInt(
+              gcpParameterClient
+                  .getParameter("PARALLEL_DOWNLOAD_THRESHOLD_MEGABYTES")
+                  .orElse("64"));
+    }
+    logger.info(
+        "Registering parallelDownloadThresholdMegabytes parameter as: "
+            + parallelDownloadThresholdMegabytes);
+    return parallelDownloadThresholdMegabytes;
+  }
+
+  @Bean
+  @Qualifier("parallelDownloadPartMegabytes")
+  public int parallelDownloadPartMegabytes() {
+    int parallelDownloadPartMegabytes = googleCloudArgs.getParallelDownloadPartMegabytes();
+    if (parallelDownloadPartMegabytes <= 0) {
+      parallelDownloadPartMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("PARALLEL_DOWNLOAD_PART_MEGABYTES").orElse("16"));
+    }
+    logger.info(
+        "Registering parallelDownloadPartMegabytes parameter as: " + parallelDownloadPartMegabytes);
+    return parallelDownloadPartMegabytes;
+  }
+
+  @Bean
+  @Qualifier("blobDiskCacheMegabytes")
+  public int blobDiskCacheMegabytes() {
+    int blobDiskCacheMegabytes = googleCloudArgs.getBlobDiskCacheMegabytes();
+    if (blobDiskCacheMegabytes <= 0) {
+      blobDiskCacheMegabytes =
+          Integer.parseInt(
+              gcpParameterClient.getParameter("BLOB_DISK_CACHE_MEGABYTES").orElse("0"));
+    }
+    logger.info("Registering blobDiskCacheMegabytes parameter as: " + blobDiskCacheMegabytes);
+    return blobDiskCacheMegabytes;
+  }
+
+  @Bean
+  @Qualifier("blobDiskCacheDirectory")
+  public String blobDiskCacheDirectory() {
+    String blobDiskCacheDirectory = googleCloudArgs.getBlobDiskCacheDirectory();
+    if (Strings.isNullOrEmpty(blobDiskCacheDirectory)) {
+      blobDiskCacheDirectory =
+          gcpParameterClient
+              .getParameter("BLOB_DISK_CACHE_DIRECTORY")
+              .orElse("/tmp/shuffler-blob-cache");
+    }
+    logger.info("Registering blobDiskCacheDirectory parameter as: " + blobDiskCacheDirectory);
+    return blobDiskCacheDirectory;
+  }
+
+  @Bean
+  @Qualifier("localBlobRootDirectory")
+  public String localBlobRootDirectory() {
+    String localBlobRootDirectory = googleCloudArgs.getLocalBlobRootDirectory();
+    if (Strings.isNullOrEmpty(localBlobRootDirectory)) {
+      localBlobRootDirectory =
+          gcpParameterClient
+              .getParameter("LOCAL_BLOB_ROOT_DIRECTORY")
+              .orElse("/tmp/shuffler-blobs");
+    }
+    logger.info("Registering localBlobRootDirectory parameter as: " + localBlobRootDirectory);
+    return localBlobRootDirectory;
+  }
 }
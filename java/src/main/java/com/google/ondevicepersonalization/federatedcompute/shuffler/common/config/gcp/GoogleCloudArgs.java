@@ -177,6 +177,63 @@ public final class GoogleCloudArgs {
       validateWith = PositiveInteger.class)
   private int collectorBatchSize;
 
+  @Parameter(
+      names = "--collector_max_outstanding_publishes",
+      description =
+          "The maximum number of aggregation batch messages the collector publishes concurrently.",
+      validateWith = PositiveInteger.class)
+  private int collectorMaxOutstandingPublishes;
+
+  @Parameter(
+      names = "--enable_collector_stateful_mode",
+      description =
+          "Keep the progress of the locked iterations in the collector memory and only reconcile"
+              + " it with the database periodically.")
+  private Boolean enableCollectorStatefulMode;
+
+  @Parameter(
+      names = "--collector_state_reconcile_interval_seconds",
+      description =
+          "The interval in seconds after which the collector reconciles the in-memory progress of"
+              + " an iteration with the database in stateful mode.",
+      validateWith = PositiveInteger.class)
+  private int collectorStateReconcileIntervalSeconds;
+
+  @Parameter(
+      names = "--collector_aggregation_fan_in",
+      description =
+          "The maximum number of intermediates combined by a single aggregation before another"
+              + " level of intermediate aggregation is added.",
+      validateWith = PositiveInteger.class)
+  private int collectorAggregationFanIn;
+
+  @Parameter(
+      names = "--enable_collector_adaptive_batch_size",
+      description =
+          "Choose the aggregation batch size of each iteration from the upload rate, the"
+              + " aggregation latency and the gradient size instead of the static batch size.")
+  private Boolean enableCollectorAdaptiveBatchSize;
+
+  @Parameter(
+      names = "--collector_min_batch_size",
+      description = "The lower bound of the adaptive aggregation batch size.",
+      validateWith = PositiveInteger.class)
+  private int collectorMinBatchSize;
+
+  @Parameter(
+      names = "--collector_max_batch_size",
+      description = "The upper bound of the adaptive aggregation batch size.",
+      validateWith = PositiveInteger.class)
+  private int collectorMaxBatchSize;
+
+  @Parameter(
+      names = "--collector_max_batch_megabytes",
+      description =
+          "The maximum total size in megabytes of the gradients of an adaptively sized"
+              + " aggregation batch.",
+      validateWith = PositiveInteger.class)
+  private int collectorMaxBatchMegabytes;
+
   @Parameter(
       names = "--compression_format",
       description = "Supported client-side file compression formats",
@@ -224,4 +281,171 @@ public final class GoogleCloudArgs {
       names = "--enable_aggregation_success_notifications",
       description = "Enable success notifications for aggregation jobs.")
   private Boolean enableAggregationSuccessNotifications;
+
+  @Parameter(
+      names = "--enable_aggregator_streaming",
+      description =
+          "Enable streaming aggregation, accumulating gradients in waves as they are downloaded.")
+  private Boolean enableAggregatorStreaming;
+
+  @Parameter(
+      names = "--aggregator_streaming_window_size",
+      description = "The number of gradients downloaded per wave in streaming aggregation.",
+      validateWith = PositiveInteger.class)
+  private int aggregatorStreamingWindowSize;
+
+  @Parameter(
+      names = "--gradient_download_concurrency",
+      description = "The number of gradients downloaded concurrently by an aggregator job.",
+      validateWith = PositiveInteger.class)
+  private int gradientDownloadConcurrency;
+
+  @Parameter(
+      names = "--gradient_decrypt_parallelism",
+      description =
+          "The number of threads decrypting downloaded gradients. Defaults to the number of"
+              + " available processors.",
+      validateWith = PositiveInteger.class)
+  private int gradientDecryptParallelism;
+
+  @Parameter(
+      names = "--gradient_fetch_queue_capacity",
+      description = "The maximum number of downloaded gradients waiting to be decrypted.",
+      validateWith = PositiveInteger.class)
+  private int gradientFetchQueueCapacity;
+
+  @Parameter(
+      names = "--server_plan_cache_megabytes",
+      description = "The maximum total size in megabytes of the server plans cached by a worker.",
+      validateWith = PositiveInteger.class)
+  private int serverPlanCacheMegabytes;
+
+  @Parameter(
+      names = "--enable_aggregation_tree_planner",
+      description =
+          "Enable choosing the shape of the in-memory aggregation tree from a cost model instead"
+              + " of two layers of square root size.")
+  private Boolean enableAggregationTreePlanner;
+
+  @Parameter(
+      names = "--aggregation_heap_budget_megabytes",
+      description =
+          "The heap in megabytes available to the partial results of an aggregation tree.",
+      validateWith = PositiveInteger.class)
+  private int aggregationHeapBudgetMegabytes;
+
+  @Parameter(
+      names = "--aggregation_session_pool_size",
+      description =
+          "The number of aggregation sessions constructed ahead of time per plan. Sessions are"
+              + " constructed on demand when not set.",
+      validateWith = PositiveInteger.class)
+  private int aggregationSessionPoolSize;
+
+  @Parameter(
+      names = "--aggregation_session_pool_megabytes",
+      description = "The estimated native memory in megabytes held by pooled aggregation sessions.",
+      validateWith = PositiveInteger.class)
+  private int aggregationSessionPoolMegabytes;
+
+  @Parameter(
+      names = "--aggregation_session_pool_idle_minutes",
+      description =
+          "The minutes after which the pooled aggregation sessions of a plan not used anymore are"
+              + " closed.",
+      validateWith = PositiveInteger.class)
+  private int aggregationSessionPoolIdleMinutes;
+
+  @Parameter(
+      names = "--aggregator_co_scheduling_linger_millis",
+      description =
+          "The time in milliseconds an aggregator waits for other messages of the same iteration"
+              + " to process them together. Messages are processed one by one when not set.",
+      validateWith = PositiveInteger.class)
+  private int aggregatorCoSchedulingLingerMillis;
+
+  @Parameter(
+      names = "--enable_aggregation_checkpoints",
+      description =
+          "Whether the aggregator stores the partial results of a batch so that a retry of the"
+              + " batch only aggregates the missing partitions.")
+  private Boolean enableAggregationCheckpoints;
+
+  @Parameter(
+      names = "--worker_memory_budget_megabytes",
+      description =
+          "The estimated memory in megabytes a worker admits for the messages it processes"
+              + " concurrently. Messages are admitted regardless of their size when not set.",
+      validateWith = PositiveInteger.class)
+  private int workerMemoryBudgetMegabytes;
+
+  @Parameter(
+      names = "--memory_admission_timeout_seconds",
+      description =
+          "The time in seconds a message waits for memory before it is rejected for redelivery.",
+      validateWith = PositiveInteger.class)
+  private int memoryAdmissionTimeoutSeconds;
+
+  @Parameter(
+      names = "--enable_model_updater_streaming",
+      description =
+          "Enable streaming model updates, merging intermediate gradients as they are downloaded.")
+  private Boolean enableModelUpdaterStreaming;
+
+  @Parameter(
+      names = "--collector_model_updater_fan_in",
+      description =
+          "The maximum number of intermediates combined by the model updater. More intermediates"
+              + " are first combined concurrently by the aggregators. Capped by the aggregation"
+              + " fan-in.",
+      validateWith = PositiveInteger.class)
+  private int collectorModelUpdaterFanIn;
+
+  @Parameter(
+      names = "--server_blob_compression_format",
+      description =
+          "The compression format of the blobs only read by the server, such as checkpoints and"
+              + " intermediate aggregation results. One of gzip, zstd or lz4.")
+  private String serverBlobCompressionFormat;
+
+  @Parameter(
+      names = "--server_blob_compression_level",
+      description =
+          "The compression level of the blobs only read by the server, or 0 for the default level"
+              + " of the compression format. gzip takes 1 to 9, zstd its negative fast levels up"
+              + " to 22, and lz4 1 to 12, where levels below 9 are tuned for speed and levels from"
+              + " 9 for the compression ratio.")
+  private Integer serverBlobCompressionLevel;
+
+  @Parameter(
+      names = "--parallel_download_threshold_megabytes",
+      description =
+          "The size in megabytes from which blobs are downloaded as ranges fetched concurrently.",
+      validateWith = PositiveInteger.class)
+  private int parallelDownloadThresholdMegabytes;
+
+  @Parameter(
+      names = "--parallel_download_part_megabytes",
+      description = "The size in megabytes of the ranges of the blobs downloaded concurrently.",
+      validateWith = PositiveInteger.class)
+  private int parallelDownloadPartMegabytes;
+
+  @Parameter(
+      names = "--blob_disk_cache_megabytes",
+      description =
+          "The size in megabytes of the local disk cache of the plans and checkpoints. 0 disables"
+              + " the cache.",
+      validateWith = PositiveInteger.class)
+  private int blobDiskCacheMegabytes;
+
+  @Parameter(
+      names = "--blob_disk_cache_directory",
+      description = "The local directory of the disk cache of the plans and checkpoints.")
+  private String blobDiskCacheDirectory;
+
+  @Parameter(
+      names = "--local_blob_root_directory",
+      description =
+          "The root directory of the buckets when the blobs are stored on the local file system.")
+  private String localBlobRootDirectory;
 }
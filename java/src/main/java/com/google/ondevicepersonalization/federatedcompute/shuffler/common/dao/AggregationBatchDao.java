@@ -30,6 +30,15 @@ public interface AggregationBatchDao {
   public boolean updateAggregationBatchStatus(
       AggregationBatchEntity from, AggregationBatchEntity to);
 
+  /**
+   * Update the status of multiple aggregation batches in a single transaction. Either all the
+   * batches are moved to the new status or none are.
+   *
+   * @return If updates successfully.
+   */
+  public boolean batchUpdateAggregationBatchStatus(
+      List<AggregationBatchEntity> from, AggregationBatchEntity.Status to);
+
   /** Query aggregation batches of status and optional createdByPartition for an iteration. */
   List<String> queryAggregationBatchIdsOfStatus(
       IterationEntity iteration,
@@ -37,6 +46,16 @@ public interface AggregationBatchDao {
       AggregationBatchEntity.Status status,
       Optional<String> createdByPartition);
 
+  /**
+   * Query aggregation batches of status for an iteration that are aggregated by the given batch, or
+   * that are not aggregated by any batch yet if aggregatedBy is empty.
+   */
+  List<String> queryAggregationBatchIdsAggregatedBy(
+      IterationEntity iteration,
+      long aggregationLevel,
+      AggregationBatchEntity.Status status,
+      Optional<String> aggregatedBy);
+
   /** Returns the sum of all batchSizes of batches in provided status for an iteration */
   public long querySumOfAggregationBatchesOfStatus(
       IterationEntity iteration, long AggregationLevel, List<AggregationBatchEntity.Status> status);
@@ -47,7 +66,8 @@ public interface AggregationBatchDao {
 
   /**
    * Creates a new batch and updates the given list of batches status to UPLOADED_COMPLETED and sets
-   * aggregatedBy to the new batch,
+   * aggregatedBy to the new batch. The given batches must be UPLOAD_COMPLETED at the level below
+   * the new batch and not aggregated yet. The size of the new batch is the sum of their sizes.
    *
    * @return If updates successfully
    */
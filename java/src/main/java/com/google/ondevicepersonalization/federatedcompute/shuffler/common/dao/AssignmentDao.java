@@ -19,6 +19,7 @@ package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentEntity.Status;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /** Task Assignment DAO. */
@@ -42,6 +43,14 @@ public interface AssignmentDao {
   List<String> queryAssignmentIdsOfStatus(
       IterationId iterationId, Status status, Optional<String> batchId);
 
+  /**
+   * Query assignments of status for multiple batches at once.
+   *
+   * @return Assignment ids keyed by batch id. Batches without any matching assignment are absent.
+   */
+  Map<String, List<String>> queryAssignmentIdsOfStatusByBatches(
+      IterationId iterationId, Status status, List<String> batchIds);
+
   /**
    * Batch update assignment status.
    *
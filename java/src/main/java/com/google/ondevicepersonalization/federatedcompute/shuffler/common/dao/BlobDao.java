@@ -17,6 +17,8 @@
 package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Optional;
 
@@ -40,15 +42,57 @@ public interface BlobDao {
   /** Download content from file. */
   public Optional<byte[]> download(BlobDescription file);
 
+  /**
+   * Returns the generation of the file, which changes every time the file is overwritten. Empty if
+   * the file does not exist or the storage does not version its objects.
+   */
+  public Optional<Long> getGeneration(BlobDescription file);
+
+  /** Returns the size in bytes of the stored file. Empty if the file does not exist. */
+  public Optional<Long> getSize(BlobDescription file);
+
   /** Download content from file and decompress if needed. */
   public Optional<byte[]> downloadAndDecompressIfNeeded(BlobDescription file);
 
+  /**
+   * Open a stream of the content of file, read as it is downloaded. Empty if the file does not
+   * exist. The caller must close the stream.
+   */
+  public Optional<InputStream> openStream(BlobDescription file);
+
+  /**
+   * Open a stream of the content of file, decompressed as it is downloaded if needed, so that the
+   * content is never held whole in memory. Empty if the file does not exist. The caller must close
+   * the stream.
+   */
+  public Optional<InputStream> openStreamAndDecompressIfNeeded(BlobDescription file);
+
   /** Upload content to file. */
   public void upload(BlobDescription file, byte[] content) throws IOException;
 
   /** Compress content and upload to file. */
   public void compressAndUpload(BlobDescription file, byte[] content) throws IOException;
 
+  /**
+   * Compress content with the configured server blob codec and upload to file. Only for files read
+   * back by the server, since devices only support gzip.
+   */
+  public void compressAndUploadInternal(BlobDescription file, byte[] content) throws IOException;
+
+  /**
+   * Compress the content written by the writer with gzip as it is uploaded to file. The file is
+   * only created once the writer completes, and not at all if it throws.
+   */
+  public void compressAndUploadStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException;
+
+  /**
+   * Compress the content written by the writer with the configured server blob codec as it is
+   * uploaded to file. Only for files read back by the server, since devices only support gzip.
+   */
+  public void compressAndUploadInternalStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException;
+
   /** Check if file exists, replace by gzip compressed content if encoding is empty. */
   public boolean checkExistsAndGzipContentIfNeeded(BlobDescription[] files);
 
@@ -57,4 +101,10 @@ public interface BlobDao {
 
   /** Delete a folder and all its contents. */
   public boolean delete(BlobDescription folder);
+
+  /** Writes the content of a file to a channel. */
+  @FunctionalInterface
+  public interface ContentWriter {
+    void writeTo(WritableByteChannel channel) throws IOException;
+  }
 }
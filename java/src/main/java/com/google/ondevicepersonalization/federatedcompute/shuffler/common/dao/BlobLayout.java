@@ -0,0 +1,95 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao;
+
+/**
+ * The layout of the objects in the buckets, shared by the blob managers of every storage.
+ *
+ * <p>The objects are named {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}
+ * /{server-or-worker-id}/{file_name}, without a leading "/" which would make the URLs of the form
+ * gs://bucket//us/....
+ */
+public final class BlobLayout {
+  public static final String CLIENT_PLAN_FILE = "client_only_plan";
+  public static final String SERVER_PLAN_FILE = "server_phase";
+  public static final String CHECKPOINT_FILE = "checkpoint";
+  public static final String METRICS_FILE = "metrics";
+  public static final String CLIENT_CHECKPOINT_FILE = "client_checkpoint";
+
+  private BlobLayout() {}
+
+  /** Returns the folder of the gradients uploaded by devices for the iteration. */
+  public static String createGradientUploadedDir(
+      String populationName, long taskId, long iterationId) {
+    return String.format("%s/%s/%s/%s", populationName, taskId, iterationId, "d/");
+  }
+
+  /** Returns the object of a file written by the server for the iteration. */
+  public static String createPerIterationPath(
+      String populationName, long taskId, long iterationId, String fileName) {
+    return String.format(
+        "%s/%s/%s/%s/%s/%s", populationName, taskId, iterationId, "s", "0", fileName);
+  }
+
+  /** Returns the folder of the aggregated gradients of a level of the iteration. */
+  public static String createPerIterationPathWithAggregationLevel(
+      String populationName, long taskId, long iterationId, long aggregationLevel) {
+    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{aggregation-level}/{batch_id}/{file_name}
+    return String.format(
+        "%s/%s/%s/%s/%s/%s/", populationName, taskId, iterationId, "s", "0", aggregationLevel);
+  }
+
+  /** Returns the object of a file written by the server for devices of the iteration. */
+  public static String createClientPerIterationPath(
+      String populationName, long taskId, long iterationId, String fileName) {
+    return String.format(
+        "%s/%s/%s/%s/%s/%s", populationName, taskId, iterationId, "d", "0", fileName);
+  }
+
+  /** Returns the object of a file of the task, such as its plans. */
+  public static String createPerTaskPath(String populationName, long taskId, String fileName) {
+    return String.format("%s/%s/%s/%s/%s/%s", populationName, taskId, 0, "s", "0", fileName);
+  }
+
+  /** Returns the object of a file uploaded by the device of the session. */
+  public static String createDeviceUploadGradientObjectName(
+      String populationName, long taskId, long iterationId, String sessionId, String fileName) {
+    String iterationFolder =
+        String.format("%s/%s/%s/%s/", populationName, taskId, iterationId, "d");
+    return createDeviceUploadGradientObjectNameFromIterationResultFolder(
+        iterationFolder, sessionId, fileName);
+  }
+
+  /** Returns the object of a file uploaded by the device of the session in the folder. */
+  public static String createDeviceUploadGradientObjectNameFromIterationResultFolder(
+      String iterationResultFolder, String sessionId, String fileName) {
+    validateFolderPath(iterationResultFolder);
+    return String.format("%s%s/%s", iterationResultFolder, sessionId, fileName);
+  }
+
+  /**
+   * Checks that the path is a folder.
+   *
+   * @throws IllegalArgumentException if the path does not end with '/'.
+   */
+  public static void validateFolderPath(String folder) {
+    if (!folder.endsWith("/")) {
+      throw new IllegalArgumentException(
+          String.format("Invalid folder (%s). folder must ends with '/'.", folder));
+    }
+  }
+}
@@ -73,6 +73,13 @@ public interface TaskDao {
    */
   public boolean updateTaskStatus(TaskId taskId, TaskEntity.Status from, TaskEntity.Status to);
 
+  /**
+   * Records the collector replica processing the iteration.
+   *
+   * @return The replica recorded before, empty if none.
+   */
+  public Optional<String> swapIterationCollector(IterationId iterationId, String collectorId);
+
   /** Get the iterations of a status. */
   public List<IterationEntity> getIterationsOfStatus(IterationEntity.Status status);
 
@@ -23,11 +23,13 @@ import com.google.cloud.spanner.SpannerException;
 import com.google.cloud.spanner.Statement;
 import com.google.cloud.spanner.TransactionContext;
 import com.google.common.collect.ImmutableList;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchEntity;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchId;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
 import java.time.InstantSource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -91,6 +93,18 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
           + "   AND CreatedByPartition = @createdByPartition \n"
           + " ORDER BY BatchId";
 
+  private static final String SELECT_BATCH_IDS_OF_STATUS_AGGREGATED_BY =
+      "SELECT BatchId \n"
+          + " FROM AggregationBatch \n"
+          + " WHERE PopulationName = @populationName \n"
+          + "   AND TaskId = @taskId \n"
+          + "   AND IterationId = @iterationId \n"
+          + "   AND AttemptId = @attemptId \n"
+          + "   AND AggregationLevel = @aggregationLevel \n"
+          + "   AND Status = @status \n"
+          + "   %s \n"
+          + " ORDER BY BatchId";
+
   public AggregationBatchSpannerDao(
       @Qualifier("taskDatabaseClient") DatabaseClient dbClient, InstantSource instantSource) {
     this.dbClient = dbClient;
@@ -99,6 +113,13 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
 
   public Optional<AggregationBatchEntity> getAggregationBatchById(
       AggregationBatchId aggregationBatchId) {
+    return getAggregationBatchById(
+        dbClient.singleUse(), // Execute a single read or query against Cloud Spanner.
+        aggregationBatchId);
+  }
+
+  private Optional<AggregationBatchEntity> getAggregationBatchById(
+      ReadContext transaction, AggregationBatchId aggregationBatchId) {
     Statement statement =
         Statement.newBuilder(
                 SELECT_AGGREGATION_BATCHES
@@ -118,10 +139,7 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
             .bind("batchId")
             .to(aggregationBatchId.getBatchId())
             .build();
-    try (ResultSet resultSet =
-        dbClient
-            .singleUse() // Execute a single read or query against Cloud Spanner.
-            .executeQuery(statement)) {
+    try (ResultSet resultSet = transaction.executeQuery(statement)) {
       return extractAggregationBatchEntitiesFromResultSet(resultSet).stream().findFirst();
     }
   }
@@ -173,6 +191,51 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
         .orElse(false);
   }
 
+  @Override
+  public boolean batchUpdateAggregationBatchStatus(
+      List<AggregationBatchEntity> from, AggregationBatchEntity.Status to) {
+    if (from.isEmpty()) {
+      return true;
+    }
+    try {
+      return dbClient
+          .readWriteTransaction()
+          .run(
+              transaction -> {
+                List<Statement> statements = new ArrayList<>();
+                for (AggregationBatchEntity aggregationBatch : from) {
+                  // Ensure the latest Status is as expected.
+                  Long currentStatusId =
+                      getLastVersionOfStatus(transaction, aggregationBatch).orElse(null);
+                  if (currentStatusId == null) {
+                    logger.error(
+                        "Failed to find status of aggregation batch {}",
+                        aggregationBatch.getBatchId());
+                    return false;
+                  }
+                  AggregationBatchEntity updated = aggregationBatch.toBuilder().status(to).build();
+                  statements.add(buildInsertStatusStatement(updated, currentStatusId + 1));
+                  statements.add(buildUpdateStatusStatement(aggregationBatch, updated));
+                }
+
+                // Apply all the status changes in a single round trip.
+                long[] updatedRowCounts = transaction.batchUpdate(statements);
+                for (int i = 0; i < updatedRowCounts.length; i++) {
+                  if (updatedRowCounts[i] != 1) {
+                    throw new IllegalStateException(
+                        String.format(
+                            "%s aggregation batch is impacted when updating %s to %s.",
+                            updatedRowCounts[i], from.get(i / 2).getBatchId(), to));
+                  }
+                }
+                return true;
+              });
+    } catch (SpannerException e) {
+      logger.atWarn().setCause(e).log("Failed to update statuses.");
+      return false;
+    }
+  }
+
   private Optional<Long> getLastVersionOfStatus(
       ReadContext transaction, AggregationBatchEntity aggregationBatch) {
     Statement.Builder statement;
@@ -216,8 +279,17 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
 
   private void insertStatus(
       TransactionContext transaction, AggregationBatchEntity aggregationBatch, long statusId) {
-    Statement statusHistory =
-        Statement.newBuilder(
+    long historyInserted =
+        transaction.executeUpdate(buildInsertStatusStatement(aggregationBatch, statusId));
+    if (historyInserted != 1) {
+      throw new IllegalStateException(
+          "AggregationBatchStatusHistory insertion impacted " + historyInserted + " rows.");
+    }
+  }
+
+  private Statement buildInsertStatusStatement(
+      AggregationBatchEntity aggregationBatch, long statusId) {
+    return Statement.newBuilder(
                 "INSERT INTO AggregationBatchStatusHistory (PopulationName, TaskId,\n"
                     + " IterationId,\n"
                     + " AttemptId, BatchId, StatusId, AggregationLevel, Status,\n"
@@ -248,19 +320,22 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
             .bind("aggregatedBy")
             .to(aggregationBatch.getAggregatedBy())
             .build();
-
-    long historyInserted = transaction.executeUpdate(statusHistory);
-    if (historyInserted != 1) {
-      throw new IllegalStateException(
-          "AggregationBatchStatusHistory insertion impacted " + historyInserted + " rows.");
-    }
   }
 
   private void updateAggregationBatchStatus(
       TransactionContext transaction, AggregationBatchEntity from, AggregationBatchEntity to) {
+    long updatedRowCount = transaction.executeUpdate(buildUpdateStatusStatement(from, to));
+    if (updatedRowCount != 1) {
+      throw new IllegalStateException(
+          String.format(
+              "%s aggregation batch is impacted when updating from %s to %s.",
+              updatedRowCount, from, to));
+    }
+  }
 
-    Statement statement =
-        Statement.newBuilder(
+  private static Statement buildUpdateStatusStatement(
+      AggregationBatchEntity from, AggregationBatchEntity to) {
+    return Statement.newBuilder(
                 "UPDATE AggregationBatch SET Status = @newStatus WHERE\n"
                     + " PopulationName=@populationName AND TaskId=@taskId AND\n"
                     + " IterationId=@iterationId AND AttemptId=@attemptId AND\n"
@@ -280,14 +355,6 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
             .bind("newStatus")
             .to(to.getStatus().code())
             .build();
-
-    long updatedRowCount = transaction.executeUpdate(statement);
-    if (updatedRowCount != 1) {
-      throw new IllegalStateException(
-          String.format(
-              "%s aggregation batch is impacted when updating from %s to %s.",
-              updatedRowCount, from, to));
-    }
   }
 
   @Override
@@ -330,6 +397,51 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
     return result.build();
   }
 
+  @Override
+  public List<String> queryAggregationBatchIdsAggregatedBy(
+      IterationEntity iteration,
+      long aggregationLevel,
+      AggregationBatchEntity.Status status,
+      Optional<String> aggregatedBy) {
+    Statement.Builder statement;
+    if (aggregatedBy.isPresent()) {
+      statement =
+          Statement.newBuilder(
+              String.format(
+                  SELECT_BATCH_IDS_OF_STATUS_AGGREGATED_BY,
+                  " AND AggregatedBy = @aggregatedBy \n"));
+      statement.bind("aggregatedBy").to(aggregatedBy.get());
+    } else {
+      statement =
+          Statement.newBuilder(
+              String.format(
+                  SELECT_BATCH_IDS_OF_STATUS_AGGREGATED_BY, " AND AggregatedBy is NULL \n"));
+    }
+    statement
+        .bind("populationName")
+        .to(iteration.getPopulationName())
+        .bind("taskId")
+        .to(iteration.getTaskId())
+        .bind("iterationId")
+        .to(iteration.getIterationId())
+        .bind("attemptId")
+        .to(iteration.getAttemptId())
+        .bind("aggregationLevel")
+        .to(aggregationLevel)
+        .bind("status")
+        .to(status.code())
+        .build();
+
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    try (ResultSet resultSet =
+        dbClient.singleUseReadOnlyTransaction().executeQuery(statement.build())) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString("BatchId"));
+      }
+    }
+    return result.build();
+  }
+
   @Override
   public long querySumOfAggregationBatchesOfStatus(
       IterationEntity iteration,
@@ -367,6 +479,116 @@ public class AggregationBatchSpannerDao implements AggregationBatchDao {
   @Override
   public boolean createAndAssignBatches(
       List<AggregationBatchId> batchesToUpdate, AggregationBatchEntity newBatch) {
-    throw new UnsupportedOperationException("Not implemented yet.");
+    if (batchesToUpdate.isEmpty()) {
+      return false;
+    }
+    try {
+      return dbClient
+          .readWriteTransaction()
+          .run(
+              transaction -> {
+                List<Statement> statements = new ArrayList<>();
+                long batchSize = 0;
+                for (AggregationBatchId batchId : batchesToUpdate) {
+                  // Ensure the batch is uploaded and not aggregated by another batch yet.
+                  AggregationBatchEntity batch =
+                      getAggregationBatchById(transaction, batchId).orElse(null);
+                  if (batch == null
+                      || batch.getStatus() != AggregationBatchEntity.Status.UPLOAD_COMPLETED
+                      || batch.getAggregatedBy() != null
+                      || batch.getAggregationLevel() != newBatch.getAggregationLevel() - 1) {
+                    logger.error(
+                        "Aggregation batch {} can not be aggregated by {}",
+                        batchId.getBatchId(),
+                        newBatch.getBatchId());
+                    return false;
+                  }
+                  Long currentStatusId = getLastVersionOfStatus(transaction, batch).orElse(null);
+                  if (currentStatusId == null) {
+                    logger.error(
+                        "Failed to find status of aggregation batch {}", batchId.getBatchId());
+                    return false;
+                  }
+                  AggregationBatchEntity assigned =
+                      batch.toBuilder().aggregatedBy(newBatch.getBatchId()).build();
+                  statements.add(buildInsertStatusStatement(assigned, currentStatusId + 1));
+                  statements.add(buildUpdateAggregatedByStatement(assigned));
+                  batchSize += batch.getBatchSize();
+                }
+
+                AggregationBatchEntity created = newBatch.toBuilder().batchSize(batchSize).build();
+                statements.add(buildInsertBatchStatement(created));
+                statements.add(
+                    buildInsertStatusStatement(
+                        created, Constants.FIRST_AGGREGATION_BATCH_STATUS_ID));
+                long[] updatedRowCounts = transaction.batchUpdate(statements);
+                for (long updatedRowCount : updatedRowCounts) {
+                  if (updatedRowCount != 1) {
+                    throw new IllegalStateException(
+                        String.format(
+                            "%s rows are impacted when creating aggregation batch %s.",
+                            updatedRowCount, newBatch.getBatchId()));
+                  }
+                }
+                return true;
+              });
+    } catch (SpannerException e) {
+      logger.atWarn().setCause(e).log("Failed to create batch.");
+      return false;
+    }
+  }
+
+  private Statement buildInsertBatchStatement(AggregationBatchEntity aggregationBatch) {
+    return Statement.newBuilder(
+            "INSERT INTO AggregationBatch (PopulationName, TaskId, IterationId, AttemptId,\n"
+                + " BatchId, AggregationLevel, Status, BatchSize, CreatedByPartition,\n"
+                + " CreatedTime) VALUES(@populationName, @taskId, @iterationId, @attemptId,\n"
+                + " @batchId, @aggregationLevel, @status, @batchSize, @createdByPartition,\n"
+                + " @createdTime)")
+        .bind("populationName")
+        .to(aggregationBatch.getPopulationName())
+        .bind("taskId")
+        .to(aggregationBatch.getTaskId())
+        .bind("iterationId")
+        .to(aggregationBatch.getIterationId())
+        .bind("attemptId")
+        .to(aggregationBatch.getAttemptId())
+        .bind("batchId")
+        .to(aggregationBatch.getBatchId())
+        .bind("aggregationLevel")
+        .to(aggregationBatch.getAggregationLevel())
+        .bind("status")
+        .to(aggregationBatch.getStatus().code())
+        .bind("batchSize")
+        .to(aggregationBatch.getBatchSize())
+        .bind("createdByPartition")
+        .to(aggregationBatch.getCreatedByPartition())
+        .bind("createdTime")
+        .to(TimestampInstantConverter.TO_TIMESTAMP.convert(instantSource.instant()))
+        .build();
+  }
+
+  private static Statement buildUpdateAggregatedByStatement(
+      AggregationBatchEntity aggregationBatch) {
+    return Statement.newBuilder(
+            "UPDATE AggregationBatch SET AggregatedBy = @aggregatedBy WHERE\n"
+                + " PopulationName=@populationName AND TaskId=@taskId AND\n"
+                + " IterationId=@iterationId AND AttemptId=@attemptId AND\n"
+                + " BatchId=@batchId AND Status=@status AND AggregatedBy IS NULL")
+        .bind("aggregatedBy")
+        .to(aggregationBatch.getAggregatedBy())
+        .bind("populationName")
+        .to(aggregationBatch.getPopulationName())
+        .bind("taskId")
+        .to(aggregationBatch.getTaskId())
+        .bind("iterationId")
+        .to(aggregationBatch.getIterationId())
+        .bind("attemptId")
+        .to(aggregationBatch.getAttemptId())
+        .bind("batchId")
+        .to(aggregationBatch.getBatchId())
+        .bind("status")
+        .to(aggregationBatch.getStatus().code())
+        .build();
   }
 }
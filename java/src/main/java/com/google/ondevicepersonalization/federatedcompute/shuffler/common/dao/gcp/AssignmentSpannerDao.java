@@ -41,7 +41,9 @@ import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.I
 import java.time.Instant;
 import java.time.InstantSource;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -114,6 +116,17 @@ public class AssignmentSpannerDao implements AssignmentDao {
           + "   %s \n"
           + "ORDER BY SessionId";
 
+  private static final String SELECT_ASSIGNMENT_IDS_OF_STATUS_BY_BATCHES =
+      "SELECT BatchId, SessionId \n"
+          + " FROM Assignment \n"
+          + " WHERE PopulationName = @populationName \n"
+          + "   AND TaskId = @taskId \n"
+          + "   AND IterationId = @iterationId \n"
+          + "   AND AttemptId = @attemptId \n"
+          + "   AND Status = @status \n"
+          + "   AND BatchId IN UNNEST(@batchIds) \n"
+          + "ORDER BY BatchId, SessionId";
+
   public AssignmentSpannerDao(
       @Qualifier("taskDatabaseClient") DatabaseClient dbClient,
       InstantSource instantSource,
@@ -328,6 +341,40 @@ public class AssignmentSpannerDao implements AssignmentDao {
     return result.build();
   }
 
+  public Map<String, List<String>> queryAssignmentIdsOfStatusByBatches(
+      IterationId iterationId, AssignmentEntity.Status status, List<String> batchIds) {
+    Map<String, List<String>> result = new HashMap<>();
+    if (batchIds.isEmpty()) {
+      return result;
+    }
+
+    Statement statement =
+        Statement.newBuilder(SELECT_ASSIGNMENT_IDS_OF_STATUS_BY_BATCHES)
+            .bind("populationName")
+            .to(iterationId.getPopulationName())
+            .bind("taskId")
+            .to(iterationId.getTaskId())
+            .bind("iterationId")
+            .to(iterationId.getIterationId())
+            .bind("attemptId")
+            .to(iterationId.getAttemptId())
+            .bind("status")
+            .to(status.code())
+            .bind("batchIds")
+            .toStringArray(batchIds)
+            .build();
+
+    try (ResultSet resultSet = dbClient.singleUseReadOnlyTransaction().executeQuery(statement)) {
+      while (resultSet.next()) {
+        result
+            .computeIfAbsent(resultSet.getString("BatchId"), k -> new ArrayList<>())
+            .add(resultSet.getString("SessionId"));
+      }
+    }
+
+    return result;
+  }
+
   private Optional<Long> getLastVersionOfStatus(
       ReadContext transaction,
       AssignmentId assignmentId,
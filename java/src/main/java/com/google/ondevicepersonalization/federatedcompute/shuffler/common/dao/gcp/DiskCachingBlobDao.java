@@ -0,0 +1,424 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.gcp;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_PLAN_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.SERVER_PLAN_FILE;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the immutable blobs downloaded from Google Cloud Storage on the local disk, so that the
+ * plans and checkpoints read again and again by the workers of a node are only downloaded once.
+ *
+ * <p>Only the plans and checkpoints are cached, since they are never modified once written for an
+ * iteration. The generation of a blob is still looked up on every read, and a cached file of
+ * another generation is dropped, so that a blob overwritten by a retry is never served stale. The
+ * cache is bounded by its size on disk, evicting the least recently used files first, and the
+ * cached files are read by mapping them into memory. Streams are served from the cache but do not
+ * populate it, since their content is not meant to be held whole. A size of 0 disables the cache.
+ *
+ * <p>The plans and checkpoints compressed and uploaded whole are cached as written, under the
+ * generation of the uploaded blob, so that the checkpoint a model updater uploads for an iteration
+ * is not downloaded again when the same node starts the next iteration from it.
+ *
+ * <p>The files are cached in a subdirectory of the configured directory, which may be shared with
+ * other files of the node, and only the files written by the cache are ever deleted.
+ */
+@Primary
+@Component
+public class DiskCachingBlobDao implements BlobDao {
+
+  private static final Logger logger = LoggerFactory.getLogger(DiskCachingBlobDao.class);
+
+  static final String HITS_COUNTER_NAME = "shuffler.blob.disk.cache.hits";
+  static final String MISSES_COUNTER_NAME = "shuffler.blob.disk.cache.misses";
+  static final String SAVED_BYTES_COUNTER_NAME = "shuffler.blob.disk.cache.saved.bytes";
+  static final String CACHED_BYTES_GAUGE_NAME = "shuffler.blob.disk.cache.bytes";
+
+  /** The subdirectory of the configured directory the files are cached in. */
+  static final String CACHE_SUBDIRECTORY = "shuffler-blob-cache";
+
+  /** The prefix of the names of the files written by the cache. */
+  static final String CACHED_FILE_PREFIX = "blob-";
+
+  /** The files of the blobs never modified once written for an iteration. */
+  private static final Pattern IMMUTABLE_FILE_PATTERN =
+      Pattern.compile(
+          String.format(
+              "(^|/)(%s|%s|%s|%s)$",
+              CLIENT_PLAN_FILE, SERVER_PLAN_FILE, CHECKPOINT_FILE, CLIENT_CHECKPOINT_FILE));
+
+  private final GCSBlobDao delegate;
+  private final Path directory;
+  private final long capacityBytes;
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter savedBytes;
+
+  // Guarded by this, ordered from the least to the most recently used.
+  private final LinkedHashMap<String, CachedFile> cachedFiles =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  public DiskCachingBlobDao(
+      GCSBlobDao gcsBlobDao,
+      Optional<MeterRegistry> meterRegistry,
+      String blobDiskCacheDirectory,
+      int blobDiskCacheMegabytes) {
+    // Not every application exports metrics, the meters are then only kept by the global registry.
+    MeterRegistry registry = meterRegistry.orElse(Metrics.globalRegistry);
+    this.delegate = gcsBlobDao;
+    this.directory = Paths.get(blobDiskCacheDirectory).resolve(CACHE_SUBDIRECTORY);
+    this.capacityBytes = blobDiskCacheMegabytes * 1024L * 1024L;
+    this.hits =
+        Counter.builder(HITS_COUNTER_NAME)
+            .description("The blob downloads served from the disk cache.")
+            .register(registry);
+    this.misses =
+        Counter.builder(MISSES_COUNTER_NAME)
+            .description("The downloads of cacheable blobs not found in the disk cache.")
+            .register(registry);
+    this.savedBytes =
+        Counter.builder(SAVED_BYTES_COUNTER_NAME)
+            .description("The bytes served from the disk cache instead of downloaded.")
+            .baseUnit("bytes")
+            .register(registry);
+    Gauge.builder(CACHED_BYTES_GAUGE_NAME, this, DiskCachingBlobDao::getCachedBytes)
+        .description("The bytes of the blobs cached on disk.")
+        .baseUnit("bytes")
+        .register(registry);
+    if (capacityBytes > 0) {
+      // The files cached by a previous run are not indexed, so they are dropped.
+      try {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale =
+            Files.newDirectoryStream(directory, CACHED_FILE_PREFIX + "*")) {
+          for (Path path : stale) {
+            if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+              Files.delete(path);
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to create the blob disk cache: " + directory, e);
+      }
+    }
+  }
+
+  public List<String> list(BlobDescription folder) {
+    return delegate.list(folder);
+  }
+
+  public List<String> listByPartition(BlobDescription folder, List<String> partitions) {
+    return delegate.listByPartition(folder, partitions);
+  }
+
+  public Optional<byte[]> download(BlobDescription file) {
+    return read(file, false, () -> delegate.download(file));
+  }
+
+  public Optional<Long> getGeneration(BlobDescription file) {
+    return delegate.getGeneration(file);
+  }
+
+  public Optional<Long> getSize(BlobDescription file) {
+    return delegate.getSize(file);
+  }
+
+  public Optional<byte[]> downloadAndDecompressIfNeeded(BlobDescription file) {
+    return read(file, true, () -> delegate.downloadAndDecompressIfNeeded(file));
+  }
+
+  public Optional<InputStream> openStream(BlobDescription file) {
+    return openStream(file, false, () -> delegate.openStream(file));
+  }
+
+  public Optional<InputStream> openStreamAndDecompressIfNeeded(BlobDescription file) {
+    return openStream(file, true, () -> delegate.openStreamAndDecompressIfNeeded(file));
+  }
+
+  public void upload(BlobDescription file, byte[] content) throws IOException {
+    delegate.upload(file, content);
+  }
+
+  public void compressAndUpload(BlobDescription file, byte[] content) throws IOException {
+    delegate.compressAndUpload(file, content);
+    write(file, content);
+  }
+
+  public void compressAndUploadInternal(BlobDescription file, byte[] content) throws IOException {
+    delegate.compressAndUploadInternal(file, content);
+    write(file, content);
+  }
+
+  public void compressAndUploadStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    delegate.compressAndUploadStreaming(file, writer);
+  }
+
+  public void compressAndUploadInternalStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    delegate.compressAndUploadInternalStreaming(file, writer);
+  }
+
+  public boolean checkExistsAndGzipContentIfNeeded(BlobDescription[] files) {
+    return delegate.checkExistsAndGzipContentIfNeeded(files);
+  }
+
+  public boolean exists(BlobDescription[] files) {
+    return delegate.exists(files);
+  }
+
+  public boolean delete(BlobDescription folder) {
+    return delegate.delete(folder);
+  }
+
+  /** Returns the bytes of the blobs cached on disk. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  private Optional<byte[]> read(
+      BlobDescription file, boolean decompressed, Supplier<Optional<byte[]>> download) {
+    if (!isCacheable(file)) {
+      return download.get();
+    }
+    Optional<Long> generation = delegate.getGeneration(file);
+    if (generation.isEmpty()) {
+      return download.get();
+    }
+    String key = getKey(file, decompressed);
+    Optional<ByteBuffer> cached = map(key, generation.get());
+    if (cached.isPresent()) {
+      byte[] content = new byte[cached.get().remaining()];
+      cached.get().get(content);
+      return Optional.of(content);
+    }
+
+    misses.increment();
+    Optional<byte[]> content = download.get();
+    content.ifPresent((bytes) -> put(key, generation.get(), bytes));
+    return content;
+  }
+
+  /** Caches the uncompressed content of an uploaded blob under the generation it was given. */
+  private void write(BlobDescription file, byte[] content) {
+    if (!isCacheable(file)) {
+      return;
+    }
+    delegate
+        .getGeneration(file)
+        .ifPresent((generation) -> put(getKey(file, true), generation, content));
+  }
+
+  private Optional<InputStream> openStream(
+      BlobDescription file, boolean decompressed, Supplier<Optional<InputStream>> open) {
+    if (!isCacheable(file)) {
+      return open.get();
+    }
+    Optional<Long> generation = delegate.getGeneration(file);
+    if (generation.isEmpty()) {
+      return open.get();
+    }
+    Optional<ByteBuffer> cached = map(getKey(file, decompressed), generation.get());
+    if (cached.isPresent()) {
+      return Optional.of(new ByteBufferInputStream(cached.get()));
+    }
+    misses.increment();
+    return open.get();
+  }
+
+  private boolean isCacheable(BlobDescription file) {
+    return capacityBytes > 0 && IMMUTABLE_FILE_PATTERN.matcher(getPath(file)).find();
+  }
+
+  /** Maps the cached file of the generation into memory, dropping the files of other ones. */
+  private Optional<ByteBuffer> map(String key, long generation) {
+    CachedFile cachedFile;
+    synchronized (this) {
+      cachedFile = cachedFiles.get(key);
+      if (cachedFile == null) {
+        return Optional.empty();
+      }
+      if (cachedFile.generation != generation) {
+        logger.info("Dropping cached generation {} of {}.", cachedFile.generation, key);
+        remove(key, cachedFile);
+        return Optional.empty();
+      }
+    }
+
+    // The file may be evicted concurrently, in which case the blob is downloaded again.
+    try (FileChannel channel = FileChannel.open(cachedFile.path)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, cachedFile.size);
+      hits.increment();
+      savedBytes.increment(cachedFile.size);
+      return Optional.of(buffer);
+    } catch (IOException e) {
+      logger.warn("Failed to read cached file of {}.", key, e);
+      synchronized (this) {
+        remove(key, cachedFile);
+      }
+      return Optional.empty();
+    }
+  }
+
+  private void put(String key, long generation, byte[] content) {
+    if (content.length > capacityBytes) {
+      return;
+    }
+    Path path =
+        directory.resolve(
+            CACHED_FILE_PREFIX
+                + Hashing.sha256()
+                    .hashString(key + "#" + generation, StandardCharsets.UTF_8)
+                    .toString());
+    Path temporaryPath = null;
+    try {
+      // Written aside and moved in place, so that a cached file is always complete.
+      temporaryPath = Files.createTempFile(directory, CACHED_FILE_PREFIX, ".tmp");
+      Files.write(temporaryPath, content);
+      synchronized (this) {
+        CachedFile previous = cachedFiles.get(key);
+        if (previous != null) {
+          remove(key, previous);
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE);
+        cachedFiles.put(key, new CachedFile(path, generation, content.length));
+        cachedBytes += content.length;
+        evict();
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to cache {}.", key, e);
+      if (temporaryPath != null) {
+        deleteQuietly(temporaryPath);
+      }
+    }
+  }
+
+  /** Evicts the least recently used files until the cached files fit in the capacity. */
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, CachedFile>> iterator = cachedFiles.entrySet().iterator();
+    while (cachedBytes > capacityBytes && iterator.hasNext()) {
+      CachedFile cachedFile = iterator.next().getValue();
+      iterator.remove();
+      cachedBytes -= cachedFile.size;
+      deleteQuietly(cachedFile.path);
+    }
+  }
+
+  private synchronized void remove(String key, CachedFile cachedFile) {
+    if (cachedFiles.remove(key, cachedFile)) {
+      cachedBytes -= cachedFile.size;
+      deleteQuietly(cachedFile.path);
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      logger.warn("Failed to delete cached file {}.", path, e);
+    }
+  }
+
+  private static String getPath(BlobDescription file) {
+    return Strings.isNullOrEmpty(file.getUrl())
+        ? "gs://" + file.getHost() + "/" + file.getResourceObject()
+        : file.getUrl();
+  }
+
+  private static String getKey(BlobDescription file, boolean decompressed) {
+    return getPath(file) + (decompressed ? "#decompressed" : "#raw");
+  }
+
+  /** A blob cached on disk. */
+  private static final class CachedFile {
+    private final Path path;
+    private final long generation;
+    private final long size;
+
+    CachedFile(Path path, long generation, long size) {
+      this.path = path;
+      this.generation = generation;
+      this.size = size;
+    }
+  }
+
+  /** Reads a buffer mapped into memory. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(len, buffer.remaining());
+      buffer.get(b, off, read);
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.ondevicepersonalization.federatedcompute.shuffler.commo
 
 import com.google.api.gax.paging.Page;
 import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
@@ -32,17 +33,23 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodec;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,15 +61,44 @@ public class GCSBlobDao implements BlobDao {
   private static final Logger logger = LoggerFactory.getLogger(GCSBlobDao.class);
   private static final int BATCH_SIZE = 100;
 
-  private static final int BUFFER_SIZE = 1024;
+  /** The maximum number of ranges of large blobs downloaded concurrently. */
+  private static final int MAX_CONCURRENT_RANGES = 16;
+
+  /** The chunk size of the streamed downloads, fetching larger chunks to save round trips. */
+  private static final int STREAM_CHUNK_SIZE = 2 * 1024 * 1024;
 
   private Storage storage;
 
   private ListeningExecutorService executorService;
 
-  public GCSBlobDao(Storage storage, Optional<ListeningExecutorService> executorService) {
+  private CompressionCodec serverBlobCodec;
+
+  private RangedBlobDownloader downloader;
+
+  public GCSBlobDao(
+      Storage storage,
+      Optional<ListeningExecutorService> executorService,
+      String serverBlobCompressionFormat,
+      int serverBlobCompressionLevel,
+      int parallelDownloadThresholdMegabytes,
+      int parallelDownloadPartMegabytes) {
     this.storage = storage;
     this.executorService = executorService.orElse(MoreExecutors.newDirectExecutorService());
+    this.serverBlobCodec =
+        CompressionCodecs.create(serverBlobCompressionFormat, serverBlobCompressionLevel);
+    // The ranges are downloaded on their own threads rather than the executor service, which may
+    // be running the download itself.
+    this.downloader =
+        new RangedBlobDownloader(
+            storage,
+            Executors.newFixedThreadPool(
+                MAX_CONCURRENT_RANGES,
+                new ThreadFactoryBuilder()
+                    .setNameFormat("gcs-ranged-download-%d")
+                    .setDaemon(true)
+                    .build()),
+            parallelDownloadThresholdMegabytes * 1024L * 1024L,
+            parallelDownloadPartMegabytes * 1024 * 1024);
   }
 
   public List<String> listByPartition(BlobDescription folder, List<String> partitionPrefixes) {
@@ -111,43 +147,103 @@ public class GCSBlobDao implements BlobDao {
     return Optional.of(blob.getContent());
   }
 
+  public Optional<Long> getGeneration(BlobDescription file) {
+    Blob blob =
+        storage.get(getBlobId(file), Storage.BlobGetOption.fields(Storage.BlobField.GENERATION));
+    if (blob == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(blob.getGeneration());
+  }
+
+  public Optional<Long> getSize(BlobDescription file) {
+    Blob blob = storage.get(getBlobId(file), Storage.BlobGetOption.fields(Storage.BlobField.SIZE));
+    if (blob == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(blob.getSize());
+  }
+
+  /**
+   * Downloads the content in a single request for most blobs, without looking up the content
+   * encoding of the blob, and decompresses the content if it is detected as gzip from its magic
+   * bytes.
+   *
+   * <p>Content starting with the magic bytes of another codec is only decompressed if the content
+   * encoding of the blob names the codec. Only the server writes blobs with these codecs, and the
+   * uploads of devices must not be decompressed by codecs they do not use.
+   */
   public Optional<byte[]> downloadAndDecompressIfNeeded(BlobDescription file) {
     BlobId blobId = getBlobId(file);
-    Blob blob = storage.get(getBlobId(file));
+    return downloader.download(blobId).map((content) -> decompressIfNeeded(blobId, content));
+  }
+
+  private byte[] decompressIfNeeded(BlobId blobId, byte[] content) {
+    Optional<CompressionCodec> codec = CompressionCodecs.detect(content);
+    if (codec.isEmpty()) {
+      return content;
+    }
+    if (codec.get() == CompressionCodecs.GZIP) {
+      return CompressionCodecs.uncompressIfGzip(content);
+    }
+    Blob blob =
+        storage.get(blobId, Storage.BlobGetOption.fields(Storage.BlobField.CONTENT_ENCODING));
+    if (blob == null
+        || !codec.get().getContentEncoding().equalsIgnoreCase(blob.getContentEncoding())) {
+      return content;
+    }
+    return codec.get().uncompress(content);
+  }
+
+  public Optional<InputStream> openStream(BlobDescription file) {
+    BlobId blobId = getBlobId(file);
+    Blob blob = storage.get(blobId);
     if (blob == null) {
       return Optional.empty();
     }
+    return Optional.of(openReader(blobId, blob));
+  }
 
-    if (Strings.isNullOrEmpty(blob.getContentEncoding())) {
-      return Optional.of(blob.getContent());
+  public Optional<InputStream> openStreamAndDecompressIfNeeded(BlobDescription file) {
+    BlobId blobId = getBlobId(file);
+    Blob blob = storage.get(blobId);
+    if (blob == null) {
+      return Optional.empty();
     }
 
-    return switch (blob.getContentEncoding().toLowerCase()) {
-      case COMPRESSION_FORMAT_GZIP ->
-          Optional.of(CompressionUtils.uncompressWithGzip(downloadRaw(blobId)));
-      default -> {
-        logger.warn("Unsupported compression format: {}", blob.getContentEncoding());
-        yield Optional.of(blob.getContent());
-      }
-    };
-  }
-
-  private byte[] downloadRaw(BlobId blobId) {
-    try (ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ReadChannel reader = storage.reader(blobId)) {
-      reader.setChunkSize(BUFFER_SIZE);
-      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-      while (reader.read(buffer) != -1) {
-        buffer.flip();
-        output.write(buffer.array(), 0, buffer.limit());
-        buffer.clear();
-      }
-      return output.toByteArray();
+    InputStream input = openReader(blobId, blob);
+    if (Strings.isNullOrEmpty(blob.getContentEncoding())) {
+      return Optional.of(input);
+    }
+    Optional<CompressionCodec> codec =
+        CompressionCodecs.forContentEncoding(blob.getContentEncoding());
+    if (codec.isEmpty()) {
+      logger.warn("Unsupported compression format: {}", blob.getContentEncoding());
+      return Optional.of(input);
+    }
+    try {
+      return Optional.of(codec.get().uncompressingStream(input));
     } catch (IOException e) {
-      throw new RuntimeException("Failed to download raw blob", e);
+      try {
+        input.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw new RuntimeException("Failed to open blob", e);
     }
   }
 
+  /**
+   * Opens a stream of the generation of the blob that was looked up, so that the stream does not
+   * mix the contents of concurrent overwrites.
+   */
+  private InputStream openReader(BlobId blobId, Blob blob) {
+    ReadChannel reader =
+        storage.reader(BlobId.of(blobId.getBucket(), blobId.getName(), blob.getGeneration()));
+    reader.setChunkSize(STREAM_CHUNK_SIZE);
+    return Channels.newInputStream(reader);
+  }
+
   public void upload(BlobDescription file, byte[] content) throws IOException {
     BlobId blobId = getBlobId(file);
     BlobInfo blobInfo = BlobInfo.newBuilder(blobId).build();
@@ -162,6 +258,39 @@ public class GCSBlobDao implements BlobDao {
         blobInfo, new ByteArrayInputStream(CompressionUtils.compressWithGzip(content)));
   }
 
+  public void compressAndUploadInternal(BlobDescription file, byte[] content) throws IOException {
+    BlobId blobId = getBlobId(file);
+    BlobInfo blobInfo =
+        BlobInfo.newBuilder(blobId)
+            .setContentEncoding(serverBlobCodec.getContentEncoding())
+            .build();
+    storage.createFrom(blobInfo, new ByteArrayInputStream(serverBlobCodec.compress(content)));
+  }
+
+  public void compressAndUploadStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    compressAndUploadStreaming(file, CompressionCodecs.GZIP, writer);
+  }
+
+  public void compressAndUploadInternalStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    compressAndUploadStreaming(file, serverBlobCodec, writer);
+  }
+
+  private void compressAndUploadStreaming(
+      BlobDescription file, CompressionCodec codec, ContentWriter writer) throws IOException {
+    BlobInfo blobInfo =
+        BlobInfo.newBuilder(getBlobId(file)).setContentEncoding(codec.getContentEncoding()).build();
+    WriteChannel channel = storage.writer(blobInfo);
+    // The upload is only committed once the channel is closed, so the channel is left open when
+    // the writer fails, abandoning the upload.
+    try (OutputStream compressing =
+        codec.compressingStream(new NonClosingOutputStream(Channels.newOutputStream(channel)))) {
+      writer.writeTo(Channels.newChannel(compressing));
+    }
+    channel.close();
+  }
+
   private BlobId getBlobId(BlobDescription file) {
     BlobId blobId;
     // Try to use URL first if available
@@ -233,4 +362,22 @@ public class GCSBlobDao implements BlobDao {
     }
     return allDeleted;
   }
+
+  /** Passes the writes through to the output, without closing it. */
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+
+    NonClosingOutputStream(OutputStream output) {
+      super(output);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
 }
@@ -17,6 +17,19 @@
 package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.gcp;
 
 import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.GRADIENT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_PLAN_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.METRICS_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.SERVER_PLAN_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createClientPerIterationPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createDeviceUploadGradientObjectName;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createDeviceUploadGradientObjectNameFromIterationResultFolder;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createGradientUploadedDir;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerIterationPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerIterationPathWithAggregationLevel;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerTaskPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.validateFolderPath;
 
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
@@ -50,11 +63,6 @@ import org.springframework.stereotype.Component;
 /** Google Cloud Storage Blob Manager */
 @Component
 public class GCSBlobManager implements BlobManager {
-  private static final String CLIENT_PLAN_FILE = "client_only_plan";
-  private static final String SERVER_PLAN_FILE = "server_phase";
-  private static final String CHECKPOINT_FILE = "checkpoint";
-  private static final String METRICS_FILE = "metrics";
-  private static final String CLIENT_CHECKPOINT_FILE = "client_checkpoint";
   private static final String UPLOAD_CONTENT_TYPE_NAME = "content-type";
   private static final String UPLOAD_CONTENT_TYPE_VALUE = "application/octet-stream";
   private static final String UPLOAD_CONTENT_ENCODING_NAME = "content-encoding";
@@ -474,72 +482,7 @@ public class GCSBlobManager implements BlobManager {
     return url.toString();
   }
 
-  private String createGradientUploadedDir(String populationName, long taskId, long iterationId) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{file_name}
-    // NOTE: don't add "/" at beginning other wise, the url becomes double '/' as
-    // gs://bucket//us/....
-    return String.format("%s/%s/%s/%s", populationName, taskId, iterationId, "d/");
-  }
-
-  private static String createPerIterationPath(
-      String populationName, long taskId, long iterationId, String fileName) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{file_name}
-    // NOTE: don't add "/" at beginning other wise, the url becomes double '/' as
-    // gs://bucket//us/....
-    return String.format(
-        "%s/%s/%s/%s/%s/%s", populationName, taskId, iterationId, "s", "0", fileName);
-  }
-
-  private static String createPerIterationPathWithAggregationLevel(
-      String populationName, long taskId, long iterationId, long aggregationLevel) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{aggregation-level}/{batch_id}/{file_name}
-    // NOTE: don't add "/" at beginning other wise, the url becomes double '/' as
-    // gs://bucket//us/....
-    return String.format(
-        "%s/%s/%s/%s/%s/%s/", populationName, taskId, iterationId, "s", "0", aggregationLevel);
-  }
-
-  private static String createClientPerIterationPath(
-      String populationName, long taskId, long iterationId, String fileName) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{file_name}
-    // NOTE: don't add "/" at beginning other wise, the url becomes double '/' as
-    // gs://bucket//us/....
-    return String.format(
-        "%s/%s/%s/%s/%s/%s", populationName, taskId, iterationId, "d", "0", fileName);
-  }
-
   private static String createGcsPath(String bucketName, String objectName) {
     return "gs://" + bucketName + "/" + objectName;
   }
-
-  private static String createPerTaskPath(String populationName, long taskId, String fileName) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{file_name}
-    // NOTE: don't add "/" at beginning otherwise, the url becomes double '/' as
-    // gs://bucket//us/....
-    return String.format("%s/%s/%s/%s/%s/%s", populationName, taskId, 0, "s", "0", fileName);
-  }
-
-  private static String createDeviceUploadGradientObjectName(
-      String populationName, long taskId, long iterationId, String sessionId, String fileName) {
-    // {population_name}/{task_id}/{iteration_id-or_result_id}/{server/device}/{server-or-worker-id}/{file_name}
-    // NOTE: don't add "/" at beginning otherwise, the url becomes double '/' as
-    // gs://bucket//us/....
-    String iterationFolder =
-        String.format("%s/%s/%s/%s/", populationName, taskId, iterationId, "d");
-    return createDeviceUploadGradientObjectNameFromIterationResultFolder(
-        iterationFolder, sessionId, fileName);
-  }
-
-  private static String createDeviceUploadGradientObjectNameFromIterationResultFolder(
-      String iterationResultFolder, String sessionId, String fileName) {
-    validateFolderPath(iterationResultFolder);
-    return String.format("%s%s/%s", iterationResultFolder, sessionId, fileName);
-  }
-
-  private static void validateFolderPath(String folder) {
-    if (!folder.endsWith("/")) {
-      throw new IllegalArgumentException(
-          String.format("Invalid folder (%s). folder must ends with '/'.", folder));
-    }
-  }
 }
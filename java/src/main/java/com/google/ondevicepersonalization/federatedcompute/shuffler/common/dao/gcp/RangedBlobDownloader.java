@@ -0,0 +1,199 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.gcp;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
+
+/**
+ * Downloads the content of blobs.
+ *
+ * <p>A blob is first read from its start, up to the parallel threshold, in a single request
+ * without looking up its metadata, which downloads most blobs in a single round trip. Only when the
+ * blob reaches the threshold is its metadata looked up, and the rest of the blob split into ranges
+ * of the part size, fetched concurrently, each directly into its slice of the content. The ranges
+ * are pinned to the generation of the blob that was looked up, and the whole content is verified
+ * against the CRC32C of the blob when known, which also detects a blob overwritten between the
+ * first read and the ranges.
+ */
+final class RangedBlobDownloader {
+
+  /** The chunk size of serial reads, fetching large chunks to save round trips. */
+  static final int SERIAL_CHUNK_SIZE = 2 * 1024 * 1024;
+
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  /** The initial size of the buffer of the first read, grown as the content is read. */
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  private final Storage storage;
+  private final ExecutorService executor;
+  private final int parallelThresholdBytes;
+  private final int partBytes;
+
+  RangedBlobDownloader(
+      Storage storage, ExecutorService executor, long parallelThresholdBytes, int partBytes) {
+    this.storage = storage;
+    this.executor = executor;
+    this.parallelThresholdBytes = (int) Math.min(parallelThresholdBytes, MAX_ARRAY_SIZE);
+    this.partBytes = partBytes;
+  }
+
+  /** Downloads the raw content of the blob. Empty if the blob does not exist. */
+  Optional<byte[]> download(BlobId blobId) {
+    byte[] head;
+    try (ReadChannel reader = storage.reader(blobId)) {
+      reader.limit(parallelThresholdBytes);
+      reader.setChunkSize(SERIAL_CHUNK_SIZE);
+      head = read(reader, parallelThresholdBytes);
+    } catch (IOException | StorageException e) {
+      if (isNotFound(e)) {
+        return Optional.empty();
+      }
+      throw new RuntimeException("Failed to download raw blob", e);
+    }
+    if (head.length < parallelThresholdBytes) {
+      return Optional.of(head);
+    }
+
+    // The blob may be larger than the threshold, so the rest is downloaded from its metadata.
+    Blob blob = storage.get(blobId);
+    if (blob == null) {
+      return Optional.empty();
+    }
+    BlobId generationId = BlobId.of(blobId.getBucket(), blobId.getName(), blob.getGeneration());
+    Long size = blob.getSize();
+    byte[] content;
+    if (size == null || size > MAX_ARRAY_SIZE) {
+      content = downloadUnsized(generationId);
+    } else if (size < head.length) {
+      throw new IllegalStateException("Blob was modified during download");
+    } else {
+      content = Arrays.copyOf(head, size.intValue());
+      downloadRanges(generationId, content, head.length);
+    }
+    verifyCrc32c(blobId, blob.getCrc32c(), content);
+    return Optional.of(content);
+  }
+
+  /** Reads the channel up to the limit, into an array grown as the content is read. */
+  private static byte[] read(ReadChannel reader, int limit) throws IOException {
+    byte[] buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, limit)];
+    int length = 0;
+    while (true) {
+      if (length == buffer.length) {
+        if (length == limit) {
+          break;
+        }
+        buffer = Arrays.copyOf(buffer, (int) Math.min(2L * length, limit));
+      }
+      int read = reader.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+      if (read == -1) {
+        break;
+      }
+      length += read;
+    }
+    return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+  }
+
+  private byte[] downloadUnsized(BlobId blobId) {
+    try (ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ReadChannel reader = storage.reader(blobId)) {
+      reader.setChunkSize(SERIAL_CHUNK_SIZE);
+      ByteBuffer buffer = ByteBuffer.allocate(SERIAL_CHUNK_SIZE);
+      while (reader.read(buffer) != -1) {
+        buffer.flip();
+        output.write(buffer.array(), 0, buffer.limit());
+        buffer.clear();
+      }
+      return output.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to download raw blob", e);
+    }
+  }
+
+  /** Downloads the content of the blob from the offset concurrently, as ranges of the part size. */
+  private void downloadRanges(BlobId blobId, byte[] content, int from) {
+    List<CompletableFuture<Void>> parts = new ArrayList<>();
+    for (int start = from; start < content.length; start += partBytes) {
+      int offset = start;
+      int length = Math.min(partBytes, content.length - start);
+      parts.add(
+          CompletableFuture.runAsync(
+              () -> downloadRange(blobId, ByteBuffer.wrap(content, offset, length)), executor));
+    }
+    try {
+      CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      parts.forEach((part) -> part.cancel(true));
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+  /** Reads the range of the blob starting at the position of the buffer, up to its limit. */
+  private void downloadRange(BlobId blobId, ByteBuffer buffer) {
+    try (ReadChannel reader = storage.reader(blobId)) {
+      reader.seek(buffer.position());
+      reader.limit(buffer.limit());
+      reader.setChunkSize(buffer.remaining());
+      while (buffer.hasRemaining()) {
+        if (reader.read(buffer) == -1) {
+          throw new IllegalStateException("Blob was modified during download");
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to download range of raw blob", e);
+    }
+  }
+
+  private static boolean isNotFound(Exception e) {
+    Throwable cause = e instanceof StorageException ? e : e.getCause();
+    return cause instanceof StorageException
+        && ((StorageException) cause).getCode() == HttpURLConnection.HTTP_NOT_FOUND;
+  }
+
+  private static void verifyCrc32c(BlobId blobId, String expectedCrc32c, byte[] content) {
+    if (expectedCrc32c == null) {
+      return;
+    }
+    CRC32C crc32c = new CRC32C();
+    crc32c.update(content);
+    int expected = Ints.fromByteArray(BaseEncoding.base64().decode(expectedCrc32c));
+    if ((int) crc32c.getValue() != expected) {
+      throw new IllegalStateException("CRC32C mismatch of downloaded blob " + blobId);
+    }
+  }
+}
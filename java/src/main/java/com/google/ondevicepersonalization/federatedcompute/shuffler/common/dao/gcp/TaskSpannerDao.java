@@ -19,6 +19,7 @@ package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.
 import com.google.cloud.Timestamp;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.ErrorCode;
+import com.google.cloud.spanner.Mutation;
 import com.google.cloud.spanner.ReadContext;
 import com.google.cloud.spanner.ReadOnlyTransaction;
 import com.google.cloud.spanner.ResultSet;
@@ -140,6 +141,13 @@ public class TaskSpannerDao implements TaskDao {
           + " AND Status=@oldStatus\n"
           + " AND AggregationLevel=@oldAggregationLevel\n";
 
+  private static final String SELECT_ITERATION_COLLECTOR =
+      "SELECT CollectorId FROM IterationCollector\n"
+          + "WHERE PopulationName = @populationName\n"
+          + " AND TaskId = @taskId\n"
+          + " AND IterationId = @iterationId\n"
+          + " AND AttemptId = @attemptId\n";
+
   private DatabaseClient dbClient;
 
   private InstantSource instantSource;
@@ -800,6 +808,41 @@ public class TaskSpannerDao implements TaskDao {
     }
   }
 
+  public Optional<String> swapIterationCollector(IterationId iterationId, String collectorId) {
+    Timestamp now = TimestampInstantConverter.TO_TIMESTAMP.convert(instantSource.instant());
+    return dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              Optional<String> previous = Optional.empty();
+              try (ResultSet resultSet =
+                  transaction.executeQuery(
+                      bindIterationId(
+                              Statement.newBuilder(SELECT_ITERATION_COLLECTOR), iterationId)
+                          .build())) {
+                if (resultSet.next()) {
+                  previous = Optional.of(resultSet.getString("CollectorId"));
+                }
+              }
+              transaction.buffer(
+                  Mutation.newInsertOrUpdateBuilder("IterationCollector")
+                      .set("PopulationName")
+                      .to(iterationId.getPopulationName())
+                      .set("TaskId")
+                      .to(iterationId.getTaskId())
+                      .set("IterationId")
+                      .to(iterationId.getIterationId())
+                      .set("AttemptId")
+                      .to(iterationId.getAttemptId())
+                      .set("CollectorId")
+                      .to(collectorId)
+                      .set("UpdatedTime")
+                      .to(now)
+                      .build());
+              return previous;
+            });
+  }
+
   public boolean updateTaskStatus(TaskId taskId, TaskEntity.Status from, TaskEntity.Status to) {
 
     Timestamp now = TimestampInstantConverter.TO_TIMESTAMP.convert(instantSource.instant());
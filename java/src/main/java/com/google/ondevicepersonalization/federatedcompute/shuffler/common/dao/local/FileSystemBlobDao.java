@@ -0,0 +1,344 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.local;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodec;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Blob Dao storing the blobs as files of the local file system, so that the shuffler runs on a
+ * single machine without Google Cloud Storage.
+ *
+ * <p>The buckets are directories of the root directory, and the objects are files named after
+ * their path in the bucket. Files are written aside and moved in place once complete, so that a
+ * reader never sees a partial file, and are read by mapping them into memory. The file system does
+ * not store the content encoding of the files, so compressed files are detected from their magic
+ * bytes.
+ */
+@Component
+public class FileSystemBlobDao implements BlobDao {
+  private static final Logger logger = LoggerFactory.getLogger(FileSystemBlobDao.class);
+
+  /** The directory of the files being written, not a valid bucket name. */
+  private static final String UPLOAD_DIRECTORY = ".uploads";
+
+  private static final String FILE_URL_SCHEME = "file:";
+
+  /** The length of the longest magic bytes of the supported codecs. */
+  private static final int MAGIC_BYTES_LENGTH = 4;
+
+  private final Path root;
+
+  private final CompressionCodec serverBlobCodec;
+
+  public FileSystemBlobDao(
+      String localBlobRootDirectory,
+      String serverBlobCompressionFormat,
+      int serverBlobCompressionLevel) {
+    this.root = Paths.get(localBlobRootDirectory).toAbsolutePath();
+    this.serverBlobCodec =
+        CompressionCodecs.create(serverBlobCompressionFormat, serverBlobCompressionLevel);
+  }
+
+  public List<String> listByPartition(BlobDescription folder, List<String> partitionPrefixes) {
+    List<String> result = new ArrayList<>();
+    for (String prefix : partitionPrefixes) {
+      for (String fileName :
+          list(folder.toBuilder().resourceObject(folder.getResourceObject() + prefix).build())) {
+        result.add(prefix + fileName);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lists the files and directories directly under the folder whose names start with the prefix,
+   * the directories ending with '/', as the objects and prefixes listed in Google Cloud Storage.
+   */
+  public List<String> list(BlobDescription folder) {
+    String prefix = folder.getResourceObject();
+    int slash = prefix.lastIndexOf('/');
+    Path directory = getBucket(folder).resolve(prefix.substring(0, slash + 1));
+    String namePrefix = prefix.substring(slash + 1);
+    if (!Files.isDirectory(directory)) {
+      return ImmutableList.of();
+    }
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths
+          .filter((path) -> path.getFileName().toString().startsWith(namePrefix))
+          .map(
+              (path) ->
+                  path.getFileName().toString().substring(namePrefix.length())
+                      + (Files.isDirectory(path) ? "/" : ""))
+          .sorted()
+          .collect(ImmutableList.toImmutableList());
+    } catch (IOException e) {
+      logger.error("Failed to list blobs");
+      throw new RuntimeException("Failed to list blobs", e);
+    }
+  }
+
+  public Optional<byte[]> download(BlobDescription file) {
+    Path path = getPath(file);
+    try (FileChannel channel = FileChannel.open(path)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      byte[] content = new byte[buffer.remaining()];
+      buffer.get(content);
+      return Optional.of(content);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to download blob " + path, e);
+    }
+  }
+
+  /**
+   * Returns the modification time of the file in nanoseconds, which stands in for the generation
+   * since every upload replaces the file.
+   */
+  public Optional<Long> getGeneration(BlobDescription file) {
+    try {
+      return Optional.of(Files.getLastModifiedTime(getPath(file)).to(TimeUnit.NANOSECONDS));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to get generation of blob " + file.getResourceObject(), e);
+    }
+  }
+
+  public Optional<Long> getSize(BlobDescription file) {
+    try {
+      return Optional.of(Files.size(getPath(file)));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to get size of blob " + file.getResourceObject(), e);
+    }
+  }
+
+  public Optional<byte[]> downloadAndDecompressIfNeeded(BlobDescription file) {
+    return download(file).map(this::decompressIfNeeded);
+  }
+
+  /**
+   * Decompresses content detected as gzip, or as the server blob codec, from its magic bytes. The
+   * file system records no content encoding, so content written by the server is told apart from
+   * device uploads by its codec alone, which devices do not use.
+   */
+  private byte[] decompressIfNeeded(byte[] content) {
+    Optional<CompressionCodec> codec = CompressionCodecs.detect(content);
+    if (codec.isEmpty() || !isDecompressed(codec.get())) {
+      return content;
+    }
+    if (codec.get() == CompressionCodecs.GZIP) {
+      return CompressionCodecs.uncompressIfGzip(content);
+    }
+    return codec.get().uncompress(content);
+  }
+
+  private boolean isDecompressed(CompressionCodec codec) {
+    return codec == CompressionCodecs.GZIP
+        || codec.getContentEncoding().equals(serverBlobCodec.getContentEncoding());
+  }
+
+  public Optional<InputStream> openStream(BlobDescription file) {
+    try {
+      return Optional.of(Files.newInputStream(getPath(file)));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to open blob", e);
+    }
+  }
+
+  /**
+   * Opens a stream of the file, decompressed if it starts with the magic bytes of gzip or of the
+   * server blob codec. Unlike whole downloads, a file starting with magic bytes by chance fails to
+   * be read.
+   */
+  public Optional<InputStream> openStreamAndDecompressIfNeeded(BlobDescription file) {
+    Optional<InputStream> stream = openStream(file);
+    if (stream.isEmpty()) {
+      return stream;
+    }
+    InputStream input = new BufferedInputStream(stream.get());
+    try {
+      input.mark(MAGIC_BYTES_LENGTH);
+      byte[] magicBytes = input.readNBytes(MAGIC_BYTES_LENGTH);
+      input.reset();
+      Optional<CompressionCodec> codec =
+          CompressionCodecs.detect(magicBytes).filter(this::isDecompressed);
+      return Optional.of(codec.isEmpty() ? input : codec.get().uncompressingStream(input));
+    } catch (IOException e) {
+      try {
+        input.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw new RuntimeException("Failed to open blob", e);
+    }
+  }
+
+  public void upload(BlobDescription file, byte[] content) throws IOException {
+    write(file, (output) -> output.write(content));
+  }
+
+  public void compressAndUpload(BlobDescription file, byte[] content) throws IOException {
+    write(file, (output) -> output.write(CompressionCodecs.GZIP.compress(content)));
+  }
+
+  public void compressAndUploadInternal(BlobDescription file, byte[] content) throws IOException {
+    write(file, (output) -> output.write(serverBlobCodec.compress(content)));
+  }
+
+  public void compressAndUploadStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    compressAndUploadStreaming(file, CompressionCodecs.GZIP, writer);
+  }
+
+  public void compressAndUploadInternalStreaming(BlobDescription file, ContentWriter writer)
+      throws IOException {
+    compressAndUploadStreaming(file, serverBlobCodec, writer);
+  }
+
+  private void compressAndUploadStreaming(
+      BlobDescription file, CompressionCodec codec, ContentWriter writer) throws IOException {
+    write(
+        file,
+        (output) -> {
+          try (OutputStream compressing = codec.compressingStream(output)) {
+            writer.writeTo(Channels.newChannel(compressing));
+          }
+        });
+  }
+
+  /** Writes the file aside and moves it in place once complete, leaving no file on failure. */
+  private void write(BlobDescription file, OutputWriter writer) throws IOException {
+    Path path = getPath(file);
+    Path uploadDirectory = root.resolve(UPLOAD_DIRECTORY);
+    Files.createDirectories(uploadDirectory);
+    Path temporaryPath = Files.createTempFile(uploadDirectory, "upload", ".tmp");
+    try {
+      try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(temporaryPath))) {
+        writer.write(output);
+      }
+      Files.createDirectories(path.getParent());
+      Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryPath);
+    }
+  }
+
+  public boolean checkExistsAndGzipContentIfNeeded(BlobDescription[] files) {
+    return Arrays.stream(files).allMatch(file -> checkExistAndGzipContentIfNeeded(file));
+  }
+
+  private boolean checkExistAndGzipContentIfNeeded(BlobDescription file) {
+    Optional<byte[]> content = download(file);
+    if (content.isEmpty()) {
+      return false;
+    }
+
+    Optional<CompressionCodec> codec = CompressionCodecs.detect(content.get());
+    if (codec.isEmpty()) {
+      try {
+        compressAndUpload(file, content.get());
+        return true;
+      } catch (IOException e) {
+        logger.error("Failed to compress blob: {}", file, e);
+        return false;
+      }
+    }
+
+    if (codec.get() != CompressionCodecs.GZIP) {
+      logger.error(
+          "Unsupported compression format: {} for blob: {}",
+          codec.get().getContentEncoding(),
+          file);
+      return false;
+    }
+    return true;
+  }
+
+  public boolean exists(BlobDescription[] files) {
+    return Arrays.stream(files).allMatch(file -> Files.exists(getPath(file)));
+  }
+
+  public boolean delete(BlobDescription folder) {
+    String prefix = folder.getResourceObject();
+    int slash = prefix.lastIndexOf('/');
+    Path directory = getBucket(folder).resolve(prefix.substring(0, slash + 1));
+    boolean allDeleted = true;
+    for (String name : list(folder)) {
+      Path path = directory.resolve(prefix.substring(slash + 1) + name);
+      try {
+        MoreFiles.deleteRecursively(path, RecursiveDeleteOption.ALLOW_INSECURE);
+      } catch (IOException e) {
+        logger.error(String.format("Failed to delete blobs: %s", path), e);
+        allDeleted = false;
+      }
+    }
+    return allDeleted;
+  }
+
+  private Path getBucket(BlobDescription file) {
+    return root.resolve(file.getHost());
+  }
+
+  private Path getPath(BlobDescription file) {
+    // Try to use URL first if available
+    if (Strings.isNullOrEmpty(file.getUrl()) || !file.getUrl().startsWith(FILE_URL_SCHEME)) {
+      return getBucket(file).resolve(file.getResourceObject());
+    }
+    return Paths.get(URI.create(file.getUrl()));
+  }
+
+  /** Writes the content of a file to a stream. */
+  @FunctionalInterface
+  private interface OutputWriter {
+    void write(OutputStream output) throws IOException;
+  }
+}
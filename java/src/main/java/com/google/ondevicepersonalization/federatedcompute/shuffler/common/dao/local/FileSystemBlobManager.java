@@ -0,0 +1,275 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.local;
+
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants.GRADIENT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_CHECKPOINT_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.CLIENT_PLAN_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.METRICS_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.SERVER_PLAN_FILE;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createClientPerIterationPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createDeviceUploadGradientObjectName;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createDeviceUploadGradientObjectNameFromIterationResultFolder;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createGradientUploadedDir;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerIterationPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerIterationPathWithAggregationLevel;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.createPerTaskPath;
+import static com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobLayout.validateFolderPath;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils.CompressionFormat;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentId;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobManager;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationId;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.Partitioner;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.TaskEntity;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import org.springframework.stereotype.Component;
+
+/**
+ * Blob Manager of the files stored by {@link FileSystemBlobDao}, with the layout of the buckets of
+ * Google Cloud Storage.
+ *
+ * <p>Every file is described by its file:// URL, including the files uploaded and downloaded by
+ * devices, which are expected to run on the same machine. The URLs never expire.
+ */
+@Component
+public class FileSystemBlobManager implements BlobManager {
+  private static final Map<String, String> EMPTY_HEADER = Collections.emptyMap();
+
+  private final Path root;
+  private final Partitioner partitioner;
+  private final String clientGradientBucketTemplate;
+  private final String aggregatedGradientBucketTemplate;
+  private final String modelBucketTemplate;
+
+  public FileSystemBlobManager(
+      Partitioner partitioner,
+      String localBlobRootDirectory,
+      String clientGradientBucketTemplate,
+      String aggregatedGradientBucketTemplate,
+      String modelBucketTemplate) {
+    this.root = Paths.get(localBlobRootDirectory).toAbsolutePath();
+    this.partitioner = partitioner;
+    this.clientGradientBucketTemplate = clientGradientBucketTemplate;
+    this.aggregatedGradientBucketTemplate = aggregatedGradientBucketTemplate;
+    this.modelBucketTemplate = modelBucketTemplate;
+  }
+
+  public BlobDescription generateUploadGradientDescription(
+      AssignmentEntity assignment, CompressionFormat format) {
+    String bucketName =
+        String.format(
+            clientGradientBucketTemplate,
+            partitioner.getDeviceGradientPartition(assignment.getSessionId()));
+    String objectName =
+        createDeviceUploadGradientObjectName(
+            assignment.getPopulationName(),
+            assignment.getTaskId(),
+            assignment.getResultId(),
+            assignment.getSessionId(),
+            GRADIENT_FILE);
+    return describe(bucketName, objectName);
+  }
+
+  public BlobDescription[] generateDownloadGradientDescriptions(IterationEntity iteration) {
+    return describePartitions(
+        clientGradientBucketTemplate,
+        partitioner.getDeviceGradientPartitionCount(),
+        createGradientUploadedDir(
+            iteration.getPopulationName(), iteration.getTaskId(), iteration.getResultId()));
+  }
+
+  public BlobDescription generateUploadAggregatedGradientDescription(IterationEntity iteration) {
+    return generateAggregatedGradientDescription(iteration);
+  }
+
+  public BlobDescription generateDownloadAggregatedGradientDescription(IterationEntity iteration) {
+    return generateAggregatedGradientDescription(
+        iteration.toBuilder().aggregationLevel(iteration.getAggregationLevel() - 1).build());
+  }
+
+  private BlobDescription generateAggregatedGradientDescription(IterationEntity iteration) {
+    String bucketName =
+        String.format(
+            aggregatedGradientBucketTemplate,
+            partitioner.getAggregatedResultPartition(
+                iteration.getPopulationName(), iteration.getTaskId(), iteration.getResultId()));
+    String objectName =
+        createPerIterationPathWithAggregationLevel(
+            iteration.getPopulationName(),
+            iteration.getTaskId(),
+            iteration.getResultId(),
+            iteration.getAggregationLevel());
+    return describe(bucketName, objectName);
+  }
+
+  public BlobDescription[] generateUploadCheckpointDescriptions(IterationEntity iteration) {
+    return describePartitions(
+        modelBucketTemplate,
+        partitioner.getCheckpointStoragePartitionCount(),
+        createPerIterationPath(
+            iteration.getPopulationName(),
+            iteration.getTaskId(),
+            iteration.getResultId(),
+            CHECKPOINT_FILE));
+  }
+
+  public BlobDescription[] generateUploadMetricsDescriptions(IterationEntity iteration) {
+    return describePartitions(
+        modelBucketTemplate,
+        partitioner.getCheckpointStoragePartitionCount(),
+        createPerIterationPath(
+            iteration.getPopulationName(),
+            iteration.getTaskId(),
+            iteration.getResultId(),
+            METRICS_FILE));
+  }
+
+  public BlobDescription[] generateUploadClientCheckpointDescriptions(IterationEntity iteration) {
+    return describePartitions(
+        modelBucketTemplate,
+        partitioner.getCheckpointStoragePartitionCount(),
+        createClientPerIterationPath(
+            iteration.getPopulationName(),
+            iteration.getTaskId(),
+            iteration.getResultId(),
+            CLIENT_CHECKPOINT_FILE));
+  }
+
+  public BlobDescription generateDownloadCheckpointDescription(AssignmentEntity assignment) {
+    return generateDownloadClientCheckpointDescription(
+        assignment.getPopulationName(), assignment.getTaskId(), assignment.getBaseOnResultId());
+  }
+
+  public BlobDescription generateDownloadCheckpointDescription(
+      AssignmentId assignmentId, IterationId iterationId) {
+    return generateDownloadClientCheckpointDescription(
+        iterationId.getPopulationName(), iterationId.getTaskId(), iterationId.getIterationId());
+  }
+
+  private BlobDescription generateDownloadClientCheckpointDescription(
+      String populationName, long taskId, long iterationId) {
+    String bucketName =
+        String.format(
+            modelBucketTemplate,
+            partitioner.getCheckpointStoagePartition(populationName, taskId, iterationId));
+    return describe(
+        bucketName,
+        createClientPerIterationPath(populationName, taskId, iterationId, CLIENT_CHECKPOINT_FILE));
+  }
+
+  public BlobDescription generateDownloadCheckpointDescription(IterationEntity iteration) {
+    IterationId iterationId = iteration.getTrainingCheckpointIterationId();
+    String bucketName =
+        String.format(
+            modelBucketTemplate,
+            partitioner.getCheckpointStoagePartition(
+                iterationId.getPopulationName(),
+                iterationId.getTaskId(),
+                iterationId.getIterationId()));
+    return describe(
+        bucketName,
+        createPerIterationPath(
+            iterationId.getPopulationName(),
+            iterationId.getTaskId(),
+            iterationId.getIterationId(),
+            CHECKPOINT_FILE));
+  }
+
+  public BlobDescription generateDownloadDevicePlanDescription(AssignmentEntity assignment) {
+    String bucketName =
+        String.format(
+            modelBucketTemplate,
+            partitioner.getPlanStoagePartition(
+                assignment.getPopulationName(),
+                assignment.getTaskId(),
+                assignment.getBaseOnResultId()));
+    String objectName =
+        createPerTaskPath(assignment.getPopulationName(), assignment.getTaskId(), CLIENT_PLAN_FILE);
+    return describe(bucketName, objectName);
+  }
+
+  public BlobDescription[] generateUploadDevicePlanDescriptions(TaskEntity task) {
+    return describePartitions(
+        modelBucketTemplate,
+        partitioner.getPlanStoragePartitionCount(),
+        createPerTaskPath(task.getPopulationName(), task.getTaskId(), CLIENT_PLAN_FILE));
+  }
+
+  public BlobDescription generateDownloadServerPlanDescription(IterationEntity iteration) {
+    String bucketName =
+        String.format(
+            modelBucketTemplate,
+            partitioner.getPlanStoagePartition(
+                iteration.getPopulationName(),
+                iteration.getTaskId(),
+                iteration.getBaseOnResultId()));
+    return describe(
+        bucketName,
+        createPerTaskPath(iteration.getPopulationName(), iteration.getTaskId(), SERVER_PLAN_FILE));
+  }
+
+  public BlobDescription[] generateUploadServerPlanDescription(TaskEntity task) {
+    return describePartitions(
+        modelBucketTemplate,
+        partitioner.getPlanStoragePartitionCount(),
+        createPerTaskPath(task.getPopulationName(), task.getTaskId(), SERVER_PLAN_FILE));
+  }
+
+  public BlobDescription getDeviceUploadedGradientFullPath(
+      BlobDescription iterationFolder, String assignmentFolder) {
+    validateFolderPath(iterationFolder.getResourceObject());
+    validateFolderPath(assignmentFolder);
+
+    // remove the '/' at end.
+    String sessionId = assignmentFolder.substring(0, assignmentFolder.length() - 1);
+    String fullPath =
+        createDeviceUploadGradientObjectNameFromIterationResultFolder(
+            iterationFolder.getResourceObject(), sessionId, GRADIENT_FILE);
+    return describe(iterationFolder.getHost(), fullPath);
+  }
+
+  private BlobDescription[] describePartitions(
+      String bucketTemplate, int partitionCount, String objectName) {
+    BlobDescription[] descriptions = new BlobDescription[partitionCount];
+    for (int i = 0; i < partitionCount; ++i) {
+      descriptions[i] = describe(String.format(bucketTemplate, i), objectName);
+    }
+    return descriptions;
+  }
+
+  private BlobDescription describe(String bucketName, String objectName) {
+    String url = root.resolve(bucketName).resolve(objectName).toUri().toString();
+    // The URL of a folder only ends with '/' once the directory exists.
+    if (objectName.endsWith("/") && !url.endsWith("/")) {
+      url += "/";
+    }
+    return BlobDescription.builder()
+        .host(bucketName)
+        .resourceObject(objectName)
+        .url(url)
+        .headers(EMPTY_HEADER)
+        .build();
+  }
+}
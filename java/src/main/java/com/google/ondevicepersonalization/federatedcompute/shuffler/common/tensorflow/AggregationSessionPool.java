@@ -0,0 +1,296 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.fcp.aggregation.AggregationSession;
+import com.google.fcp.plan.PhaseSession;
+import com.google.fcp.tensorflow.AppFiles;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache.ServerPlan;
+import com.google.protobuf.UnsafeByteOperations;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps fresh aggregation sessions ready for the plans in use by a worker.
+ *
+ * <p>The aggregation and phase sessions cannot be reset once they produced a result, so instead of
+ * reusing sessions the pool constructs them ahead of time on a background thread: a session is
+ * taken from the pool when aggregating a partition and the pool is refilled while the partition is
+ * aggregated. The pool of a plan is filled the first time the plan is used and dropped once the
+ * plan was not used for the idle timeout. The native memory held by idle sessions is estimated
+ * from the size of the plan and of the results it produced, and bounded by a budget. The pools are
+ * keyed by the blob and generation of the plan, so the plan content is never hashed per partition.
+ *
+ * <p>The pools are not warmed at startup: the workers learn the plans from the messages they
+ * receive and do not read the open iterations, so the first message of a plan fills its pool. A
+ * group of co-scheduled messages reserves its sessions in a single fill before aggregating.
+ *
+ * <p>With a pool size of 0, sessions are constructed on demand.
+ */
+public final class AggregationSessionPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(AggregationSessionPool.class);
+
+  private final TensorflowPlanSessionFactory factory;
+  private final AppFiles appFiles;
+  private final InstantSource instantSource;
+  private final int sessionsPerPlan;
+  private final long memoryBudgetBytes;
+  // The duration after which the idle sessions of a plan not used anymore are closed.
+  private final Duration idleTimeout;
+  private final Map<String, PlanPool> pools = new ConcurrentHashMap<>();
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final ScheduledExecutorService executor;
+
+  public AggregationSessionPool(
+      TensorflowPlanSessionFactory factory,
+      AppFiles appFiles,
+      InstantSource instantSource,
+      int sessionsPerPlan,
+      long memoryBudgetBytes,
+      Duration idleTimeout) {
+    this.factory = factory;
+    this.appFiles = appFiles;
+    this.instantSource = instantSource;
+    this.sessionsPerPlan = sessionsPerPlan;
+    this.memoryBudgetBytes = memoryBudgetBytes;
+    this.idleTimeout = idleTimeout;
+    if (sessionsPerPlan > 0) {
+      this.executor =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder().setNameFormat("session-pool-%d").setDaemon(true).build());
+      long period = Math.max(1, idleTimeout.toSeconds() / 2);
+      executor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    } else {
+      this.executor = null;
+    }
+  }
+
+  /** Returns a fresh aggregation session of the V2 plan. The caller must close it. */
+  public AggregationSession takeAggregationSession(ServerPlan plan) {
+    if (sessionsPerPlan <= 0) {
+      return factory.createAggregationSession(plan.getBytes());
+    }
+    PlanPool pool = getPool(plan);
+    Object session = pool.poll();
+    refill(pool);
+    return session != null
+        ? (AggregationSession) session
+        : factory.createAggregationSession(plan.getBytes());
+  }
+
+  /** Returns a fresh phase session without checkpoint of the V1 plan. The caller must close it. */
+  public PhaseSession takePhaseSession(ServerPlan plan) {
+    if (sessionsPerPlan <= 0) {
+      return createPhaseSession(plan.getBytes());
+    }
+    PlanPool pool = getPool(plan);
+    Object session = pool.poll();
+    refill(pool);
+    return session != null ? (PhaseSession) session : createPhaseSession(plan.getBytes());
+  }
+
+  /**
+   * Records the size of a result produced by a session of the plan, which approximates the state
+   * held by its sessions, and returns the result.
+   */
+  public byte[] recordResult(ServerPlan plan, byte[] result) {
+    if (sessionsPerPlan <= 0) {
+      return result;
+    }
+    PlanPool pool = pools.get(plan.getKey());
+    if (pool != null) {
+      pool.resultBytes = Math.max(pool.resultBytes, result.length);
+    }
+    return result;
+  }
+
+  /** Returns the estimated native memory held by the idle sessions of the pool. */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /** Returns the number of idle sessions of the plan. */
+  int getIdleSessionCount(ServerPlan plan) {
+    PlanPool pool = pools.get(plan.getKey());
+    return pool == null ? 0 : pool.size();
+  }
+
+  /** Closes the idle sessions of the plans not used for the idle timeout. */
+  void evictIdle() {
+    Instant threshold = instantSource.instant().minus(idleTimeout);
+    pools.values().removeIf(
+        (pool) -> {
+          if (pool.lastUsed.isAfter(threshold)) {
+            return false;
+          }
+          pool.closeAll();
+          return true;
+        });
+  }
+
+  /** Fills the pool of the plan up to its size on the calling thread. */
+  void fill(ServerPlan plan) {
+    fillNow(getPool(plan), sessionsPerPlan);
+  }
+
+  /**
+   * Fills the pool of the plan with up to the given number of sessions on the calling thread,
+   * within the memory budget, so that a group of batches of the plan takes its sessions from a
+   * single fill. Does nothing when sessions are constructed on demand.
+   */
+  public void reserve(ServerPlan plan, int sessions) {
+    if (sessionsPerPlan <= 0) {
+      return;
+    }
+    fillNow(getPool(plan), Math.max(sessionsPerPlan, sessions));
+  }
+
+  private PlanPool getPool(ServerPlan plan) {
+    PlanPool pool = pools.computeIfAbsent(plan.getKey(), (key) -> new PlanPool(plan));
+    pool.lastUsed = instantSource.instant();
+    return pool;
+  }
+
+  private void refill(PlanPool pool) {
+    executor.execute(() -> fillNow(pool, sessionsPerPlan));
+  }
+
+  private void fillNow(PlanPool pool, int size) {
+    // A slot is reserved before each construction, so that concurrent fills of the same pool, by
+    // a group reserving its sessions and by the background refill, never exceed the size.
+    while (pools.get(pool.key) == pool && pool.reserveSlot(size)) {
+      long estimate = pool.estimateSessionBytes();
+      if (pooledBytes.addAndGet(estimate) > memoryBudgetBytes) {
+        pooledBytes.addAndGet(-estimate);
+        pool.releaseSlot();
+        return;
+      }
+      Object session;
+      try {
+        session =
+            pool.serverPhaseV2
+                ? factory.createAggregationSession(pool.plan)
+                : createPhaseSession(pool.plan);
+      } catch (RuntimeException e) {
+        pooledBytes.addAndGet(-estimate);
+        pool.releaseSlot();
+        logger.warn("Failed to construct a pooled aggregation session.", e);
+        return;
+      }
+      if (!pool.offer(session, estimate)) {
+        pooledBytes.addAndGet(-estimate);
+        close(session);
+        return;
+      }
+    }
+  }
+
+  private PhaseSession createPhaseSession(byte[] plan) {
+    return factory
+        .createPlanSession(UnsafeByteOperations.unsafeWrap(plan))
+        .createPhaseSession(Optional.empty(), Optional.of(appFiles));
+  }
+
+  private static void close(Object session) {
+    try {
+      ((AutoCloseable) session).close();
+    } catch (Exception e) {
+      logger.warn("Failed to close a pooled aggregation session.", e);
+    }
+  }
+
+  /** The idle sessions of a plan. */
+  private final class PlanPool {
+    private final String key;
+    private final byte[] plan;
+    private final boolean serverPhaseV2;
+    private final Deque<Object> sessions = new ArrayDeque<>();
+    private final Deque<Long> sessionBytes = new ArrayDeque<>();
+    private volatile Instant lastUsed;
+    private volatile long resultBytes;
+    // The sessions being constructed for the pool.
+    private int pending;
+    private boolean closed;
+
+    PlanPool(ServerPlan plan) {
+      this.key = plan.getKey();
+      this.plan = plan.getBytes();
+      this.serverPhaseV2 = plan.isServerPhaseV2();
+    }
+
+    long estimateSessionBytes() {
+      return plan.length + resultBytes;
+    }
+
+    synchronized int size() {
+      return sessions.size();
+    }
+
+    synchronized Object poll() {
+      Object session = sessions.pollFirst();
+      if (session != null) {
+        pooledBytes.addAndGet(-sessionBytes.pollFirst());
+      }
+      return session;
+    }
+
+    /** Reserves a slot for a session to construct, if the pool is below the size. */
+    synchronized boolean reserveSlot(int size) {
+      if (closed || sessions.size() + pending >= size) {
+        return false;
+      }
+      pending++;
+      return true;
+    }
+
+    synchronized void releaseSlot() {
+      pending--;
+    }
+
+    synchronized boolean offer(Object session, long bytes) {
+      pending--;
+      if (closed) {
+        return false;
+      }
+      sessions.addLast(session);
+      sessionBytes.addLast(bytes);
+      return true;
+    }
+
+    synchronized void closeAll() {
+      closed = true;
+      while (!sessions.isEmpty()) {
+        close(sessions.pollFirst());
+        pooledBytes.addAndGet(-sessionBytes.pollFirst());
+      }
+    }
+  }
+}
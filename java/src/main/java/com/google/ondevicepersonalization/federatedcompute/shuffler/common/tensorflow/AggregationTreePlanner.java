@@ -0,0 +1,266 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.MDC;
+
+/**
+ * Plans the shape of the in-memory aggregation tree of a job.
+ *
+ * <p>The inputs are split into partitions of {@code fanIn} inputs which are aggregated in parallel,
+ * layer after layer, until at most {@code fanIn} inputs are left for the final aggregation. When
+ * enabled, the fan-in minimizes the estimated duration of the tree, given the number of inputs,
+ * the number of partitions which can be aggregated concurrently and the cost of a session. The
+ * session cost is modeled as a fixed overhead plus a cost per input, fitted on the durations of the
+ * sessions run so far. The concurrency is bounded by the processors and by the number of partial
+ * results fitting the heap budget. When disabled, the fan-in is the square root of the number of
+ * inputs, resulting in two layers.
+ *
+ * <p>The partitions of a layer are aggregated on a pool of the planner with one thread per
+ * processor, and at most the planned concurrency of partitions of a job run at once so that their
+ * partial results fit the heap budget. The partitions run with the logging context of the caller.
+ */
+public final class AggregationTreePlanner {
+
+  /** The session overhead assumed until sessions were measured. */
+  static final Duration DEFAULT_SESSION_OVERHEAD = Duration.ofMillis(100);
+
+  /** The cost of accumulating an input assumed until sessions were measured. */
+  static final Duration DEFAULT_INPUT_COST = Duration.ofMillis(10);
+
+  /** The weight kept by previous measurements when a new session is measured. */
+  private static final double DECAY = 0.95;
+
+  /** Aggregates the inputs of a partition into a single intermediate result. */
+  @FunctionalInterface
+  public interface PartitionAggregator {
+    byte[] aggregate(List<byte[]> inputs, boolean intermediateInputs);
+  }
+
+  private final boolean enabled;
+  private final int parallelism;
+  private final long heapBudgetBytes;
+  private final ExecutorService executor;
+
+  // Decayed sums of the linear regression of the session duration on its number of inputs.
+  private double weight;
+  private double sumInputs;
+  private double sumNanos;
+  private double sumInputsSquared;
+  private double sumInputsNanos;
+
+  public AggregationTreePlanner(boolean enabled, long heapBudgetBytes) {
+    this(enabled, Runtime.getRuntime().availableProcessors(), heapBudgetBytes);
+  }
+
+  public AggregationTreePlanner(boolean enabled, int parallelism, long heapBudgetBytes) {
+    this.enabled = enabled;
+    this.parallelism = Math.max(1, parallelism);
+    this.heapBudgetBytes = heapBudgetBytes;
+    this.executor =
+        Executors.newFixedThreadPool(
+            this.parallelism,
+            new ThreadFactoryBuilder()
+                .setNameFormat("aggregation-tree-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  /**
+   * Aggregates the inputs with the planned tree.
+   *
+   * @param intermediateInputs whether the inputs are intermediate results rather than client
+   *     updates.
+   */
+  public byte[] aggregate(
+      List<byte[]> inputs, boolean intermediateInputs, PartitionAggregator aggregator) {
+    List<byte[]> reduced = reduce(inputs, intermediateInputs, aggregator);
+    return measure(reduced, intermediateInputs || reduced != inputs, aggregator);
+  }
+
+  /**
+   * Aggregates the inputs layer by layer until at most a fan-in of inputs is left, and returns the
+   * remaining inputs. Returns the inputs themselves when they already fit a single partition.
+   */
+  public List<byte[]> reduce(
+      List<byte[]> inputs, boolean intermediateInputs, PartitionAggregator aggregator) {
+    long bytesPerInput = averageSize(inputs);
+    int fanIn = getFanIn(inputs.size(), bytesPerInput);
+    int concurrency = enabled ? getConcurrency(bytesPerInput) : parallelism;
+    boolean intermediate = intermediateInputs;
+    while (inputs.size() > fanIn) {
+      inputs =
+          aggregateLayer(Lists.partition(inputs, fanIn), intermediate, concurrency, aggregator);
+      intermediate = true;
+    }
+    return inputs;
+  }
+
+  /**
+   * Runs the task on every partition of a layer whose inputs are not in memory, such as gradients
+   * fetched by the task itself, on the executor of the planner. At most the planned concurrency of
+   * partitions for inputs of the given size run at once. Returns the results in the order of the
+   * partitions.
+   */
+  public <T> List<byte[]> runLayer(
+      List<T> partitions, long bytesPerInput, Function<T, byte[]> task) {
+    return runBounded(partitions, enabled ? getConcurrency(bytesPerInput) : parallelism, task);
+  }
+
+  /**
+   * Aggregates the partitions of a layer on the executor, running at most {@code concurrency} of
+   * them at once, and returns their results in the order of the partitions.
+   */
+  private List<byte[]> aggregateLayer(
+      List<List<byte[]>> partitions,
+      boolean intermediateInputs,
+      int concurrency,
+      PartitionAggregator aggregator) {
+    return runBounded(
+        partitions, concurrency, (partition) -> measure(partition, intermediateInputs, aggregator));
+  }
+
+  private <T> List<byte[]> runBounded(
+      List<T> partitions, int concurrency, Function<T, byte[]> task) {
+    Map<String, String> context = MDC.getCopyOfContextMap();
+    Semaphore running = new Semaphore(concurrency);
+    List<CompletableFuture<byte[]>> results = new ArrayList<>(partitions.size());
+    for (T partition : partitions) {
+      running.acquireUninterruptibly();
+      results.add(
+          CompletableFuture.supplyAsync(() -> runWithContext(context, partition, task), executor)
+              .whenComplete((result, e) -> running.release()));
+    }
+    try {
+      CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return results.stream().map(CompletableFuture::join).collect(Collectors.toList());
+  }
+
+  /** Returns the fan-in of the tree aggregating the given number of inputs. */
+  public int getFanIn(int inputCount, long bytesPerInput) {
+    if (!enabled || inputCount <= 2) {
+      return Math.max(1, (int) Math.ceil(Math.sqrt(inputCount)));
+    }
+    double[] cost = getSessionCost();
+    int concurrency = getConcurrency(bytesPerInput);
+    int bestFanIn = inputCount;
+    double bestDuration = Double.MAX_VALUE;
+    for (int fanIn = 2; fanIn <= inputCount; fanIn++) {
+      double duration = estimateNanos(inputCount, fanIn, concurrency, cost[0], cost[1]);
+      if (duration < bestDuration) {
+        bestDuration = duration;
+        bestFanIn = fanIn;
+      }
+    }
+    return bestFanIn;
+  }
+
+  /** Records the duration of a session which aggregated the given number of inputs. */
+  public synchronized void recordSession(int inputCount, Duration duration) {
+    double nanos = duration.toNanos();
+    weight = weight * DECAY + 1;
+    sumInputs = sumInputs * DECAY + inputCount;
+    sumNanos = sumNanos * DECAY + nanos;
+    sumInputsSquared = sumInputsSquared * DECAY + (double) inputCount * inputCount;
+    sumInputsNanos = sumInputsNanos * DECAY + inputCount * nanos;
+  }
+
+  /** Returns the fitted session overhead and cost per input in nanoseconds. */
+  synchronized double[] getSessionCost() {
+    double variance = weight * sumInputsSquared - sumInputs * sumInputs;
+    if (weight > 0 && variance > 1e-9 * weight * sumInputsSquared) {
+      double inputCost = (weight * sumInputsNanos - sumInputs * sumNanos) / variance;
+      double overhead = (sumNanos - inputCost * sumInputs) / weight;
+      if (inputCost > 0 && overhead >= 0) {
+        return new double[] {overhead, inputCost};
+      }
+    }
+    return new double[] {DEFAULT_SESSION_OVERHEAD.toNanos(), DEFAULT_INPUT_COST.toNanos()};
+  }
+
+  private int getConcurrency(long bytesPerInput) {
+    if (bytesPerInput <= 0) {
+      return parallelism;
+    }
+    // Every running session holds at least a partial result about the size of an input.
+    long fitting = heapBudgetBytes / bytesPerInput;
+    return (int) Math.max(1, Math.min(parallelism, fitting));
+  }
+
+  private static double estimateNanos(
+      int inputCount, int fanIn, int concurrency, double overhead, double inputCost) {
+    double duration = 0;
+    int remaining = inputCount;
+    while (remaining > fanIn) {
+      int partitions = (remaining + fanIn - 1) / fanIn;
+      int rounds = (partitions + concurrency - 1) / concurrency;
+      duration += rounds * (overhead + fanIn * inputCost);
+      remaining = partitions;
+    }
+    return duration + overhead + remaining * inputCost;
+  }
+
+  private byte[] measure(
+      List<byte[]> inputs, boolean intermediateInputs, PartitionAggregator aggregator) {
+    long start = System.nanoTime();
+    byte[] result = aggregator.aggregate(inputs, intermediateInputs);
+    recordSession(inputs.size(), Duration.ofNanos(System.nanoTime() - start));
+    return result;
+  }
+
+  private static <T> byte[] runWithContext(
+      Map<String, String> context, T partition, Function<T, byte[]> task) {
+    if (context != null) {
+      MDC.setContextMap(context);
+    }
+    try {
+      return task.apply(partition);
+    } finally {
+      MDC.clear();
+    }
+  }
+
+  private static long averageSize(List<byte[]> inputs) {
+    if (inputs.isEmpty()) {
+      return 0;
+    }
+    long total = 0;
+    for (byte[] input : inputs) {
+      total += input.length;
+    }
+    return total / inputs.size();
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.internal.federated.plan.Plan;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Optional;
+import org.springframework.stereotype.Component;
+
+/**
+ * A size bounded cache of the server plans used by a worker. All the batches of an iteration share
+ * the same plan, so the plan only has to be downloaded and parsed once per worker instead of once
+ * per message. Entries are keyed by the generation of the plan object so that an overwritten plan
+ * is never served from the cache.
+ */
+@Component
+public class ServerPlanCache {
+
+  private final BlobDao blobDao;
+  private final Cache<String, ServerPlan> cache;
+
+  public ServerPlanCache(BlobDao blobDao, int serverPlanCacheMegabytes) {
+    this.blobDao = blobDao;
+    this.cache =
+        CacheBuilder.newBuilder()
+            .maximumWeight(serverPlanCacheMegabytes * 1024L * 1024L)
+            .<String, ServerPlan>weigher((key, plan) -> plan.getBytes().length)
+            .build();
+  }
+
+  /** Returns the plan stored in the blob, or empty if the blob does not exist. */
+  public Optional<ServerPlan> get(BlobDescription planBlob) {
+    Optional<Long> generation = blobDao.getGeneration(planBlob);
+    if (generation.isEmpty()) {
+      // Without a generation the cached plan cannot be validated.
+      return download(planBlob);
+    }
+    String key =
+        String.format(
+            "%s/%s#%d", planBlob.getHost(), planBlob.getResourceObject(), generation.get());
+    ServerPlan plan = cache.getIfPresent(key);
+    if (plan != null) {
+      return Optional.of(plan);
+    }
+    Optional<ServerPlan> downloaded =
+        blobDao
+            .downloadAndDecompressIfNeeded(planBlob)
+            .map((bytes) -> ServerPlan.parse(key, bytes));
+    downloaded.ifPresent((value) -> cache.put(key, value));
+    return downloaded;
+  }
+
+  private Optional<ServerPlan> download(BlobDescription planBlob) {
+    return blobDao
+        .downloadAndDecompressIfNeeded(planBlob)
+        .map(
+            (bytes) ->
+                ServerPlan.parse(Hashing.murmur3_128().hashBytes(bytes).toString(), bytes));
+  }
+
+  /** A server plan along with its serialized form. */
+  public static final class ServerPlan {
+    private final String key;
+    private final byte[] bytes;
+    private final Plan plan;
+
+    ServerPlan(String key, byte[] bytes, Plan plan) {
+      this.key = key;
+      this.bytes = bytes;
+      this.plan = plan;
+    }
+
+    static ServerPlan parse(String key, byte[] bytes) {
+      try {
+        return new ServerPlan(key, bytes, Plan.parseFrom(bytes));
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException("Failed to decode plan");
+      }
+    }
+
+    /**
+     * Returns the key identifying the plan, its blob and generation, or the hash of its content
+     * when the blob has no generation.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public Plan getPlan() {
+      return plan;
+    }
+
+    /** Whether the plan is executed with the aggregation sessions of the server phase v2. */
+    public boolean isServerPhaseV2() {
+      return plan.getPhase(0).hasServerPhaseV2();
+    }
+  }
+}
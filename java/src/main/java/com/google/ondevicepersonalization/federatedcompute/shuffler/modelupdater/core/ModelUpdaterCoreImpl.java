@@ -17,31 +17,43 @@
 package com.google.ondevicepersonalization.federatedcompute.shuffler.modelupdater.core;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.fcp.aggregation.AggregationSession;
 import com.google.fcp.plan.PhaseSession;
 import com.google.fcp.plan.PhaseSessionV2;
 import com.google.fcp.plan.PlanSession;
 import com.google.fcp.tensorflow.AppFiles;
-import com.google.internal.federated.plan.Plan;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.Constants;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.FetchPipeline;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController.Admission;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.Payload;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationSessionPool;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.AggregationTreePlanner;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache.ServerPlan;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.modelupdater.core.message.ModelUpdaterMessage;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.InstantSource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,20 +68,62 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
   private final InstantSource instantSource;
   private final BlobDao blobDao;
   private final TensorflowPlanSessionFactory tensorflowPlanSessionFactory;
+  private final ServerPlanCache serverPlanCache;
   private final DecryptionKeyService decryptionKeyService;
   private final AppFiles appFiles;
+  private final FetchPipeline fetchPipeline;
+  private final AggregationTreePlanner treePlanner;
+  private final AggregationSessionPool sessionPool;
+  private final MemoryAdmissionController memoryAdmissionController;
+  private final boolean streamingEnabled;
+  private final int fetchQueueCapacity;
+  private final ExecutorService uploadExecutor =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setNameFormat("model-updater-upload-%d")
+              .setDaemon(true)
+              .build());
 
   public ModelUpdaterCoreImpl(
       BlobDao blobDao,
       InstantSource instantSource,
       TensorflowPlanSessionFactory tensorflowPlanSessionFactory,
+      ServerPlanCache serverPlanCache,
       DecryptionKeyService decryptionKeyService,
-      AppFiles appFiles) {
+      AppFiles appFiles,
+      int gradientDownloadConcurrency,
+      int gradientDecryptParallelism,
+      int gradientFetchQueueCapacity,
+      Boolean enableAggregationTreePlanner,
+      int aggregationHeapBudgetMegabytes,
+      int aggregationSessionPoolSize,
+      int aggregationSessionPoolMegabytes,
+      int aggregationSessionPoolIdleMinutes,
+      MemoryAdmissionController memoryAdmissionController,
+      Boolean enableModelUpdaterStreaming) {
     this.blobDao = blobDao;
     this.instantSource = instantSource;
     this.tensorflowPlanSessionFactory = tensorflowPlanSessionFactory;
+    this.serverPlanCache = serverPlanCache;
     this.decryptionKeyService = decryptionKeyService;
     this.appFiles = appFiles;
+    this.memoryAdmissionController = memoryAdmissionController;
+    this.streamingEnabled = enableModelUpdaterStreaming;
+    this.fetchQueueCapacity = gradientFetchQueueCapacity;
+    this.fetchPipeline =
+        new FetchPipeline(
+            gradientDownloadConcurrency, gradientDecryptParallelism, gradientFetchQueueCapacity);
+    this.treePlanner =
+        new AggregationTreePlanner(
+            enableAggregationTreePlanner, aggregationHeapBudgetMegabytes * 1024L * 1024L);
+    this.sessionPool =
+        new AggregationSessionPool(
+            tensorflowPlanSessionFactory,
+            appFiles,
+            instantSource,
+            aggregationSessionPoolSize,
+            aggregationSessionPoolMegabytes * 1024L * 1024L,
+            Duration.ofMinutes(aggregationSessionPoolIdleMinutes));
   }
 
   public void process(ModelUpdaterMessage message) {
@@ -100,20 +154,27 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
   }
 
   private void processMessageImpl(ModelUpdaterMessage message) {
-    List<byte[]> gradients =
+    List<BlobDescription> gradientPaths =
         message.getIntermediateGradients().stream()
-            .parallel()
             .map(
                 gradient ->
                     getGradientFullPath(
                         message.getIntermediateGradientBucket(),
                         message.getIntermediateGradientPrefix(),
                         gradient))
-            .map(blobDao::downloadAndDecompressIfNeeded)
-            .map(Optional::get)
-            .map((payload) -> Payload.parseAndDecryptPayload(payload, decryptionKeyService))
             .collect(Collectors.toList());
+    long footprint = memoryAdmissionController.estimateBytes(gradientPaths);
+    if (streamingEnabled && !gradientPaths.isEmpty()) {
+      // At most a fetch queue of intermediate gradients is held at once.
+      footprint =
+          footprint * Math.min(gradientPaths.size(), fetchQueueCapacity) / gradientPaths.size();
+    }
+    try (Admission admission = memoryAdmissionController.admit(footprint)) {
+      updateModel(message, gradientPaths);
+    }
+  }
 
+  private void updateModel(ModelUpdaterMessage message, List<BlobDescription> gradientPaths) {
     BlobDescription checkpointBlob =
         BlobDescription.builder()
             .host(message.getCheckpointBucket())
@@ -126,59 +187,93 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
             .host(message.getServerPlanBucket())
             .resourceObject(message.getServerPlanObject())
             .build();
-    byte[] plan = blobDao.downloadAndDecompressIfNeeded(planBlob).get();
+    ServerPlan plan = serverPlanCache.get(planBlob).get();
 
-    finalize(plan, checkpoint, gradients, message);
+    finalize(plan, checkpoint, gradientPaths, message);
   }
 
-  private void finalize(
-      byte[] planBytes, byte[] checkpoint, List<byte[]> gradients, ModelUpdaterMessage message) {
-    Plan plan;
-    try {
-      plan = Plan.parseFrom(planBytes);
-    } catch (InvalidProtocolBufferException e) {
-      throw new IllegalStateException("Failed to decode plan");
-    }
+  private List<byte[]> fetchGradients(List<BlobDescription> gradientPaths) {
+    return fetchPipeline.fetch(gradientPaths, this::downloadGradient, this::decryptGradient);
+  }
+
+  /**
+   * Merges the intermediate gradients one by one as they are downloaded and decrypted, so that at
+   * most a fetch queue of intermediate gradients is held in memory regardless of their number.
+   */
+  private void mergeGradients(List<BlobDescription> gradientPaths, Consumer<byte[]> merger) {
+    fetchPipeline.stream(gradientPaths, this::downloadGradient, this::decryptGradient, merger);
+  }
+
+  private byte[] downloadGradient(BlobDescription gradient) {
+    return blobDao.downloadAndDecompressIfNeeded(gradient).get();
+  }
 
-    if (plan.getPhase(0).hasServerPhaseV2()) {
-      finalizeV2(planBytes, checkpoint, gradients, message);
+  private byte[] decryptGradient(byte[] payload) {
+    return Payload.parseAndDecryptPayload(payload, decryptionKeyService);
+  }
+
+  private void finalize(
+      ServerPlan plan,
+      byte[] checkpoint,
+      List<BlobDescription> gradientPaths,
+      ModelUpdaterMessage message) {
+    if (plan.isServerPhaseV2()) {
+      finalizeV2(plan, checkpoint, gradientPaths, message);
     } else {
-      finalizeV1(planBytes, checkpoint, gradients, message);
+      finalizeV1(plan, checkpoint, gradientPaths, message);
     }
   }
 
   private void finalizeV1(
-      byte[] plan, byte[] checkpoint, List<byte[]> gradients, ModelUpdaterMessage message) {
+      ServerPlan plan,
+      byte[] checkpoint,
+      List<BlobDescription> gradientPaths,
+      ModelUpdaterMessage message) {
     PhaseSession phaseSession = null;
     try {
-      phaseSession = createPhaseSession(ByteString.copyFrom(checkpoint), ByteString.copyFrom(plan));
-
-      applyGradientsV1(gradients, phaseSession, plan);
-
-      if (!Strings.isNullOrEmpty(message.getNewCheckpointOutputBucket())) {
-        uploadCheckpointV1(
-            phaseSession,
-            BlobDescription.builder()
-                .host(message.getNewCheckpointOutputBucket())
-                .resourceObject(message.getNewCheckpointOutputObject())
-                .build());
-      }
-
-      uploadMetrics(
-          phaseSession.getMetrics(),
-          BlobDescription.builder()
-              .host(message.getMetricsOutputBucket())
-              .resourceObject(message.getMetricsOutputObject())
-              .build());
-
-      if (!Strings.isNullOrEmpty(message.getNewClientCheckpointOutputBucket())) {
-        uploadClientCheckpointV1(
-            phaseSession,
-            BlobDescription.builder()
-                .host(message.getNewClientCheckpointOutputBucket())
-                .resourceObject(message.getNewClientCheckpointOutputObject())
-                .build());
-      }
+      // The plan and checkpoint are never modified, so they are wrapped rather than copied.
+      phaseSession =
+          createPhaseSession(
+              UnsafeByteOperations.unsafeWrap(checkpoint),
+              UnsafeByteOperations.unsafeWrap(plan.getBytes()));
+
+      applyGradientsV1(gradientPaths, phaseSession, plan);
+
+      // The session is not thread safe, so the outputs are read from it here and only their
+      // uploads run concurrently, each one while the next output is read.
+      PhaseSession session = phaseSession;
+      publishOutputs(
+          (uploads) -> {
+            if (!Strings.isNullOrEmpty(message.getNewCheckpointOutputBucket())) {
+              uploads.add(
+                  uploadCheckpoint(
+                      BlobDescription.builder()
+                          .host(message.getNewCheckpointOutputBucket())
+                          .resourceObject(message.getNewCheckpointOutputObject())
+                          .build(),
+                      session.toCheckpoint().toByteArray()));
+            }
+
+            uploads.add(
+                uploadMetrics(
+                    session.getMetrics(),
+                    BlobDescription.builder()
+                        .host(message.getMetricsOutputBucket())
+                        .resourceObject(message.getMetricsOutputObject())
+                        .build()));
+
+            if (!Strings.isNullOrEmpty(message.getNewClientCheckpointOutputBucket())) {
+              uploads.add(
+                  uploadAsync(
+                      "client checkpoint",
+                      BlobDescription.builder()
+                          .host(message.getNewClientCheckpointOutputBucket())
+                          .resourceObject(message.getNewClientCheckpointOutputObject())
+                          .build(),
+                      session.getClientCheckpoint(Optional.empty()).toByteArray(),
+                      false));
+            }
+          });
     } finally {
       if (phaseSession != null) {
         phaseSession.close();
@@ -187,55 +282,61 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
   }
 
   private void finalizeV2(
-      byte[] plan, byte[] checkpoint, List<byte[]> gradients, ModelUpdaterMessage message) {
-    byte[] aggregateResult = applyGradientsV2(gradients, plan);
+      ServerPlan plan,
+      byte[] checkpoint,
+      List<BlobDescription> gradientPaths,
+      ModelUpdaterMessage message) {
+    byte[] aggregateResult = applyGradientsV2(gradientPaths, plan);
     PhaseSessionV2 phaseSessionV2 =
-        tensorflowPlanSessionFactory.createPhaseSessionV2(ByteString.copyFrom(plan));
+        tensorflowPlanSessionFactory.createPhaseSessionV2(
+            UnsafeByteOperations.unsafeWrap(plan.getBytes()));
 
     PhaseSessionV2.IntermediateResult intermediateResult =
-        phaseSessionV2.getClientCheckpoint(ByteString.copyFrom(checkpoint));
+        phaseSessionV2.getClientCheckpoint(UnsafeByteOperations.unsafeWrap(checkpoint));
 
     PhaseSessionV2.Result result =
         phaseSessionV2.getResult(
-            ByteString.copyFrom(aggregateResult), intermediateResult.interemdiateState());
-
-    if (!Strings.isNullOrEmpty(message.getNewCheckpointOutputBucket())) {
-      BlobDescription checkpointBlob =
-          BlobDescription.builder()
-              .host(message.getNewCheckpointOutputBucket())
-              .resourceObject(message.getNewCheckpointOutputObject())
-              .build();
-      try {
-        blobDao.compressAndUpload(checkpointBlob, result.updatedServerState().toByteArray());
-      } catch (IOException e) {
-        throw new RuntimeException("Failed to upload checkpoint.", e);
-      }
-    }
-
-    uploadMetrics(
-        result.metrics(),
-        BlobDescription.builder()
-            .host(message.getMetricsOutputBucket())
-            .resourceObject(message.getMetricsOutputObject())
-            .build());
-
-    if (!Strings.isNullOrEmpty(message.getNewClientCheckpointOutputBucket())) {
-      ByteString newClientCheckpoint =
-          tensorflowPlanSessionFactory
-              .createPhaseSessionV2(ByteString.copyFrom(plan))
-              .getClientCheckpoint(result.updatedServerState())
-              .clientCheckpoint();
-      BlobDescription newClientCheckpointBlob =
-          BlobDescription.builder()
-              .host(message.getNewClientCheckpointOutputBucket())
-              .resourceObject(message.getNewClientCheckpointOutputObject())
-              .build();
-      try {
-        blobDao.compressAndUpload(newClientCheckpointBlob, newClientCheckpoint.toByteArray());
-      } catch (IOException e) {
-        throw new RuntimeException("Failed to upload client checkpoint.", e);
-      }
-    }
+            UnsafeByteOperations.unsafeWrap(aggregateResult),
+            intermediateResult.interemdiateState());
+
+    // The client checkpoint is derived while the checkpoint and the metrics are uploaded.
+    publishOutputs(
+        (uploads) -> {
+          if (!Strings.isNullOrEmpty(message.getNewCheckpointOutputBucket())) {
+            uploads.add(
+                uploadCheckpoint(
+                    BlobDescription.builder()
+                        .host(message.getNewCheckpointOutputBucket())
+                        .resourceObject(message.getNewCheckpointOutputObject())
+                        .build(),
+                    result.updatedServerState().toByteArray()));
+          }
+
+          uploads.add(
+              uploadMetrics(
+                  result.metrics(),
+                  BlobDescription.builder()
+                      .host(message.getMetricsOutputBucket())
+                      .resourceObject(message.getMetricsOutputObject())
+                      .build()));
+
+          if (!Strings.isNullOrEmpty(message.getNewClientCheckpointOutputBucket())) {
+            ByteString newClientCheckpoint =
+                tensorflowPlanSessionFactory
+                    .createPhaseSessionV2(UnsafeByteOperations.unsafeWrap(plan.getBytes()))
+                    .getClientCheckpoint(result.updatedServerState())
+                    .clientCheckpoint();
+            uploads.add(
+                uploadAsync(
+                    "client checkpoint",
+                    BlobDescription.builder()
+                        .host(message.getNewClientCheckpointOutputBucket())
+                        .resourceObject(message.getNewClientCheckpointOutputObject())
+                        .build(),
+                    newClientCheckpoint.toByteArray(),
+                    false));
+          }
+        });
   }
 
   private PhaseSession createPhaseSession(ByteString checkpoint, ByteString plan) {
@@ -246,71 +347,68 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
     return phaseSession;
   }
 
-  private void applyGradientsV1(List<byte[]> gradients, PhaseSession phaseSession, byte[] plan) {
-    // Take the sqrt to enforce two layers of in-memory tree aggregation.
-    int partitionSize = (int) Math.ceil(Math.sqrt(gradients.size()));
-
-    // Layer 1
-    List<List<byte[]>> partitionedGradients = Lists.partition(gradients, partitionSize);
-    if (partitionedGradients.size() > 1) {
-      gradients =
-          partitionedGradients.parallelStream()
-              .map(g -> aggregateV1(g, plan))
-              .collect(Collectors.toList());
+  private void applyGradientsV1(
+      List<BlobDescription> gradientPaths, PhaseSession phaseSession, ServerPlan plan) {
+    if (streamingEnabled) {
+      mergeGradients(
+          gradientPaths,
+          (gradient) ->
+              phaseSession.accumulateIntermediateUpdate(UnsafeByteOperations.unsafeWrap(gradient)));
+    } else {
+      List<byte[]> gradients =
+          treePlanner.reduce(
+              fetchGradients(gradientPaths), true, (g, intermediate) -> aggregateV1(g, plan));
+      gradients.stream()
+          .map(UnsafeByteOperations::unsafeWrap)
+          .forEach(phaseSession::accumulateIntermediateUpdate);
     }
 
     // Apply update
-    gradients.stream()
-        .map(ByteString::copyFrom)
-        .forEach(phaseSession::accumulateIntermediateUpdate);
     phaseSession.applyAggregatedUpdates();
   }
 
-  private byte[] applyGradientsV2(List<byte[]> encryptedGradients, byte[] plan) {
-    // Take the sqrt to enforce two layers of in-memory tree aggregation.
-    int partitionSize = (int) Math.ceil(Math.sqrt(encryptedGradients.size()));
-
-    // Layer 1
-    List<List<byte[]>> partitionedGradients = Lists.partition(encryptedGradients, partitionSize);
-    if (partitionedGradients.size() > 1) {
-      encryptedGradients =
-          partitionedGradients.parallelStream()
-              .map(gradients -> aggregateV2(gradients, plan))
-              .collect(Collectors.toList());
+  private byte[] applyGradientsV2(List<BlobDescription> gradientPaths, ServerPlan plan) {
+    if (streamingEnabled) {
+      try (AggregationSession aggregationSession = sessionPool.takeAggregationSession(plan)) {
+        mergeGradients(
+            gradientPaths, (gradient) -> aggregationSession.mergeWith(new byte[][] {gradient}));
+        return aggregationSession.report();
+      }
     }
-
-    // Layer 2
-    try (AggregationSession aggregationSession =
-        tensorflowPlanSessionFactory.createAggregationSession(plan)) {
+    List<byte[]> encryptedGradients =
+        treePlanner.reduce(
+            fetchGradients(gradientPaths),
+            true,
+            (gradients, intermediate) -> aggregateV2(gradients, plan));
+
+    // Final layer
+    try (AggregationSession aggregationSession = sessionPool.takeAggregationSession(plan)) {
       aggregationSession.mergeWith(encryptedGradients.toArray(byte[][]::new));
       return aggregationSession.report();
     }
   }
 
-  private byte[] aggregateV2(List<byte[]> encryptedGradients, byte[] plan) {
-    try (AggregationSession aggregationSession =
-        tensorflowPlanSessionFactory.createAggregationSession(plan)) {
+  private byte[] aggregateV2(List<byte[]> encryptedGradients, ServerPlan plan) {
+    try (AggregationSession aggregationSession = sessionPool.takeAggregationSession(plan)) {
       aggregationSession.mergeWith(encryptedGradients.toArray(byte[][]::new));
-      return aggregationSession.serialize();
+      return sessionPool.recordResult(plan, aggregationSession.serialize());
     }
   }
 
-  private byte[] aggregateV1(List<byte[]> encryptedGradients, byte[] plan) {
+  private byte[] aggregateV1(List<byte[]> encryptedGradients, ServerPlan plan) {
     PhaseSession phaseSession = null;
     try {
-      // Create tensorflow session
-      PlanSession planSession =
-          tensorflowPlanSessionFactory.createPlanSession(ByteString.copyFrom(plan));
-      phaseSession = planSession.createPhaseSession(Optional.empty(), Optional.of(appFiles));
+      // Take a fresh tensorflow session
+      phaseSession = sessionPool.takePhaseSession(plan);
 
       // Perform aggregation with gradient
       encryptedGradients.stream()
-          .map(ByteString::copyFrom)
+          .map(UnsafeByteOperations::unsafeWrap)
           .forEach(phaseSession::accumulateIntermediateUpdate);
 
       // Finalize aggregation
       ByteString result = phaseSession.toIntermediateUpdate();
-      return result.toByteArray();
+      return sessionPool.recordResult(plan, result.toByteArray());
     } finally {
       if (phaseSession != null) {
         phaseSession.close();
@@ -318,39 +416,86 @@ public class ModelUpdaterCoreImpl implements ModelUpdaterCore {
     }
   }
 
-  /** Update checkpoint */
-  private void uploadCheckpointV1(PhaseSession phaseSession, BlobDescription blobDescription) {
-    byte[] serverModel = phaseSession.toCheckpoint().toByteArray();
+  /**
+   * Runs the producer, which starts the uploads of the outputs, and waits for all the uploads. The
+   * first failure, of the producer or of an upload, is rethrown once no upload is left running, so
+   * that the message only succeeds once all its outputs are published.
+   */
+  private void publishOutputs(Consumer<List<CompletableFuture<Void>>> producer) {
+    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+    RuntimeException failure = null;
     try {
-      blobDao.compressAndUpload(blobDescription, serverModel);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to upload checkpoint.", e);
+      producer.accept(uploads);
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+    for (CompletableFuture<Void> upload : uploads) {
+      try {
+        upload.join();
+      } catch (CompletionException e) {
+        RuntimeException cause =
+            e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        if (failure == null) {
+          failure = cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
     }
   }
 
   /** Update checkpoint */
-  private void uploadClientCheckpointV1(
-      PhaseSession phaseSession, BlobDescription blobDescription) {
-    byte[] clientModel = phaseSession.getClientCheckpoint(Optional.empty()).toByteArray();
-    try {
-      blobDao.compressAndUpload(blobDescription, clientModel);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to upload client checkpoint.", e);
-    }
+  private CompletableFuture<Void> uploadCheckpoint(
+      BlobDescription blobDescription, byte[] serverModel) {
+    // The server checkpoint is only read back by the server, so it uses the server blob codec.
+    return uploadAsync("checkpoint", blobDescription, serverModel, true);
   }
 
   /** Upload metrics of updated checkpoint */
-  private void uploadMetrics(Map<String, Double> metricsMap, BlobDescription blobDescription) {
+  private CompletableFuture<Void> uploadMetrics(
+      Map<String, Double> metricsMap, BlobDescription blobDescription) {
     byte[] metrics =
         metricsMap.keySet().stream()
             .map(key -> "\"" + key + "\":" + metricsMap.get(key))
             .collect(Collectors.joining(", ", "{", "}"))
             .getBytes(StandardCharsets.UTF_8);
-    try {
-      blobDao.compressAndUpload(blobDescription, metrics);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to upload checkpoint.", e);
-    }
+    return uploadAsync("metrics", blobDescription, metrics, false);
+  }
+
+  /**
+   * Compresses and uploads an output on the upload executor, logging the time it took. Outputs
+   * only read by the server are compressed with the server blob codec, the others with gzip.
+   */
+  private CompletableFuture<Void> uploadAsync(
+      String output, BlobDescription blobDescription, byte[] content, boolean serverOnly) {
+    Map<String, String> context = MDC.getCopyOfContextMap();
+    return CompletableFuture.runAsync(
+        () -> {
+          if (context != null) {
+            MDC.setContextMap(context);
+          }
+          Instant startTime = instantSource.instant();
+          try {
+            if (serverOnly) {
+              blobDao.compressAndUploadInternal(blobDescription, content);
+            } else {
+              blobDao.compressAndUpload(blobDescription, content);
+            }
+          } catch (IOException e) {
+            throw new RuntimeException("Failed to upload " + output + ".", e);
+          } finally {
+            logger.info(
+                "Uploading {} of {} bytes took {} ms.",
+                output,
+                content.length,
+                Duration.between(startTime, instantSource.instant()).toMillis());
+            MDC.clear();
+          }
+        },
+        uploadExecutor);
   }
 
   private BlobDescription getGradientFullPath(String bucket, String prefix, String gradient) {
@@ -16,12 +16,16 @@
 
 package com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -35,21 +39,28 @@ import com.google.fcp.tensorflow.AppFiles;
 import com.google.fcp.tensorflow.TensorflowException;
 import com.google.gson.Gson;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorNotification;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.Payload;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.crypto.PublicKeyEncryptionService;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.messaging.HttpMessageSender;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.modelupdater.core.message.ModelUpdaterMessage;
 import com.google.protobuf.ByteString;
 import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.InstantSource;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -176,12 +187,27 @@ public final class AggregatorCoreImplTest {
             blobDao,
             instanceSource,
             tensorflowPlanSessionFactory,
+            new ServerPlanCache(blobDao, 64),
             decryptionKeyService,
             publicKeyEncryptionService,
             appFiles,
             httpMessageSender,
             true,
-            true);
+            true,
+            false,
+            16,
+            16,
+            2,
+            8,
+            false,
+            1024,
+            0,
+            512,
+            10,
+            100,
+            0,
+            false,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
     gradient =
         ("{\n"
              + "  \"encryptedPayload\":\"EqHpPLNug0sxrO+C/khNBauZxBFaBDAnm9YsriaW5FIUduNy6JRpSuwVTRu41tMjxA8uuRL5nbyqvKgd7qAKC2PpcmjnrQ4WpO/++a0Z\",\n"
@@ -224,7 +250,7 @@ public final class AggregatorCoreImplTest {
     // assert
     verify(blobDao, times(7)).downloadAndDecompressIfNeeded(any());
     verify(publicKeyEncryptionService, times(2)).encryptPayload(any(), any());
-    verify(blobDao, times(2)).compressAndUpload(any(), uploadResultCaptor.capture());
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), uploadResultCaptor.capture());
     List<byte[]> capturedResults = uploadResultCaptor.getAllValues();
     Gson gson = new Gson();
     assertArrayEquals(capturedResults.get(0), gson.toJson(payload).getBytes());
@@ -240,7 +266,15 @@ public final class AggregatorCoreImplTest {
     capturedGradientResults = gradientCaptor.getAllValues();
     assertArrayEquals("HelloWorld".getBytes(), capturedGradientResults.get(0).toByteArray());
     verify(phaseSession, times(4)).toIntermediateUpdate();
-    verify(httpMessageSender, times(1)).sendMessage(any(), eq("localhost"));
+    ArgumentCaptor<AggregatorNotification> notificationCaptor =
+        ArgumentCaptor.forClass(AggregatorNotification.class);
+    verify(httpMessageSender, times(1)).sendMessage(notificationCaptor.capture(), eq("localhost"));
+    AggregatorNotification.Attributes attributes =
+        notificationCaptor.getValue().getMessages().get(0).getAttributes();
+    assertThat(attributes.getStatus()).isEqualTo(AggregatorNotification.Status.OK);
+    assertThat(attributes.getGradientCount()).isEqualTo("3");
+    assertThat(attributes.getGradientBytes()).isEqualTo(String.valueOf(3 * gradient.length));
+    assertThat(attributes.getProcessingMillis()).isEqualTo("0");
   }
 
   @Test
@@ -265,7 +299,7 @@ public final class AggregatorCoreImplTest {
     // assert
     verify(blobDao, times(7)).downloadAndDecompressIfNeeded(any());
     verify(publicKeyEncryptionService, times(2)).encryptPayload(any(), any());
-    verify(blobDao, times(2)).compressAndUpload(any(), uploadResultCaptor.capture());
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), uploadResultCaptor.capture());
     List<byte[]> capturedResults = uploadResultCaptor.getAllValues();
     Gson gson = new Gson();
     assertArrayEquals(capturedResults.get(0), gson.toJson(payload).getBytes());
@@ -278,6 +312,377 @@ public final class AggregatorCoreImplTest {
     verify(aggregationSession, times(4)).serialize();
   }
 
+  @Test
+  public void testProcess_PlanCachedAcrossMessages() throws Exception {
+    // arange
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.getGeneration(PLAN_1)).thenReturn(Optional.of(1L));
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    when(aggregationSession.serialize()).thenReturn(new byte[] {10});
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    when(publicKeyEncryptionService.encryptPayload(any(), any())).thenReturn(payload);
+
+    // act
+    core.process(MESSAGE1);
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(2)).getGeneration(PLAN_1);
+    verify(blobDao, times(1)).downloadAndDecompressIfNeeded(PLAN_1);
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), any());
+  }
+
+  @Test
+  public void testProcess_RetryReusesPartialResults() throws Exception {
+    // arange
+    core =
+        new AggregatorCoreImpl(
+            blobDao,
+            instanceSource,
+            tensorflowPlanSessionFactory,
+            new ServerPlanCache(blobDao, 64),
+            decryptionKeyService,
+            publicKeyEncryptionService,
+            appFiles,
+            httpMessageSender,
+            true,
+            false,
+            false,
+            16,
+            16,
+            2,
+            8,
+            false,
+            1024,
+            0,
+            512,
+            10,
+            100,
+            0,
+            true,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(blobDao.downloadAndDecompressIfNeeded(argThat(AggregatorCoreImplTest::isPartial)))
+        .thenReturn(Optional.empty());
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    when(aggregationSession.serialize()).thenReturn(new byte[] {10});
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    doThrow(new IOException())
+        .when(blobDao)
+        .compressAndUploadInternal(
+            argThat((blob) -> blob.getResourceObject().equals(RESULT_1.getResourceObject())),
+            any());
+
+    // act
+    assertThrows(RuntimeException.class, () -> core.process(MESSAGE1));
+    when(blobDao.downloadAndDecompressIfNeeded(argThat(AggregatorCoreImplTest::isPartial)))
+        .thenReturn(Optional.of(new byte[] {10}));
+    doNothing().when(blobDao).compressAndUploadInternal(any(), any());
+    core.process(MESSAGE1);
+
+    // assert
+    // The first layer of 2 partitions is only aggregated by the first attempt.
+    verify(blobDao, times(2))
+        .compressAndUploadInternal(argThat(AggregatorCoreImplTest::isPartial), any());
+    verify(blobDao, times(3))
+        .downloadAndDecompressIfNeeded(
+            argThat(
+                (blob) -> blob.getResourceObject().startsWith(DIR1_1.getResourceObject())));
+    verify(blobDao, times(1))
+        .delete(
+            BlobDescription.builder()
+                .host(RESULT_1.getHost())
+                .resourceObject(RESULT_1.getResourceObject() + "_partials/")
+                .build());
+  }
+
+  private static boolean isPartial(BlobDescription blob) {
+    return blob != null && blob.getResourceObject().contains("_partials/");
+  }
+
+  @Test
+  public void testProcess_CoScheduledMessagesShareThePlanAndFetch() throws Exception {
+    // arange
+    core = createCoSchedulingCore();
+    stubCoScheduledAggregation();
+    AggregatorMessage otherBatch =
+        MESSAGE1.toBuilder().aggregatedGradientOutputObject("us/35/17/s/0/checkpoint_2").build();
+
+    // act
+    CompletableFuture<Void> first = CompletableFuture.runAsync(() -> core.process(MESSAGE1));
+    CompletableFuture<Void> second = CompletableFuture.runAsync(() -> core.process(otherBatch));
+    CompletableFuture.allOf(first, second).get(30, TimeUnit.SECONDS);
+
+    // assert
+    verify(blobDao, times(1)).downloadAndDecompressIfNeeded(PLAN_1);
+    verify(blobDao, times(6))
+        .downloadAndDecompressIfNeeded(
+            argThat(
+                (blob) ->
+                    blob != null
+                        && blob.getResourceObject().startsWith(DIR1_1.getResourceObject())));
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), any());
+  }
+
+  @Test
+  public void testProcess_CoScheduledGroupFailureProcessesMessagesOnTheirOwn() throws Exception {
+    // arange
+    core = createCoSchedulingCore();
+    stubCoScheduledAggregation();
+    AggregatorMessage missingBatch =
+        MESSAGE1.toBuilder()
+            .gradientBucket("missing")
+            .aggregatedGradientOutputObject("us/35/17/s/0/checkpoint_2")
+            .build();
+    when(blobDao.downloadAndDecompressIfNeeded(
+            argThat((blob) -> blob != null && blob.getHost().equals("missing"))))
+        .thenReturn(Optional.empty());
+
+    // act
+    CompletableFuture<Void> first = CompletableFuture.runAsync(() -> core.process(MESSAGE1));
+    CompletableFuture<Void> second = CompletableFuture.runAsync(() -> core.process(missingBatch));
+    CompletableFuture.allOf(first, second).get(30, TimeUnit.SECONDS);
+
+    // assert
+    verify(blobDao, times(1))
+        .compressAndUploadInternal(
+            argThat((blob) -> blob.getResourceObject().equals(RESULT_1.getResourceObject())),
+            any());
+    verify(blobDao, times(1)).compressAndUploadInternal(any(), any());
+  }
+
+  private static BlobDescription gradientEndingWith(String gradient) {
+    return argThat((file) -> file != null && file.getResourceObject().endsWith(gradient));
+  }
+
+  private AggregatorCoreImpl createCoSchedulingCore() {
+    return new AggregatorCoreImpl(
+        blobDao,
+        instanceSource,
+        tensorflowPlanSessionFactory,
+        new ServerPlanCache(blobDao, 64),
+        decryptionKeyService,
+        publicKeyEncryptionService,
+        appFiles,
+        httpMessageSender,
+        true,
+        true,
+        false,
+        16,
+        16,
+        2,
+        8,
+        false,
+        1024,
+        0,
+        512,
+        10,
+        2,
+        60000,
+        false,
+        new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+  }
+
+  private void stubCoScheduledAggregation() throws Exception {
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    when(aggregationSession.serialize()).thenReturn(new byte[] {10});
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    when(publicKeyEncryptionService.encryptPayload(any(), any())).thenReturn(payload);
+  }
+
+  @Test
+  public void testProcess_SucceededStreaming() throws Exception {
+    // arange
+    core =
+        new AggregatorCoreImpl(
+            blobDao,
+            instanceSource,
+            tensorflowPlanSessionFactory,
+            new ServerPlanCache(blobDao, 64),
+            decryptionKeyService,
+            publicKeyEncryptionService,
+            appFiles,
+            httpMessageSender,
+            true,
+            true,
+            true,
+            2,
+            16,
+            2,
+            8,
+            false,
+            1024,
+            0,
+            512,
+            10,
+            100,
+            0,
+            false,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan));
+    when(tensorflowPlanSessionFactory.createPlanSession(any())).thenReturn(tensorflowPlanSession);
+    when(tensorflowPlanSession.createPhaseSession(any(), any())).thenReturn(phaseSession);
+    when(phaseSession.toIntermediateUpdate()).thenReturn(ByteString.copyFrom(new byte[] {10}));
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    when(publicKeyEncryptionService.encryptPayload(any(), any())).thenReturn(payload);
+
+    // act
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(4)).downloadAndDecompressIfNeeded(any());
+    verify(blobDao, times(1)).compressAndUploadInternal(any(), any());
+    verify(hybridDecrypt, times(3)).decrypt(any(), any());
+    verify(tensorflowPlanSessionFactory, times(1)).createPlanSession(any());
+    verify(phaseSession, times(3)).accumulateClientUpdate(gradientCaptor.capture());
+    assertArrayEquals("HelloWorld".getBytes(), gradientCaptor.getValue().toByteArray());
+    verify(phaseSession, never()).accumulateIntermediateUpdate(any());
+    verify(phaseSession, times(1)).toIntermediateUpdate();
+    verify(phaseSession, times(1)).close();
+    ArgumentCaptor<AggregatorNotification> notificationCaptor =
+        ArgumentCaptor.forClass(AggregatorNotification.class);
+    verify(httpMessageSender, times(1)).sendMessage(notificationCaptor.capture(), eq("localhost"));
+    AggregatorNotification.Attributes attributes =
+        notificationCaptor.getValue().getMessages().get(0).getAttributes();
+    assertThat(attributes.getGradientCount()).isEqualTo("3");
+    assertThat(attributes.getGradientBytes()).isEqualTo(String.valueOf(3 * gradient.length));
+  }
+
+  @Test
+  public void testProcess_SucceededStreamingV2() throws Exception {
+    // arange
+    core =
+        new AggregatorCoreImpl(
+            blobDao,
+            instanceSource,
+            tensorflowPlanSessionFactory,
+            new ServerPlanCache(blobDao, 64),
+            decryptionKeyService,
+            publicKeyEncryptionService,
+            appFiles,
+            httpMessageSender,
+            true,
+            true,
+            true,
+            2,
+            16,
+            2,
+            8,
+            false,
+            1024,
+            0,
+            512,
+            10,
+            100,
+            0,
+            false,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    when(aggregationSession.serialize()).thenReturn(new byte[] {10});
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    when(publicKeyEncryptionService.encryptPayload(any(), any())).thenReturn(payload);
+
+    // act
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(1)).compressAndUploadInternal(any(), any());
+    verify(tensorflowPlanSessionFactory, times(1)).createAggregationSession(any());
+    ArgumentCaptor<byte[][]> wavesCaptor = ArgumentCaptor.forClass(byte[][].class);
+    verify(aggregationSession, times(2)).accumulate(wavesCaptor.capture());
+    assertThat(wavesCaptor.getAllValues().get(0)).hasLength(2);
+    assertThat(wavesCaptor.getAllValues().get(1)).hasLength(1);
+    verify(aggregationSession, never()).mergeWith(any());
+    verify(aggregationSession, times(1)).serialize();
+    verify(aggregationSession, times(1)).close();
+  }
+
+  @Test
+  public void testProcess_StreamingAccumulateFailed_CancelsNextWave() throws Exception {
+    // arange
+    core =
+        new AggregatorCoreImpl(
+            blobDao,
+            instanceSource,
+            tensorflowPlanSessionFactory,
+            new ServerPlanCache(blobDao, 64),
+            decryptionKeyService,
+            publicKeyEncryptionService,
+            appFiles,
+            httpMessageSender,
+            true,
+            true,
+            true,
+            2,
+            1,
+            2,
+            8,
+            false,
+            1024,
+            0,
+            512,
+            10,
+            100,
+            0,
+            false,
+            new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60));
+    AggregatorMessage message =
+        MESSAGE1.toBuilder()
+            .gradients(List.of("iter1_1/", "iter1_2/", "iter1_3/", "iter1_4/"))
+            .build();
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    CountDownLatch nextWaveStarted = new CountDownLatch(1);
+    when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(blobDao.downloadAndDecompressIfNeeded(gradientEndingWith("iter1_3/")))
+        .thenAnswer(
+            invocation -> {
+              nextWaveStarted.countDown();
+              Thread.sleep(200);
+              return Optional.of(gradient);
+            });
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    doAnswer(
+            invocation -> {
+              nextWaveStarted.await();
+              throw new IllegalStateException("accumulate failed");
+            })
+        .when(aggregationSession)
+        .accumulate(any());
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+
+    // act
+    assertThrows(IllegalStateException.class, () -> core.process(message));
+
+    // assert
+    verify(blobDao, times(1)).downloadAndDecompressIfNeeded(gradientEndingWith("iter1_3/"));
+    verify(blobDao, never()).downloadAndDecompressIfNeeded(gradientEndingWith("iter1_4/"));
+    verify(blobDao, never()).compressAndUploadInternal(any(), any());
+    verify(aggregationSession, times(1)).close();
+  }
+
   @Test
   public void testProcess_SucceededIntermediateUpdates() throws Exception {
     // arange
@@ -299,7 +704,7 @@ public final class AggregatorCoreImplTest {
     // assert
     verify(blobDao, times(7)).downloadAndDecompressIfNeeded(any());
     verify(publicKeyEncryptionService, times(2)).encryptPayload(any(), any());
-    verify(blobDao, times(2)).compressAndUpload(any(), uploadResultCaptor.capture());
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), uploadResultCaptor.capture());
     List<byte[]> capturedResults = uploadResultCaptor.getAllValues();
     Gson gson = new Gson();
     assertArrayEquals(capturedResults.get(0), gson.toJson(payload).getBytes());
@@ -321,7 +726,7 @@ public final class AggregatorCoreImplTest {
     when(blobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(gradient));
     when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan));
     when(blobDao.downloadAndDecompressIfNeeded(PLAN_2)).thenReturn(Optional.of(plan));
-    doThrow(new IOException()).when(blobDao).compressAndUpload(any(), any());
+    doThrow(new IOException()).when(blobDao).compressAndUploadInternal(any(), any());
     when(tensorflowPlanSessionFactory.createPlanSession(any())).thenReturn(tensorflowPlanSession);
     when(tensorflowPlanSession.createPhaseSession(any(), any())).thenReturn(phaseSession);
     doNothing().when(phaseSession).accumulateClientUpdate(any());
@@ -337,7 +742,7 @@ public final class AggregatorCoreImplTest {
 
     // assert
     verify(blobDao, times(7)).downloadAndDecompressIfNeeded(any());
-    verify(blobDao, times(2)).compressAndUpload(any(), uploadResultCaptor.capture());
+    verify(blobDao, times(2)).compressAndUploadInternal(any(), uploadResultCaptor.capture());
     List<byte[]> capturedResults = uploadResultCaptor.getAllValues();
     Gson gson = new Gson();
     assertArrayEquals(capturedResults.get(0), gson.toJson(payload).getBytes());
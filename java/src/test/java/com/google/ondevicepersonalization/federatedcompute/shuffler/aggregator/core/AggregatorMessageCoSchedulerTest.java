@@ -0,0 +1,105 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.NonRetryableException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AggregatorMessageCoSchedulerTest {
+
+  private static final AggregatorMessage BATCH_1 =
+      AggregatorMessage.builder()
+          .serverPlanBucket("bucket")
+          .serverPlanObject("us/35/17/s/0/server_plan")
+          .aggregatedGradientOutputObject("us/35/17/s/0/batch_1")
+          .build();
+  private static final AggregatorMessage BATCH_2 =
+      BATCH_1.toBuilder().aggregatedGradientOutputObject("us/35/17/s/0/batch_2").build();
+  private static final AggregatorMessage OTHER_ITERATION =
+      BATCH_1.toBuilder().serverPlanObject("us/35/18/s/0/server_plan").build();
+
+  private final List<List<AggregatorMessage>> groups = new CopyOnWriteArrayList<>();
+
+  private List<String> prepareGroup(List<AggregatorMessage> messages) {
+    groups.add(messages);
+    return messages.stream()
+        .map(AggregatorMessage::getAggregatedGradientOutputObject)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testPrepare_groupsMessagesOfSameIteration() throws Exception {
+    AggregatorMessageCoScheduler<String> coScheduler =
+        new AggregatorMessageCoScheduler<>(2, Duration.ofMinutes(1), this::prepareGroup);
+
+    CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(() -> coScheduler.prepare(BATCH_1));
+    CompletableFuture<String> second =
+        CompletableFuture.supplyAsync(() -> coScheduler.prepare(BATCH_2));
+
+    assertThat(first.get(30, TimeUnit.SECONDS)).isEqualTo("us/35/17/s/0/batch_1");
+    assertThat(second.get(30, TimeUnit.SECONDS)).isEqualTo("us/35/17/s/0/batch_2");
+    assertThat(groups).hasSize(1);
+    assertThat(groups.get(0)).containsExactly(BATCH_1, BATCH_2);
+  }
+
+  @Test
+  public void testPrepare_lingerExpires() {
+    AggregatorMessageCoScheduler<String> coScheduler =
+        new AggregatorMessageCoScheduler<>(10, Duration.ofMillis(10), this::prepareGroup);
+
+    coScheduler.prepare(BATCH_1);
+    coScheduler.prepare(OTHER_ITERATION);
+
+    assertThat(groups).containsExactly(List.of(BATCH_1), List.of(OTHER_ITERATION)).inOrder();
+  }
+
+  @Test
+  public void testPrepare_groupPreparerFailureFailsEveryMessage() throws Exception {
+    AggregatorMessageCoScheduler<String> coScheduler =
+        new AggregatorMessageCoScheduler<>(
+            2,
+            Duration.ofMinutes(1),
+            (messages) -> {
+              throw new NonRetryableException("failed");
+            });
+
+    CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(() -> coScheduler.prepare(BATCH_1));
+    CompletableFuture<String> second =
+        CompletableFuture.supplyAsync(() -> coScheduler.prepare(BATCH_2));
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> first.get());
+    assertThat(e).hasCauseThat().isInstanceOf(NonRetryableException.class);
+    e = assertThrows(ExecutionException.class, () -> second.get());
+    assertThat(e).hasCauseThat().isInstanceOf(NonRetryableException.class);
+  }
+}
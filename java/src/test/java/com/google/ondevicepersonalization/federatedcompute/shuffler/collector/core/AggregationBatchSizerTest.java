@@ -0,0 +1,149 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.collector.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity.Status;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AggregationBatchSizerTest {
+
+  private static final Instant NOW = Instant.parse("2023-09-01T00:00:00Z");
+  private static final IterationEntity ITERATION1 =
+      IterationEntity.builder()
+          .populationName("us")
+          .taskId(35)
+          .iterationId(17)
+          .attemptId(0)
+          .status(Status.COLLECTING)
+          .baseIterationId(16)
+          .baseOnResultId(16)
+          .reportGoal(10000)
+          .resultId(17)
+          .aggregationLevel(0)
+          .build();
+  private static final IterationEntity ITERATION2 =
+      ITERATION1.toBuilder().iterationId(18).resultId(18).build();
+  private static final IterationEntity OTHER_TASK_ITERATION =
+      ITERATION1.toBuilder().taskId(36).build();
+
+  @Test
+  public void testGetBatchSize_disabled() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(false, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 100, /* latencySeconds= */ 20);
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(50);
+  }
+
+  @Test
+  public void testGetBatchSize_noSignal() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(50);
+  }
+
+  @Test
+  public void testGetBatchSize_arrivalRateTimesLatency() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 10, /* latencySeconds= */ 12);
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(120);
+  }
+
+  @Test
+  public void testGetBatchSize_boundedByMinAndMax() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 100, /* latencySeconds= */ 60);
+    recordSignals(
+        sizer, OTHER_TASK_ITERATION, /* uploadsPerSecond= */ 1, /* latencySeconds= */ 1);
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(500);
+    assertThat(sizer.getBatchSize(OTHER_TASK_ITERATION)).isEqualTo(10);
+  }
+
+  @Test
+  public void testGetBatchSize_boundedByGradientBytes() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 10, /* latencySeconds= */ 12);
+    // 100 gradients of 32 KiB each, so only 32 of them fit the 1 MiB budget.
+    sizer.recordAggregation(ITERATION1.getId(), 100, 100 * 32 * 1024, Duration.ofSeconds(12));
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(32);
+  }
+
+  @Test
+  public void testGetBatchSize_boundedByRemainingContributions() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 10, /* latencySeconds= */ 12);
+    sizer.recordPublished(ITERATION1.getId(), 9900);
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(50);
+  }
+
+  @Test
+  public void testGetBatchSize_latencySharedAcrossIterationsOfTask() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 10, /* latencySeconds= */ 12);
+    sizer.recordUploadedTotal(ITERATION2.getId(), 0, NOW);
+    sizer.recordUploadedTotal(ITERATION2.getId(), 200, NOW.plusSeconds(10));
+
+    assertThat(sizer.getBatchSize(ITERATION2)).isEqualTo(240);
+  }
+
+  @Test
+  public void testGetBatchSize_arrivalRateFromUploadedTotals() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    sizer.recordAggregation(ITERATION1.getId(), 0, 0, Duration.ofSeconds(12));
+    sizer.recordUploadedTotal(ITERATION1.getId(), 1000, NOW);
+    // The uploads processed by other replicas in between are part of the next total.
+    sizer.recordUploadedTotal(ITERATION1.getId(), 1100, NOW.plusSeconds(10));
+    // A failed batch lowers the total, which is not an observation of the arrival rate.
+    sizer.recordUploadedTotal(ITERATION1.getId(), 1050, NOW.plusSeconds(20));
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(120);
+  }
+
+  @Test
+  public void testRetainIterations() {
+    AggregationBatchSizer sizer = new AggregationBatchSizer(true, 50, 10, 500, 256L * 1024 * 1024);
+    recordSignals(sizer, ITERATION1, /* uploadsPerSecond= */ 10, /* latencySeconds= */ 12);
+    recordSignals(sizer, ITERATION2, /* uploadsPerSecond= */ 20, /* latencySeconds= */ 12);
+
+    sizer.retainIterations(Set.of(ITERATION2.getId()));
+
+    assertThat(sizer.getBatchSize(ITERATION1)).isEqualTo(50);
+    assertThat(sizer.getBatchSize(ITERATION2)).isEqualTo(240);
+  }
+
+  private static void recordSignals(
+      AggregationBatchSizer sizer,
+      IterationEntity iteration,
+      long uploadsPerSecond,
+      long latencySeconds) {
+    sizer.recordUploadedTotal(iteration.getId(), 0, NOW);
+    sizer.recordUploadedTotal(iteration.getId(), uploadsPerSecond * 10, NOW.plusSeconds(10));
+    sizer.recordAggregation(iteration.getId(), 0, 0, Duration.ofSeconds(latencySeconds));
+  }
+}
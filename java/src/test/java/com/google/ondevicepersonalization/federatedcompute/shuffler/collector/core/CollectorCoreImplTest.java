@@ -16,6 +16,7 @@
 
 package com.google.ondevicepersonalization.federatedcompute.shuffler.collector.core;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -26,10 +27,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorMessage;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.aggregator.core.message.AggregatorNotification;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AggregationBatchId;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentEntity;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentId;
@@ -41,11 +44,18 @@ import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.I
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.TaskDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.messaging.MessageSender;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.modelupdater.core.message.ModelUpdaterMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Instant;
 import java.time.InstantSource;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -72,6 +82,9 @@ public final class CollectorCoreImplTest {
 
   @Mock Lock lock;
 
+  // The collector recorded in Spanner by the stateful collectors.
+  private final AtomicReference<String> iterationCollector = new AtomicReference<>();
+  private MeterRegistry meterRegistry;
   private CollectorCoreImpl core;
 
   private static final IterationEntity ITERATION1 =
@@ -244,6 +257,7 @@ public final class CollectorCoreImplTest {
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
+    meterRegistry = new SimpleMeterRegistry();
     core =
         new CollectorCoreImpl(
             taskDao,
@@ -261,7 +275,18 @@ public final class CollectorCoreImplTest {
             15,
             15,
             50,
-            Optional.of(10L));
+            Optional.of(10L),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            500);
 
     when(blobManager.generateDownloadServerPlanDescription(ITERATION1)).thenReturn(PLAN_1);
     when(blobManager.generateDownloadServerPlanDescription(ITERATION2)).thenReturn(PLAN_2);
@@ -358,6 +383,203 @@ public final class CollectorCoreImplTest {
             AGG_ITERATION1.toBuilder().status(Status.APPLYING).aggregationLevel(2).build());
   }
 
+  @Test
+  public void testProcessAg_FanInExceededAddsAggregationLevel() {
+    CollectorCoreImpl impl =
+        new CollectorCoreImpl(
+            taskDao,
+            assignmentDao,
+            aggregationBatchDao,
+            blobDao,
+            blobManager,
+            collectorCoreImplHelper,
+            instantSource,
+            messageSender,
+            "agTopic",
+            "endpoint",
+            "muTopic",
+            lockRegistry,
+            15,
+            15,
+            2,
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            2,
+            false,
+            10,
+            500,
+            256,
+            500);
+    String partition = AGG_ITERATION1.getId().toString();
+    when(taskDao.getIterationById(AGG_ITERATION1.getId())).thenReturn(Optional.of(AGG_ITERATION1));
+    when(lockRegistry.obtain("collector_" + partition)).thenReturn(lock);
+    when(lock.tryLock()).thenReturn(true);
+    when(blobManager.generateDownloadAggregatedGradientDescription(AGG_ITERATION1))
+        .thenReturn(RESULT_1);
+    when(blobDao.listByPartition(eq(RESULT_1), any())).thenReturn(ImmutableList.of());
+    when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(AGG_ITERATION1));
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.PUBLISH_COMPLETED, Optional.empty()))
+        .thenReturn(List.of());
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.UPLOAD_COMPLETED, Optional.empty()))
+        .thenReturn(List.of("batch1", "batch2", "batch3"));
+    when(aggregationBatchDao.querySumOfAggregationBatchesOfStatus(
+            any(), anyLong(), eq(List.of(AggregationBatchEntity.Status.UPLOAD_COMPLETED))))
+        .thenReturn(3L);
+    when(aggregationBatchDao.queryAggregationBatchIdsAggregatedBy(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.UPLOAD_COMPLETED, Optional.empty()))
+        .thenReturn(List.of("batch1", "batch2", "batch3"));
+    List<AggregationBatchEntity> createdBatches = new ArrayList<>();
+    when(aggregationBatchDao.createAndAssignBatches(any(), any()))
+        .thenAnswer(
+            invocation -> {
+              createdBatches.add(invocation.getArgument(1));
+              return true;
+            });
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 1, AggregationBatchEntity.Status.FULL, Optional.of(partition)))
+        .thenAnswer(
+            invocation ->
+                createdBatches.stream().map(AggregationBatchEntity::getBatchId).toList());
+    when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
+        .thenReturn(AGGREGATOR_MESSAGE);
+    when(aggregationBatchDao.updateAggregationBatchStatus(any(), any())).thenReturn(true);
+    when(taskDao.updateIterationStatus(any(), any())).thenReturn(true);
+
+    impl.processAggregating();
+
+    // The 3 intermediates are split into 2 level 1 batches.
+    assertThat(createdBatches).hasSize(2);
+    for (AggregationBatchEntity batch : createdBatches) {
+      assertThat(batch.getAggregationLevel()).isEqualTo(1);
+      assertThat(batch.getStatus()).isEqualTo(AggregationBatchEntity.Status.FULL);
+      assertThat(batch.getCreatedByPartition()).isEqualTo(partition);
+      verify(aggregationBatchDao, times(1))
+          .queryAggregationBatchIdsAggregatedBy(
+              AGG_ITERATION1,
+              0,
+              AggregationBatchEntity.Status.UPLOAD_COMPLETED,
+              Optional.of(batch.getBatchId()));
+      verify(collectorCoreImplHelper, times(1))
+          .createAggregatorMessage(
+              eq(AGG_ITERATION1),
+              any(),
+              eq(Optional.of(batch.getBatchId())),
+              eq(true),
+              eq("endpoint"));
+      verify(aggregationBatchDao, times(1))
+          .updateAggregationBatchStatus(
+              batch,
+              batch.toBuilder().status(AggregationBatchEntity.Status.PUBLISH_COMPLETED).build());
+    }
+    verify(aggregationBatchDao, times(1))
+        .createAndAssignBatches(
+            List.of(
+                toAggregationBatchId(AGG_ITERATION1, "batch1"),
+                toAggregationBatchId(AGG_ITERATION1, "batch2")),
+            createdBatches.get(0));
+    verify(aggregationBatchDao, times(1))
+        .createAndAssignBatches(
+            List.of(toAggregationBatchId(AGG_ITERATION1, "batch3")), createdBatches.get(1));
+    verify(messageSender, times(2)).sendMessage(eq(AGGREGATOR_MESSAGE), eq("agTopic"));
+    verify(collectorCoreImplHelper, times(0)).createModelUpdaterMessage(any(), any());
+    verify(taskDao, times(1))
+        .updateIterationStatus(
+            AGG_ITERATION1, AGG_ITERATION1.toBuilder().aggregationLevel(2).build());
+  }
+
+  @Test
+  public void testProcessAg_ModelUpdaterFanInExceededSpreadsLastLevel() {
+    CollectorCoreImpl impl =
+        new CollectorCoreImpl(
+            taskDao,
+            assignmentDao,
+            aggregationBatchDao,
+            blobDao,
+            blobManager,
+            collectorCoreImplHelper,
+            instantSource,
+            messageSender,
+            "agTopic",
+            "endpoint",
+            "muTopic",
+            lockRegistry,
+            15,
+            15,
+            2,
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            4);
+    String partition = AGG_ITERATION1.getId().toString();
+    List<String> intermediates =
+        IntStream.range(0, 16).mapToObj((i) -> "batch" + i).collect(Collectors.toList());
+    when(taskDao.getIterationById(AGG_ITERATION1.getId())).thenReturn(Optional.of(AGG_ITERATION1));
+    when(lockRegistry.obtain("collector_" + partition)).thenReturn(lock);
+    when(lock.tryLock()).thenReturn(true);
+    when(blobManager.generateDownloadAggregatedGradientDescription(AGG_ITERATION1))
+        .thenReturn(RESULT_1);
+    when(blobDao.listByPartition(eq(RESULT_1), any())).thenReturn(ImmutableList.of());
+    when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(AGG_ITERATION1));
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.PUBLISH_COMPLETED, Optional.empty()))
+        .thenReturn(List.of());
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.UPLOAD_COMPLETED, Optional.empty()))
+        .thenReturn(intermediates);
+    when(aggregationBatchDao.querySumOfAggregationBatchesOfStatus(
+            any(), anyLong(), eq(List.of(AggregationBatchEntity.Status.UPLOAD_COMPLETED))))
+        .thenReturn(16L);
+    when(aggregationBatchDao.queryAggregationBatchIdsAggregatedBy(
+            AGG_ITERATION1, 0, AggregationBatchEntity.Status.UPLOAD_COMPLETED, Optional.empty()))
+        .thenReturn(intermediates);
+    List<List<AggregationBatchId>> groups = new ArrayList<>();
+    List<AggregationBatchEntity> createdBatches = new ArrayList<>();
+    when(aggregationBatchDao.createAndAssignBatches(any(), any()))
+        .thenAnswer(
+            invocation -> {
+              groups.add(invocation.getArgument(0));
+              createdBatches.add(invocation.getArgument(1));
+              return true;
+            });
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            AGG_ITERATION1, 1, AggregationBatchEntity.Status.FULL, Optional.of(partition)))
+        .thenAnswer(
+            invocation ->
+                createdBatches.stream().map(AggregationBatchEntity::getBatchId).toList());
+    when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
+        .thenReturn(AGGREGATOR_MESSAGE);
+    when(aggregationBatchDao.updateAggregationBatchStatus(any(), any())).thenReturn(true);
+    when(taskDao.updateIterationStatus(any(), any())).thenReturn(true);
+
+    impl.processAggregating();
+
+    // The 16 intermediates fit a single aggregation, but not the model updater fan-in of 4, so
+    // they are merged by 4 aggregations of 4 intermediates each.
+    assertThat(groups).hasSize(4);
+    for (List<AggregationBatchId> group : groups) {
+      assertThat(group).hasSize(4);
+    }
+    verify(messageSender, times(4)).sendMessage(eq(AGGREGATOR_MESSAGE), eq("agTopic"));
+    verify(collectorCoreImplHelper, times(0)).createModelUpdaterMessage(any(), any());
+    verify(taskDao, times(1))
+        .updateIterationStatus(
+            AGG_ITERATION1, AGG_ITERATION1.toBuilder().aggregationLevel(2).build());
+  }
+
   @Test
   public void testProcess_OneIteration() {
     // arange
@@ -499,6 +721,13 @@ public final class CollectorCoreImplTest {
             eq(ITERATION1.getId()),
             eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
             any(Optional.class));
+    assertThat(
+            meterRegistry
+                .get(CollectorCoreImpl.BATCH_SIZE_SUMMARY_NAME)
+                .tag(CollectorCoreImpl.POPULATION_TAG, ITERATION1.getPopulationName())
+                .summary()
+                .max())
+        .isEqualTo(50.0);
   }
 
   @Test
@@ -597,6 +826,242 @@ public final class CollectorCoreImplTest {
             AssignmentEntity.Status.UPLOAD_TIMEOUT);
   }
 
+  @Test
+  public void testProcess_SetResultUploadCompletedMergesSortedSources() {
+    // arange
+    CollectorCoreImpl impl =
+        new CollectorCoreImpl(
+            taskDao,
+            assignmentDao,
+            aggregationBatchDao,
+            blobDao,
+            blobManager,
+            collectorCoreImplHelper,
+            instantSource,
+            messageSender,
+            "agTopic",
+            "endpoint",
+            "muTopic",
+            lockRegistry,
+            15,
+            15,
+            2,
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            500);
+    when(lockRegistry.obtain("collector_" + ITERATION1.getId().toString())).thenReturn(lock);
+    when(lock.tryLock()).thenReturn(true);
+    when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(ITERATION1));
+    when(blobManager.generateDownloadGradientDescriptions(ITERATION1))
+        .thenReturn(new BlobDescription[] {DIR1_1, DIR1_2});
+    // Uploads are spread across folders, include a duplicate and an upload without assignment.
+    when(blobDao.listByPartition(eq(DIR1_1), any()))
+        .thenReturn(ImmutableList.of("iter1_1/", "iter1_4/", "iter1_5/"));
+    when(blobDao.listByPartition(eq(DIR1_2), any()))
+        .thenReturn(ImmutableList.of("iter1_0/", "iter1_4/", "iter1_6/"));
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(Optional.empty())))
+        .thenReturn(ImmutableList.of("iter1_1", "iter1_2", "iter1_4", "iter1_6", "iter1_7"));
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            any(Optional.class)))
+        .thenReturn(ImmutableList.of());
+    when(assignmentDao.createBatchAndUpdateAssignments(any(), any(), any(), any(), any(), any()))
+        .thenReturn(true);
+
+    // act
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(1))
+        .createBatchAndUpdateAssignments(
+            eq(
+                List.of(
+                    toAssignmentId(ITERATION1, "iter1_1"), toAssignmentId(ITERATION1, "iter1_4"))),
+            eq(ITERATION1),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            any(),
+            eq(ITERATION1.getId().toString()));
+    verify(assignmentDao, times(1))
+        .createBatchAndUpdateAssignments(any(), any(), any(), any(), any(), any());
+    verify(assignmentDao, times(1))
+        .batchUpdateAssignmentStatus(
+            List.of(toAssignmentId(ITERATION1, "iter1_6")),
+            Optional.empty(),
+            AssignmentEntity.Status.LOCAL_COMPLETED,
+            AssignmentEntity.Status.UPLOAD_COMPLETED);
+  }
+
+  @Test
+  public void testProcess_StatefulModeSkipsQueriesUntilReportGoal() {
+    // arange
+    CollectorCoreImpl impl = createStatefulCollectorCoreImpl();
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(Optional.empty())))
+        .thenReturn(ImmutableList.of("iter1_1"))
+        .thenReturn(ImmutableList.of("iter1_2"))
+        .thenReturn(ImmutableList.of("iter1_3"));
+    when(aggregationBatchDao.querySumOfAggregationBatchesOfStatus(
+            ITERATION1,
+            0,
+            List.of(
+                AggregationBatchEntity.Status.PUBLISH_COMPLETED,
+                AggregationBatchEntity.Status.UPLOAD_COMPLETED)))
+        .thenReturn(0L)
+        .thenReturn(2L);
+    when(taskDao.updateIterationStatus(any(), any())).thenReturn(true);
+
+    // act
+    impl.processCollecting();
+    impl.processCollecting();
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(1))
+        .queryAssignmentIdsOfStatus(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty());
+    verify(aggregationBatchDao, times(1))
+        .queryAggregationBatchIdsOfStatus(
+            ITERATION1,
+            0,
+            AggregationBatchEntity.Status.FULL,
+            Optional.of(ITERATION1.getId().toString()));
+    verify(assignmentDao, times(0)).queryAssignmentIdsOfStatusByBatches(any(), any(), any());
+    verify(aggregationBatchDao, times(2))
+        .querySumOfAggregationBatchesOfStatus(
+            ITERATION1,
+            0,
+            List.of(
+                AggregationBatchEntity.Status.PUBLISH_COMPLETED,
+                AggregationBatchEntity.Status.UPLOAD_COMPLETED));
+    verify(assignmentDao, times(1))
+        .createBatchAndUpdateAssignments(
+            eq(
+                List.of(
+                    toAssignmentId(ITERATION1, "iter1_1"), toAssignmentId(ITERATION1, "iter1_2"))),
+            eq(ITERATION1),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            any(),
+            eq(ITERATION1.getId().toString()));
+    verify(collectorCoreImplHelper, times(1))
+        .createAggregatorMessage(
+            eq(ITERATION1), eq(List.of("iter1_1", "iter1_2")), any(), eq(false), eq("endpoint"));
+    verify(assignmentDao, times(1))
+        .createBatchAndUpdateAssignments(
+            eq(List.of(toAssignmentId(ITERATION1, "iter1_3"))),
+            eq(ITERATION1),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            any(),
+            eq(ITERATION1.getId().toString()));
+    verify(taskDao, times(1))
+        .updateIterationStatus(
+            ITERATION1,
+            ITERATION1.toBuilder().status(Status.AGGREGATING).aggregationLevel(1).build());
+  }
+
+  @Test
+  public void testProcess_StatefulModeReconcilesAfterFailedWrite() {
+    // arange
+    CollectorCoreImpl impl = createStatefulCollectorCoreImpl();
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(Optional.empty())))
+        .thenReturn(ImmutableList.of("iter1_1"))
+        .thenReturn(ImmutableList.of("iter1_2"))
+        .thenReturn(ImmutableList.of());
+    when(assignmentDao.createBatchAndUpdateAssignments(any(), any(), any(), any(), any(), any()))
+        .thenReturn(false);
+
+    // act
+    impl.processCollecting();
+    impl.processCollecting();
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(2))
+        .queryAssignmentIdsOfStatus(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty());
+    verify(aggregationBatchDao, times(2))
+        .querySumOfAggregationBatchesOfStatus(
+            ITERATION1,
+            0,
+            List.of(
+                AggregationBatchEntity.Status.PUBLISH_COMPLETED,
+                AggregationBatchEntity.Status.UPLOAD_COMPLETED));
+    verify(messageSender, times(0)).sendMessage(any(), any());
+  }
+
+  @Test
+  public void testProcess_StatefulModeReconcilesAfterLockHandoff() {
+    // arange
+    CollectorCoreImpl impl = createStatefulCollectorCoreImpl();
+    when(lock.tryLock()).thenReturn(true).thenReturn(false).thenReturn(true);
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(Optional.empty())))
+        .thenReturn(ImmutableList.of());
+
+    // act
+    impl.processCollecting();
+    impl.processCollecting();
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(2))
+        .queryAssignmentIdsOfStatus(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty());
+    verify(aggregationBatchDao, times(2))
+        .querySumOfAggregationBatchesOfStatus(
+            ITERATION1,
+            0,
+            List.of(
+                AggregationBatchEntity.Status.PUBLISH_COMPLETED,
+                AggregationBatchEntity.Status.UPLOAD_COMPLETED));
+  }
+
+  @Test
+  public void testProcess_StatefulModeReconcilesAfterOtherReplicaTurn() {
+    // arange
+    CollectorCoreImpl impl = createStatefulCollectorCoreImpl();
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.LOCAL_COMPLETED),
+            eq(Optional.empty())))
+        .thenReturn(ImmutableList.of());
+
+    // act
+    impl.processCollecting();
+    impl.processCollecting();
+    // Another replica takes the lock between two ticks of this replica.
+    iterationCollector.set("other-replica");
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(2))
+        .queryAssignmentIdsOfStatus(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty());
+    verify(taskDao, times(3)).swapIterationCollector(eq(ITERATION1.getId()), any());
+  }
+
   @Test
   public void testProcess_SetResultUploadCompletedWithBatches() {
     // arange
@@ -617,7 +1082,18 @@ public final class CollectorCoreImplTest {
             15,
             15,
             2,
-            Optional.empty());
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            500);
     when(lockRegistry.obtain("collector_" + ITERATION1.getId().toString())).thenReturn(lock);
     when(lock.tryLock()).thenReturn(true);
     when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(ITERATION1));
@@ -654,9 +1130,10 @@ public final class CollectorCoreImplTest {
             eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
             any(Optional.class)))
         .thenReturn(ImmutableList.of("iter1_3"));
-    when(assignmentDao.queryAssignmentIdsOfStatus(
-            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.of("batch-1")))
-        .thenReturn(ImmutableList.of("iter1_1", "iter1_2"));
+    when(assignmentDao.queryAssignmentIdsOfStatusByBatches(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, List.of("batch-1")))
+        .thenReturn(Map.of("batch-1", List.of("iter1_1", "iter1_2")));
+    when(aggregationBatchDao.batchUpdateAggregationBatchStatus(any(), any())).thenReturn(true);
     when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
         .thenReturn(AGGREGATOR_MESSAGE);
 
@@ -706,14 +1183,28 @@ public final class CollectorCoreImplTest {
             List.of(
                 AggregationBatchEntity.Status.PUBLISH_COMPLETED,
                 AggregationBatchEntity.Status.UPLOAD_COMPLETED));
-    verify(aggregationBatchDao, times(2)).updateAggregationBatchStatus(any(), any());
+    verify(aggregationBatchDao, times(1))
+        .batchUpdateAggregationBatchStatus(
+            List.of(
+                AggregationBatchEntity.builder()
+                    .populationName(ITERATION1.getPopulationName())
+                    .taskId(ITERATION1.getTaskId())
+                    .iterationId(ITERATION1.getIterationId())
+                    .attemptId(ITERATION1.getAttemptId())
+                    .batchId("batch-1")
+                    .status(AggregationBatchEntity.Status.FULL)
+                    .aggregationLevel(0)
+                    .createdByPartition(ITERATION1.getId().toString())
+                    .build()),
+            AggregationBatchEntity.Status.PUBLISH_COMPLETED);
+    verify(aggregationBatchDao, times(1)).updateAggregationBatchStatus(any(), any());
     verify(collectorCoreImplHelper, times(1))
         .createAggregatorMessage(
             eq(ITERATION1), eq(List.of("iter1_1", "iter1_2")), any(), eq(false), eq("endpoint"));
     verify(collectorCoreImplHelper, times(1))
         .createAggregatorMessage(
             eq(ITERATION1), eq(List.of("iter1_3")), any(), eq(false), eq("endpoint"));
-    verify(assignmentDao, times(3))
+    verify(assignmentDao, times(2))
         .queryAssignmentIdsOfStatus(
             eq(ITERATION1.getId()),
             eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
@@ -740,7 +1231,18 @@ public final class CollectorCoreImplTest {
             15,
             15,
             2,
-            Optional.empty());
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            20,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            500);
     when(lockRegistry.obtain("collector_" + ITERATION1.getId().toString())).thenReturn(lock);
     when(lock.tryLock()).thenReturn(true);
     when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(ITERATION1));
@@ -787,9 +1289,10 @@ public final class CollectorCoreImplTest {
             eq(AssignmentEntity.Status.LOCAL_COMPLETED),
             eq(Optional.empty())))
         .thenReturn(ImmutableList.of("iter1_1", "iter1_2", "iter1_3"));
-    when(assignmentDao.queryAssignmentIdsOfStatus(
-            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.of("batch-1")))
-        .thenReturn(ImmutableList.of("iter1_1", "iter1_2"));
+    when(assignmentDao.queryAssignmentIdsOfStatusByBatches(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, List.of("batch-1")))
+        .thenReturn(Map.of("batch-1", List.of("iter1_1", "iter1_2")));
+    when(aggregationBatchDao.batchUpdateAggregationBatchStatus(any(), any())).thenReturn(true);
     when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
         .thenReturn(AGGREGATOR_MESSAGE);
 
@@ -839,20 +1342,129 @@ public final class CollectorCoreImplTest {
             List.of(
                 AggregationBatchEntity.Status.PUBLISH_COMPLETED,
                 AggregationBatchEntity.Status.UPLOAD_COMPLETED));
-    verify(aggregationBatchDao, times(1)).updateAggregationBatchStatus(any(), any());
+    verify(aggregationBatchDao, times(1)).batchUpdateAggregationBatchStatus(any(), any());
+    verify(aggregationBatchDao, times(0)).updateAggregationBatchStatus(any(), any());
     verify(collectorCoreImplHelper, times(1))
         .createAggregatorMessage(
             eq(ITERATION1), eq(List.of("iter1_1", "iter1_2")), any(), eq(false), eq("endpoint"));
     verify(collectorCoreImplHelper, times(0))
         .createAggregatorMessage(
             eq(ITERATION1), eq(List.of("iter1_3")), any(), eq(false), eq("endpoint"));
-    verify(assignmentDao, times(2))
+    verify(assignmentDao, times(1))
         .queryAssignmentIdsOfStatus(
             eq(ITERATION1.getId()),
             eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
             any(Optional.class));
   }
 
+  @Test
+  public void testProcess_SendFullBatchesInWindows() {
+    // arange
+    CollectorCoreImpl impl =
+        new CollectorCoreImpl(
+            taskDao,
+            assignmentDao,
+            aggregationBatchDao,
+            blobDao,
+            blobManager,
+            collectorCoreImplHelper,
+            instantSource,
+            messageSender,
+            "agTopic",
+            "endpoint",
+            "muTopic",
+            lockRegistry,
+            15,
+            15,
+            2,
+            Optional.empty(),
+            MoreExecutors.newDirectExecutorService(),
+            meterRegistry,
+            2,
+            false,
+            30,
+            500,
+            false,
+            10,
+            500,
+            256,
+            500);
+    when(lockRegistry.obtain("collector_" + ITERATION1.getId().toString())).thenReturn(lock);
+    when(lock.tryLock()).thenReturn(true);
+    when(taskDao.getIterationsOfStatus(any())).thenReturn(ImmutableList.of(ITERATION1));
+    when(blobManager.generateDownloadGradientDescriptions(ITERATION1))
+        .thenReturn(new BlobDescription[] {DIR1_1});
+    when(assignmentDao.queryAssignmentIdsOfStatus(any(), any(), any(Optional.class)))
+        .thenReturn(ImmutableList.of());
+    when(aggregationBatchDao.queryAggregationBatchIdsOfStatus(
+            any(), anyLong(), eq(AggregationBatchEntity.Status.FULL), any()))
+        .thenReturn(List.of("batch-1", "batch-2", "batch-3"));
+    when(assignmentDao.queryAssignmentIdsOfStatusByBatches(
+            ITERATION1.getId(),
+            AssignmentEntity.Status.UPLOAD_COMPLETED,
+            List.of("batch-1", "batch-2", "batch-3")))
+        .thenReturn(
+            Map.of(
+                "batch-1", List.of("iter1_1", "iter1_2"),
+                "batch-2", List.of("iter1_3", "iter1_4"),
+                "batch-3", List.of("iter1_5", "iter1_6")));
+    // The first window fails the grouped update and falls back to per batch updates.
+    when(aggregationBatchDao.batchUpdateAggregationBatchStatus(any(), any()))
+        .thenReturn(false)
+        .thenReturn(true);
+    when(aggregationBatchDao.updateAggregationBatchStatus(any(), any()))
+        .thenReturn(true)
+        .thenReturn(false);
+    when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
+        .thenReturn(AGGREGATOR_MESSAGE);
+
+    // act
+    impl.processCollecting();
+
+    // assert
+    verify(assignmentDao, times(1))
+        .queryAssignmentIdsOfStatusByBatches(
+            ITERATION1.getId(),
+            AssignmentEntity.Status.UPLOAD_COMPLETED,
+            List.of("batch-1", "batch-2", "batch-3"));
+    verify(assignmentDao, times(0))
+        .queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            eq(Optional.of("batch-1")));
+    verify(collectorCoreImplHelper, times(1))
+        .createAggregatorMessage(
+            eq(ITERATION1),
+            eq(List.of("iter1_1", "iter1_2")),
+            eq(Optional.of("batch-1")),
+            eq(false),
+            eq("endpoint"));
+    verify(collectorCoreImplHelper, times(1))
+        .createAggregatorMessage(
+            eq(ITERATION1),
+            eq(List.of("iter1_5", "iter1_6")),
+            eq(Optional.of("batch-3")),
+            eq(false),
+            eq("endpoint"));
+    verify(messageSender, times(3)).sendMessage(eq(AGGREGATOR_MESSAGE), eq("agTopic"));
+    verify(aggregationBatchDao, times(2)).batchUpdateAggregationBatchStatus(any(), any());
+    verify(aggregationBatchDao, times(2)).updateAggregationBatchStatus(any(), any());
+    assertThat(
+            meterRegistry
+                .find(CollectorCoreImpl.PUBLISH_BATCH_TIMER_NAME)
+                .tag(CollectorCoreImpl.RESULT_TAG, CollectorCoreImpl.RESULT_PUBLISHED)
+                .timer()
+                .count())
+        .isEqualTo(2);
+    assertThat(
+            meterRegistry
+                .find(CollectorCoreImpl.PUBLISH_BATCH_TIMER_NAME)
+                .tag(CollectorCoreImpl.RESULT_TAG, CollectorCoreImpl.RESULT_FAILED)
+                .timer()
+                .count())
+        .isEqualTo(1);
+  }
+
   @Test
   public void testProcess_SetResultUploadCompleted() {
     // arange
@@ -935,6 +1547,29 @@ public final class CollectorCoreImplTest {
             AGG_ITERATION1.toBuilder().status(Status.COLLECTING).aggregationLevel(0).build());
   }
 
+  @Test
+  public void testProcessAggregatorNotifications_intermediateFailureFailsIteration() {
+    AggregationBatchEntity intermediateBatch =
+        BATCH_ENTITY1.toBuilder().aggregationLevel(1).build();
+    when(taskDao.getIterationById(any())).thenReturn(Optional.of(AGG_ITERATION2));
+    when(aggregationBatchDao.getAggregationBatchById(any()))
+        .thenReturn(Optional.of(intermediateBatch));
+    when(aggregationBatchDao.updateAggregationBatchStatus(any(), any())).thenReturn(true);
+    when(taskDao.updateIterationStatus(any(), any())).thenReturn(true);
+
+    core.processAggregatorNotifications(ATTRIBUTES1);
+    verify(aggregationBatchDao, times(1))
+        .updateAggregationBatchStatus(
+            intermediateBatch,
+            intermediateBatch.toBuilder().status(AggregationBatchEntity.Status.FAILED).build());
+    verify(assignmentDao, times(0))
+        .queryAssignmentIdsOfStatus(any(), any(), any(Optional.class));
+    verify(assignmentDao, times(0)).batchUpdateAssignmentStatus(any(), any(), any(), any());
+    verify(taskDao, times(1))
+        .updateIterationStatus(
+            AGG_ITERATION2, AGG_ITERATION2.toBuilder().status(Status.AGGREGATING_FAILED).build());
+  }
+
   @Test
   public void testProcessAggregatorNotifications_successHandleFailed() {
     when(taskDao.getIterationById(any())).thenReturn(Optional.of(AGG_ITERATION1));
@@ -1005,6 +1640,28 @@ public final class CollectorCoreImplTest {
             AGG_ITERATION1.toBuilder().status(Status.COLLECTING).aggregationLevel(0).build());
   }
 
+  @Test
+  public void testProcessAggregatorNotifications_successOKWithSignals() {
+    core.processAggregatorNotifications(
+        ATTRIBUTES1.toBuilder()
+            .status(AggregatorNotification.Status.OK)
+            .gradientCount("50")
+            .gradientBytes("5000")
+            .processingMillis("1200")
+            .build());
+    core.processAggregatorNotifications(
+        ATTRIBUTES1.toBuilder()
+            .status(AggregatorNotification.Status.OK)
+            .gradientCount("not a number")
+            .gradientBytes("5000")
+            .processingMillis("1200")
+            .build());
+
+    verify(aggregationBatchDao, times(0)).getAggregationBatchById(any());
+    verify(aggregationBatchDao, times(0)).updateAggregationBatchStatus(any(), any());
+    verify(taskDao, times(0)).updateIterationStatus(any(), any());
+  }
+
   @Test
   public void testProcessAggregatorNotifications_invalidRequestId() {
     assertThrows(
@@ -1375,6 +2032,75 @@ public final class CollectorCoreImplTest {
             AGG_ITERATION1.toBuilder().status(Status.COLLECTING).aggregationLevel(0).build());
   }
 
+  private CollectorCoreImpl createStatefulCollectorCoreImpl() {
+    when(taskDao.swapIterationCollector(eq(ITERATION1.getId()), any()))
+        .thenAnswer(
+            (invocation) ->
+                Optional.ofNullable(iterationCollector.getAndSet(invocation.getArgument(1))));
+    when(lockRegistry.obtain("collector_" + ITERATION1.getId().toString())).thenReturn(lock);
+    when(lock.tryLock()).thenReturn(true);
+    when(taskDao.getIterationsOfStatus(IterationEntity.Status.COLLECTING))
+        .thenReturn(ImmutableList.of(ITERATION1));
+    when(taskDao.getIterationById(ITERATION1.getId())).thenReturn(Optional.of(ITERATION1));
+    when(blobManager.generateDownloadGradientDescriptions(ITERATION1))
+        .thenReturn(new BlobDescription[] {DIR1_1});
+    when(blobDao.listByPartition(eq(DIR1_1), any()))
+        .thenReturn(ImmutableList.of("iter1_1/", "iter1_2/", "iter1_3/"));
+    when(assignmentDao.batchUpdateAssignmentStatus(any(), any(), any(), any())).thenReturn(1);
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            eq(ITERATION1.getId()),
+            eq(AssignmentEntity.Status.UPLOAD_COMPLETED),
+            any(Optional.class)))
+        .thenReturn(ImmutableList.of("iter1_3"));
+    when(assignmentDao.queryAssignmentIdsOfStatus(
+            ITERATION1.getId(), AssignmentEntity.Status.UPLOAD_COMPLETED, Optional.empty()))
+        .thenReturn(ImmutableList.of("iter1_1"));
+    when(assignmentDao.createBatchAndUpdateAssignments(any(), any(), any(), any(), any(), any()))
+        .thenReturn(true);
+    when(aggregationBatchDao.batchUpdateAggregationBatchStatus(any(), any())).thenReturn(true);
+    when(aggregationBatchDao.updateAggregationBatchStatus(any(), any())).thenReturn(true);
+    when(collectorCoreImplHelper.createAggregatorMessage(any(), any(), any(), anyBoolean(), any()))
+        .thenReturn(AGGREGATOR_MESSAGE);
+    return new CollectorCoreImpl(
+        taskDao,
+        assignmentDao,
+        aggregationBatchDao,
+        blobDao,
+        blobManager,
+        collectorCoreImplHelper,
+        instantSource,
+        messageSender,
+        "agTopic",
+        "endpoint",
+        "muTopic",
+        lockRegistry,
+        15,
+        15,
+        2,
+        Optional.empty(),
+        MoreExecutors.newDirectExecutorService(),
+        meterRegistry,
+        20,
+        true,
+        30,
+        500,
+        false,
+        10,
+        500,
+        256,
+        500);
+  }
+
+  private AggregationBatchId toAggregationBatchId(IterationEntity iteration, String batchId) {
+    return AggregationBatchId.builder()
+        .populationName(iteration.getPopulationName())
+        .taskId(iteration.getTaskId())
+        .iterationId(iteration.getIterationId())
+        .attemptId(iteration.getAttemptId())
+        .batchId(batchId)
+        .build();
+  }
+
   private AssignmentId toAssignmentId(IterationEntity iteration, String assignmentId) {
     return AssignmentId.builder()
         .populationName(iteration.getPopulationName())
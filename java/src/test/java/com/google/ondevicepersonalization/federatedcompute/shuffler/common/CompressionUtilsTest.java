@@ -20,6 +20,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.primitives.Bytes;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -37,6 +38,25 @@ public final class CompressionUtilsTest {
     assertArrayEquals(inputData, uncompressed);
   }
 
+  @Test
+  public void compressAndDecompress_empty() {
+    byte[] compressed = CompressionUtils.compressWithGzip(new byte[0]);
+
+    assertArrayEquals(new byte[0], CompressionUtils.uncompressWithGzip(compressed));
+  }
+
+  @Test
+  public void decompress_multipleMembers() {
+    byte[] first = "HelloWorld11111111111111111111111111111111100000011".getBytes();
+    byte[] second = "HelloWorld22222222".getBytes();
+    byte[] compressed =
+        Bytes.concat(
+            CompressionUtils.compressWithGzip(first), CompressionUtils.compressWithGzip(second));
+
+    byte[] uncompressed = CompressionUtils.uncompressWithGzip(compressed);
+    assertArrayEquals(Bytes.concat(first, second), uncompressed);
+  }
+
   @Test
   public void decompress_fail() {
     byte[] inputData = "HelloWorld11111111".getBytes();
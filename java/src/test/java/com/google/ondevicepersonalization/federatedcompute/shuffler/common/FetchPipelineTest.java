@@ -0,0 +1,158 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FetchPipelineTest {
+
+  @Test
+  public void testFetch_preservesOrder() {
+    FetchPipeline pipeline = new FetchPipeline(8, 2, 4);
+    List<Integer> inputs = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+
+    List<String> results =
+        pipeline.fetch(
+            inputs,
+            (input) -> String.valueOf(input).getBytes(StandardCharsets.UTF_8),
+            (bytes) -> new String(bytes, StandardCharsets.UTF_8));
+
+    assertThat(results)
+        .containsExactlyElementsIn(
+            inputs.stream().map(String::valueOf).collect(Collectors.toList()))
+        .inOrder();
+  }
+
+  @Test
+  public void testFetch_boundsPendingPayloads() {
+    FetchPipeline pipeline = new FetchPipeline(8, 1, 3);
+    AtomicInteger pending = new AtomicInteger();
+    AtomicInteger maxPending = new AtomicInteger();
+
+    pipeline.fetch(
+        IntStream.range(0, 50).boxed().collect(Collectors.toList()),
+        (input) -> {
+          maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+          return new byte[] {input.byteValue()};
+        },
+        (bytes) -> {
+          pending.decrementAndGet();
+          return bytes[0];
+        });
+
+    assertThat(maxPending.get()).isAtMost(3);
+  }
+
+  @Test
+  public void testFetch_empty() {
+    FetchPipeline pipeline = new FetchPipeline(1, 1, 1);
+
+    assertThat(pipeline.fetch(List.<Integer>of(), (input) -> new byte[0], (bytes) -> bytes))
+        .isEmpty();
+  }
+
+  @Test
+  public void testFetch_failurePropagated() {
+    FetchPipeline pipeline = new FetchPipeline(2, 1, 2);
+
+    CompletionException e =
+        assertThrows(
+            CompletionException.class,
+            () ->
+                pipeline.fetch(
+                    List.of(1, 2, 3),
+                    (input) -> {
+                      if (input == 2) {
+                        throw new NonRetryableException("missing");
+                      }
+                      return new byte[] {input.byteValue()};
+                    },
+                    (bytes) -> bytes));
+
+    assertThat(e).hasCauseThat().isInstanceOf(NonRetryableException.class);
+  }
+
+  @Test
+  public void testStream_consumesEveryResult() {
+    FetchPipeline pipeline = new FetchPipeline(8, 2, 4);
+    List<Integer> inputs = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    List<Integer> consumed = new ArrayList<>();
+
+    pipeline.stream(
+        inputs,
+        (input) -> new byte[] {input.byteValue()},
+        (bytes) -> (int) bytes[0],
+        consumed::add);
+
+    assertThat(consumed).containsExactlyElementsIn(inputs);
+  }
+
+  @Test
+  public void testStream_boundsUnconsumedResults() {
+    FetchPipeline pipeline = new FetchPipeline(8, 2, 3);
+    AtomicInteger unconsumed = new AtomicInteger();
+    AtomicInteger maxUnconsumed = new AtomicInteger();
+
+    pipeline.stream(
+        IntStream.range(0, 50).boxed().collect(Collectors.toList()),
+        (input) -> {
+          maxUnconsumed.accumulateAndGet(unconsumed.incrementAndGet(), Math::max);
+          return new byte[] {input.byteValue()};
+        },
+        (bytes) -> bytes[0],
+        (result) -> unconsumed.decrementAndGet());
+
+    assertThat(maxUnconsumed.get()).isAtMost(3);
+  }
+
+  @Test
+  public void testStream_failurePropagatedAndSlotsReleased() throws Exception {
+    FetchPipeline pipeline = new FetchPipeline(2, 1, 2);
+
+    CompletionException e =
+        assertThrows(
+            CompletionException.class,
+            () ->
+                pipeline.stream(
+                    List.of(1, 2, 3),
+                    (input) -> {
+                      if (input == 2) {
+                        throw new NonRetryableException("missing");
+                      }
+                      return new byte[] {input.byteValue()};
+                    },
+                    (bytes) -> bytes,
+                    (result) -> {}));
+
+    assertThat(e).hasCauseThat().isInstanceOf(NonRetryableException.class);
+    // The slots of the failed call are released, so that the pipeline can be used again.
+    assertThat(pipeline.fetch(List.of(1, 2), (input) -> new byte[0], (bytes) -> bytes)).hasSize(2);
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController.Admission;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class MemoryAdmissionControllerTest {
+
+  private static final long MEGABYTE = 1024L * 1024L;
+
+  @Mock BlobDao blobDao;
+  private MeterRegistry meterRegistry;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  public void testEstimateBytes_extrapolatesSample() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 1, 60);
+    when(blobDao.getSize(any())).thenReturn(Optional.of(100L));
+
+    long bytes = controller.estimateBytes(getBlobs(100));
+
+    // 100 blobs of 100 bytes, each held twice.
+    assertThat(bytes).isEqualTo(20000);
+    verify(blobDao, times(MemoryAdmissionController.SAMPLE_SIZE)).getSize(any());
+  }
+
+  @Test
+  public void testEstimateBytes_disabled() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 0, 60);
+
+    assertThat(controller.estimateBytes(getBlobs(10))).isEqualTo(0);
+    verify(blobDao, never()).getSize(any());
+  }
+
+  @Test
+  public void testEstimateBlobBytes_averagesSampleEvenWhenDisabled() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 0, 60);
+    when(blobDao.getSize(any())).thenReturn(Optional.of(100L), Optional.of(300L));
+
+    assertThat(controller.estimateBlobBytes(getBlobs(2))).isEqualTo(200);
+    assertThat(controller.estimateBlobBytes(getBlobs(0))).isEqualTo(0);
+  }
+
+  @Test
+  public void testAdmit_reservesUntilClosed() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 1, 60);
+
+    try (Admission admission = controller.admit(MEGABYTE / 2)) {
+      assertThat(controller.getInUseBytes()).isEqualTo(MEGABYTE / 2);
+      assertThat(
+              meterRegistry.get(MemoryAdmissionController.IN_USE_BYTES_GAUGE_NAME).gauge().value())
+          .isEqualTo((double) (MEGABYTE / 2));
+    }
+    assertThat(controller.getInUseBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAdmit_rejectedAfterTimeout() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 1, 0);
+
+    try (Admission admission = controller.admit(MEGABYTE / 2)) {
+      assertThrows(IllegalStateException.class, () -> controller.admit(MEGABYTE));
+    }
+    assertThat(controller.getInUseBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAdmit_oversizedMessageAdmittedAlone() {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 1, 0);
+
+    try (Admission admission = controller.admit(2 * MEGABYTE)) {
+      assertThat(controller.getInUseBytes()).isEqualTo(2 * MEGABYTE);
+    }
+  }
+
+  @Test
+  public void testAdmit_waitsForRelease() throws Exception {
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(blobDao, meterRegistry, 1, 60);
+    Admission first = controller.admit(MEGABYTE);
+
+    CompletableFuture<Admission> second =
+        CompletableFuture.supplyAsync(() -> controller.admit(MEGABYTE));
+    Thread.sleep(100);
+    assertThat(second.isDone()).isFalse();
+    first.close();
+
+    second.get(30, TimeUnit.SECONDS).close();
+    assertThat(controller.getInUseBytes()).isEqualTo(0);
+  }
+
+  private static List<BlobDescription> getBlobs(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(
+            (i) -> BlobDescription.builder().host("bucket").resourceObject("gradient" + i).build())
+        .collect(Collectors.toList());
+  }
+}
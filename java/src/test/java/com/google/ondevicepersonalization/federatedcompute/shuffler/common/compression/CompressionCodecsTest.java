@@ -0,0 +1,203 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.primitives.Bytes;
+import com.google.testing.junit.testparameterinjector.TestParameter;
+import com.google.testing.junit.testparameterinjector.TestParameterInjector;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(TestParameterInjector.class)
+public final class CompressionCodecsTest {
+
+  private static final byte[] DATA = generate(100_000);
+
+  @Test
+  public void compressAndUncompress_roundTrips(
+      @TestParameter({"gzip", "zstd", "lz4"}) String format,
+      @TestParameter({"0", "1", "9"}) int level) {
+    CompressionCodec codec = CompressionCodecs.create(format, level);
+
+    byte[] compressed = codec.compress(DATA);
+
+    assertThat(codec.getContentEncoding()).isEqualTo(format);
+    assertThat(compressed.length).isLessThan(DATA.length);
+    assertThat(CompressionCodecs.forContentEncoding(format).get().uncompress(compressed))
+        .isEqualTo(DATA);
+  }
+
+  @Test
+  public void compressingAndUncompressingStreams_interoperateWithArrays(
+      @TestParameter({"gzip", "zstd", "lz4"}) String format) throws Exception {
+    CompressionCodec codec = CompressionCodecs.create(format, 0);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (OutputStream compressing = codec.compressingStream(output)) {
+      // Write in pieces, as a streaming producer would.
+      for (int offset = 0; offset < DATA.length; offset += 4096) {
+        compressing.write(DATA, offset, Math.min(4096, DATA.length - offset));
+      }
+    }
+    byte[] uncompressed;
+    try (InputStream uncompressing =
+        codec.uncompressingStream(new ByteArrayInputStream(codec.compress(DATA)))) {
+      uncompressed = uncompressing.readAllBytes();
+    }
+
+    assertThat(codec.uncompress(output.toByteArray())).isEqualTo(DATA);
+    assertThat(uncompressed).isEqualTo(DATA);
+  }
+
+  @Test
+  public void compressAndUncompress_empty(@TestParameter({"gzip", "zstd", "lz4"}) String format) {
+    CompressionCodec codec = CompressionCodecs.create(format, 0);
+
+    assertThat(codec.uncompress(codec.compress(new byte[0]))).isEmpty();
+  }
+
+  @Test
+  public void uncompress_invalidData_throws(
+      @TestParameter({"gzip", "zstd", "lz4"}) String format) {
+    CompressionCodec codec = CompressionCodecs.create(format, 0);
+
+    assertThrows(IllegalArgumentException.class, () -> codec.uncompress(DATA));
+  }
+
+  @Test
+  public void gzip_interoperatesWithJdkStreams() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+      gzip.write(DATA);
+    }
+    byte[] compressed = CompressionCodecs.GZIP.compress(DATA);
+
+    assertThat(CompressionCodecs.GZIP.uncompress(output.toByteArray())).isEqualTo(DATA);
+    try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertThat(gzip.readAllBytes()).isEqualTo(DATA);
+    }
+  }
+
+  @Test
+  public void gzip_uncompressesMultipleMembers() {
+    byte[] second = "HelloWorld22222222".getBytes();
+    byte[] compressed =
+        Bytes.concat(
+            CompressionCodecs.GZIP.compress(DATA), CompressionCodecs.GZIP.compress(second));
+
+    assertThat(CompressionCodecs.GZIP.uncompress(compressed)).isEqualTo(Bytes.concat(DATA, second));
+  }
+
+  @Test
+  public void gzip_truncatedData_throws() {
+    byte[] compressed = CompressionCodecs.GZIP.compress(DATA);
+    byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+    assertThrows(
+        IllegalArgumentException.class, () -> CompressionCodecs.GZIP.uncompress(truncated));
+  }
+
+  @Test
+  public void gzip_highlyCompressibleData_growsPastSizeHint() {
+    byte[] data = new byte[4 * 1024 * 1024];
+    CompressionCodec codec = CompressionCodecs.create("gzip", 9);
+
+    assertThat(codec.uncompress(codec.compress(data))).isEqualTo(data);
+  }
+
+  @Test
+  public void gzip_trailerClaimsHugeSize_throws() {
+    byte[] forged = CompressionCodecs.create("gzip", 9).compress(DATA);
+    // Rewrites the uncompressed size of the trailer to 2 GiB, which must not be preallocated.
+    forged[forged.length - 1] = (byte) 0x80;
+    CompressionCodec codec = CompressionCodecs.create("gzip", 9);
+
+    assertThrows(IllegalArgumentException.class, () -> codec.uncompress(forged));
+  }
+
+  @Test
+  public void create_unsupportedFormatOrLevel_throws() {
+    assertThrows(IllegalArgumentException.class, () -> CompressionCodecs.create("brotli", 0));
+    assertThrows(IllegalArgumentException.class, () -> CompressionCodecs.create("gzip", 10));
+    assertThrows(IllegalArgumentException.class, () -> CompressionCodecs.create("lz4", 13));
+  }
+
+  @Test
+  public void detect_fromMagicBytes(@TestParameter({"gzip", "zstd", "lz4"}) String format) {
+    byte[] compressed = CompressionCodecs.create(format, 0).compress(DATA);
+
+    assertThat(CompressionCodecs.detect(compressed).get().getContentEncoding()).isEqualTo(format);
+    assertThat(CompressionCodecs.detect(DATA).isPresent()).isFalse();
+    assertThat(CompressionCodecs.detect(new byte[] {0x1f}).isPresent()).isFalse();
+  }
+
+  @Test
+  public void uncompressIfGzip_onlyUncompressesGzip(
+      @TestParameter({"gzip", "zstd", "lz4"}) String format) {
+    byte[] compressed = CompressionCodecs.create(format, 0).compress(DATA);
+
+    byte[] result = CompressionCodecs.uncompressIfGzip(compressed);
+
+    assertThat(result).isEqualTo(format.equals("gzip") ? DATA : compressed);
+  }
+
+  @Test
+  public void zstdUncompress_frameClaimsHugeSize_doesNotPreallocateIt() {
+    byte[] compressed = CompressionCodecs.create("zstd", 0).compress(new byte[] {1, 2, 3});
+    // Rewrites the frame header to claim a 2 GiB content size: a single-segment frame with an
+    // 8 byte frame content size field, which the decoder must not trust for its allocation.
+    byte[] forged =
+        new byte[] {
+          0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, (byte) 0xe0, 0, 0, 0, (byte) 0x80, 0, 0, 0, 0
+        };
+    CompressionCodec codec = CompressionCodecs.create("zstd", 0);
+
+    assertThrows(IllegalArgumentException.class, () -> codec.uncompress(forged));
+    assertThat(codec.uncompress(compressed)).isEqualTo(new byte[] {1, 2, 3});
+  }
+
+  @Test
+  public void forContentEncoding_ignoresCase() {
+    assertThat(CompressionCodecs.forContentEncoding("ZSTD").get().getContentEncoding())
+        .isEqualTo("zstd");
+    assertThat(CompressionCodecs.forContentEncoding("unsupported").isPresent()).isFalse();
+  }
+
+  /** Generates compressible data, with runs of random bytes. */
+  private static byte[] generate(int size) {
+    Random random = new Random(0);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i += 16) {
+      byte value = (byte) random.nextInt(8);
+      for (int j = i; j < Math.min(size, i + 16); j++) {
+        data[j] = value;
+      }
+    }
+    return data;
+  }
+}
@@ -1378,6 +1378,267 @@ public class AggregationBatchSpannerDaoTest {
     assertThat(queryAggregationBatchStatusHistories(entity)).isEqualTo(Arrays.asList());
   }
 
+  @Test
+  public void testBatchUpdateAggregationBatchStatus_Succeeded() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              for (String batchId : List.of("batch-1", "batch-2")) {
+                insertBatch(
+                    transaction,
+                    /* populationName= */ "aaa",
+                    /* taskId= */ 111,
+                    /* iterationId= */ 9,
+                    /* batchId= */ batchId,
+                    /* aggregationLevel= */ 0,
+                    /* status= */ FULL,
+                    /* batchSize= */ 50,
+                    /* createdByPartition */ "abc",
+                    /* createdTime */ toTs(NOW),
+                    /* aggregatedBy */ null,
+                    /* withStatusHistory */ true);
+              }
+              return null;
+            });
+
+    // act
+    AggregationBatchEntity entity1 =
+        AggregationBatchEntity.builder()
+            .populationName("aaa")
+            .taskId(111)
+            .iterationId(9)
+            .attemptId(0)
+            .batchId("batch-1")
+            .aggregationLevel(0)
+            .status(FULL)
+            .batchSize(50)
+            .createdByPartition("abc")
+            .createdTime(NOW)
+            .build();
+    AggregationBatchEntity entity2 = entity1.toBuilder().batchId("batch-2").build();
+    boolean updated =
+        dao.batchUpdateAggregationBatchStatus(List.of(entity1, entity2), PUBLISH_COMPLETED);
+
+    // assert
+    assertThat(updated).isTrue();
+    assertThat(queryAggregationBatch(entity1).get().getStatus()).isEqualTo(PUBLISH_COMPLETED);
+    assertThat(queryAggregationBatch(entity2).get().getStatus()).isEqualTo(PUBLISH_COMPLETED);
+    assertThat(queryAggregationBatchStatusHistories(entity1))
+        .isEqualTo(Arrays.asList(FULL.code(), PUBLISH_COMPLETED.code()));
+    assertThat(queryAggregationBatchStatusHistories(entity2))
+        .isEqualTo(Arrays.asList(FULL.code(), PUBLISH_COMPLETED.code()));
+  }
+
+  @Test
+  public void testBatchUpdateAggregationBatchStatus_OneNotFound() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              for (String batchId : List.of("batch-1", "batch-2")) {
+                insertBatch(
+                    transaction,
+                    /* populationName= */ "aaa",
+                    /* taskId= */ 111,
+                    /* iterationId= */ 9,
+                    /* batchId= */ batchId,
+                    /* aggregationLevel= */ 0,
+                    /* status= */ FULL,
+                    /* batchSize= */ 50,
+                    /* createdByPartition */ "abc",
+                    /* createdTime */ toTs(NOW),
+                    /* aggregatedBy */ null,
+                    /* withStatusHistory */ true);
+              }
+              return null;
+            });
+
+    // act
+    AggregationBatchEntity entity1 =
+        AggregationBatchEntity.builder()
+            .populationName("aaa")
+            .taskId(111)
+            .iterationId(9)
+            .attemptId(0)
+            .batchId("batch-1")
+            .aggregationLevel(0)
+            .status(FULL)
+            .batchSize(50)
+            .createdByPartition("abc")
+            .createdTime(NOW)
+            .build();
+    AggregationBatchEntity entity2 = entity1.toBuilder().batchId("batch-2").build();
+    boolean updated =
+        dao.batchUpdateAggregationBatchStatus(
+            List.of(entity1, entity2.toBuilder().batchId("unknown").build()), PUBLISH_COMPLETED);
+
+    // assert
+    assertThat(updated).isFalse();
+    assertThat(queryAggregationBatch(entity1).get().getStatus()).isEqualTo(FULL);
+    assertThat(queryAggregationBatchStatusHistories(entity1))
+        .isEqualTo(Arrays.asList(FULL.code()));
+  }
+
+  @Test
+  public void testBatchUpdateAggregationBatchStatus_Empty() {
+    // act
+    boolean updated = dao.batchUpdateAggregationBatchStatus(List.of(), PUBLISH_COMPLETED);
+
+    // assert
+    assertThat(updated).isTrue();
+  }
+
+  @Test
+  public void testCreateAndAssignBatches_Succeeded() {
+    // arrange
+    insertUploadedBatches(/* aggregatedBy= */ null);
+    IterationEntity iteration =
+        DEFAULT_ITERATION.toBuilder().populationName("aaa").taskId(111).iterationId(9).build();
+    AggregationBatchEntity newBatch =
+        AggregationBatchEntity.builder()
+            .populationName("aaa")
+            .taskId(111)
+            .iterationId(9)
+            .attemptId(0)
+            .batchId("batch-a")
+            .aggregationLevel(1)
+            .status(FULL)
+            .createdByPartition("abc")
+            .build();
+
+    // act
+    boolean created =
+        dao.createAndAssignBatches(
+            List.of(toAggregationBatchId("batch-1"), toAggregationBatchId("batch-2")), newBatch);
+
+    // assert
+    assertThat(created).isTrue();
+    AggregationBatchEntity result = queryAggregationBatch(newBatch).get();
+    assertThat(result.getStatus()).isEqualTo(FULL);
+    assertThat(result.getAggregationLevel()).isEqualTo(1);
+    assertThat(result.getBatchSize()).isEqualTo(100);
+    assertThat(queryAggregationBatchStatusHistories(newBatch))
+        .isEqualTo(Arrays.asList(FULL.code()));
+    assertThat(
+            dao.queryAggregationBatchIdsAggregatedBy(
+                iteration, 0, UPLOAD_COMPLETED, Optional.of("batch-a")))
+        .containsExactly("batch-1", "batch-2");
+    assertThat(
+            dao.queryAggregationBatchIdsAggregatedBy(
+                iteration, 0, UPLOAD_COMPLETED, Optional.empty()))
+        .isEmpty();
+    AggregationBatchEntity child = newBatch.toBuilder().batchId("batch-1").build();
+    assertThat(queryAggregationBatch(child).get().getStatus()).isEqualTo(UPLOAD_COMPLETED);
+    assertThat(queryAggregationBatchStatusHistories(child))
+        .isEqualTo(Arrays.asList(UPLOAD_COMPLETED.code(), UPLOAD_COMPLETED.code()));
+  }
+
+  @Test
+  public void testCreateAndAssignBatches_AlreadyAggregated() {
+    // arrange
+    insertUploadedBatches(/* aggregatedBy= */ "batch-a");
+    AggregationBatchEntity newBatch =
+        AggregationBatchEntity.builder()
+            .populationName("aaa")
+            .taskId(111)
+            .iterationId(9)
+            .attemptId(0)
+            .batchId("batch-b")
+            .aggregationLevel(1)
+            .status(FULL)
+            .createdByPartition("abc")
+            .build();
+
+    // act
+    boolean created =
+        dao.createAndAssignBatches(List.of(toAggregationBatchId("batch-1")), newBatch);
+
+    // assert
+    assertThat(created).isFalse();
+    assertThat(queryAggregationBatch(newBatch)).isEmpty();
+  }
+
+  @Test
+  public void testQueryAggregationBatchIdsAggregatedBy_NotAggregated() {
+    // arrange
+    insertUploadedBatches(/* aggregatedBy= */ null);
+
+    // act
+    List<String> result =
+        dao.queryAggregationBatchIdsAggregatedBy(
+            DEFAULT_ITERATION.toBuilder().populationName("aaa").taskId(111).iterationId(9).build(),
+            0,
+            UPLOAD_COMPLETED,
+            Optional.empty());
+
+    // assert
+    assertThat(result).containsExactly("batch-1", "batch-2");
+  }
+
+  private void insertUploadedBatches(String aggregatedBy) {
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              for (String batchId : List.of("batch-1", "batch-2")) {
+                insertBatch(
+                    transaction,
+                    /* populationName= */ "aaa",
+                    /* taskId= */ 111,
+                    /* iterationId= */ 9,
+                    /* batchId= */ batchId,
+                    /* aggregationLevel= */ 0,
+                    /* status= */ UPLOAD_COMPLETED,
+                    /* batchSize= */ 50,
+                    /* createdByPartition */ "abc",
+                    /* createdTime */ toTs(NOW),
+                    /* aggregatedBy */ aggregatedBy,
+                    /* withStatusHistory */ true);
+              }
+              return null;
+            });
+  }
+
+  private static AggregationBatchId toAggregationBatchId(String batchId) {
+    return AggregationBatchId.builder()
+        .populationName("aaa")
+        .taskId(111)
+        .iterationId(9)
+        .attemptId(0)
+        .batchId(batchId)
+        .build();
+  }
+
   private void insertTask(
       TransactionContext transaction, String populationName, long taskId, long status) {
     String insertTask =
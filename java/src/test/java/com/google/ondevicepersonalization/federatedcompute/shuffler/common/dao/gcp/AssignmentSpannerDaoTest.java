@@ -45,6 +45,7 @@ import java.time.InstantSource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import org.junit.After;
@@ -1680,6 +1681,202 @@ public final class AssignmentSpannerDaoTest {
     assertThat(result).isEqualTo(List.of());
   }
 
+  @Test
+  public void testQueryAssignmentIdsOfStatusByBatches_GroupsByBatch() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-1",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch1",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-2",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch1",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-3",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch2",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-4",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch3",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-5",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ null,
+                  /* withStatusHistory */ true);
+              return null;
+            });
+    // act
+    Map<String, List<String>> result =
+        dao.queryAssignmentIdsOfStatusByBatches(
+            IterationId.builder()
+                .populationName("aaa")
+                .taskId(111)
+                .iterationId(9)
+                .attemptId(0)
+                .build(),
+            AssignmentEntity.Status.ASSIGNED,
+            List.of("batch1", "batch2"));
+
+    // assert
+    assertThat(result)
+        .isEqualTo(
+            Map.of(
+                "batch1", List.of("assignment-1", "assignment-2"),
+                "batch2", List.of("assignment-3")));
+  }
+
+  @Test
+  public void testQueryAssignmentIdsOfStatusByBatches_FiltersStatus() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-1",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch1",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-2",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ false,
+                  /* batchId */ "batch1",
+                  /* withStatusHistory */ true);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-3",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ false,
+                  /* batchId */ "batch2",
+                  /* withStatusHistory */ true);
+              return null;
+            });
+    // act
+    Map<String, List<String>> result =
+        dao.queryAssignmentIdsOfStatusByBatches(
+            IterationId.builder()
+                .populationName("aaa")
+                .taskId(111)
+                .iterationId(9)
+                .attemptId(0)
+                .build(),
+            AssignmentEntity.Status.ASSIGNED,
+            List.of("batch1", "batch2"));
+
+    // assert
+    assertThat(result).isEqualTo(Map.of("batch1", List.of("assignment-1")));
+  }
+
+  @Test
+  public void testQueryAssignmentIdsOfStatusByBatches_EmptyBatchIds() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction, /* populationName= */ "aaa", /* taskId= */ 111, /* status= */ 0);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300);
+              insertAssignment(
+                  transaction,
+                  /* populationName= */ "aaa",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 9,
+                  /* sessionId */ "assignment-1",
+                  /* createdTime */ toTs(NOW),
+                  /* active */ true,
+                  /* batchId */ "batch1",
+                  /* withStatusHistory */ true);
+              return null;
+            });
+    // act
+    Map<String, List<String>> result =
+        dao.queryAssignmentIdsOfStatusByBatches(
+            IterationId.builder()
+                .populationName("aaa")
+                .taskId(111)
+                .iterationId(9)
+                .attemptId(0)
+                .build(),
+            AssignmentEntity.Status.ASSIGNED,
+            List.of());
+
+    // assert
+    assertThat(result).isEmpty();
+  }
+
   private void insertTask(
       TransactionContext transaction, String populationName, long taskId, long status) {
     String insertTask =
@@ -0,0 +1,250 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.gcp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class DiskCachingBlobDaoTest {
+
+  private static final int MEGABYTE = 1024 * 1024;
+  private static final BlobDescription CHECKPOINT =
+      BlobDescription.builder().host("bucket").resourceObject("us/35/17/s/0/checkpoint").build();
+  private static final BlobDescription SERVER_PLAN =
+      BlobDescription.builder().host("bucket").resourceObject("us/35/0/s/0/server_phase").build();
+  private static final BlobDescription GRADIENT =
+      BlobDescription.builder().host("bucket").resourceObject("us/35/17/d/abc/gradient").build();
+  private static final byte[] CONTENT = new byte[] {1, 2, 3};
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Mock GCSBlobDao gcsBlobDao;
+  private MeterRegistry meterRegistry;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    meterRegistry = new SimpleMeterRegistry();
+    when(gcsBlobDao.getGeneration(any())).thenReturn(Optional.of(1L));
+  }
+
+  @Test
+  public void testDownload_disabledDelegates() throws Exception {
+    DiskCachingBlobDao dao = createDao(0);
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT)).thenReturn(Optional.of(CONTENT));
+
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+
+    verify(gcsBlobDao, times(2)).downloadAndDecompressIfNeeded(CHECKPOINT);
+    verify(gcsBlobDao, never()).getGeneration(any());
+  }
+
+  @Test
+  public void testDownload_servesCachedCopy() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT)).thenReturn(Optional.of(CONTENT));
+
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+
+    verify(gcsBlobDao, times(1)).downloadAndDecompressIfNeeded(CHECKPOINT);
+    assertThat(getCount(DiskCachingBlobDao.HITS_COUNTER_NAME)).isEqualTo(1);
+    assertThat(getCount(DiskCachingBlobDao.MISSES_COUNTER_NAME)).isEqualTo(1);
+    assertThat(getCount(DiskCachingBlobDao.SAVED_BYTES_COUNTER_NAME)).isEqualTo(CONTENT.length);
+    assertThat(dao.getCachedBytes()).isEqualTo(CONTENT.length);
+  }
+
+  @Test
+  public void testDownload_rawAndDecompressedCachedApart() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    byte[] raw = new byte[] {4, 5};
+    when(gcsBlobDao.download(CHECKPOINT)).thenReturn(Optional.of(raw));
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT)).thenReturn(Optional.of(CONTENT));
+
+    dao.download(CHECKPOINT);
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+
+    assertThat(dao.download(CHECKPOINT).get()).isEqualTo(raw);
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+    verify(gcsBlobDao, times(1)).download(CHECKPOINT);
+    verify(gcsBlobDao, times(1)).downloadAndDecompressIfNeeded(CHECKPOINT);
+  }
+
+  @Test
+  public void testDownload_newGenerationDownloadedAgain() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    byte[] overwritten = new byte[] {7};
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT))
+        .thenReturn(Optional.of(CONTENT), Optional.of(overwritten));
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+
+    when(gcsBlobDao.getGeneration(CHECKPOINT)).thenReturn(Optional.of(2L));
+
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(overwritten);
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(overwritten);
+    verify(gcsBlobDao, times(2)).downloadAndDecompressIfNeeded(CHECKPOINT);
+    assertThat(dao.getCachedBytes()).isEqualTo(overwritten.length);
+  }
+
+  @Test
+  public void testDownload_mutableBlobNotCached() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(GRADIENT)).thenReturn(Optional.of(CONTENT));
+
+    dao.downloadAndDecompressIfNeeded(GRADIENT);
+    dao.downloadAndDecompressIfNeeded(GRADIENT);
+
+    verify(gcsBlobDao, times(2)).downloadAndDecompressIfNeeded(GRADIENT);
+    verify(gcsBlobDao, never()).getGeneration(any());
+  }
+
+  @Test
+  public void testDownload_missingBlobNotCached() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    when(gcsBlobDao.getGeneration(CHECKPOINT)).thenReturn(Optional.empty());
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT)).thenReturn(Optional.empty());
+
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).isPresent()).isFalse();
+    assertThat(dao.getCachedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDownload_evictsLeastRecentlyUsed() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    byte[] half = new byte[MEGABYTE / 2 + 1];
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(any())).thenReturn(Optional.of(half));
+
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+    dao.downloadAndDecompressIfNeeded(SERVER_PLAN);
+    dao.downloadAndDecompressIfNeeded(SERVER_PLAN);
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+
+    verify(gcsBlobDao, times(2)).downloadAndDecompressIfNeeded(CHECKPOINT);
+    verify(gcsBlobDao, times(1)).downloadAndDecompressIfNeeded(SERVER_PLAN);
+    assertThat(dao.getCachedBytes()).isEqualTo(half.length);
+    assertThat(getCacheDirectory().list()).hasLength(1);
+  }
+
+  @Test
+  public void testDownload_oversizedBlobNotCached() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT))
+        .thenReturn(Optional.of(new byte[MEGABYTE + 1]));
+
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+
+    assertThat(dao.getCachedBytes()).isEqualTo(0);
+    assertThat(getCacheDirectory().list()).isEmpty();
+  }
+
+  @Test
+  public void testCompressAndUpload_cachesUploadedCopy() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+
+    dao.compressAndUploadInternal(CHECKPOINT, CONTENT);
+
+    assertThat(dao.downloadAndDecompressIfNeeded(CHECKPOINT).get()).isEqualTo(CONTENT);
+    verify(gcsBlobDao, times(1)).compressAndUploadInternal(CHECKPOINT, CONTENT);
+    verify(gcsBlobDao, never()).downloadAndDecompressIfNeeded(any());
+    assertThat(getCount(DiskCachingBlobDao.HITS_COUNTER_NAME)).isEqualTo(1);
+  }
+
+  @Test
+  public void testCompressAndUpload_mutableBlobNotCached() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+
+    dao.compressAndUpload(GRADIENT, CONTENT);
+
+    verify(gcsBlobDao, times(1)).compressAndUpload(GRADIENT, CONTENT);
+    verify(gcsBlobDao, never()).getGeneration(any());
+    assertThat(dao.getCachedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testOpenStream_servesCachedCopy() throws Exception {
+    DiskCachingBlobDao dao = createDao(1);
+    when(gcsBlobDao.downloadAndDecompressIfNeeded(CHECKPOINT)).thenReturn(Optional.of(CONTENT));
+    dao.downloadAndDecompressIfNeeded(CHECKPOINT);
+
+    try (InputStream input = dao.openStreamAndDecompressIfNeeded(CHECKPOINT).get()) {
+      assertThat(input.readAllBytes()).isEqualTo(CONTENT);
+    }
+    verify(gcsBlobDao, never()).openStreamAndDecompressIfNeeded(any());
+  }
+
+  @Test
+  public void testCreate_dropsFilesOfPreviousRun() throws Exception {
+    File cacheDirectory = temporaryFolder.newFolder(DiskCachingBlobDao.CACHE_SUBDIRECTORY);
+    Files.createFile(
+        cacheDirectory.toPath().resolve(DiskCachingBlobDao.CACHED_FILE_PREFIX + "stale"));
+
+    createDao(1);
+
+    assertThat(cacheDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void testCreate_keepsFilesNotWrittenByCache() throws Exception {
+    temporaryFolder.newFile("operator");
+    File cacheDirectory = temporaryFolder.newFolder(DiskCachingBlobDao.CACHE_SUBDIRECTORY);
+    Files.createFile(cacheDirectory.toPath().resolve("notes"));
+
+    createDao(1);
+
+    assertThat(temporaryFolder.getRoot().list())
+        .asList()
+        .containsExactly("operator", DiskCachingBlobDao.CACHE_SUBDIRECTORY);
+    assertThat(cacheDirectory.list()).asList().containsExactly("notes");
+  }
+
+  private DiskCachingBlobDao createDao(int megabytes) {
+    return new DiskCachingBlobDao(
+        gcsBlobDao,
+        Optional.of(meterRegistry),
+        temporaryFolder.getRoot().getAbsolutePath(),
+        megabytes);
+  }
+
+  private File getCacheDirectory() {
+    return new File(temporaryFolder.getRoot(), DiskCachingBlobDao.CACHE_SUBDIRECTORY);
+  }
+
+  private double getCount(String name) {
+    return meterRegistry.get(name).counter().count();
+  }
+}
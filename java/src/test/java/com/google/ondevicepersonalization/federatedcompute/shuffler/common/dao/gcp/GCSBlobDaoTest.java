@@ -18,18 +18,21 @@ package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.gax.paging.Page;
 import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
@@ -39,12 +42,17 @@ import com.google.cloud.storage.StorageBatchResult;
 import com.google.cloud.storage.StorageException;
 import com.google.common.collect.ImmutableList;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodec;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
 import com.google.testing.junit.testparameterinjector.TestParameterInjector;
 import com.google.testing.junit.testparameterinjector.TestParameters;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.List;
 import java.util.Optional;
 import org.junit.Before;
@@ -53,6 +61,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 
 /** GCSBlob Dao test. */
 @RunWith(TestParameterInjector.class)
@@ -67,13 +76,14 @@ public final class GCSBlobDaoTest {
   @Mock StorageBatch mockStorageBatch;
   @Mock StorageBatchResult<Boolean> mockStorageBatchResult;
   @Mock ReadChannel mockReadChannel;
+  @Mock WriteChannel mockWriteChannel;
 
   GCSBlobDao blobDao;
 
   @Before
   public void setup() {
     MockitoAnnotations.initMocks(this);
-    blobDao = new GCSBlobDao(mockStorage, Optional.empty());
+    blobDao = new GCSBlobDao(mockStorage, Optional.empty(), "gzip", 0, 64, 16);
   }
 
   @Test
@@ -170,9 +180,71 @@ public final class GCSBlobDaoTest {
   }
 
   @Test
-  public void downloadAndDecompressIfNeeded_null() {
+  public void testGetGeneration_Succeeded() {
     // arrange
-    when(mockStorage.get(isA(BlobId.class))).thenReturn(null);
+    when(mockStorage.get(isA(BlobId.class), any(Storage.BlobGetOption.class)))
+        .thenReturn(mockBlob1);
+    when(mockBlob1.getGeneration()).thenReturn(42L);
+
+    // act
+    Optional<Long> generation =
+        blobDao.getGeneration(
+            BlobDescription.builder().host("test-bucket").resourceObject("path/file").build());
+
+    // assert
+    assertThat(generation).isEqualTo(Optional.of(42L));
+    verify(mockBlob1, times(0)).getContent();
+  }
+
+  @Test
+  public void testGetGeneration_null() {
+    // arrange
+    when(mockStorage.get(isA(BlobId.class), any(Storage.BlobGetOption.class))).thenReturn(null);
+
+    // assert
+    assertTrue(
+        blobDao
+            .getGeneration(
+                BlobDescription.builder().host("test-bucket").resourceObject("path/file").build())
+            .isEmpty());
+  }
+
+  @Test
+  public void testGetSize_Succeeded() {
+    // arrange
+    when(mockStorage.get(isA(BlobId.class), any(Storage.BlobGetOption.class)))
+        .thenReturn(mockBlob1);
+    when(mockBlob1.getSize()).thenReturn(1024L);
+
+    // act
+    Optional<Long> size =
+        blobDao.getSize(
+            BlobDescription.builder().host("test-bucket").resourceObject("path/file").build());
+
+    // assert
+    assertThat(size).isEqualTo(Optional.of(1024L));
+    verify(mockBlob1, times(0)).getContent();
+  }
+
+  @Test
+  public void testGetSize_null() {
+    // arrange
+    when(mockStorage.get(isA(BlobId.class), any(Storage.BlobGetOption.class))).thenReturn(null);
+
+    // assert
+    assertTrue(
+        blobDao
+            .getSize(
+                BlobDescription.builder().host("test-bucket").resourceObject("path/file").build())
+            .isEmpty());
+  }
+
+  @Test
+  public void downloadAndDecompressIfNeeded_null() throws IOException {
+    // arrange
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockReadChannel.read(any(ByteBuffer.class)))
+        .thenThrow(new StorageException(404, "Not found"));
 
     // assert
     assertTrue(
@@ -183,21 +255,13 @@ public final class GCSBlobDaoTest {
   }
 
   @Test
-  public void downloadAndDecompressIfNeeded_hasGzip_returnDecompressed() throws IOException {
+  public void downloadAndDecompressIfNeeded_hasGzip_singleRequestReturnDecompressed()
+      throws IOException {
     // arrange
     byte[] originalData = "HelloWorld11111111111111111111111111111111100000011".getBytes();
-    byte[] compressedData = CompressionUtils.compressWithGzip(originalData);
-    when(mockStorage.get(isA(BlobId.class))).thenReturn(mockBlob1);
     when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
-    when(mockBlob1.getContentEncoding()).thenReturn("gzip");
     when(mockReadChannel.read(any(ByteBuffer.class)))
-        .thenAnswer(
-            invocation -> {
-              ByteBuffer buffer = invocation.getArgument(0);
-              buffer.put(compressedData, 0, compressedData.length);
-              return compressedData.length;
-            })
-        .thenReturn(-1);
+        .thenAnswer(readFrom(CompressionUtils.compressWithGzip(originalData)));
 
     // act
     byte[] content =
@@ -208,17 +272,25 @@ public final class GCSBlobDaoTest {
 
     // assert
     assertThat(content).isEqualTo(originalData);
-    verify(mockStorage, times(1)).get(BlobId.of("test-bucket", "path/file"));
-    verify(mockBlob1, times(2)).getContentEncoding();
-    verify(mockReadChannel, times(1)).setChunkSize(1024);
+    verify(mockStorage, times(1)).reader(BlobId.of("test-bucket", "path/file"));
+    verify(mockStorage, never()).get(any(BlobId.class));
+    verify(mockReadChannel, times(1)).limit(64 * 1024 * 1024);
+    verify(mockReadChannel, times(1)).setChunkSize(RangedBlobDownloader.SERIAL_CHUNK_SIZE);
   }
 
   @Test
-  public void downloadAndDecompressIfNeeded_emptyContentEncoding_returnOriginal() {
+  public void downloadAndDecompressIfNeeded_hasZstdEncoding_returnDecompressed()
+      throws IOException {
     // arrange
-    when(mockStorage.get(isA(BlobId.class))).thenReturn(mockBlob1);
-    when(mockBlob1.getContentEncoding()).thenReturn("");
-    when(mockBlob1.getContent()).thenReturn(new byte[] {10, 20, 30});
+    byte[] originalData = "HelloWorld11111111111111111111111111111111100000011".getBytes();
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockReadChannel.read(any(ByteBuffer.class)))
+        .thenAnswer(readFrom(CompressionCodecs.create("zstd", 0).compress(originalData)));
+    when(mockStorage.get(
+            BlobId.of("test-bucket", "path/file"),
+            Storage.BlobGetOption.fields(Storage.BlobField.CONTENT_ENCODING)))
+        .thenReturn(mockBlob1);
+    when(mockBlob1.getContentEncoding()).thenReturn("zstd");
 
     // act
     byte[] content =
@@ -228,18 +300,23 @@ public final class GCSBlobDaoTest {
             .get();
 
     // assert
-    assertThat(content).isEqualTo(new byte[] {10, 20, 30});
-    verify(mockStorage, times(1)).get(BlobId.of("test-bucket", "path/file"));
-    verify(mockBlob1, times(1)).getContentEncoding();
-    verify(mockBlob1, times(1)).getContent();
+    assertThat(content).isEqualTo(originalData);
   }
 
   @Test
-  public void downloadAndDecompressIfNeeded_nullContentEncoding_returnOriginal() {
+  public void downloadAndDecompressIfNeeded_zstdMagicWithoutEncoding_returnOriginal()
+      throws IOException {
     // arrange
-    when(mockStorage.get(isA(BlobId.class))).thenReturn(mockBlob1);
+    byte[] compressed =
+        CompressionCodecs.create("zstd", 0)
+            .compress("HelloWorld11111111111111111111111111111111100000011".getBytes());
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockReadChannel.read(any(ByteBuffer.class))).thenAnswer(readFrom(compressed));
+    when(mockStorage.get(
+            BlobId.of("test-bucket", "path/file"),
+            Storage.BlobGetOption.fields(Storage.BlobField.CONTENT_ENCODING)))
+        .thenReturn(mockBlob1);
     when(mockBlob1.getContentEncoding()).thenReturn(null);
-    when(mockBlob1.getContent()).thenReturn(new byte[] {10, 20, 30});
 
     // act
     byte[] content =
@@ -249,18 +326,15 @@ public final class GCSBlobDaoTest {
             .get();
 
     // assert
-    assertThat(content).isEqualTo(new byte[] {10, 20, 30});
-    verify(mockStorage, times(1)).get(BlobId.of("test-bucket", "path/file"));
-    verify(mockBlob1, times(1)).getContentEncoding();
-    verify(mockBlob1, times(1)).getContent();
+    assertThat(content).isEqualTo(compressed);
   }
 
   @Test
-  public void downloadAndDecompressIfNeeded_unsupportedContentEncoding_returnOriginal() {
+  public void downloadAndDecompressIfNeeded_uncompressed_returnOriginal() throws IOException {
     // arrange
-    when(mockStorage.get(isA(BlobId.class))).thenReturn(mockBlob1);
-    when(mockBlob1.getContentEncoding()).thenReturn("unsupported");
-    when(mockBlob1.getContent()).thenReturn(new byte[] {10, 20, 30});
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockReadChannel.read(any(ByteBuffer.class)))
+        .thenAnswer(readFrom(new byte[] {10, 20, 30}));
 
     // act
     byte[] content =
@@ -271,9 +345,25 @@ public final class GCSBlobDaoTest {
 
     // assert
     assertThat(content).isEqualTo(new byte[] {10, 20, 30});
-    verify(mockStorage, times(1)).get(BlobId.of("test-bucket", "path/file"));
-    verify(mockBlob1, times(3)).getContentEncoding();
-    verify(mockBlob1, times(1)).getContent();
+  }
+
+  @Test
+  public void downloadAndDecompressIfNeeded_magicBytesNotCompressed_returnOriginal()
+      throws IOException {
+    // arrange
+    byte[] originalData = new byte[] {0x1f, (byte) 0x8b, 0x08, 10, 20, 30};
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockReadChannel.read(any(ByteBuffer.class))).thenAnswer(readFrom(originalData));
+
+    // act
+    byte[] content =
+        blobDao
+            .downloadAndDecompressIfNeeded(
+                BlobDescription.builder().host("test-bucket").resourceObject("path/file").build())
+            .get();
+
+    // assert
+    assertThat(content).isEqualTo(originalData);
   }
 
   @Test
@@ -347,6 +437,124 @@ public final class GCSBlobDaoTest {
         .isEqualTo(CompressionUtils.compressWithGzip(content));
   }
 
+  @Test
+  public void openStream_null() {
+    when(mockStorage.get(isA(BlobId.class))).thenReturn(null);
+    BlobDescription file =
+        BlobDescription.builder().host("test-bucket").resourceObject("path/file").build();
+
+    assertThat(blobDao.openStream(file).isPresent()).isFalse();
+    assertThat(blobDao.openStreamAndDecompressIfNeeded(file).isPresent()).isFalse();
+  }
+
+  @Test
+  public void openStreamAndDecompressIfNeeded_hasGzip_streamsGenerationDecompressed()
+      throws IOException {
+    // arrange
+    byte[] originalData = "HelloWorld11111111111111111111111111111111100000011".getBytes();
+    when(mockStorage.get(isA(BlobId.class))).thenReturn(mockBlob1);
+    when(mockStorage.reader(isA(BlobId.class))).thenReturn(mockReadChannel);
+    when(mockBlob1.getContentEncoding()).thenReturn("gzip");
+    when(mockBlob1.getGeneration()).thenReturn(7L);
+    when(mockReadChannel.read(any(ByteBuffer.class)))
+        .thenAnswer(readFrom(CompressionUtils.compressWithGzip(originalData)));
+
+    // act
+    byte[] content;
+    try (InputStream input =
+        blobDao
+            .openStreamAndDecompressIfNeeded(
+                BlobDescription.builder().host("test-bucket").resourceObject("path/file").build())
+            .get()) {
+      content = input.readAllBytes();
+    }
+
+    // assert
+    assertThat(content).isEqualTo(originalData);
+    verify(mockStorage, times(1)).reader(BlobId.of("test-bucket", "path/file", 7L));
+    verify(mockReadChannel, times(1)).setChunkSize(2 * 1024 * 1024);
+    verify(mockReadChannel, times(1)).close();
+  }
+
+  @Test
+  public void compressAndUploadInternalStreaming_commitsCompressedContent() throws IOException {
+    // arrange
+    blobDao = new GCSBlobDao(mockStorage, Optional.empty(), "zstd", 0, 64, 16);
+    byte[] content = "HelloWorld11111111111111111111111111111111100000011".getBytes();
+    ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+    when(mockStorage.writer(isA(BlobInfo.class))).thenReturn(mockWriteChannel);
+    when(mockWriteChannel.write(any(ByteBuffer.class))).thenAnswer(writeTo(uploaded));
+
+    // act
+    blobDao.compressAndUploadInternalStreaming(
+        BlobDescription.builder().host("test-bucket").resourceObject("path/file").build(),
+        (channel) -> Channels.newOutputStream(channel).write(content));
+
+    // assert
+    verify(mockStorage)
+        .writer(
+            BlobInfo.newBuilder(BlobId.of("test-bucket", "path/file"))
+                .setContentEncoding("zstd")
+                .build());
+    verify(mockWriteChannel, times(1)).close();
+    CompressionCodec codec = CompressionCodecs.forContentEncoding("zstd").get();
+    assertThat(codec.uncompress(uploaded.toByteArray())).isEqualTo(content);
+  }
+
+  @Test
+  public void compressAndUploadStreaming_writerFails_uploadNotCommitted() throws IOException {
+    // arrange
+    when(mockStorage.writer(isA(BlobInfo.class))).thenReturn(mockWriteChannel);
+    when(mockWriteChannel.write(any(ByteBuffer.class)))
+        .thenAnswer(writeTo(new ByteArrayOutputStream()));
+
+    // act
+    assertThrows(
+        IOException.class,
+        () ->
+            blobDao.compressAndUploadStreaming(
+                BlobDescription.builder().host("test-bucket").resourceObject("path/file").build(),
+                (channel) -> {
+                  Channels.newOutputStream(channel).write(new byte[] {10, 20, 30});
+                  throw new IOException("Failed to write");
+                }));
+
+    // assert
+    verify(mockWriteChannel, never()).close();
+  }
+
+  @Test
+  public void compressAndUploadInternal_usesServerBlobCodec() throws IOException {
+    // arrange
+    blobDao = new GCSBlobDao(mockStorage, Optional.empty(), "lz4", 0, 64, 16);
+    byte[] content = new byte[] {10, 20, 30};
+    BlobDescription blobDescription =
+        BlobDescription.builder().host("test-bucket").resourceObject("path/file").build();
+    BlobId blobId = BlobId.of("test-bucket", "path/file");
+    when(mockStorage.createFrom(isA(BlobInfo.class), isA(ByteArrayInputStream.class)))
+        .thenReturn(mockBlob1);
+
+    // act
+    blobDao.compressAndUploadInternal(blobDescription, content);
+
+    // assert
+    ArgumentCaptor<ByteArrayInputStream> contentCaptor =
+        ArgumentCaptor.forClass(ByteArrayInputStream.class);
+    ArgumentCaptor<BlobInfo> blobInfoCaptor = ArgumentCaptor.forClass(BlobInfo.class);
+    verify(mockStorage).createFrom(blobInfoCaptor.capture(), contentCaptor.capture());
+    assertThat(blobInfoCaptor.getValue())
+        .isEqualTo(BlobInfo.newBuilder(blobId).setContentEncoding("lz4").build());
+    CompressionCodec codec = CompressionCodecs.forContentEncoding("lz4").get();
+    assertThat(codec.uncompress(contentCaptor.getValue().readAllBytes())).isEqualTo(content);
+  }
+
+  @Test
+  public void constructor_unsupportedServerBlobCompressionFormat_throws() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new GCSBlobDao(mockStorage, Optional.empty(), "brotli", 0, 64, 16));
+  }
+
   @Test
   public void checkExistsAndGzipContentIfNeeded_notExists_returnFalse() throws IOException {
     // arrange
@@ -623,4 +831,31 @@ public final class GCSBlobDaoTest {
     assertFalse(result);
     verify(mockStorageBatch, times(1)).submit();
   }
+
+  /** Serves the data to the reads of a channel. */
+  private static Answer<Integer> readFrom(byte[] data) {
+    ByteBuffer source = ByteBuffer.wrap(data);
+    return invocation -> {
+      if (!source.hasRemaining()) {
+        return -1;
+      }
+      ByteBuffer buffer = invocation.getArgument(0);
+      int length = Math.min(buffer.remaining(), source.remaining());
+      buffer.put(source.slice().limit(length));
+      source.position(source.position() + length);
+      return length;
+    };
+  }
+
+  /** Collects the writes to a channel into the output. */
+  private static Answer<Integer> writeTo(ByteArrayOutputStream output) {
+    return invocation -> {
+      ByteBuffer buffer = invocation.getArgument(0);
+      int length = buffer.remaining();
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      output.write(bytes);
+      return length;
+    };
+  }
 }
@@ -0,0 +1,221 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.gcp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RestorableState;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class RangedBlobDownloaderTest {
+
+  private static final BlobId BLOB_ID = BlobId.of("bucket", "path/checkpoint");
+  private static final int PART_BYTES = 256;
+  private static final byte[] CONTENT = generate(10 * PART_BYTES + 17);
+
+  @Mock Storage storage;
+  @Mock Blob blob;
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final List<FakeReadChannel> readers = new CopyOnWriteArrayList<>();
+  private RangedBlobDownloader downloader;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(storage.reader(any(BlobId.class)))
+        .thenAnswer(
+            (invocation) -> {
+              FakeReadChannel reader = new FakeReadChannel(CONTENT);
+              readers.add(reader);
+              return reader;
+            });
+    when(storage.get(BLOB_ID)).thenReturn(blob);
+    when(blob.getGeneration()).thenReturn(7L);
+    when(blob.getSize()).thenReturn((long) CONTENT.length);
+    downloader = new RangedBlobDownloader(storage, executor, 4 * PART_BYTES, PART_BYTES);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testDownload_smallBlobDownloadedInSingleRequest() {
+    downloader = new RangedBlobDownloader(storage, executor, CONTENT.length + 1, PART_BYTES);
+
+    byte[] content = downloader.download(BLOB_ID).get();
+
+    assertThat(content).isEqualTo(CONTENT);
+    assertThat(readers).hasSize(1);
+    assertThat(readers.get(0).limit).isEqualTo(CONTENT.length + 1);
+    assertThat(readers.get(0).chunkSize).isEqualTo(RangedBlobDownloader.SERIAL_CHUNK_SIZE);
+    verify(storage, never()).get(any(BlobId.class));
+  }
+
+  @Test
+  public void testDownload_largeBlobRestDownloadedAsRanges() {
+    when(blob.getCrc32c()).thenReturn(getCrc32c(CONTENT));
+
+    byte[] content = downloader.download(BLOB_ID).get();
+
+    assertThat(content).isEqualTo(CONTENT);
+    assertThat(readers).hasSize(8);
+    assertThat(readers.stream().mapToLong((reader) -> reader.start).sorted().toArray())
+        .asList()
+        .containsExactly(0L, 1024L, 1280L, 1536L, 1792L, 2048L, 2304L, 2560L)
+        .inOrder();
+    assertThat(readers.stream().allMatch((reader) -> reader.closed)).isTrue();
+    verify(storage, times(1)).get(BLOB_ID);
+    verify(storage, times(7)).reader(BlobId.of("bucket", "path/checkpoint", 7L));
+  }
+
+  @Test
+  public void testDownload_largeBlobOfUnknownSizeDownloadedSerially() {
+    when(blob.getSize()).thenReturn(null);
+
+    byte[] content = downloader.download(BLOB_ID).get();
+
+    assertThat(content).isEqualTo(CONTENT);
+    assertThat(readers).hasSize(2);
+  }
+
+  @Test
+  public void testDownload_notFound() {
+    when(storage.reader(any(BlobId.class)))
+        .thenThrow(new StorageException(HttpURLConnection.HTTP_NOT_FOUND, "Not found"));
+
+    assertThat(downloader.download(BLOB_ID).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testDownload_crc32cMismatch_throws() {
+    when(blob.getCrc32c()).thenReturn(getCrc32c(new byte[] {1, 2, 3}));
+
+    assertThrows(IllegalStateException.class, () -> downloader.download(BLOB_ID));
+  }
+
+  @Test
+  public void testDownload_blobShorterThanSize_throws() {
+    when(blob.getSize()).thenReturn(CONTENT.length + 100L);
+
+    assertThrows(IllegalStateException.class, () -> downloader.download(BLOB_ID));
+  }
+
+  private static String getCrc32c(byte[] data) {
+    CRC32C crc32c = new CRC32C();
+    crc32c.update(data);
+    return BaseEncoding.base64().encode(Ints.toByteArray((int) crc32c.getValue()));
+  }
+
+  private static byte[] generate(int size) {
+    byte[] data = new byte[size];
+    new Random(0).nextBytes(data);
+    return data;
+  }
+
+  /** Reads the range of the content between the seek position and the limit. */
+  private static final class FakeReadChannel implements ReadChannel {
+    private final byte[] content;
+    private long start;
+    private long position;
+    private long limit = Long.MAX_VALUE;
+    private int chunkSize;
+    private boolean closed;
+
+    FakeReadChannel(byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+      long end = Math.min(limit, content.length);
+      if (position >= end) {
+        return -1;
+      }
+      int length = (int) Math.min(buffer.remaining(), end - position);
+      buffer.put(content, (int) position, length);
+      position += length;
+      return length;
+    }
+
+    @Override
+    public void seek(long position) {
+      this.start = position;
+      this.position = position;
+    }
+
+    @Override
+    public ReadChannel limit(long limit) {
+      this.limit = limit;
+      return this;
+    }
+
+    @Override
+    public long limit() {
+      return limit;
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public RestorableState<ReadChannel> capture() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closed;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -510,6 +510,40 @@ public final class TaskSpannerDaoTest {
                     .build()));
   }
 
+  @Test
+  public void testSwapIterationCollector_returnsPreviousCollector() {
+    // arrange
+    dbClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              insertTask(
+                  transaction,
+                  "us",
+                  /* taskId= */ 111,
+                  /* status= */ 0,
+                  /* insertStatusHist= */ true);
+              insertIteration(
+                  transaction,
+                  /* populationName= */ "us",
+                  /* taskId= */ 111,
+                  /* iterationId= */ 10,
+                  /* status= */ 0,
+                  /* reportGoal= */ 300,
+                  /* insertStatusHist= */ true);
+              return null;
+            });
+    IterationId iterationId =
+        IterationId.builder().iterationId(10).taskId(111).attemptId(0).populationName("us").build();
+
+    // act and assert
+    assertThat(dao.swapIterationCollector(iterationId, "replica-1")).isEqualTo(Optional.empty());
+    assertThat(dao.swapIterationCollector(iterationId, "replica-1"))
+        .isEqualTo(Optional.of("replica-1"));
+    assertThat(dao.swapIterationCollector(iterationId, "replica-2"))
+        .isEqualTo(Optional.of("replica-1"));
+  }
+
   @Test
   public void testIterationById_Succeeded() {
     // arrange
@@ -0,0 +1,177 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.compression.CompressionCodecs;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FileSystemBlobDaoTest {
+
+  private static final byte[] CONTENT = new byte[] {1, 2, 3, 4, 5};
+  private static final BlobDescription FILE =
+      BlobDescription.builder().host("bucket").resourceObject("us/35/17/s/0/checkpoint").build();
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private FileSystemBlobDao dao;
+
+  @Before
+  public void setUp() {
+    dao = new FileSystemBlobDao(temporaryFolder.getRoot().getAbsolutePath(), "zstd", 0);
+  }
+
+  @Test
+  public void testUploadAndDownload() throws Exception {
+    dao.upload(FILE, CONTENT);
+
+    assertThat(dao.download(FILE).get()).isEqualTo(CONTENT);
+    assertThat(dao.getSize(FILE).get()).isEqualTo(CONTENT.length);
+    assertThat(dao.getGeneration(FILE).isPresent()).isTrue();
+    assertThat(Files.readAllBytes(getPath("bucket/us/35/17/s/0/checkpoint"))).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void testDownload_missingFile() {
+    assertThat(dao.download(FILE).isPresent()).isFalse();
+    assertThat(dao.downloadAndDecompressIfNeeded(FILE).isPresent()).isFalse();
+    assertThat(dao.openStream(FILE).isPresent()).isFalse();
+    assertThat(dao.getGeneration(FILE).isPresent()).isFalse();
+    assertThat(dao.getSize(FILE).isPresent()).isFalse();
+  }
+
+  @Test
+  public void testDownload_byFileUrl() throws Exception {
+    dao.upload(FILE, CONTENT);
+    BlobDescription byUrl =
+        BlobDescription.builder()
+            .url(getPath("bucket/us/35/17/s/0/checkpoint").toUri().toString())
+            .build();
+
+    assertThat(dao.download(byUrl).get()).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void testDownloadAndDecompressIfNeeded_detectsCodec() throws Exception {
+    dao.compressAndUpload(FILE, CONTENT);
+    assertThat(dao.download(FILE).get()).isNotEqualTo(CONTENT);
+    assertThat(dao.downloadAndDecompressIfNeeded(FILE).get()).isEqualTo(CONTENT);
+
+    dao.compressAndUploadInternal(FILE, CONTENT);
+    assertThat(CompressionCodecs.detect(dao.download(FILE).get()).get().getContentEncoding())
+        .isEqualTo("zstd");
+    assertThat(dao.downloadAndDecompressIfNeeded(FILE).get()).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void testOpenStreamAndDecompressIfNeeded() throws Exception {
+    dao.compressAndUploadInternalStreaming(
+        FILE, (channel) -> channel.write(ByteBuffer.wrap(CONTENT)));
+
+    try (InputStream input = dao.openStreamAndDecompressIfNeeded(FILE).get()) {
+      assertThat(input.readAllBytes()).isEqualTo(CONTENT);
+    }
+  }
+
+  @Test
+  public void testOpenStreamAndDecompressIfNeeded_uncompressed() throws Exception {
+    dao.upload(FILE, CONTENT);
+
+    try (InputStream input = dao.openStreamAndDecompressIfNeeded(FILE).get()) {
+      assertThat(input.readAllBytes()).isEqualTo(CONTENT);
+    }
+  }
+
+  @Test
+  public void testUploadStreaming_failedWriterLeavesNoFile() throws Exception {
+    assertThrows(
+        IOException.class,
+        () ->
+            dao.compressAndUploadStreaming(
+                FILE,
+                (channel) -> {
+                  channel.write(ByteBuffer.wrap(CONTENT));
+                  throw new IOException("failed");
+                }));
+
+    assertThat(dao.exists(new BlobDescription[] {FILE})).isFalse();
+    assertThat(temporaryFolder.getRoot().toPath().resolve(".uploads").toFile().list()).isEmpty();
+  }
+
+  @Test
+  public void testList() throws Exception {
+    dao.upload(getFile("us/35/17/d/session_1/gradient"), CONTENT);
+    dao.upload(getFile("us/35/17/d/session_2/gradient"), CONTENT);
+    dao.upload(getFile("us/35/17/d/file"), CONTENT);
+
+    assertThat(dao.list(getFile("us/35/17/d/")))
+        .containsExactly("file", "session_1/", "session_2/")
+        .inOrder();
+    assertThat(dao.listByPartition(getFile("us/35/17/d/"), List.of("session_2", "other")))
+        .containsExactly("session_2/");
+    assertThat(dao.list(getFile("us/35/18/d/"))).isEmpty();
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    dao.upload(getFile("us/35/17/d/session_1/gradient"), CONTENT);
+    dao.upload(getFile("us/35/18/d/session_1/gradient"), CONTENT);
+
+    assertThat(dao.delete(getFile("us/35/17/"))).isTrue();
+
+    assertThat(dao.exists(new BlobDescription[] {getFile("us/35/17/d/session_1/gradient")}))
+        .isFalse();
+    assertThat(dao.exists(new BlobDescription[] {getFile("us/35/18/d/session_1/gradient")}))
+        .isTrue();
+  }
+
+  @Test
+  public void testCheckExistsAndGzipContentIfNeeded() throws Exception {
+    dao.upload(FILE, CONTENT);
+
+    assertThat(dao.checkExistsAndGzipContentIfNeeded(new BlobDescription[] {FILE})).isTrue();
+    assertThat(CompressionCodecs.detect(dao.download(FILE).get()).get())
+        .isSameInstanceAs(CompressionCodecs.GZIP);
+
+    dao.compressAndUploadInternal(FILE, CONTENT);
+    assertThat(dao.checkExistsAndGzipContentIfNeeded(new BlobDescription[] {FILE})).isFalse();
+    assertThat(dao.checkExistsAndGzipContentIfNeeded(new BlobDescription[] {getFile("missing")}))
+        .isFalse();
+  }
+
+  private Path getPath(String path) {
+    return temporaryFolder.getRoot().toPath().resolve(path);
+  }
+
+  private static BlobDescription getFile(String object) {
+    return BlobDescription.builder().host("bucket").resourceObject(object).build();
+  }
+}
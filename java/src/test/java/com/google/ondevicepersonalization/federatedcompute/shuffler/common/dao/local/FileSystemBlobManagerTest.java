@@ -0,0 +1,140 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.CompressionUtils.CompressionFormat;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.AssignmentEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.Partitioner;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.TaskEntity;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class FileSystemBlobManagerTest {
+
+  private static final byte[] CONTENT = new byte[] {1, 2, 3};
+  private static final TaskEntity TASK =
+      TaskEntity.builder().populationName("us").taskId(35).build();
+  private static final IterationEntity ITERATION =
+      IterationEntity.builder()
+          .populationName("us")
+          .taskId(35)
+          .iterationId(15)
+          .baseOnResultId(13)
+          .resultId(17)
+          .aggregationLevel(1)
+          .build();
+  private static final AssignmentEntity ASSIGNMENT =
+      AssignmentEntity.builder()
+          .populationName("us")
+          .taskId(35)
+          .iterationId(15)
+          .baseOnResultId(13)
+          .resultId(17)
+          .sessionId("xyz")
+          .build();
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Mock Partitioner partitioner;
+  private FileSystemBlobManager manager;
+  private FileSystemBlobDao dao;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(partitioner.getDeviceGradientPartition(anyString())).thenReturn(1);
+    when(partitioner.getDeviceGradientPartitionCount()).thenReturn(2);
+    when(partitioner.getPlanStoragePartitionCount()).thenReturn(2);
+    when(partitioner.getPlanStoagePartition(anyString(), anyLong(), anyLong())).thenReturn(1);
+    when(partitioner.getCheckpointStoragePartitionCount()).thenReturn(2);
+    when(partitioner.getCheckpointStoagePartition(anyString(), anyLong(), anyLong()))
+        .thenReturn(0);
+    when(partitioner.getAggregatedResultPartition(anyString(), anyLong(), anyLong()))
+        .thenReturn(0);
+    String root = temporaryFolder.getRoot().getAbsolutePath();
+    manager = new FileSystemBlobManager(partitioner, root, "gra-%d", "agg-%d", "mdl-%d");
+    dao = new FileSystemBlobDao(root, "gzip", 0);
+  }
+
+  @Test
+  public void testGenerateUploadGradientDescription() {
+    BlobDescription description =
+        manager.generateUploadGradientDescription(ASSIGNMENT, CompressionFormat.GZIP);
+
+    assertThat(description.getHost()).isEqualTo("gra-1");
+    assertThat(description.getResourceObject()).isEqualTo("us/35/17/d/xyz/gradient");
+    assertThat(description.getUrl())
+        .isEqualTo(getPath("gra-1/us/35/17/d/xyz/gradient").toUri().toString());
+  }
+
+  @Test
+  public void testUploadedPlanDownloadedByDevices() throws Exception {
+    BlobDescription[] uploads = manager.generateUploadDevicePlanDescriptions(TASK);
+    assertThat(uploads).hasLength(2);
+    for (BlobDescription upload : uploads) {
+      dao.compressAndUpload(upload, CONTENT);
+    }
+
+    BlobDescription download = manager.generateDownloadDevicePlanDescription(ASSIGNMENT);
+
+    assertThat(download.getUrl())
+        .isEqualTo(getPath("mdl-1/us/35/0/s/0/client_only_plan").toUri().toString());
+    assertThat(dao.downloadAndDecompressIfNeeded(download).get()).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void testUploadedGradientsListedByCollector() throws Exception {
+    dao.upload(
+        manager.generateUploadGradientDescription(ASSIGNMENT, CompressionFormat.GZIP), CONTENT);
+
+    BlobDescription[] folders = manager.generateDownloadGradientDescriptions(ITERATION);
+
+    assertThat(folders).hasLength(2);
+    assertThat(folders[1].getUrl()).endsWith("/gra-1/us/35/17/d/");
+    assertThat(dao.list(folders[1])).containsExactly("xyz/");
+    BlobDescription gradient = manager.getDeviceUploadedGradientFullPath(folders[1], "xyz/");
+    assertThat(dao.download(gradient).get()).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void testCheckpointDescriptions() {
+    assertThat(manager.generateUploadCheckpointDescriptions(ITERATION)[1].getResourceObject())
+        .isEqualTo("us/35/17/s/0/checkpoint");
+    assertThat(manager.generateDownloadCheckpointDescription(ASSIGNMENT).getResourceObject())
+        .isEqualTo("us/35/13/d/0/client_checkpoint");
+    assertThat(manager.generateDownloadAggregatedGradientDescription(ITERATION).getResourceObject())
+        .isEqualTo("us/35/17/s/0/0/");
+  }
+
+  private Path getPath(String path) {
+    return temporaryFolder.getRoot().toPath().resolve(path);
+  }
+}
@@ -0,0 +1,224 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.fcp.aggregation.AggregationSession;
+import com.google.fcp.plan.PhaseSession;
+import com.google.fcp.plan.PlanSession;
+import com.google.fcp.tensorflow.AppFiles;
+import com.google.internal.federated.plan.Plan;
+import com.google.internal.federated.plan.ServerPhaseV2;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache.ServerPlan;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class AggregationSessionPoolTest {
+
+  private static final byte[] PLAN_BYTES = new byte[10];
+  private static final ServerPlan PLAN =
+      new ServerPlan(
+          "bucket/plan#1",
+          PLAN_BYTES,
+          Plan.newBuilder()
+              .addPhase(
+                  Plan.Phase.newBuilder().setServerPhaseV2(ServerPhaseV2.getDefaultInstance()))
+              .build());
+  private static final ServerPlan PLAN_V1 =
+      new ServerPlan(
+          "bucket/plan_v1#1",
+          PLAN_BYTES,
+          Plan.newBuilder().addPhase(Plan.Phase.getDefaultInstance()).build());
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(10);
+  private static final Instant NOW = Instant.parse("2023-09-01T00:00:00Z");
+
+  @Mock TensorflowPlanSessionFactory factory;
+  @Mock PlanSession planSession;
+  @Mock AppFiles appFiles;
+  private final AtomicReference<Instant> now = new AtomicReference<>(NOW);
+  private final InstantSource instantSource = now::get;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(factory.createAggregationSession(PLAN_BYTES))
+        .thenAnswer((invocation) -> mock(AggregationSession.class));
+    when(factory.createPlanSession(any())).thenReturn(planSession);
+    when(planSession.createPhaseSession(any(), any()))
+        .thenAnswer((invocation) -> mock(PhaseSession.class));
+  }
+
+  @Test
+  public void testTake_disabledCreatesSessions() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 0, 0, IDLE_TIMEOUT);
+
+    AggregationSession first = pool.takeAggregationSession(PLAN);
+    AggregationSession second = pool.takeAggregationSession(PLAN);
+
+    assertThat(second).isNotSameInstanceAs(first);
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(0);
+    verify(factory, times(2)).createAggregationSession(PLAN_BYTES);
+  }
+
+  @Test
+  public void testTake_returnsPooledSessionAndRefills() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 2, 1024, IDLE_TIMEOUT);
+    pool.fill(PLAN);
+    verify(factory, times(2)).createAggregationSession(PLAN_BYTES);
+
+    AggregationSession session = pool.takeAggregationSession(PLAN);
+
+    assertThat(session).isNotNull();
+    verify(factory, timeout(5000).times(3)).createAggregationSession(PLAN_BYTES);
+  }
+
+  @Test
+  public void testTake_phaseSessionPooled() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 1, 1024, IDLE_TIMEOUT);
+    pool.fill(PLAN_V1);
+
+    assertThat(pool.getIdleSessionCount(PLAN_V1)).isEqualTo(1);
+    assertThat(pool.takePhaseSession(PLAN_V1)).isNotNull();
+    verify(planSession, timeout(5000).times(2)).createPhaseSession(any(), any());
+  }
+
+  @Test
+  public void testFill_boundedByMemoryBudget() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 4, 25, IDLE_TIMEOUT);
+
+    pool.fill(PLAN);
+
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(2);
+    assertThat(pool.getPooledBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void testReserve_fillsBeyondPoolSizeForGroup() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 1, 1024, IDLE_TIMEOUT);
+
+    pool.reserve(PLAN, 3);
+
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(3);
+    verify(factory, times(3)).createAggregationSession(PLAN_BYTES);
+  }
+
+  @Test
+  public void testReserve_disabledDoesNothing() {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 0, 0, IDLE_TIMEOUT);
+
+    pool.reserve(PLAN, 3);
+
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(0);
+    verify(factory, never()).createAggregationSession(PLAN_BYTES);
+  }
+
+  @Test
+  public void testRefill_accountsForResultSize() throws Exception {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 2, 100, IDLE_TIMEOUT);
+    pool.fill(PLAN);
+    assertThat(pool.getPooledBytes()).isEqualTo(20);
+
+    pool.recordResult(PLAN, new byte[40]);
+    pool.takeAggregationSession(PLAN);
+    awaitIdleSessions(pool, 2);
+
+    assertThat(pool.getPooledBytes()).isEqualTo(60);
+  }
+
+  @Test
+  public void testEvictIdle_closesSessionsOfUnusedPlans() throws Exception {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 1, 1024, IDLE_TIMEOUT);
+    pool.fill(PLAN);
+    AggregationSession pooled = pool.takeAggregationSession(PLAN);
+    awaitIdleSessions(pool, 1);
+
+    pool.evictIdle();
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(1);
+
+    now.set(NOW.plus(IDLE_TIMEOUT).plusSeconds(1));
+    pool.evictIdle();
+
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(0);
+    assertThat(pool.getPooledBytes()).isEqualTo(0);
+    assertThat(pooled).isNotNull();
+  }
+
+  @Test
+  public void testReserve_concurrentWithRefillDoesNotOvershoot() throws Exception {
+    AggregationSessionPool pool =
+        new AggregationSessionPool(factory, appFiles, instantSource, 2, 1024, IDLE_TIMEOUT);
+    pool.fill(PLAN);
+    CountDownLatch constructing = new CountDownLatch(1);
+    CountDownLatch proceed = new CountDownLatch(1);
+    when(factory.createAggregationSession(PLAN_BYTES))
+        .thenAnswer(
+            (invocation) -> {
+              constructing.countDown();
+              proceed.await();
+              return mock(AggregationSession.class);
+            });
+
+    // The background refill reserves the slot freed by the taken session and blocks in it.
+    pool.takeAggregationSession(PLAN);
+    constructing.await();
+    Thread reserving = new Thread(() -> pool.reserve(PLAN, 2));
+    reserving.start();
+    reserving.join(200);
+    proceed.countDown();
+    reserving.join();
+    awaitIdleSessions(pool, 2);
+
+    Thread.sleep(100);
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(2);
+    verify(factory, times(3)).createAggregationSession(PLAN_BYTES);
+  }
+
+  private static void awaitIdleSessions(AggregationSessionPool pool, int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + 5_000_000_000L;
+    while (pool.getIdleSessionCount(PLAN) < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(pool.getIdleSessionCount(PLAN)).isEqualTo(count);
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.slf4j.MDC;
+
+@RunWith(JUnit4.class)
+public final class AggregationTreePlannerTest {
+
+  private static final long HEAP_BUDGET = 1024L * 1024 * 1024;
+
+  @Test
+  public void testGetFanIn_disabledUsesSquareRoot() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(false, 8, HEAP_BUDGET);
+
+    assertThat(planner.getFanIn(1, 1024)).isEqualTo(1);
+    assertThat(planner.getFanIn(3, 1024)).isEqualTo(2);
+    assertThat(planner.getFanIn(100, 1024)).isEqualTo(10);
+  }
+
+  @Test
+  public void testGetFanIn_cheapSessionsSpreadOverProcessors() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 8, HEAP_BUDGET);
+    recordSessions(planner, Duration.ofMillis(1), Duration.ofMillis(10));
+
+    // With a negligible session overhead, the inputs are split evenly over the processors.
+    assertThat(planner.getFanIn(800, 1024)).isIn(List.of(100, 101, 102, 103, 104));
+  }
+
+  @Test
+  public void testGetFanIn_expensiveSessionsReduceDepth() {
+    AggregationTreePlanner cheap = new AggregationTreePlanner(true, 8, HEAP_BUDGET);
+    recordSessions(cheap, Duration.ofMillis(1), Duration.ofMillis(10));
+    AggregationTreePlanner expensive = new AggregationTreePlanner(true, 8, HEAP_BUDGET);
+    recordSessions(expensive, Duration.ofSeconds(60), Duration.ofMillis(10));
+
+    // Sessions costlier than the whole aggregation are avoided, aggregating in a single session.
+    assertThat(expensive.getFanIn(800, 1024)).isEqualTo(800);
+    assertThat(cheap.getFanIn(800, 1024)).isLessThan(800);
+  }
+
+  @Test
+  public void testGetFanIn_heapBudgetLimitsConcurrency() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 8, 2 * 1024);
+    recordSessions(planner, Duration.ofMillis(1), Duration.ofMillis(10));
+
+    // Only two partial results fit the heap budget.
+    assertThat(planner.getFanIn(800, 1024)).isIn(List.of(400, 401, 402));
+  }
+
+  @Test
+  public void testGetSessionCost_fitsMeasuredSessions() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 8, HEAP_BUDGET);
+    recordSessions(planner, Duration.ofMillis(50), Duration.ofMillis(5));
+
+    double[] cost = planner.getSessionCost();
+
+    assertThat(cost[0]).isWithin(1e3).of(Duration.ofMillis(50).toNanos());
+    assertThat(cost[1]).isWithin(1e3).of(Duration.ofMillis(5).toNanos());
+  }
+
+  @Test
+  public void testGetSessionCost_defaultWithoutMeasurements() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 8, HEAP_BUDGET);
+    planner.recordSession(10, Duration.ofMillis(100));
+
+    double[] cost = planner.getSessionCost();
+
+    assertThat(cost[0])
+        .isEqualTo((double) AggregationTreePlanner.DEFAULT_SESSION_OVERHEAD.toNanos());
+    assertThat(cost[1]).isEqualTo((double) AggregationTreePlanner.DEFAULT_INPUT_COST.toNanos());
+  }
+
+  @Test
+  public void testAggregate_disabledMatchesTwoLayers() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(false, 8, HEAP_BUDGET);
+    List<Integer> sessionSizes = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> intermediateSessionSizes = Collections.synchronizedList(new ArrayList<>());
+
+    byte[] result =
+        planner.aggregate(
+            inputs(10),
+            false,
+            (inputs, intermediate) -> {
+              sessionSizes.add(inputs.size());
+              if (intermediate) {
+                intermediateSessionSizes.add(inputs.size());
+              }
+              return sum(inputs);
+            });
+
+    // Partitions of 4, 4 and 2 inputs, then the final session merging the 3 partial results.
+    assertThat(result).isEqualTo(new byte[] {10});
+    assertThat(sessionSizes).containsExactly(4, 4, 2, 3);
+    assertThat(intermediateSessionSizes).containsExactly(3);
+  }
+
+  @Test
+  public void testReduce_fitsSinglePartition() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(false, 8, HEAP_BUDGET);
+    List<byte[]> inputs = inputs(2);
+
+    assertThat(planner.reduce(inputs, true, (partition, intermediate) -> sum(partition)))
+        .isSameInstanceAs(inputs);
+  }
+
+  @Test
+  public void testGetFanIn_singleProcessorSingleSession() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 1, HEAP_BUDGET);
+    recordSessions(planner, Duration.ofMillis(1), Duration.ofMillis(10));
+
+    // Without concurrency, intermediate layers only add work.
+    assertThat(planner.getFanIn(16, 1)).isEqualTo(16);
+  }
+
+  @Test
+  public void testReduce_enabledSpreadsOverProcessors() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 4, HEAP_BUDGET);
+    recordSessions(planner, Duration.ofMillis(1), Duration.ofMillis(10));
+    List<Integer> sessionSizes = Collections.synchronizedList(new ArrayList<>());
+
+    List<byte[]> reduced =
+        planner.reduce(
+            inputs(16),
+            false,
+            (partition, intermediate) -> {
+              sessionSizes.add(partition.size());
+              return sum(partition);
+            });
+
+    assertThat(sessionSizes).containsExactly(4, 4, 4, 4);
+    assertThat(reduced).hasSize(4);
+    assertThat(reduced.stream().mapToInt((bytes) -> bytes[0]).sum()).isEqualTo(16);
+  }
+
+  @Test
+  public void testReduce_boundedByHeapBudgetConcurrency() {
+    // Only the partial results of 2 partitions fit the heap budget.
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 4, 2);
+    recordSessions(planner, Duration.ofMillis(1), Duration.ofMillis(10));
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+
+    List<byte[]> reduced =
+        planner.reduce(
+            inputs(64),
+            false,
+            (partition, intermediate) -> {
+              maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+              Uninterruptibles.sleepUninterruptibly(Duration.ofMillis(5));
+              running.decrementAndGet();
+              return sum(partition);
+            });
+
+    assertThat(maxRunning.get()).isAtMost(2);
+    assertThat(reduced.stream().mapToInt((bytes) -> bytes[0]).sum()).isEqualTo(64);
+  }
+
+  @Test
+  public void testReduce_rethrowsPartitionFailure() {
+    AggregationTreePlanner planner = new AggregationTreePlanner(false, 4, HEAP_BUDGET);
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            planner.reduce(
+                inputs(16),
+                false,
+                (partition, intermediate) -> {
+                  throw new IllegalStateException("failed");
+                }));
+  }
+
+  @Test
+  public void testRunLayer_boundedByHeapBudgetConcurrencyWithCallerContext() {
+    // Only 2 inputs of 10 bytes fit the heap budget.
+    AggregationTreePlanner planner = new AggregationTreePlanner(true, 4, 20);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    MDC.put("activityId", "job");
+
+    List<byte[]> results;
+    try {
+      results =
+          planner.runLayer(
+              List.of(1, 2, 3, 4, 5, 6, 7, 8),
+              10,
+              (partition) -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Uninterruptibles.sleepUninterruptibly(Duration.ofMillis(5));
+                running.decrementAndGet();
+                return new byte[] {
+                  (byte) (partition * ("job".equals(MDC.get("activityId")) ? 1 : -1))
+                };
+              });
+    } finally {
+      MDC.clear();
+    }
+
+    assertThat(maxRunning.get()).isAtMost(2);
+    assertThat(results.stream().mapToInt((bytes) -> bytes[0]).toArray())
+        .asList()
+        .containsExactly(1, 2, 3, 4, 5, 6, 7, 8)
+        .inOrder();
+  }
+
+  private static void recordSessions(
+      AggregationTreePlanner planner, Duration overhead, Duration inputCost) {
+    for (int inputs = 1; inputs <= 20; inputs++) {
+      planner.recordSession(inputs, overhead.plus(inputCost.multipliedBy(inputs)));
+    }
+  }
+
+  private static List<byte[]> inputs(int count) {
+    List<byte[]> inputs = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      inputs.add(new byte[] {1});
+    }
+    return inputs;
+  }
+
+  private static byte[] sum(List<byte[]> inputs) {
+    return new byte[] {(byte) inputs.stream().mapToInt((bytes) -> bytes[0]).sum()};
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache.ServerPlan;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public final class ServerPlanCacheTest {
+
+  private static final BlobDescription PLAN =
+      BlobDescription.builder().host("bucket").resourceObject("us/35/17/s/0/server_plan").build();
+
+  @Mock BlobDao blobDao;
+  private byte[] plan;
+  private ServerPlanCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    plan = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN)).thenReturn(Optional.of(plan));
+    cache = new ServerPlanCache(blobDao, 64);
+  }
+
+  @Test
+  public void testGet_cachedForSameGeneration() {
+    when(blobDao.getGeneration(PLAN)).thenReturn(Optional.of(1L));
+
+    ServerPlan first = cache.get(PLAN).get();
+    ServerPlan second = cache.get(PLAN).get();
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(first.getBytes()).isEqualTo(plan);
+    assertThat(first.isServerPhaseV2()).isTrue();
+    assertThat(first.getKey()).isEqualTo("bucket/us/35/17/s/0/server_plan#1");
+    verify(blobDao, times(1)).downloadAndDecompressIfNeeded(PLAN);
+  }
+
+  @Test
+  public void testGet_reloadedForNewGeneration() {
+    when(blobDao.getGeneration(PLAN)).thenReturn(Optional.of(1L), Optional.of(2L));
+
+    cache.get(PLAN);
+    cache.get(PLAN);
+
+    verify(blobDao, times(2)).downloadAndDecompressIfNeeded(PLAN);
+  }
+
+  @Test
+  public void testGet_notCachedWithoutGeneration() {
+    when(blobDao.getGeneration(PLAN)).thenReturn(Optional.empty());
+
+    cache.get(PLAN);
+    cache.get(PLAN);
+
+    verify(blobDao, times(2)).downloadAndDecompressIfNeeded(PLAN);
+  }
+
+  @Test
+  public void testGet_missingPlan() {
+    when(blobDao.getGeneration(PLAN)).thenReturn(Optional.of(1L));
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN)).thenReturn(Optional.empty());
+
+    assertThat(cache.get(PLAN)).isEqualTo(Optional.empty());
+    assertThat(cache.get(PLAN)).isEqualTo(Optional.empty());
+    verify(blobDao, times(2)).downloadAndDecompressIfNeeded(PLAN);
+  }
+}
@@ -20,8 +20,10 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -35,13 +37,16 @@ import com.google.fcp.plan.PhaseSessionV2;
 import com.google.fcp.plan.TensorflowPlanSession;
 import com.google.fcp.tensorflow.AppFiles;
 import com.google.fcp.tensorflow.TensorflowException;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.MemoryAdmissionController;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDao;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.BlobDescription;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.dao.IterationEntity;
+import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.ServerPlanCache;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.common.tensorflow.TensorflowPlanSessionFactory;
 import com.google.ondevicepersonalization.federatedcompute.shuffler.modelupdater.core.message.ModelUpdaterMessage;
 import com.google.protobuf.ByteString;
 import com.google.scp.operator.cpio.cryptoclient.DecryptionKeyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
@@ -50,6 +55,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -185,12 +192,30 @@ public final class ModelUpdaterCoreImplTest {
 
   ArgumentCaptor<ByteString> gradientCaptor;
 
+  private ModelUpdaterCoreImpl createCore(boolean enableStreaming) {
+    return new ModelUpdaterCoreImpl(
+        blobDao,
+        instanceSource,
+        tensorflowPlanSessionFactory,
+        new ServerPlanCache(blobDao, 64),
+        decryptionKeyService,
+        appFiles,
+        16,
+        2,
+        8,
+        false,
+        1024,
+        0,
+        512,
+        10,
+        new MemoryAdmissionController(blobDao, new SimpleMeterRegistry(), 0, 60),
+        enableStreaming);
+  }
+
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
-    core =
-        new ModelUpdaterCoreImpl(
-            blobDao, instanceSource, tensorflowPlanSessionFactory, decryptionKeyService, appFiles);
+    core = createCore(false);
     gradient =
         ("{\n"
              + "  \"encryptedPayload\":\"EqHpPLNug0sxrO+C/khNBauZxBFaBDAnm9YsriaW5FIUduNy6JRpSuwVTRu41tMjxA8uuRL5nbyqvKgd7qAKC2PpcmjnrQ4WpO/++a0Z\",\n"
@@ -229,8 +254,8 @@ public final class ModelUpdaterCoreImplTest {
     core.process(MESSAGE2);
 
     // assert
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL1_1), eq(new byte[] {10}));
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL2_1), eq(new byte[] {10}));
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL2_1), eq(new byte[] {10}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT2_1), eq(new byte[] {9}));
     verify(blobDao, times(1))
@@ -286,8 +311,8 @@ public final class ModelUpdaterCoreImplTest {
     core.process(MESSAGE2);
 
     // assert
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL1_1), eq(new byte[] {10}));
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL2_1), eq(new byte[] {10}));
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL2_1), eq(new byte[] {10}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT2_1), eq(new byte[] {9}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_METRICS1_1), any());
@@ -307,6 +332,68 @@ public final class ModelUpdaterCoreImplTest {
     verify(phaseSessionV2, times(2)).getResult(any(), any());
   }
 
+  @Test
+  public void testProcess_streamingMergesIntoCheckpointSession() throws Exception {
+    // arange
+    core = createCore(true);
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan));
+    when(blobDao.downloadAndDecompressIfNeeded(CURRENT_MODEL1)).thenReturn(Optional.of(checkpoint));
+    when(blobDao.downloadAndDecompressIfNeeded(GRADIENT1)).thenReturn(Optional.of(gradient));
+    when(tensorflowPlanSessionFactory.createPlanSession(any())).thenReturn(tensorflowPlanSession);
+    when(tensorflowPlanSession.createPhaseSession(any(), any())).thenReturn(phaseSession);
+    when(phaseSession.toCheckpoint()).thenReturn(ByteString.copyFrom(new byte[] {10}));
+    when(phaseSession.getMetrics()).thenReturn(metricsMap);
+    when(phaseSession.getClientCheckpoint(any())).thenReturn(ByteString.copyFrom(new byte[] {9}));
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+
+    // act
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(3)).downloadAndDecompressIfNeeded(eq(GRADIENT1));
+    // Only the session of the checkpoint is created, the gradients are merged straight into it.
+    verify(tensorflowPlanSession, times(1)).createPhaseSession(any(), any());
+    verify(phaseSession, times(3)).accumulateIntermediateUpdate(gradientCaptor.capture());
+    assertArrayEquals("HelloWorld".getBytes(), gradientCaptor.getValue().toByteArray());
+    verify(phaseSession, never()).toIntermediateUpdate();
+    verify(phaseSession, times(1)).applyAggregatedUpdates();
+  }
+
+  @Test
+  public void testProcessV2_streamingMergesIntoSingleSession() throws Exception {
+    // arange
+    core = createCore(true);
+    byte[] plan2 = getClass().getResourceAsStream("/resources/plan_v2").readAllBytes();
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan2));
+    when(blobDao.downloadAndDecompressIfNeeded(CURRENT_MODEL1)).thenReturn(Optional.of(checkpoint));
+    when(blobDao.downloadAndDecompressIfNeeded(GRADIENT1)).thenReturn(Optional.of(gradient));
+    when(tensorflowPlanSessionFactory.createAggregationSession(any()))
+        .thenReturn(aggregationSession);
+    when(tensorflowPlanSessionFactory.createPhaseSessionV2(any())).thenReturn(phaseSessionV2);
+    when(aggregationSession.report()).thenReturn(new byte[] {10});
+    when(phaseSessionV2.getClientCheckpoint(any()))
+        .thenReturn(
+            PhaseSessionV2.IntermediateResult.create(
+                ByteString.copyFrom(new byte[] {9}), ByteString.copyFrom(new byte[] {9})));
+    when(phaseSessionV2.getResult(any(), any()))
+        .thenReturn(
+            PhaseSessionV2.Result.create(ByteString.copyFrom(new byte[] {10}), metricsMapV2));
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+
+    // act
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(tensorflowPlanSessionFactory, times(1)).createAggregationSession(any());
+    verify(aggregationSession, times(3)).mergeWith(any());
+    verify(aggregationSession, never()).serialize();
+    verify(aggregationSession, times(1)).report();
+  }
+
   @Test
   public void testProcess_FailedToUpload() throws Exception {
     // arange
@@ -323,7 +410,7 @@ public final class ModelUpdaterCoreImplTest {
     when(phaseSession.toCheckpoint()).thenReturn(ByteString.copyFrom(new byte[] {10}));
     when(phaseSession.getMetrics()).thenReturn(metricsMap);
     when(phaseSession.getClientCheckpoint(any())).thenReturn(ByteString.copyFrom(new byte[] {9}));
-    doThrow(new IOException()).when(blobDao).compressAndUpload(eq(NEW_MODEL1_1), any());
+    doThrow(new IOException()).when(blobDao).compressAndUploadInternal(eq(NEW_MODEL1_1), any());
     when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
     when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
     when(phaseSession.toIntermediateUpdate()).thenReturn(ByteString.copyFrom(new byte[] {10}));
@@ -332,11 +419,13 @@ public final class ModelUpdaterCoreImplTest {
     assertThrows(RuntimeException.class, () -> core.process(MESSAGE1));
 
     // assert
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL1_1), eq(new byte[] {10}));
-    verify(blobDao, times(0))
+    // The outputs are uploaded concurrently, the message fails once all the uploads are done.
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(1))
         .compressAndUpload(
             eq(NEW_METRICS1_1), eq("{\"key1\":1.0}".getBytes(StandardCharsets.UTF_8)));
-    verify(blobDao, times(0)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
+    verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
+    verify(blobDao, never()).getGeneration(eq(NEW_MODEL1_1));
     verify(blobDao, times(1)).downloadAndDecompressIfNeeded(eq(PLAN_1));
     verify(blobDao, times(1)).downloadAndDecompressIfNeeded(eq(CURRENT_MODEL1));
     verify(blobDao, times(3)).downloadAndDecompressIfNeeded(eq(GRADIENT1));
@@ -345,8 +434,52 @@ public final class ModelUpdaterCoreImplTest {
     verify(phaseSession, times(1)).applyAggregatedUpdates();
     verify(phaseSession, times(5)).accumulateIntermediateUpdate(any());
     verify(phaseSession, times(1)).toCheckpoint();
-    verify(phaseSession, times(0)).getMetrics();
-    verify(phaseSession, times(0)).getClientCheckpoint(any());
+    verify(phaseSession, times(1)).getMetrics();
+    verify(phaseSession, times(1)).getClientCheckpoint(any());
+  }
+
+  @Test
+  public void testProcess_outputsUploadedConcurrently() throws Exception {
+    // arange
+    when(blobDao.downloadAndDecompressIfNeeded(PLAN_1)).thenReturn(Optional.of(plan));
+    when(blobDao.downloadAndDecompressIfNeeded(CURRENT_MODEL1)).thenReturn(Optional.of(checkpoint));
+    when(blobDao.downloadAndDecompressIfNeeded(GRADIENT1)).thenReturn(Optional.of(gradient));
+    when(tensorflowPlanSessionFactory.createPlanSession(any())).thenReturn(tensorflowPlanSession);
+    when(tensorflowPlanSession.createPhaseSession(any(), any())).thenReturn(phaseSession);
+    when(phaseSession.toCheckpoint()).thenReturn(ByteString.copyFrom(new byte[] {10}));
+    when(phaseSession.getMetrics()).thenReturn(metricsMap);
+    when(phaseSession.getClientCheckpoint(any())).thenReturn(ByteString.copyFrom(new byte[] {9}));
+    when(decryptionKeyService.getDecrypter(any())).thenReturn(hybridDecrypt);
+    when(hybridDecrypt.decrypt(any(), any())).thenReturn(Base64.decode(GZIP_GRADIENT));
+    when(phaseSession.toIntermediateUpdate()).thenReturn(ByteString.copyFrom(new byte[] {10}));
+    // The checkpoint upload only completes once the client checkpoint upload has started.
+    CountDownLatch clientCheckpointUploadStarted = new CountDownLatch(1);
+    doAnswer(
+            (invocation) -> {
+              if (!clientCheckpointUploadStarted.await(30, TimeUnit.SECONDS)) {
+                throw new IOException("Uploads not concurrent.");
+              }
+              return null;
+            })
+        .when(blobDao)
+        .compressAndUploadInternal(eq(NEW_MODEL1_1), any());
+    doAnswer(
+            (invocation) -> {
+              clientCheckpointUploadStarted.countDown();
+              return null;
+            })
+        .when(blobDao)
+        .compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), any());
+
+    // act
+    core.process(MESSAGE1);
+
+    // assert
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(1))
+        .compressAndUpload(
+            eq(NEW_METRICS1_1), eq("{\"key1\":1.0}".getBytes(StandardCharsets.UTF_8)));
+    verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
   }
 
   @Test
@@ -403,7 +536,7 @@ public final class ModelUpdaterCoreImplTest {
             .build());
 
     // assert
-    verify(blobDao, times(1)).compressAndUpload(eq(NEW_MODEL1_1), eq(new byte[] {10}));
+    verify(blobDao, times(1)).compressAndUploadInternal(eq(NEW_MODEL1_1), eq(new byte[] {10}));
     verify(blobDao, times(1)).compressAndUpload(eq(NEW_CLIENT_CHECKPOINT1_1), eq(new byte[] {9}));
     verify(blobDao, times(1))
         .compressAndUpload(
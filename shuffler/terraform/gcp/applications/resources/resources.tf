@@ -344,3 +344,220 @@ module "enable_aggregation_success_notifications" {
   parameter_value = var.enable_aggregation_success_notifications
 }
 
+module "collector_max_outstanding_publishes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_MAX_OUTSTANDING_PUBLISHES"
+  parameter_value = var.collector_max_outstanding_publishes
+}
+
+module "enable_collector_stateful_mode" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_COLLECTOR_STATEFUL_MODE"
+  parameter_value = var.enable_collector_stateful_mode
+}
+
+module "collector_state_reconcile_interval_seconds" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_STATE_RECONCILE_INTERVAL_SECONDS"
+  parameter_value = var.collector_state_reconcile_interval_seconds
+}
+
+module "collector_aggregation_fan_in" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_AGGREGATION_FAN_IN"
+  parameter_value = var.collector_aggregation_fan_in
+}
+
+module "enable_collector_adaptive_batch_size" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_COLLECTOR_ADAPTIVE_BATCH_SIZE"
+  parameter_value = var.enable_collector_adaptive_batch_size
+}
+
+module "collector_min_batch_size" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_MIN_BATCH_SIZE"
+  parameter_value = var.collector_min_batch_size
+}
+
+module "collector_max_batch_size" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_MAX_BATCH_SIZE"
+  parameter_value = var.collector_max_batch_size
+}
+
+module "collector_max_batch_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_MAX_BATCH_MEGABYTES"
+  parameter_value = var.collector_max_batch_megabytes
+}
+
+module "enable_aggregator_streaming" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_AGGREGATOR_STREAMING"
+  parameter_value = var.enable_aggregator_streaming
+}
+
+module "aggregator_streaming_window_size" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATOR_STREAMING_WINDOW_SIZE"
+  parameter_value = var.aggregator_streaming_window_size
+}
+
+module "gradient_download_concurrency" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "GRADIENT_DOWNLOAD_CONCURRENCY"
+  parameter_value = var.gradient_download_concurrency
+}
+
+module "gradient_decrypt_parallelism" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "GRADIENT_DECRYPT_PARALLELISM"
+  parameter_value = var.gradient_decrypt_parallelism
+}
+
+module "gradient_fetch_queue_capacity" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "GRADIENT_FETCH_QUEUE_CAPACITY"
+  parameter_value = var.gradient_fetch_queue_capacity
+}
+
+module "server_plan_cache_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "SERVER_PLAN_CACHE_MEGABYTES"
+  parameter_value = var.server_plan_cache_megabytes
+}
+
+module "enable_aggregation_tree_planner" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_AGGREGATION_TREE_PLANNER"
+  parameter_value = var.enable_aggregation_tree_planner
+}
+
+module "aggregation_heap_budget_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATION_HEAP_BUDGET_MEGABYTES"
+  parameter_value = var.aggregation_heap_budget_megabytes
+}
+
+module "aggregation_session_pool_size" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATION_SESSION_POOL_SIZE"
+  parameter_value = var.aggregation_session_pool_size
+}
+
+module "aggregation_session_pool_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATION_SESSION_POOL_MEGABYTES"
+  parameter_value = var.aggregation_session_pool_megabytes
+}
+
+module "aggregator_co_scheduling_linger_millis" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATOR_CO_SCHEDULING_LINGER_MILLIS"
+  parameter_value = var.aggregator_co_scheduling_linger_millis
+}
+
+module "enable_aggregation_checkpoints" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_AGGREGATION_CHECKPOINTS"
+  parameter_value = var.enable_aggregation_checkpoints
+}
+
+module "worker_memory_budget_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "WORKER_MEMORY_BUDGET_MEGABYTES"
+  parameter_value = var.worker_memory_budget_megabytes
+}
+
+module "memory_admission_timeout_seconds" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "MEMORY_ADMISSION_TIMEOUT_SECONDS"
+  parameter_value = var.memory_admission_timeout_seconds
+}
+
+module "enable_model_updater_streaming" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "ENABLE_MODEL_UPDATER_STREAMING"
+  parameter_value = var.enable_model_updater_streaming
+}
+
+module "collector_model_updater_fan_in" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "COLLECTOR_MODEL_UPDATER_FAN_IN"
+  parameter_value = var.collector_model_updater_fan_in
+}
+
+module "server_blob_compression_format" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "SERVER_BLOB_COMPRESSION_FORMAT"
+  parameter_value = var.server_blob_compression_format
+}
+
+module "server_blob_compression_level" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "SERVER_BLOB_COMPRESSION_LEVEL"
+  parameter_value = var.server_blob_compression_level
+}
+
+module "parallel_download_threshold_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "PARALLEL_DOWNLOAD_THRESHOLD_MEGABYTES"
+  parameter_value = var.parallel_download_threshold_megabytes
+}
+
+module "parallel_download_part_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "PARALLEL_DOWNLOAD_PART_MEGABYTES"
+  parameter_value = var.parallel_download_part_megabytes
+}
+
+module "blob_disk_cache_megabytes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "BLOB_DISK_CACHE_MEGABYTES"
+  parameter_value = var.blob_disk_cache_megabytes
+}
+
+module "blob_disk_cache_directory" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "BLOB_DISK_CACHE_DIRECTORY"
+  parameter_value = var.blob_disk_cache_directory
+}
+
+module "aggregation_session_pool_idle_minutes" {
+  source          = "../../modules/parameters"
+  environment     = var.environment
+  parameter_name  = "AGGREGATION_SESSION_POOL_IDLE_MINUTES"
+  parameter_value = var.aggregation_session_pool_idle_minutes
+}
+
@@ -98,7 +98,28 @@ module "aggregator" {
     module.service_account_a,
     module.service_account_b,
     module.aggregator_subscriber_max_outstanding_element_count,
-    module.enable_aggregation_success_notifications
+    module.enable_aggregation_success_notifications,
+    module.enable_aggregator_streaming,
+    module.aggregator_streaming_window_size,
+    module.gradient_download_concurrency,
+    module.gradient_decrypt_parallelism,
+    module.gradient_fetch_queue_capacity,
+    module.server_plan_cache_megabytes,
+    module.enable_aggregation_tree_planner,
+    module.aggregation_heap_budget_megabytes,
+    module.aggregation_session_pool_size,
+    module.aggregation_session_pool_megabytes,
+    module.aggregation_session_pool_idle_minutes,
+    module.aggregator_co_scheduling_linger_millis,
+    module.enable_aggregation_checkpoints,
+    module.worker_memory_budget_megabytes,
+    module.memory_admission_timeout_seconds,
+    module.server_blob_compression_format,
+    module.server_blob_compression_level,
+    module.parallel_download_threshold_megabytes,
+    module.parallel_download_part_megabytes,
+    module.blob_disk_cache_megabytes,
+    module.blob_disk_cache_directory
   ]
 }
 
@@ -139,7 +160,25 @@ module "model_updater" {
     module.wip_provider_b,
     module.service_account_a,
     module.service_account_b,
-    module.model_updater_subscriber_max_outstanding_element_count
+    module.model_updater_subscriber_max_outstanding_element_count,
+    module.gradient_download_concurrency,
+    module.gradient_decrypt_parallelism,
+    module.gradient_fetch_queue_capacity,
+    module.server_plan_cache_megabytes,
+    module.enable_aggregation_tree_planner,
+    module.aggregation_heap_budget_megabytes,
+    module.aggregation_session_pool_size,
+    module.aggregation_session_pool_megabytes,
+    module.aggregation_session_pool_idle_minutes,
+    module.worker_memory_budget_megabytes,
+    module.memory_admission_timeout_seconds,
+    module.enable_model_updater_streaming,
+    module.server_blob_compression_format,
+    module.server_blob_compression_level,
+    module.parallel_download_threshold_megabytes,
+    module.parallel_download_part_megabytes,
+    module.blob_disk_cache_megabytes,
+    module.blob_disk_cache_directory
   ]
 }
 
@@ -64,4 +64,35 @@ module "shuffler" {
   aggregation_batch_failure_threshold                    = var.aggregation_batch_failure_threshold
   enable_exactly_once_delivery                           = var.enable_exactly_once_delivery
   enable_aggregation_success_notifications               = var.enable_aggregation_success_notifications
+  collector_max_outstanding_publishes                    = var.collector_max_outstanding_publishes
+  enable_collector_stateful_mode                         = var.enable_collector_stateful_mode
+  collector_state_reconcile_interval_seconds             = var.collector_state_reconcile_interval_seconds
+  collector_aggregation_fan_in                           = var.collector_aggregation_fan_in
+  enable_collector_adaptive_batch_size                   = var.enable_collector_adaptive_batch_size
+  collector_min_batch_size                               = var.collector_min_batch_size
+  collector_max_batch_size                               = var.collector_max_batch_size
+  collector_max_batch_megabytes                          = var.collector_max_batch_megabytes
+  enable_aggregator_streaming                            = var.enable_aggregator_streaming
+  aggregator_streaming_window_size                       = var.aggregator_streaming_window_size
+  gradient_download_concurrency                          = var.gradient_download_concurrency
+  gradient_decrypt_parallelism                           = var.gradient_decrypt_parallelism
+  gradient_fetch_queue_capacity                          = var.gradient_fetch_queue_capacity
+  server_plan_cache_megabytes                            = var.server_plan_cache_megabytes
+  enable_aggregation_tree_planner                        = var.enable_aggregation_tree_planner
+  aggregation_heap_budget_megabytes                      = var.aggregation_heap_budget_megabytes
+  aggregation_session_pool_size                          = var.aggregation_session_pool_size
+  aggregation_session_pool_megabytes                     = var.aggregation_session_pool_megabytes
+  aggregator_co_scheduling_linger_millis                 = var.aggregator_co_scheduling_linger_millis
+  enable_aggregation_checkpoints                         = var.enable_aggregation_checkpoints
+  worker_memory_budget_megabytes                         = var.worker_memory_budget_megabytes
+  memory_admission_timeout_seconds                       = var.memory_admission_timeout_seconds
+  enable_model_updater_streaming                         = var.enable_model_updater_streaming
+  collector_model_updater_fan_in                         = var.collector_model_updater_fan_in
+  server_blob_compression_format                         = var.server_blob_compression_format
+  server_blob_compression_level                          = var.server_blob_compression_level
+  parallel_download_threshold_megabytes                  = var.parallel_download_threshold_megabytes
+  parallel_download_part_megabytes                       = var.parallel_download_part_megabytes
+  blob_disk_cache_megabytes                              = var.blob_disk_cache_megabytes
+  blob_disk_cache_directory                              = var.blob_disk_cache_directory
+  aggregation_session_pool_idle_minutes                  = var.aggregation_session_pool_idle_minutes
 }
\ No newline at end of file
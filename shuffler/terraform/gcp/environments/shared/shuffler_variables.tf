@@ -481,4 +481,190 @@ variable "enable_aggregation_success_notifications" {
   description = "Enable success notifications for aggregation jobs."
   type        = bool
   default     = false
+}
+
+variable "collector_max_outstanding_publishes" {
+  description = "The maximum number of aggregation batch messages the collector publishes concurrently."
+  type        = number
+  default     = 20
+}
+
+variable "enable_collector_stateful_mode" {
+  description = "Keep the progress of the locked iterations in the collector memory and reconcile it with the database periodically."
+  type        = bool
+  default     = false
+}
+
+variable "collector_state_reconcile_interval_seconds" {
+  description = "The interval in seconds after which the collector reconciles the in-memory progress of an iteration with the database."
+  type        = number
+  default     = 30
+}
+
+variable "collector_aggregation_fan_in" {
+  description = "Maximum number of intermediates combined by a single aggregation before another level of intermediate aggregation is added."
+  type        = number
+  default     = 500
+}
+
+variable "enable_collector_adaptive_batch_size" {
+  description = "Choose the aggregation batch size of each iteration from the observed upload rate, aggregation latency and gradient size."
+  type        = bool
+  default     = false
+}
+
+variable "collector_min_batch_size" {
+  description = "Lower bound of the adaptive aggregation batch size."
+  type        = number
+  default     = 10
+}
+
+variable "collector_max_batch_size" {
+  description = "Upper bound of the adaptive aggregation batch size."
+  type        = number
+  default     = 500
+}
+
+variable "collector_max_batch_megabytes" {
+  description = "Maximum total size in megabytes of the gradients of an adaptively sized aggregation batch."
+  type        = number
+  default     = 256
+}
+
+variable "enable_aggregator_streaming" {
+  description = "Enable streaming aggregation, accumulating gradients in waves as they are downloaded."
+  type        = bool
+  default     = false
+}
+
+variable "aggregator_streaming_window_size" {
+  description = "The number of gradients downloaded per wave in streaming aggregation."
+  type        = number
+  default     = 16
+}
+
+variable "gradient_download_concurrency" {
+  description = "The number of gradients downloaded concurrently by an aggregation job."
+  type        = number
+  default     = 64
+}
+
+variable "gradient_decrypt_parallelism" {
+  description = "The number of threads decrypting downloaded gradients. 0 uses the number of available processors."
+  type        = number
+  default     = 0
+}
+
+variable "gradient_fetch_queue_capacity" {
+  description = "The maximum number of downloaded gradients waiting to be decrypted."
+  type        = number
+  default     = 128
+}
+
+variable "server_plan_cache_megabytes" {
+  description = "The maximum total size in megabytes of the server plans cached by a worker."
+  type        = number
+  default     = 64
+}
+
+variable "enable_aggregation_tree_planner" {
+  description = "Enable choosing the shape of the in-memory aggregation tree from a cost model."
+  type        = bool
+  default     = false
+}
+
+variable "aggregation_heap_budget_megabytes" {
+  description = "The heap in megabytes available to the partial results of an aggregation tree."
+  type        = number
+  default     = 1024
+}
+
+variable "aggregation_session_pool_size" {
+  description = "Number of aggregation sessions constructed ahead of time per plan. 0 constructs sessions on demand."
+  type        = number
+  default     = 0
+}
+
+variable "aggregation_session_pool_megabytes" {
+  description = "Estimated native memory in megabytes held by pooled aggregation sessions."
+  type        = number
+  default     = 512
+}
+
+variable "aggregator_co_scheduling_linger_millis" {
+  description = "Milliseconds an aggregator waits for other messages of the same iteration to process them together. 0 processes messages one by one."
+  type        = number
+  default     = 0
+}
+
+variable "enable_aggregation_checkpoints" {
+  description = "Whether the aggregator stores partial results so that a retried batch only aggregates missing partitions."
+  type        = bool
+  default     = false
+}
+
+variable "worker_memory_budget_megabytes" {
+  description = "Estimated memory in megabytes a worker admits for concurrent messages. 0 admits every message."
+  type        = number
+  default     = 0
+}
+
+variable "memory_admission_timeout_seconds" {
+  description = "Seconds a message waits for memory before it is rejected for redelivery."
+  type        = number
+  default     = 60
+}
+
+variable "enable_model_updater_streaming" {
+  description = "Enable streaming model updates, merging intermediate gradients as they are downloaded."
+  type        = bool
+  default     = false
+}
+
+variable "collector_model_updater_fan_in" {
+  description = "The maximum number of intermediates combined by the model updater. More intermediates are first combined concurrently by the aggregators."
+  type        = number
+  default     = 100
+}
+
+variable "server_blob_compression_format" {
+  description = "The compression format of the blobs only read by the server, such as checkpoints and intermediate aggregation results. One of gzip, zstd or lz4."
+  type        = string
+  default     = "gzip"
+}
+
+variable "server_blob_compression_level" {
+  description = "The compression level of the blobs only read by the server, or 0 for the default level of the compression format. gzip takes 1 to 9, zstd its negative fast levels up to 22, and lz4 1 to 12, where levels below 9 are tuned for speed and levels from 9 for the compression ratio."
+  type        = number
+  default     = 0
+}
+
+variable "parallel_download_threshold_megabytes" {
+  description = "The size in megabytes from which blobs are downloaded as ranges fetched concurrently."
+  type        = number
+  default     = 64
+}
+
+variable "parallel_download_part_megabytes" {
+  description = "The size in megabytes of the ranges of the blobs downloaded concurrently."
+  type        = number
+  default     = 16
+}
+
+variable "blob_disk_cache_megabytes" {
+  description = "The size in megabytes of the local disk cache of the plans and checkpoints. 0 disables the cache."
+  type        = number
+  default     = 0
+}
+
+variable "blob_disk_cache_directory" {
+  description = "The local directory of the disk cache of the plans and checkpoints."
+  type        = string
+  default     = "/tmp/shuffler-blob-cache"
+}
+
+variable "aggregation_session_pool_idle_minutes" {
+  description = "The minutes after which the pooled aggregation sessions of a plan not used anymore are closed."
+  type        = number
+  default     = 10
 }
\ No newline at end of file